@@ -0,0 +1,264 @@
+
+/*
+ * de.unkrig.find - An advanced version of the UNIX FIND utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.find;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.zz.find.Find.ChecksumAction.ChecksumType;
+
+/**
+ * Wraps the contents of a document and computes its size, its CRC32, and any number of message digests and
+ * checksums, while the contents is being read, so that the contents has to be read only once.
+ * <p>
+ *   All reads through this stream (e.g. by "-cat", "-copy" or "-pipe") update the accumulators; the methods that
+ *   return a result (e.g. {@link #digest(String)}) first read the rest of the contents (if any), and memorize their
+ *   result. Thus, e.g. "-digest MD5 -checksum CRC32 -size +1" read the contents exactly once.
+ * </p>
+ * <p>
+ *   All digests and checksums must be registered before the first byte is read; typically they are derived from
+ *   the {@link Find.DigestAction}s and {@link Find.ChecksumAction}s of the expression.
+ * </p>
+ * <p>
+ *   If a {@link DigestCache} is configured, then digests and checksums are taken from the cache iff the document
+ *   is unchanged, and are stored in the cache after they were computed.
+ * </p>
+ */
+final
+class ContentFanOut extends FilterInputStream {
+
+    private final CRC32                       crc32     = new CRC32();
+    private final Map<String, MessageDigest>  digests   = new HashMap<String, MessageDigest>();
+    private final Map<ChecksumType, Checksum> checksums = new HashMap<ChecksumType, Checksum>();
+    private final Map<String, byte[]>         results   = new HashMap<String, byte[]>();
+
+    @Nullable private final DigestCache     cache;
+    @Nullable private final DigestCache.Key cacheKey;
+
+    private long    size;
+    private boolean started, ended;
+
+    /**
+     * @param digestAlgorithms The algorithms of the {@link MessageDigest}s to compute
+     * @param checksumTypes    The types of the {@link Checksum}s to compute
+     * @param cache            Where digests and checksums are looked up and stored
+     * @param cacheKey         Identifies the document in the <var>cache</var>; {@code null} disables caching
+     */
+    ContentFanOut(
+        InputStream               in,
+        Collection<String>        digestAlgorithms,
+        Collection<ChecksumType>  checksumTypes,
+        @Nullable DigestCache     cache,
+        @Nullable DigestCache.Key cacheKey
+    ) {
+        super(in);
+        this.cache    = cache;
+        this.cacheKey = cacheKey;
+
+        for (String algorithm : digestAlgorithms) {
+            try {
+                this.digests.put(algorithm, MessageDigest.getInstance(algorithm));
+            } catch (NoSuchAlgorithmException nsae) {
+
+                // Report the problem when (and if) the digest is requested.
+                ;
+            }
+        }
+
+        for (ChecksumType checksumType : checksumTypes) this.checksums.put(checksumType, checksumType.newChecksum());
+    }
+
+    @Override public int
+    read() throws IOException {
+
+        int b = this.in.read();
+        if (b == -1) {
+            this.ended = true;
+        } else {
+            this.update(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    @Override public int
+    read(byte[] b, int off, int len) throws IOException {
+
+        int n = this.in.read(b, off, len);
+        if (n == -1) {
+            this.ended = true;
+        } else {
+            this.update(b, off, n);
+        }
+        return n;
+    }
+
+    @Override public long
+    skip(long n) throws IOException {
+
+        // Skipped bytes must be fed to the accumulators, too.
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+
+        long result = 0;
+        while (result < n) {
+            int m = this.read(buffer, 0, (int) Math.min(n - result, buffer.length));
+            if (m == -1) break;
+            result += m;
+        }
+        return result;
+    }
+
+    @Override public boolean
+    markSupported() { return false; }
+
+    @Override public void
+    mark(int readlimit) {}
+
+    @Override public void
+    reset() throws IOException { throw new IOException("mark/reset not supported"); }
+
+    /**
+     * @return The number of bytes of the contents
+     */
+    public long
+    size() throws IOException {
+        this.readRest();
+        return this.size;
+    }
+
+    /**
+     * @return The CRC32 of the contents
+     */
+    public int
+    crc() throws IOException {
+        this.readRest();
+        return (int) this.crc32.getValue();
+    }
+
+    /**
+     * @return The message digest of the contents
+     */
+    public byte[]
+    digest(String algorithm) throws IOException, NoSuchAlgorithmException {
+
+        byte[] result = this.results.get(algorithm);
+        if (result != null) return result;
+
+        DigestCache     cache = this.cache;
+        DigestCache.Key key   = this.cacheKey;
+        if (cache != null && key != null) {
+            result = cache.get(key, "digest:" + algorithm);
+            if (result != null) {
+                this.results.put(algorithm, result);
+                return result;
+            }
+        }
+
+        MessageDigest md = this.digests.get(algorithm);
+        if (md == null) {
+            md = MessageDigest.getInstance(algorithm);
+            if (this.started) {
+                throw new IllegalStateException(
+                    "Digest \"" + algorithm + "\" was not requested before the contents was read"
+                );
+            }
+            this.digests.put(algorithm, md);
+        }
+
+        this.readRest();
+
+        this.results.put(algorithm, (result = md.digest()));
+        if (cache != null && key != null) cache.put(key, "digest:" + algorithm, result);
+        return result;
+    }
+
+    /**
+     * @return The checksum of the contents
+     */
+    public long
+    checksum(ChecksumType checksumType) throws IOException {
+
+        DigestCache     cache = this.cache;
+        DigestCache.Key key   = this.cacheKey;
+        if (cache != null && key != null) {
+            byte[] cached = cache.get(key, "checksum:" + checksumType);
+            if (cached != null && cached.length == 8) return ByteBuffer.wrap(cached).getLong();
+        }
+
+        Checksum cs = this.checksums.get(checksumType);
+        if (cs == null) {
+            if (this.started) {
+                throw new IllegalStateException(
+                    "Checksum \"" + checksumType + "\" was not requested before the contents was read"
+                );
+            }
+            this.checksums.put(checksumType, (cs = checksumType.newChecksum()));
+        }
+
+        this.readRest();
+
+        long result = cs.getValue();
+        if (cache != null && key != null) {
+            cache.put(key, "checksum:" + checksumType, ByteBuffer.allocate(8).putLong(result).array());
+        }
+        return result;
+    }
+
+    /**
+     * @return Whether the contents were already read completely, so that the results are available without further
+     *         I/O
+     */
+    boolean
+    isExhausted() { return this.ended; }
+
+    private void
+    readRest() throws IOException {
+
+        byte[] buffer = new byte[8192];
+        while (!this.ended) this.read(buffer, 0, buffer.length);
+    }
+
+    private void
+    update(byte[] b, int off, int len) {
+
+        this.started = true;
+
+        this.size += len;
+        this.crc32.update(b, off, len);
+        for (MessageDigest md : this.digests.values()) md.update(b, off, len);
+        for (Checksum cs : this.checksums.values()) cs.update(b, off, len);
+    }
+}
@@ -0,0 +1,313 @@
+
+/*
+ * de.unkrig.find - An advanced version of the UNIX FIND utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.find;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A persistent store of message digests and checksums, keyed by the (nested, absolute) path, the size, the modification
+ * time and (for archive entries) the CRC of the document. Because the nightly inventory of a large tree typically
+ * finds almost all documents unchanged, {@link Find.DigestAction} and {@link Find.ChecksumAction} can then answer
+ * from the cache without reading the contents.
+ * <p>
+ *   The cache file is an append-only log of records; the entire log is read into a hash table on construction,
+ *   where later records supersede earlier records for the same path and kind. New records are buffered and
+ *   appended in batches. {@link #close()} rewrites the file (atomically) iff it contains many superseded records.
+ *   A partially written record at the end of the file (e.g. after a crash) is silently cut off.
+ * </p>
+ * <p>
+ *   The methods of this class are thread-safe.
+ * </p>
+ */
+public final
+class DigestCache implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x7a7a6463; // "zzdc"
+
+    /** Flush the pending records when their total length exceeds this threshold. */
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    private final File                     file;
+    private final Map<String, CacheRecord> records = new HashMap<String, CacheRecord>();
+
+    /** The number of records in the file (including superseded records) plus the number of pending records. */
+    private int recordCount;
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    @Nullable private OutputStream      out;
+
+    /**
+     * Identifies one document for the purpose of caching. {@code -1} indicates that the size, the modification time
+     * or the CRC, respectively, is unknown.
+     */
+    static final
+    class Key {
+
+        final String path;
+        final long   size, lastModified, crc;
+
+        Key(String path, long size, long lastModified, long crc) {
+            this.path         = path;
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.crc          = crc;
+        }
+    }
+
+    private static final
+    class CacheRecord {
+
+        final long   size, lastModified, crc;
+        final byte[] value;
+
+        CacheRecord(long size, long lastModified, long crc, byte[] value) {
+            this.size         = size;
+            this.lastModified = lastModified;
+            this.crc          = crc;
+            this.value        = value;
+        }
+    }
+
+    /**
+     * Loads the cache from the <var>file</var>, or creates an empty cache if the <var>file</var> does not exist.
+     */
+    public
+    DigestCache(File file) throws IOException {
+        this.file = file;
+
+        DataInputStream dis;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException fnfe) {
+            return;
+        }
+
+        long validLength = 0;
+        try {
+            if (dis.readInt() != DigestCache.MAGIC) throw new IOException(file + ": Not a digest cache file");
+            validLength = 4;
+            for (;;) {
+                int    pathLength = dis.readUnsignedShort();
+                String path       = DigestCache.readString(dis, pathLength);
+                String kind       = DigestCache.readString(dis, dis.readUnsignedByte());
+
+                long   size         = dis.readLong();
+                long   lastModified = dis.readLong();
+                long   crc          = dis.readLong();
+                byte[] value        = new byte[dis.readUnsignedByte()];
+                dis.readFully(value);
+
+                this.records.put(DigestCache.mapKey(path, kind), new CacheRecord(size, lastModified, crc, value));
+                this.recordCount++;
+                validLength += 2 + pathLength + 1 + kind.length() + 3 * 8 + 1 + value.length;
+            }
+        } catch (EOFException eofe) {
+            ;
+        } finally {
+            dis.close();
+        }
+
+        // Cut off a partially written record at the end of the file.
+        if (file.length() > validLength) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * @return The contents-derived value (e.g. a message digest) that was stored for the given path and kind, or
+     *         {@code null} iff no value was stored, or the size, the modification time or the CRC of the document
+     *         has changed since
+     */
+    @Nullable synchronized byte[]
+    get(Key key, String kind) {
+
+        CacheRecord r = this.records.get(DigestCache.mapKey(key.path, kind));
+        if (r == null || r.size != key.size || r.lastModified != key.lastModified || r.crc != key.crc) return null;
+
+        return r.value;
+    }
+
+    /**
+     * Stores the <var>value</var> for the given document and kind. The record is written to the cache file lazily.
+     */
+    synchronized void
+    put(Key key, String kind, byte[] value) throws IOException {
+
+        CacheRecord r = this.records.get(DigestCache.mapKey(key.path, kind));
+        if (
+            r != null
+            && r.size == key.size
+            && r.lastModified == key.lastModified
+            && r.crc == key.crc
+            && Arrays.equals(r.value, value)
+        ) return;
+
+        byte[] path = key.path.getBytes(DigestCache.UTF_8);
+        if (path.length > 0xffff || kind.length() > 0xff || value.length > 0xff) return; // Cannot be stored.
+
+        r = new CacheRecord(key.size, key.lastModified, key.crc, value);
+        this.records.put(DigestCache.mapKey(key.path, kind), r);
+        this.recordCount++;
+
+        DigestCache.writeRecord(new DataOutputStream(this.pending), path, kind, r);
+        if (this.pending.size() >= DigestCache.BATCH_SIZE) this.flush();
+    }
+
+    /**
+     * Appends all pending records to the cache file.
+     */
+    public synchronized void
+    flush() throws IOException {
+
+        if (this.pending.size() == 0) return;
+
+        OutputStream os = this.out;
+        if (os == null) {
+            boolean empty = this.file.length() == 0;
+            this.out = (os = new FileOutputStream(this.file, true));
+            if (empty) new DataOutputStream(os).writeInt(DigestCache.MAGIC);
+        }
+
+        this.pending.writeTo(os);
+        this.pending.reset();
+        os.flush();
+    }
+
+    /**
+     * Writes all pending records to the cache file, and compacts it iff more than half of its records are
+     * superseded.
+     */
+    @Override public synchronized void
+    close() throws IOException {
+
+        if (this.recordCount > 2 * this.records.size()) {
+            this.compact();
+        } else {
+            this.flush();
+        }
+
+        OutputStream os = this.out;
+        if (os != null) {
+            os.close();
+            this.out = null;
+        }
+    }
+
+    /**
+     * Rewrites the cache file with only the current records, and atomically replaces the original file.
+     */
+    private void
+    compact() throws IOException {
+
+        OutputStream os = this.out;
+        if (os != null) {
+            os.close();
+            this.out = null;
+        }
+
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            dos.writeInt(DigestCache.MAGIC);
+            for (Map.Entry<String, CacheRecord> e : this.records.entrySet()) {
+                String mapKey = e.getKey();
+                int    idx    = mapKey.indexOf('\0');
+                DigestCache.writeRecord(
+                    dos,
+                    mapKey.substring(idx + 1).getBytes(DigestCache.UTF_8),
+                    mapKey.substring(0, idx),
+                    e.getValue()
+                );
+            }
+            dos.close();
+        } finally {
+            try { dos.close(); } catch (Exception e) {}
+        }
+
+        Files.move(
+            tmpFile.toPath(),
+            this.file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE
+        );
+
+        this.pending.reset();
+        this.recordCount = this.records.size();
+    }
+
+    private static void
+    writeRecord(DataOutputStream dos, byte[] path, String kind, CacheRecord r) throws IOException {
+        dos.writeShort(path.length);
+        dos.write(path);
+        dos.writeByte(kind.length());
+        dos.writeBytes(kind);
+        dos.writeLong(r.size);
+        dos.writeLong(r.lastModified);
+        dos.writeLong(r.crc);
+        dos.writeByte(r.value.length);
+        dos.write(r.value);
+    }
+
+    private static String
+    readString(DataInputStream dis, int length) throws IOException {
+        byte[] ba = new byte[length];
+        dis.readFully(ba);
+        return new String(ba, DigestCache.UTF_8);
+    }
+
+    private static String
+    mapKey(String path, String kind) { return kind + '\0' + path; }
+}
@@ -0,0 +1,231 @@
+
+/*
+ * de.unkrig.find - An advanced version of the UNIX FIND utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.find;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import de.unkrig.commons.lang.ThreadUtil;
+import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Writes files in background threads, so that the traversal can proceed (e.g. to the next archive entry) while the
+ * contents of earlier entries is still being written.
+ * <p>
+ *   The data is handed over from the traversal thread to the writer thread through a bounded queue of chunks; thus
+ *   the memory consumption is limited to roughly <var>threadCount</var>{@code * 4 * }{@value #MAX_CHUNKS_PER_FILE}
+ *   {@code * }{@value #CHUNK_SIZE} bytes.
+ * </p>
+ */
+final
+class FileWriterPool {
+
+    private static final int CHUNK_SIZE          = 256 * 1024;
+    private static final int MAX_CHUNKS_PER_FILE = 8;
+
+    /** Marks the end of the data. */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /** Indicates that reading the data failed. */
+    private static final ByteBuffer ABORT = ByteBuffer.allocate(0);
+
+    private final ExecutorService executorService;
+
+    /** Limits the number of submitted, but not yet completed writers. */
+    private final Semaphore outstanding;
+    private final int       maxOutstanding;
+
+    private final List<IOException> exceptions = new ArrayList<IOException>();
+
+    /**
+     * @param threadCount The number of files that are written concurrently
+     */
+    FileWriterPool(int threadCount) {
+        this.executorService = Executors.newFixedThreadPool(threadCount, ThreadUtil.DAEMON_THREAD_FACTORY);
+        this.maxOutstanding  = 4 * threadCount;
+        this.outstanding     = new Semaphore(this.maxOutstanding);
+    }
+
+    /**
+     * Reads the <var>in</var> completely, and, in a background thread, passes its data to the <var>writer</var>.
+     * Exceptions that the <var>writer</var> throws are reported by {@link #flush()}.
+     *
+     * @param in {@code null} to pass an empty stream to the <var>writer</var>
+     */
+    void
+    submit(@Nullable InputStream in, final ConsumerWhichThrows<? super InputStream, ? extends IOException> writer)
+    throws IOException, InterruptedException {
+
+        this.outstanding.acquire();
+
+        final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(FileWriterPool.MAX_CHUNKS_PER_FILE);
+        final ChunkInputStream          cis    = new ChunkInputStream(chunks);
+
+        try {
+            this.executorService.submit(new Runnable() {
+
+                @Override public void
+                run() {
+                    try {
+                        writer.consume(cis);
+                    } catch (IOException ioe) {
+                        synchronized (FileWriterPool.this.exceptions) {
+                            FileWriterPool.this.exceptions.add(ioe);
+                        }
+                    } catch (RuntimeException re) {
+                        synchronized (FileWriterPool.this.exceptions) {
+                            FileWriterPool.this.exceptions.add(new IOException(re));
+                        }
+                    } finally {
+
+                        // Consume the rest of the chunks, so that the reader never blocks.
+                        try {
+                            cis.skipRest();
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+
+                        FileWriterPool.this.outstanding.release();
+                    }
+                }
+            });
+        } catch (RuntimeException re) {
+            this.outstanding.release();
+            throw re;
+        }
+
+        if (in == null) {
+            chunks.put(FileWriterPool.END);
+            return;
+        }
+
+        try {
+            for (;;) {
+                byte[] buffer = new byte[FileWriterPool.CHUNK_SIZE];
+                int    n      = 0;
+                while (n < buffer.length) {
+                    int m = in.read(buffer, n, buffer.length - n);
+                    if (m == -1) break;
+                    n += m;
+                }
+                if (n > 0) chunks.put(ByteBuffer.wrap(buffer, 0, n));
+                if (n < buffer.length) break;
+            }
+        } catch (IOException | RuntimeException e) {
+            chunks.put(FileWriterPool.ABORT);
+            throw e;
+        }
+
+        chunks.put(FileWriterPool.END);
+    }
+
+    /**
+     * Waits until all writers have completed.
+     *
+     * @throws IOException A writer failed since the preceding invocation of {@link #flush()}; more failures are
+     *                     attached as "suppressed" exceptions
+     */
+    void
+    flush() throws IOException, InterruptedException {
+
+        this.outstanding.acquire(this.maxOutstanding);
+        this.outstanding.release(this.maxOutstanding);
+
+        IOException result = null;
+        synchronized (this.exceptions) {
+            for (IOException ioe : this.exceptions) {
+                if (result == null) {
+                    result = ioe;
+                } else {
+                    result.addSuppressed(ioe);
+                }
+            }
+            this.exceptions.clear();
+        }
+        if (result != null) throw result;
+    }
+
+    /**
+     * Reads the chunks from the queue until {@link FileWriterPool#END}.
+     */
+    private static
+    class ChunkInputStream extends InputStream {
+
+        private final BlockingQueue<ByteBuffer> chunks;
+        private ByteBuffer                      current = ByteBuffer.allocate(0);
+
+        ChunkInputStream(BlockingQueue<ByteBuffer> chunks) { this.chunks = chunks; }
+
+        @Override public int
+        read() throws IOException {
+            byte[] ba = new byte[1];
+            return this.read(ba, 0, 1) == -1 ? -1 : 0xff & ba[0];
+        }
+
+        @Override public int
+        read(byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) return 0;
+
+            while (!this.current.hasRemaining()) {
+                if (this.current == FileWriterPool.END)   return -1;
+                if (this.current == FileWriterPool.ABORT) throw new IOException("Reading the contents failed");
+
+                try {
+                    this.current = this.chunks.take();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ie);
+                }
+            }
+
+            int n = Math.min(len, this.current.remaining());
+            this.current.get(b, off, n);
+            return n;
+        }
+
+        /**
+         * Discards all chunks up to and including the {@link FileWriterPool#END} or {@link FileWriterPool#ABORT}
+         * marker.
+         */
+        void
+        skipRest() throws InterruptedException {
+            while (this.current != FileWriterPool.END && this.current != FileWriterPool.ABORT) {
+                this.current = this.chunks.take();
+            }
+        }
+    }
+}
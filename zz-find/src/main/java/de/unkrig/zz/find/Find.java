@@ -31,25 +31,52 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
@@ -68,8 +95,8 @@ import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveForma
 import de.unkrig.commons.file.org.apache.commons.compress.compressors.CompressionFormat;
 import de.unkrig.commons.file.org.apache.commons.compress.compressors.CompressionFormatFactory;
 import de.unkrig.commons.file.resourceprocessing.ResourceProcessings;
-import de.unkrig.commons.io.InputStreams;
 import de.unkrig.commons.io.IoUtil;
+import de.unkrig.commons.io.OutputStreams;
 import de.unkrig.commons.lang.AssertionUtil;
 import de.unkrig.commons.lang.ExceptionUtil;
 import de.unkrig.commons.lang.ProcessUtil;
@@ -80,19 +107,20 @@ import de.unkrig.commons.lang.protocol.Mappings;
 import de.unkrig.commons.lang.protocol.Predicate;
 import de.unkrig.commons.lang.protocol.PredicateUtil;
 import de.unkrig.commons.lang.protocol.Producer;
-import de.unkrig.commons.lang.protocol.ProducerUtil;
 import de.unkrig.commons.lang.protocol.RunnableUtil;
 import de.unkrig.commons.lang.protocol.RunnableWhichThrows;
 import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.text.AbstractPrinter;
 import de.unkrig.commons.text.Printers;
 import de.unkrig.commons.text.expression.EvaluationException;
 import de.unkrig.commons.text.expression.ExpressionEvaluator;
 import de.unkrig.commons.text.parser.ParseException;
 import de.unkrig.commons.text.pattern.Glob;
 import de.unkrig.commons.text.pattern.Pattern2;
-import de.unkrig.commons.util.collections.MapUtil;
+import de.unkrig.commons.util.concurrent.SquadExecutor;
 import de.unkrig.jdisasm.ClassFile;
 import de.unkrig.jdisasm.Disassembler;
+import de.unkrig.zz.grep.OrderedOutputSquadExecutor;
 
 /**
  * The public API for the ZZFIND functionality.
@@ -103,12 +131,19 @@ import de.unkrig.jdisasm.Disassembler;
  *   These setters change the configuration:
  * </p>
  * <ul>
+ *   <li>{@link #setCopyParallelism(int)}</li>
  *   <li>{@link #setDescendantsFirst(boolean)}</li>
+ *   <li>{@link #setDigestCache(DigestCache)}</li>
+ *   <li>{@link #setExecBatchPerDirectory(boolean)}</li>
+ *   <li>{@link #setExecBatchSize(int)}</li>
+ *   <li>{@link #setExecParallelism(int)}</li>
  *   <li>{@link #setExceptionHandler(ConsumerWhichThrows)}</li>
  *   <li>{@link #setExpression(Expression)}</li>
  *   <li>{@link #setLookIntoFormat(Predicate)}</li>
  *   <li>{@link #setMinDepth(int)}</li>
  *   <li>{@link #setMaxDepth(int)}</li>
+ *   <li>{@link #setParallelism(int)}</li>
+ *   <li>{@link #setPipeParallelism(int)}</li>
  * </ul>
  * <p>
  *   These methods execute a search and honor the current configuration:
@@ -144,7 +179,8 @@ class Find {
     private Predicate<? super String> lookIntoFormat = PredicateUtil.always();
     private boolean                   descendantsFirst;
     private int                       minDepth;
-    private int                       maxDepth = Integer.MAX_VALUE;
+    private int                       maxDepth    = Integer.MAX_VALUE;
+    private int                       parallelism = 1;
 
     /**
      * The expression to match files/entries against.
@@ -154,8 +190,32 @@ class Find {
     private ConsumerWhichThrows<? super IOException, ? extends IOException>
     exceptionHandler = ConsumerUtil.throwsSubject();
 
+    @Nullable private DigestCache digestCache;
+
+    private int     execBatchSize = Integer.MAX_VALUE;
+    private boolean execBatchPerDirectory;
+    private int     execParallelism = 1, pipeParallelism = 1, copyParallelism = 1;
+
     // END CONFIGURATION VARIABLES
 
+    /**
+     * Executes the directory members concurrently iff the {@link #parallelism} is greater than one; created lazily.
+     */
+    @Nullable private ExecutorService executorService;
+
+    /**
+     * The algorithms of the {@link DigestAction}s and the types of the {@link ChecksumAction}s in the {@link
+     * #expression}; all of these are computed in one pass over the contents of each document.
+     */
+    private Set<String>                      digestAlgorithms = Collections.emptySet();
+    private Set<ChecksumAction.ChecksumType> checksumTypes    = Collections.emptySet();
+
+    /**
+     * The {@link ExecAction}s, {@link PipeAction}s and {@link CopyAction}s within the {@link #expression}; these are
+     * configured at the beginning and flushed at the end of each traversal.
+     */
+    private List<Flushable> deferringActions = Collections.emptyList();
+
     // BEGIN CONFIGURATION SETTERS
 
     /**
@@ -204,14 +264,46 @@ class Find {
         this.maxDepth = levels;
     }
 
+    /**
+     * Process up to <var>n</var> directory members concurrently (and thus also the contents of up to <var>n</var>
+     * archive files). Everything that the actions print through the {@link Printers context printer} (e.g. {@code
+     * -print}, {@code -ls}, {@code -printf} and {@code -echo}) is buffered as long as necessary, so that it appears
+     * in the same order as with a sequential traversal; actions that write to STDOUT directly (e.g. {@code -exec}
+     * and {@code -cat}) are not ordered. The default is 1, i.e. to traverse directories strictly sequentially.
+     */
+    public void
+    setParallelism(int n) {
+        if (n < 1) throw new IllegalArgumentException("Parallelism must be positive");
+
+        synchronized (this) {
+            this.parallelism     = n;
+            this.executorService = null;
+        }
+    }
+
     /**
      * Sets the "find expression", i.e. the construct specified with the "-name", "-print", etc. command line options.
+     * <p>
+     *   The side-effect-free tests within the <var>value</var> are reordered such that the cheap ones (e.g. "-name")
+     *   are evaluated before the expensive ones (e.g. "-size", which may have to read the contents); see {@link
+     *   #optimize(Expression)}.
+     * </p>
      */
     public void
     setExpression(Expression value) {
         Find.LOGGER.log(Level.FINE, "setExpression({0})", value);
 
-        this.expression = value;
+        this.expression = Find.optimize(value);
+
+        Set<String>                      digestAlgorithms = new LinkedHashSet<String>();
+        Set<ChecksumAction.ChecksumType> checksumTypes    = new LinkedHashSet<ChecksumAction.ChecksumType>();
+        Find.collectContentConsumers(value, digestAlgorithms, checksumTypes);
+        this.digestAlgorithms = digestAlgorithms;
+        this.checksumTypes    = checksumTypes;
+
+        List<Flushable> deferringActions = new ArrayList<Flushable>();
+        Find.collectDeferringActions(value, deferringActions);
+        this.deferringActions = deferringActions;
     }
 
     /**
@@ -229,6 +321,68 @@ class Find {
         return this;
     }
 
+    /**
+     * Take the results of "-digest" and "-checksum" from the <var>value</var> (without reading the contents) iff the
+     * path, the size, the modification time and (for archive entries) the CRC of the document are unchanged, and
+     * store newly computed results in it. Closing the cache is the responsibility of the caller.
+     */
+    public void
+    setDigestCache(@Nullable DigestCache value) { this.digestCache = value; }
+
+    /**
+     * The maximum number of paths per execution of the command of "<code>-exec ... {} +</code>". The default is to
+     * limit only the length of the command line.
+     */
+    public void
+    setExecBatchSize(int value) {
+        if (value < 1) throw new IllegalArgumentException("Batch size must be positive");
+
+        this.execBatchSize = value;
+    }
+
+    /**
+     * Whether to execute the command of "<code>-exec ... {} +</code>" separately for the matches in each directory
+     * (and each archive).
+     */
+    public void
+    setExecBatchPerDirectory(boolean value) { this.execBatchPerDirectory = value; }
+
+    /**
+     * Execute up to <var>n</var> commands of each "<code>-exec</code>" concurrently. Their standard output and
+     * standard error output is spooled and written in evaluation order, and each "<code>-exec</code>" then evaluates
+     * to {@code true}; failed commands are reported at the end of the traversal. The commands' standard input is
+     * closed. The default is 1, i.e. to execute each command synchronously.
+     */
+    public void
+    setExecParallelism(int n) {
+        if (n < 1) throw new IllegalArgumentException("Parallelism must be positive");
+
+        this.execParallelism = n;
+    }
+
+    /**
+     * Like {@link #setExecParallelism(int)}, but for "<code>-pipe</code>". The contents is spooled, so that the
+     * traversal can proceed (e.g. to the next archive entry) while the commands are running.
+     */
+    public void
+    setPipeParallelism(int n) {
+        if (n < 1) throw new IllegalArgumentException("Parallelism must be positive");
+
+        this.pipeParallelism = n;
+    }
+
+    /**
+     * Write up to <var>n</var> files of "<code>-copy</code>" concurrently in background threads, so that the
+     * traversal can proceed (e.g. to the next archive entry) while earlier files are still being written. Failures
+     * are reported at the end of the traversal. The default is 1, i.e. to write each file synchronously.
+     */
+    public void
+    setCopyParallelism(int n) {
+        if (n < 1) throw new IllegalArgumentException("Parallelism must be positive");
+
+        this.copyParallelism = n;
+    }
+
     /** Getter for the ZZFIND expression. */
     public Expression
     getExpression() { return this.expression; }
@@ -385,16 +539,21 @@ class Find {
     class BooleanTest implements Test {
 
         private final String propertyName;
+        private final int    slot;
 
         /** @see #evaluate(Mapping) */
-        public BooleanTest(String propertyName) { this.propertyName = propertyName; }
+        public
+        BooleanTest(String propertyName) {
+            this.propertyName = propertyName;
+            this.slot         = PropertyRecord.slotOf(propertyName);
+        }
 
         /**
          * @return The value of the named boolean property of the {@code subject}
          */
         @Override public boolean
         evaluate(Mapping<String, Object> properties) {
-            Boolean value = Mappings.get(properties, this.propertyName, Boolean.class);
+            Boolean value = Find.getProperty(properties, this.slot, this.propertyName, Boolean.class);
             return value != null && value.booleanValue();
         }
 
@@ -414,16 +573,18 @@ class Find {
         private final Predicate<? super T> predicate;
         private final Class<T>             propertyType;
         private final String               propertyName;
+        private final int                  slot;
 
         PredicateTest(String propertyName, Class<T> propertyType, Predicate<? super T> predicate) {
             this.propertyName = propertyName;
             this.propertyType = propertyType;
             this.predicate    = predicate;
+            this.slot         = PropertyRecord.slotOf(propertyName);
         }
 
         @Override public final boolean
         evaluate(Mapping<String, Object> properties) {
-            T propertyValue = Mappings.get(properties, this.propertyName, this.propertyType);
+            T propertyValue = Find.getProperty(properties, this.slot, this.propertyName, this.propertyType);
             return propertyValue != null && this.predicate.evaluate(propertyValue);
         }
 
@@ -439,15 +600,17 @@ class Find {
 
         private final Predicate<? super String> predicate;
         private final String                    propertyName;
+        private final int                       slot;
 
         StringPredicateTest(String propertyName, Predicate<? super String> predicate) {
             this.propertyName = propertyName;
             this.predicate    = predicate;
+            this.slot         = PropertyRecord.slotOf(propertyName);
         }
 
         @Override public boolean
         evaluate(Mapping<String, Object> properties) {
-            Object propertyValue = Mappings.get(properties, this.propertyName, Object.class);
+            Object propertyValue = Find.getProperty(properties, this.slot, this.propertyName, Object.class);
             return propertyValue != null && this.predicate.evaluate(propertyValue.toString());
         }
 
@@ -479,7 +642,61 @@ class Find {
      */
     public static
     class PathTest extends GlobTest {
-        public PathTest(String pathGlob) { super("path", pathGlob); }
+
+        /**
+         * The regexes of the "includes" of the glob, or {@code null} iff the glob is too complex to analyze.
+         */
+        @Nullable private final List<Pattern> includes;
+
+        public
+        PathTest(String pathGlob) {
+            super("path", pathGlob);
+            this.includes = PathTest.includes(pathGlob);
+        }
+
+        /**
+         * @return Whether the glob could match any path that starts with the <var>prefix</var>; {@code true} if in
+         *         doubt
+         */
+        boolean
+        mayMatchPathsStartingWith(String prefix) {
+
+            List<Pattern> includes = this.includes;
+            if (includes == null) return true;
+
+            for (Pattern include : includes) {
+                Matcher m = include.matcher(prefix);
+                if (m.matches() || m.hitEnd()) return true;
+            }
+
+            return false;
+        }
+
+        @Nullable private static List<Pattern>
+        includes(String glob) {
+
+            // A leading exclude means "include everything, except...".
+            if (glob.startsWith("~")) return null;
+
+            // Give up if a "," or "~" could be part of a bracket expression or an escape sequence.
+            if (
+                (glob.indexOf(',') != -1 || glob.indexOf('~') != -1)
+                && (glob.indexOf('[') != -1 || glob.indexOf('{') != -1 || glob.indexOf('\\') != -1)
+            ) return null;
+
+            // Excludes can only reduce the set of matching paths, so they are ignored.
+            List<Pattern> result = new ArrayList<Pattern>();
+            for (String include : glob.split("~[^,]*(,|$)|,")) {
+                if (include.isEmpty()) continue;
+                try {
+                    result.add(Pattern2.compile(include, Pattern2.WILDCARD));
+                } catch (PatternSyntaxException pse) {
+                    return null;
+                }
+            }
+
+            return result;
+        }
     }
 
     /**
@@ -740,15 +957,79 @@ class Find {
     /**
      * Executes an external command; the special string "<code>{}</code>" within the command is replaced with the full
      * path of the current file, directory or archive entry.
+     * <p>
+     *   In "batch mode" (command line syntax "<code>-exec</code> <var>word</var> ... <code>{} +</code>"), the paths
+     *   of consecutive matches are collected (in place of the "<code>{}</code>"), and the command is executed once
+     *   for each batch of paths, like with "{@code xargs}". A batch is executed when it reaches the {@link
+     *   #configure(int, boolean, int) maximum number of paths} or (roughly) the maximum length of a command line,
+     *   when the other words of the command evaluate differently for the next match, when the next match is in a
+     *   different directory (iff configured), and at the end of the traversal. In batch mode, the action always
+     *   evaluates to {@code true}; a batch that fails (i.e. exits with a non-zero status) is reported by {@link
+     *   #flush()}.
+     * </p>
+     * <p>
+     *   Iff {@link #configure(int, boolean, int) configured}, up to <var>parallelism</var> commands are executed
+     *   concurrently; their output is spooled and written in the order in which the action was evaluated. In that
+     *   case, the action also evaluates to {@code true}, and failed commands are reported by {@link #flush()}.
+     * </p>
      */
     public static
-    class ExecAction implements Action {
+    class ExecAction implements Action, Flushable {
+
+        /**
+         * Some operating systems allow much longer command lines, but this is a reasonable compromise (like
+         * "{@code xargs}", which is also limited to 128 KiB by default).
+         */
+        private static final int
+        MAX_COMMAND_LENGTH = File.separatorChar == '\\' ? 32 * 1024 - 1024 : 128 * 1024;
 
         private final List<de.unkrig.commons.text.expression.Expression>
         command = new ArrayList<de.unkrig.commons.text.expression.Expression>();
 
-        ExecAction(List<String> command) {
+        private final boolean batch;
+
+        // The configuration of the batch mode.
+        private int     maxBatchSize = Integer.MAX_VALUE;
+        private boolean batchPerDirectory;
+
+        /** Executes the commands concurrently; {@code null} to execute them synchronously. */
+        @Nullable private volatile ProcessPool processPool;
+
+        // The state of the batch mode.
+        private final List<String> batchCommand = new ArrayList<String>();
+        private int                batchSize, batchLength;
+        @Nullable private String   batchDirectory;
+
+        private int failures;
+
+        ExecAction(List<String> command) { this(command, false); }
+
+        /**
+         * @param batch Whether to execute the <var>command</var> for batches of paths; the last word of the
+         *              <var>command</var> must then be "<code>{}</code>", which stands for the paths of the batch
+         */
+        ExecAction(List<String> command, boolean batch) {
+            if (batch && (command.isEmpty() || !"{}".equals(command.get(command.size() - 1)))) {
+                throw new IllegalArgumentException("Last word of batch command must be \"{}\"");
+            }
             for (String word : command) this.command.add(Find.parseExt(word));
+            if (batch) this.command.set(command.size() - 1, Find.parseExt("${path}"));
+            this.batch = batch;
+        }
+
+        /**
+         * @param maxBatchSize      The maximum number of paths per execution of the command (in batch mode)
+         * @param batchPerDirectory Whether to execute the command separately for the matches in each directory (in
+         *                          batch mode)
+         * @param parallelism       The maximum number of commands to execute concurrently
+         */
+        synchronized void
+        configure(int maxBatchSize, boolean batchPerDirectory, int parallelism) {
+            if (maxBatchSize < 1) throw new IllegalArgumentException("Batch size must be positive");
+
+            this.maxBatchSize      = maxBatchSize;
+            this.batchPerDirectory = batchPerDirectory;
+            this.processPool       = parallelism > 1 ? new ProcessPool(parallelism) : null;
         }
 
         @Override public boolean
@@ -762,7 +1043,18 @@ class Find {
                 }
             }
 
+            if (this.batch) {
+                this.addToBatch(command2, Mappings.getNonNull(properties, "path", String.class));
+                return true;
+            }
+
+            ProcessPool pp = this.processPool;
             try {
+                if (pp != null) {
+                    pp.submit(command2, null, null);
+                    return true;
+                }
+
                 return ProcessUtil.execute(
                     command2,   // command
                     null,       // workingDirectory
@@ -778,8 +1070,104 @@ class Find {
             }
         }
 
+        /**
+         * Executes the command for the pending batch (if any), and waits until all concurrently executing commands
+         * have completed.
+         *
+         * @throws IOException One or more commands failed since the preceding invocation of {@link #flush()}
+         */
+        @Override public synchronized void
+        flush() throws IOException {
+
+            this.executeBatch();
+
+            ProcessPool pp = this.processPool;
+            if (pp != null) this.failures += Find.flush(pp);
+
+            int failures = this.failures;
+            if (failures > 0) {
+                this.failures = 0;
+                throw new IOException("Command '" + this.command + "' failed " + failures + " time(s)");
+            }
+        }
+
+        /**
+         * @param command The evaluated command; its last word is the path of the current match
+         */
+        private synchronized void
+        addToBatch(List<String> command, String path) {
+
+            int    prefixLength = command.size() - 1;
+            String argument     = command.get(prefixLength);
+            String directory    = this.batchPerDirectory ? ExecAction.directoryOf(path) : null;
+
+            if (
+                this.batchSize > 0
+                && (
+                    this.batchSize >= this.maxBatchSize
+                    || this.batchLength + argument.length() + 1 > ExecAction.MAX_COMMAND_LENGTH
+                    || !this.batchCommand.subList(0, prefixLength).equals(command.subList(0, prefixLength))
+                    || !Objects.equals(directory, this.batchDirectory)
+                )
+            ) this.executeBatch();
+
+            if (this.batchSize == 0) {
+                for (String word : command.subList(0, prefixLength)) {
+                    this.batchCommand.add(word);
+                    this.batchLength += word.length() + 1;
+                }
+                this.batchDirectory = directory;
+            }
+
+            this.batchCommand.add(argument);
+            this.batchSize++;
+            this.batchLength += argument.length() + 1;
+        }
+
+        private void
+        executeBatch() {
+
+            if (this.batchSize == 0) return;
+
+            List<String> command = new ArrayList<String>(this.batchCommand);
+            this.batchCommand.clear();
+            this.batchSize   = 0;
+            this.batchLength = 0;
+
+            ProcessPool pp = this.processPool;
+            try {
+                if (pp != null) {
+                    pp.submit(command, null, null);
+                } else
+                if (!ProcessUtil.execute(
+                    command,    // command
+                    null,       // workingDirectory
+                    System.in,  // stdin
+                    false,      // closeStdin
+                    System.out, // stdout
+                    false,      // closeStdout
+                    System.err, // stderr
+                    false       // closeStderr
+                )) {
+                    this.failures++;
+                }
+            } catch (Exception e) {
+                throw ExceptionUtil.wrap("Executing '" + command + "'", e, RuntimeException.class);
+            }
+        }
+
+        /**
+         * @return The path of the directory or archive that contains the file or archive entry with the given
+         *         <var>path</var>
+         */
+        private static String
+        directoryOf(String path) {
+            int idx = Math.max(Math.max(path.lastIndexOf('/'), path.lastIndexOf('!')), path.lastIndexOf('\\'));
+            return idx == -1 ? "" : path.substring(0, idx);
+        }
+
         @Override public String
-        toString() { return "(exec '" + this.command + "')"; }
+        toString() { return "(exec '" + this.command + (this.batch ? "' +)" : "')"); }
     }
 
     /**
@@ -825,18 +1213,42 @@ class Find {
 
     /**
      * Copies the contents of the current file or archive entry to a given file and evaluates to {@code true}.
+     * <p>
+     *   Plain files are copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     *   which most operating systems implement without copying the data into user space. Iff {@link
+     *   #configure(int) configured}, the files are written in background threads, and failures are reported by {@link
+     *   #flush()}.
+     * </p>
      */
     public static
-    class CopyAction implements Action {
+    class CopyAction implements Action, Flushable {
+
+        private static final int BUFFER_SIZE = 256 * 1024;
+
+        /**
+         * A large buffer for each thread; {@link FileChannel#write(ByteBuffer)} copies its contents through a cached
+         * direct buffer.
+         */
+        private static final ThreadLocal<byte[]>
+        BUFFER = ThreadLocal.withInitial(() -> new byte[CopyAction.BUFFER_SIZE]);
 
         private final de.unkrig.commons.text.expression.Expression tofile;
         private final boolean                                      mkdirs;
 
+        /** Writes the files in background threads; {@code null} to write them synchronously. */
+        @Nullable private volatile FileWriterPool writerPool;
+
         CopyAction(File tofile, boolean mkdirs) {
             this.tofile = Find.parseExt(tofile.getPath());
             this.mkdirs = mkdirs;
         }
 
+        /**
+         * @param parallelism The maximum number of files to write concurrently
+         */
+        void
+        configure(int parallelism) { this.writerPool = parallelism > 1 ? new FileWriterPool(parallelism) : null; }
+
         @Override public boolean
         evaluate(Mapping<String, Object> properties) {
 
@@ -857,21 +1269,38 @@ class Find {
 
             tofile = Find.fixFile(tofile);
 
+            // Iff the contents is that of a plain file, then the file can be copied without reading the input stream.
+            final File fromFile = (
+                "normal-file".equals(properties.get("type"))
+                ? Mappings.get(properties, "file", File.class)
+                : null
+            );
+
+            Long lastModified = Mappings.get(properties, "lastModified", Long.class);
+
             try {
 
                 if (this.mkdirs) IoUtil.createMissingParentDirectoriesFor(tofile);
 
-                OutputStream out = new FileOutputStream(tofile);
-                try {
-                    IoUtil.copy(in, out);
-                    out.close();
-                } finally {
-                    try { out.close(); } catch (IOException e) {}
-                }
+                FileOutputStream out = new FileOutputStream(tofile);
 
-                Long lastModified = Mappings.get(properties, "lastModified", Long.class);
-                if (lastModified != null) {
-                    tofile.setLastModified(lastModified);
+                FileWriterPool wp = this.writerPool;
+                if (wp == null) {
+                    CopyAction.write(fromFile != null ? null : in, fromFile, out, tofile, lastModified);
+                } else {
+                    final File tofile2 = tofile;
+                    try {
+                        wp.submit(fromFile != null ? null : in, is -> {
+                            try {
+                                CopyAction.write(is, fromFile, out, tofile2, lastModified);
+                            } catch (IOException ioe) {
+                                throw ExceptionUtil.wrap("Copying to \"" + tofile2 + "\"", ioe);
+                            }
+                        });
+                    } catch (IOException | RuntimeException e) {
+                        try { out.close(); } catch (IOException e2) {}
+                        throw e;
+                    }
                 }
             } catch (IOException ioe) {
                 throw ExceptionUtil.wrap(
@@ -879,10 +1308,80 @@ class Find {
                     ioe,
                     RuntimeException.class
                 );
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw ExceptionUtil.wrap("Copying to \"" + tofile + "\"", ie, RuntimeException.class);
             }
             return true;
         }
 
+        /**
+         * Copies the <var>in</var> or the <var>fromFile</var> to the <var>out</var>, closes the <var>out</var>, and
+         * then sets the modification time of the <var>tofile</var>.
+         */
+        private static void
+        write(
+            @Nullable InputStream in,
+            @Nullable File        fromFile,
+            FileOutputStream      out,
+            File                  tofile,
+            @Nullable Long        lastModified
+        ) throws IOException {
+
+            try {
+                FileChannel outChannel = out.getChannel();
+
+                if (fromFile != null) {
+                    FileChannel inChannel = new FileInputStream(fromFile).getChannel();
+                    try {
+                        long size = inChannel.size();
+                        for (long position = 0; position < size;) {
+                            long n = inChannel.transferTo(position, size - position, outChannel);
+                            if (n <= 0) break; // File was truncated in the meantime.
+                            position += n;
+                        }
+                    } finally {
+                        inChannel.close();
+                    }
+                } else
+                if (in != null) {
+                    byte[] buffer = CopyAction.BUFFER.get();
+                    for (;;) {
+                        int n = in.read(buffer);
+                        if (n == -1) break;
+                        for (ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n); bb.hasRemaining();) outChannel.write(bb);
+                    }
+                }
+
+                out.close();
+            } finally {
+                try { out.close(); } catch (IOException e) {}
+            }
+
+            if (lastModified != null) {
+                tofile.setLastModified(lastModified);
+            }
+        }
+
+        /**
+         * Waits until all files are written.
+         *
+         * @throws IOException Writing one or more files failed since the preceding invocation of {@link #flush()}
+         */
+        @Override public void
+        flush() throws IOException {
+
+            FileWriterPool wp = this.writerPool;
+            if (wp == null) return;
+
+            try {
+                wp.flush();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
         @Override public String
         toString() { return "(copy to '" + this.tofile + "')"; }
     }
@@ -892,13 +1391,16 @@ class Find {
      * command exited with status 0.
      */
     public static
-    class PipeAction implements Action {
+    class PipeAction implements Action, Flushable {
 
         private final List<de.unkrig.commons.text.expression.Expression>
         command = new ArrayList<de.unkrig.commons.text.expression.Expression>();
 
         @Nullable private final File workingDirectory;
 
+        /** Executes the commands concurrently; {@code null} to execute them synchronously. */
+        @Nullable private volatile ProcessPool processPool;
+
         PipeAction(List<String> command, @Nullable File workingDirectory) {
             for (String word : command) this.command.add(Find.parseExt(word));
             this.workingDirectory = workingDirectory;
@@ -921,8 +1423,25 @@ class Find {
                 command2.add(Find.evaluateExpression(word, properties));
             }
 
+            ProcessPool pp = this.processPool;
             try {
 
+                if (pp != null) {
+
+                    // The contents must be spooled, because it is no longer available when the command runs (e.g.
+                    // because the archive input stream has moved on to the next entry).
+                    ProcessPool.Spool spool = new ProcessPool.Spool();
+                    try {
+                        IoUtil.copy(in, spool);
+                    } catch (IOException ioe) {
+                        spool.delete();
+                        throw ioe;
+                    }
+
+                    pp.submit(command2, this.workingDirectory, spool);
+                    return true;
+                }
+
                 return ProcessUtil.execute(
                     command2,              // command
                     this.workingDirectory, // workingDirectory
@@ -938,6 +1457,29 @@ class Find {
             }
         }
 
+        /**
+         * @param parallelism The maximum number of commands to execute concurrently
+         */
+        void
+        configure(int parallelism) { this.processPool = parallelism > 1 ? new ProcessPool(parallelism) : null; }
+
+        /**
+         * Waits until all concurrently executing commands have completed.
+         *
+         * @throws IOException One or more commands failed since the preceding invocation of {@link #flush()}
+         */
+        @Override public void
+        flush() throws IOException {
+
+            ProcessPool pp = this.processPool;
+            if (pp == null) return;
+
+            int failures = Find.flush(pp);
+            if (failures > 0) {
+                throw new IOException("Command '" + this.command + "' failed " + failures + " time(s)");
+            }
+        }
+
         @Override public String
         toString() { return "(pipe contents to command " + this.command + ")"; }
     }
@@ -1072,17 +1614,6 @@ class Find {
         @Override public boolean
         evaluate(Mapping<String, Object> properties) {
 
-            MessageDigest md;
-            try {
-                md = MessageDigest.getInstance(this.algorithm);
-            } catch (NoSuchAlgorithmException nsae) {
-                throw ExceptionUtil.wrap(
-                    "Running '-digest' on '" + properties + "'",
-                    nsae,
-                    IllegalArgumentException.class
-                );
-            }
-
             InputStream is = Mappings.get(properties, "inputStream", InputStream.class);
             if (is == null) {
                 throw new RuntimeException(
@@ -1091,14 +1622,27 @@ class Find {
                 );
             }
 
+            byte[] digest;
             try {
-                DigestAction.updateAll(md, is);
+                if (is instanceof ContentFanOut) {
+
+                    // Share the one pass over the contents with the other consumers.
+                    digest = ((ContentFanOut) is).digest(this.algorithm);
+                } else {
+                    MessageDigest md = MessageDigest.getInstance(this.algorithm);
+                    DigestAction.updateAll(md, is);
+                    digest = md.digest();
+                }
+            } catch (NoSuchAlgorithmException nsae) {
+                throw ExceptionUtil.wrap(
+                    "Running '-digest' on '" + properties + "'",
+                    nsae,
+                    IllegalArgumentException.class
+                );
             } catch (IOException ioe) {
                 throw ExceptionUtil.wrap("Running '-digest' on '" + properties + "'", ioe, RuntimeException.class);
             }
 
-            byte[] digest = md.digest();
-
             Formatter f = new Formatter();
             for (byte b : digest) {
                 f.format("%02x", b & 0xff);
@@ -1160,7 +1704,7 @@ class Find {
 
         @Override public boolean
         evaluate(Mapping<String, Object> properties) {
-            Printers.info(Long.toHexString(Find.checksum(properties, this.checksumType.newChecksum())));
+            Printers.info(Long.toHexString(Find.checksum(properties, this.checksumType)));
             return true;
         }
 
@@ -1183,36 +1727,530 @@ class Find {
     }
 
     /**
-     * Sets the "prune flag".
+     * Remembers the current normal contents, archive or compressed document, reports groups of documents with
+     * identical contents (e.g. the same JAR file, also nested in WARs and EARs) after the search, and evaluates to
+     * {@code true}.
+     * <p>
+     *   To avoid reading all the contents, the candidates are narrowed down in stages:
+     * </p>
+     * <ol>
+     *   <li>
+     *     The documents are grouped by size (which is known without reading the contents for files, and typically
+     *     also for archive entries). A document with a unique size has no duplicates. (Documents with unknown size,
+     *     e.g. a TAR archive in a GZIP file, are digested, and thereby measured, when their file or resource is read
+     *     once more, see below.)
+     *   </li>
+     *   <li>
+     *     A size group of archive entries with known CRCs is split by CRC; a size group of files is split by a hash of
+     *     the first and the last {@value #BLOCK_SIZE} bytes of each file.
+     *   </li>
+     *   <li>
+     *     Only the remaining candidates are read completely to compute their {@value #ALGORITHM} digests: Files right
+     *     away, archive entries and compressed contents by reading the enclosing file or resource once more (but
+     *     looking only into the archives and compressed documents that contain candidates). (STDIN is spooled to a
+     *     temporary file for that purpose.)
+     *   </li>
+     * </ol>
+     * <p>
+     *   The groups are printed to {@link Printers#info(String)}, one path per line, and separated by empty lines.
+     * </p>
      */
     public static
-    class PruneAction implements Action {
+    class DuplicatesAction implements Action, Flushable {
 
-        @Override public boolean
-        evaluate(Mapping<String, Object> properties) {
+        /** The message digest that finally tells whether two documents have identical contents. */
+        static final String ALGORITHM = "SHA-256";
 
-            boolean[] prune = Mappings.get(properties, Find.PRUNE_PROPERTY_NAME, boolean[].class);
+        private static final int BLOCK_SIZE = 4096;
 
-            // "-prune"-ing has an effect only in some contexts (namely when directories are recursed).
-            if (prune != null) prune[0] = true;
+        private static final
+        class Document {
 
-            return true;
+            final String         path;
+            final long           crc;     // -1 iff unknown
+            @Nullable final File file;    // Non-null iff the document is a file
+
+            // The properties of the file or resource that contains the document; null iff the document is a file.
+            @Nullable final PropertyRecord root;
+
+            volatile long                 size;        // -1 iff unknown (and not yet measured)
+            @Nullable volatile byte[]     digest;
+            @Nullable private ByteBuffer  partialHash; // Computed lazily, and only for files
+            private boolean               reread;      // Whether the root was read once more for this document
+
+            Document(String path, long size, long crc, @Nullable File file, @Nullable PropertyRecord root) {
+                this.path = path;
+                this.size = size;
+                this.crc  = crc;
+                this.file = file;
+                this.root = root;
+            }
         }
 
-        @Override public String
-        toString() { return "(prune)"; }
-    }
+        private final List<Document> documents = new ArrayList<Document>();
 
-    /**
-     * Delete the current file or directory.
-     */
-    public static
-    class DeleteAction implements Action {
+        /**
+         * The groups of documents that the first two stages could not tell apart; computed lazily, and re-computed
+         * after the roots were read once more (because that may have measured documents of unknown size).
+         */
+        @Nullable private List<List<Document>> candidates;
 
         @Override public boolean
         evaluate(Mapping<String, Object> properties) {
 
-            File file = (File) properties.get("file");
+            // Archives and compressed documents have no "inputStream" property, because their contents are being
+            // processed.
+            String      type    = Mappings.getNonNull(properties, "type", String.class);
+            InputStream is      = Mappings.get(properties, "inputStream", InputStream.class);
+            boolean     wrapper = type.startsWith("archive-") || type.startsWith("compressed-");
+            if (is == null && !wrapper) return true;
+
+            // E.g. "normal-file" and "archive-file", but not "normal-contents", which inherits the "file" property.
+            String path = Mappings.getNonNull(properties, "path", String.class);
+            Long   size = Mappings.get(properties, "size", Long.class);
+            File   file = type.endsWith("-file") ? (File) properties.get("file") : null;
+
+            // The "crc" property of the normal contents is computed from the contents; only the CRC in the header of
+            // the archive entry is for free. (Compressed contents within an archive entry, e.g. "a.zip!b.gz%",
+            // inherit the "archiveEntry" property of the enclosing entry, but not its contents.)
+            long   crc = -1;
+            Object ae  = properties.get("archiveEntry");
+            if (ae != null && path.lastIndexOf('!') > path.lastIndexOf('%')) {
+                Producer<Object> crcGetter = Find.methodPropertyGetter(ae, "getCrc");
+                Object           o         = crcGetter == null ? null : crcGetter.produce();
+                if (o instanceof Number && ((Number) o).longValue() != -1) crc = ((Number) o).longValue() & 0xffffffffL;
+            }
+
+            PropertyRecord root = file == null ? Find.CURRENT_ROOT.get() : null;
+            Document       d    = new Document(path, size == null ? -1 : size, crc, file, root);
+
+            // If the contents were read anyway (e.g. because the size is not in the archive entry header), then the
+            // digest is for free, too.
+            if (is instanceof ContentFanOut && ((ContentFanOut) is).isExhausted()) {
+                d.digest = DuplicatesAction.digest(is, path);
+            }
+
+            synchronized (this) {
+                this.documents.add(d);
+            }
+
+            return true;
+        }
+
+        /**
+         * Digests the remaining candidates, and prints the groups of duplicates.
+         */
+        @Override public synchronized void
+        flush() throws IOException {
+
+            List<List<Document>> duplicates = new ArrayList<List<Document>>();
+            try {
+
+                // Digest the candidate archive entries and compressed contents (and the documents of unknown size) by
+                // reading their roots once more. Repeat, because the documents thus measured may form new candidate
+                // groups.
+                for (;;) {
+                    this.candidates = null;
+
+                    Map<PropertyRecord, NavigableMap<String, Document>> pending = this.pending();
+                    if (pending.isEmpty()) break;
+
+                    for (Map.Entry<PropertyRecord, NavigableMap<String, Document>> e : pending.entrySet()) {
+                        DuplicatesAction.reread(e.getKey(), e.getValue());
+                    }
+                }
+
+                for (List<Document> group : this.candidates()) {
+
+                    // Stage 3: Group by full digest.
+                    Map<ByteBuffer, List<Document>> byDigest = new HashMap<ByteBuffer, List<Document>>();
+                    for (Document d : group) {
+
+                        File file = d.file;
+                        if (d.digest == null && file != null) {
+                            try (InputStream is = new FileInputStream(file)) {
+                                d.digest = DuplicatesAction.digest(is, d.path);
+                            }
+                        }
+
+                        // Documents that were not digested (because they were not found when their root was read
+                        // once more) are not reported.
+                        byte[] digest = d.digest;
+                        if (digest != null) {
+                            byDigest.computeIfAbsent(
+                                ByteBuffer.wrap(digest),
+                                k -> new ArrayList<Document>()
+                            ).add(d);
+                        }
+                    }
+                    DuplicatesAction.addGroups(byDigest.values(), duplicates);
+                }
+            } finally {
+                this.documents.clear();
+                this.candidates = null;
+            }
+
+            List<List<String>> result = new ArrayList<List<String>>();
+            for (List<Document> group : duplicates) {
+                List<String> paths = new ArrayList<String>();
+                for (Document d : group) paths.add(d.path);
+                Collections.sort(paths);
+                result.add(paths);
+            }
+            Collections.sort(result, (g1, g2) -> g1.get(0).compareTo(g2.get(0)));
+
+            for (int i = 0; i < result.size(); i++) {
+                if (i > 0) Printers.info("");
+                for (String path : result.get(i)) Printers.info(path);
+            }
+        }
+
+        /**
+         * Computes (if not yet done) the groups of documents that have equal sizes and equal CRCs or partial hashes.
+         */
+        private List<List<Document>>
+        candidates() throws IOException {
+
+            List<List<Document>> result = this.candidates;
+            if (result != null) return result;
+
+            // Stage 1: Group by size.
+            Map<Long, List<Document>> bySize = new HashMap<Long, List<Document>>();
+            for (Document d : this.documents) {
+                if (d.size == -1 && d.digest == null) continue; // Not yet measured.
+                bySize.computeIfAbsent(d.size, k -> new ArrayList<Document>()).add(d);
+            }
+
+            // Stage 2: Split the size groups by CRC or by partial hash.
+            result = new ArrayList<List<Document>>();
+            for (List<Document> group : bySize.values()) {
+                if (group.size() < 2) continue;
+
+                boolean allCrcs = true, allFiles = true;
+                for (Document d : group) {
+                    allCrcs  &= d.crc != -1;
+                    allFiles &= d.file != null;
+                }
+
+                if (allCrcs) {
+                    Map<Long, List<Document>> byCrc = new HashMap<Long, List<Document>>();
+                    for (Document d : group) byCrc.computeIfAbsent(d.crc, k -> new ArrayList<Document>()).add(d);
+                    DuplicatesAction.addGroups(byCrc.values(), result);
+                } else
+                if (allFiles && group.get(0).size > 2 * BLOCK_SIZE) {
+                    Map<ByteBuffer, List<Document>> byPartialHash = new HashMap<ByteBuffer, List<Document>>();
+                    for (Document d : group) {
+                        ByteBuffer partialHash = d.partialHash;
+                        if (partialHash == null) {
+                            partialHash   = DuplicatesAction.partialHash(Objects.requireNonNull(d.file));
+                            d.partialHash = partialHash;
+                        }
+                        byPartialHash.computeIfAbsent(partialHash, k -> new ArrayList<Document>()).add(d);
+                    }
+                    DuplicatesAction.addGroups(byPartialHash.values(), result);
+                } else
+                {
+                    result.add(group);
+                }
+            }
+
+            return (this.candidates = result);
+        }
+
+        /**
+         * Marks the documents of unknown size and the candidates that must be digested by reading their roots once
+         * more (and that were not yet).
+         *
+         * @return The marked documents, grouped by root and mapped by path
+         */
+        private Map<PropertyRecord, NavigableMap<String, Document>>
+        pending() throws IOException {
+
+            List<Document> documents = new ArrayList<Document>();
+            for (Document d : this.documents) {
+                if (d.size == -1) documents.add(d);
+            }
+            for (List<Document> group : this.candidates()) documents.addAll(group);
+
+            Map<PropertyRecord, NavigableMap<String, Document>>
+            result = new IdentityHashMap<PropertyRecord, NavigableMap<String, Document>>();
+            for (Document d : documents) {
+                if (d.digest != null || d.file != null || d.reread) continue;
+                d.reread = true;
+
+                PropertyRecord root = d.root;
+                if (root == null) throw new IOException("Cannot read \"" + d.path + "\" once more for '-duplicates'");
+
+                result.computeIfAbsent(root, k -> new TreeMap<String, Document>()).put(d.path, d);
+            }
+
+            return result;
+        }
+
+        /**
+         * Reads the file or resource with the <var>rootProperties</var> once more, and digests (and measures) the
+         * <var>pending</var> documents in it.
+         */
+        private static void
+        reread(PropertyRecord rootProperties, NavigableMap<String, Document> pending) throws IOException {
+
+            String path = Objects.requireNonNull(rootProperties.get(PropertyRecord.PATH, String.class));
+
+            File file = rootProperties.get(PropertyRecord.FILE, File.class);
+            if (file != null) {
+                CompressUtil.processFile(
+                    path,                                              // path
+                    file,                                              // file
+                    PredicateUtil.<String>always(),                    // lookIntoFormat
+                    DuplicatesAction.archiveHandler(path, pending),    // archiveHandler
+                    DuplicatesAction.compressorHandler(path, pending), // compressorHandler
+                    (inputStream, lastModifiedDate) -> null            // normalContentsHandler
+                );
+                return;
+            }
+
+            URL resource = Objects.requireNonNull(rootProperties.get(PropertyRecord.URL, URL.class));
+            try (InputStream is = resource.openStream()) {
+                DuplicatesAction.reread(path, is, pending);
+            }
+        }
+
+        /**
+         * Digests (and measures) the <var>pending</var> document with the <var>path</var> (if any), and the pending
+         * documents nested in it (if any), by reading the <var>inputStream</var>.
+         */
+        private static void
+        reread(String path, InputStream inputStream, NavigableMap<String, Document> pending) throws IOException {
+
+            Document d      = pending.remove(path);
+            boolean  nested = DuplicatesAction.containsNested(pending, path);
+            if (d == null && !nested) return;
+
+            DigestingInputStream dis = d == null ? null : new DigestingInputStream(inputStream);
+            InputStream          is  = dis == null ? inputStream : dis;
+
+            if (nested) {
+                CompressUtil.processStream(
+                    path,                                              // path
+                    is,                                                // inputStream
+                    null,                                              // lastModifiedDate
+                    PredicateUtil.<String>always(),                    // lookIntoFormat
+                    DuplicatesAction.archiveHandler(path, pending),    // archiveHandler
+                    DuplicatesAction.compressorHandler(path, pending), // compressorHandler
+                    (inputStream2, lastModifiedDate) -> null           // normalContentsHandler
+                );
+            }
+
+            if (d != null && dis != null) {
+                IoUtil.copy(dis, OutputStreams.DISCARD);
+                d.digest = dis.digest();
+                if (d.size == -1) d.size = dis.size;
+            }
+        }
+
+        private static ArchiveHandler<Void>
+        archiveHandler(final String path, final NavigableMap<String, Document> pending) {
+
+            return (archiveInputStream, archiveFormat) -> {
+                for (
+                    ArchiveEntry ae = archiveInputStream.getNextEntry();
+                    ae != null && DuplicatesAction.containsPrefix(pending, path + '!');
+                    ae = archiveInputStream.getNextEntry()
+                ) {
+                    if (ae.isDirectory()) continue;
+
+                    String entryPath = path + '!' + ArchiveFormatFactory.normalizeEntryName(ae.getName());
+                    DuplicatesAction.reread(entryPath, archiveInputStream, pending);
+                }
+                return null;
+            };
+        }
+
+        private static CompressorHandler<Void>
+        compressorHandler(final String path, final NavigableMap<String, Document> pending) {
+
+            return (compressorInputStream, compressionFormat) -> {
+                DuplicatesAction.reread(path + '%', compressorInputStream, pending);
+                return null;
+            };
+        }
+
+        /**
+         * @return Whether any of the <var>pending</var> documents is nested in the document with the <var>path</var>
+         */
+        private static boolean
+        containsNested(NavigableMap<String, Document> pending, String path) {
+            return (
+                DuplicatesAction.containsPrefix(pending, path + '!')
+                || DuplicatesAction.containsPrefix(pending, path + '%')
+            );
+        }
+
+        private static boolean
+        containsPrefix(NavigableMap<String, Document> pending, String pathPrefix) {
+            String ceiling = pending.ceilingKey(pathPrefix);
+            return ceiling != null && ceiling.startsWith(pathPrefix);
+        }
+
+        /**
+         * Digests and measures all bytes that are read or skipped through it.
+         */
+        private static final
+        class DigestingInputStream extends FilterInputStream {
+
+            private final MessageDigest md;
+            long                        size;
+
+            DigestingInputStream(InputStream in) {
+                super(in);
+                try {
+                    this.md = MessageDigest.getInstance(DuplicatesAction.ALGORITHM);
+                } catch (NoSuchAlgorithmException nsae) {
+                    throw new AssertionError(nsae);
+                }
+            }
+
+            @Override public int
+            read() throws IOException {
+                int b = this.in.read();
+                if (b != -1) {
+                    this.md.update((byte) b);
+                    this.size++;
+                }
+                return b;
+            }
+
+            @Override public int
+            read(byte[] b, int off, int len) throws IOException {
+                int n = this.in.read(b, off, len);
+                if (n > 0) {
+                    this.md.update(b, off, n);
+                    this.size += n;
+                }
+                return n;
+            }
+
+            // Skipped bytes must be digested, too.
+            @Override public long
+            skip(long n) throws IOException {
+                byte[] buffer = new byte[(int) Math.max(0, Math.min(n, 8192))];
+                long   result = 0;
+                while (result < n) {
+                    int m = this.read(buffer, 0, (int) Math.min(n - result, buffer.length));
+                    if (m == -1) break;
+                    result += m;
+                }
+                return result;
+            }
+
+            // Bytes that are read again must not be digested twice.
+            @Override public boolean
+            markSupported() { return false; }
+
+            @Override public synchronized void
+            mark(int readlimit) {}
+
+            @Override public synchronized void
+            reset() throws IOException { throw new IOException("mark/reset not supported"); }
+
+            byte[]
+            digest() { return this.md.digest(); }
+        }
+
+        /**
+         * Adds those of the <var>groups</var> to the <var>result</var> that have more than one document.
+         */
+        private static void
+        addGroups(Collection<List<Document>> groups, List<List<Document>> result) {
+            for (List<Document> group : groups) {
+                if (group.size() >= 2) result.add(group);
+            }
+        }
+
+        /**
+         * @return A hash of the first and the last {@value #BLOCK_SIZE} bytes of the <var>file</var>
+         */
+        private static ByteBuffer
+        partialHash(File file) throws IOException {
+
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new AssertionError(nsae);
+            }
+
+            byte[] buffer = new byte[BLOCK_SIZE];
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.readFully(buffer);
+                md.update(buffer);
+                raf.seek(raf.length() - BLOCK_SIZE);
+                raf.readFully(buffer);
+                md.update(buffer);
+            }
+
+            return ByteBuffer.wrap(md.digest());
+        }
+
+        private static byte[]
+        digest(InputStream is, String path) {
+            try {
+                if (is instanceof ContentFanOut) {
+
+                    // Share the one pass over the contents with the other consumers.
+                    return ((ContentFanOut) is).digest(DuplicatesAction.ALGORITHM);
+                }
+
+                MessageDigest md = MessageDigest.getInstance(DuplicatesAction.ALGORITHM);
+                DigestAction.updateAll(md, is);
+                return md.digest();
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new AssertionError(nsae);
+            } catch (IOException ioe) {
+                throw ExceptionUtil.wrap("Running '-duplicates' on \"" + path + "\"", ioe, RuntimeException.class);
+            }
+        }
+
+        @Override public String
+        toString() { return "(duplicates)"; }
+    }
+
+    /**
+     * Sets the "prune flag".
+     */
+    public static
+    class PruneAction implements Action {
+
+        @Override public boolean
+        evaluate(Mapping<String, Object> properties) {
+
+            boolean[] prune = Find.getProperty(
+                properties,
+                PropertyRecord.PRUNE,
+                Find.PRUNE_PROPERTY_NAME,
+                boolean[].class
+            );
+
+            // "-prune"-ing has an effect only in some contexts (namely when directories are recursed).
+            if (prune != null) prune[0] = true;
+
+            return true;
+        }
+
+        @Override public String
+        toString() { return "(prune)"; }
+    }
+
+    /**
+     * Delete the current file or directory.
+     */
+    public static
+    class DeleteAction implements Action {
+
+        @Override public boolean
+        evaluate(Mapping<String, Object> properties) {
+
+            File file = (File) properties.get("file");
             if (file == null) {
                 throw new RuntimeException("\"-delete\" is only possible on files (and not on archive entries)");
             }
@@ -1230,7 +2268,7 @@ class Find {
     }
 
     /**
-     * Executes the search in STDIN, with path "-".
+     * Executes the search in the <var>is</var> (typically STDIN), with path "-".
      * <p>
      *   This method is thread-safe.
      * </p>
@@ -1238,14 +2276,68 @@ class Find {
     public void
     findInStream(InputStream is) throws IOException {
 
+        // "-duplicates" may have to read the contents once more.
+        File spool = this.spool(is);
+        try {
+            this.withDeferringActions(() -> this.findInStream(is, spool));
+        } finally {
+            if (spool != null) spool.delete();
+        }
+    }
+
+    /**
+     * Executes the search in the <var>spool</var> (iff non-null), or else in the <var>is</var>, with path "-".
+     */
+    private void
+    findInStream(InputStream is, @Nullable File spool) throws IOException {
+
         if (this.maxDepth < 0) return;
 
-        final Map<String, Producer<? extends Object>> properties = new HashMap<String, Producer<? extends Object>>();
-        properties.put("type", Find.cp("stream"));
-        properties.put("path", Find.cp("-"));
-        properties.put("size", Find.cp(-1L));
+        PropertyRecord properties = (
+            new PropertyRecord(null)
+            .set(PropertyRecord.TYPE, "stream")
+            .set(PropertyRecord.PATH, "-")
+            .set(PropertyRecord.SIZE, -1L)
+        );
+
+        if (spool == null) {
+            this.findInStream("-", is, null, properties, 0);
+            return;
+        }
+
+        PropertyRecord previousRoot = Find.CURRENT_ROOT.get();
+        Find.CURRENT_ROOT.set(
+            new PropertyRecord(null)
+            .set(PropertyRecord.PATH, "-")
+            .set(PropertyRecord.URL,  spool.toURI().toURL())
+        );
+        try (InputStream fis = new FileInputStream(spool)) {
+            this.findInStream("-", fis, null, properties, 0);
+        } finally {
+            Find.CURRENT_ROOT.set(previousRoot);
+        }
+    }
+
+    /**
+     * @return A temporary file with the contents of the <var>is</var>, iff a {@link DuplicatesAction} may have to
+     *         read them once more, otherwise {@code null}
+     */
+    @Nullable private File
+    spool(InputStream is) throws IOException {
+
+        boolean duplicates = false;
+        for (Flushable a : this.deferringActions) duplicates |= a instanceof DuplicatesAction;
+        if (!duplicates) return null;
+
+        File result = File.createTempFile("zz-find-", ".stdin");
+        try (OutputStream os = new FileOutputStream(result)) {
+            IoUtil.copy(is, os);
+        } catch (IOException | RuntimeException e) {
+            result.delete();
+            throw e;
+        }
 
-        this.findInStream("-", System.in, null, properties, 0);
+        return result;
     }
 
     public static File
@@ -1280,7 +2372,13 @@ class Find {
      */
     public void
     findInResource(String path, URL resource) throws IOException {
-        this.findInResource(path, resource, 0);
+
+        if (resource.equals(ResourceProcessings.STDIN_URL)) {
+            this.findInStream(System.in);
+            return;
+        }
+
+        this.withDeferringActions(() -> this.findInResource(path, resource, 0));
     }
 
     /**
@@ -1291,12 +2389,118 @@ class Find {
      */
     public void
     findInFile(File file) throws IOException {
-        this.findInResource(file.getPath(), file.toURI().toURL(), 0);
+
+        // The "file" property is always absolute (and so are the files of the directory members, which derive from
+        // it), while the "path" property is as the caller specified it.
+        File absoluteFile = file.getAbsoluteFile();
+
+        this.withDeferringActions(() -> this.findInFile(
+            file.getPath(),
+            absoluteFile,
+            Find.readAttributes(absoluteFile),
+            0
+        ));
+    }
+
+    /**
+     * Executes the search in the resources designated by the <var>paths</var> (file names or URLs, see {@link
+     * #findInResource(String, URL)}) as <em>one</em> search, so that e.g. "-duplicates" also reports duplicates in
+     * different resources. An {@link IOException} that occurs while searching one of the resources is passed to the
+     * {@link #setExceptionHandler(ConsumerWhichThrows) exception handler}, and then the search continues with the
+     * next resource.
+     */
+    public void
+    findInResources(List<String> paths) throws IOException {
+
+        // "-duplicates" may have to read STDIN once more.
+        File stdinSpool = paths.contains("-") ? this.spool(System.in) : null;
+        try {
+            this.withDeferringActions(() -> {
+                for (String path : paths) {
+                    try {
+                        URL resource = ResourceProcessings.toUrl(path);
+                        if (resource.equals(ResourceProcessings.STDIN_URL)) {
+                            this.findInStream(System.in, stdinSpool);
+                        } else {
+                            this.findInResource(path, resource, 0);
+                        }
+                    } catch (IOException ioe) {
+                        this.exceptionHandler.consume(ioe);
+                    }
+                }
+            });
+        } finally {
+            if (stdinSpool != null) stdinSpool.delete();
+        }
     }
 
+    /**
+     * Runs the <var>traversal</var>, and then executes the pending batches of the {@link ExecAction}s in batch mode,
+     * waits for the completion of the commands that the {@link ExecAction}s and {@link PipeAction}s execute
+     * concurrently, and of the files that the {@link CopyAction}s write in the background, and lets the {@link
+     * DuplicatesAction}s report the duplicates.
+     */
     private void
-    findInDirectory(final String directoryPath, final File directory, final int currentDepth)
-    throws IOException {
+    withDeferringActions(RunnableWhichThrows<IOException> traversal) throws IOException {
+
+        List<Flushable> deferringActions = this.deferringActions;
+        if (deferringActions.isEmpty()) {
+            traversal.run();
+            return;
+        }
+
+        for (Flushable a : deferringActions) {
+            if (a instanceof ExecAction) {
+                ((ExecAction) a).configure(this.execBatchSize, this.execBatchPerDirectory, this.execParallelism);
+            } else
+            if (a instanceof PipeAction) {
+                ((PipeAction) a).configure(this.pipeParallelism);
+            } else
+            if (a instanceof CopyAction) {
+                ((CopyAction) a).configure(this.copyParallelism);
+            }
+        }
+
+        try {
+            traversal.run();
+        } catch (IOException | RuntimeException e) {
+            for (Flushable a : deferringActions) {
+                try {
+                    a.flush();
+                } catch (Exception e2) {
+                    e.addSuppressed(e2);
+                }
+            }
+            throw e;
+        }
+
+        for (Flushable a : deferringActions) a.flush();
+    }
+
+    /**
+     * @return The number of commands that failed since the preceding invocation
+     * @see    ProcessPool#flush()
+     */
+    static int
+    flush(ProcessPool processPool) throws IOException {
+        try {
+            return processPool.flush();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * @param attributes The attributes of the <var>directory</var>, or {@code null} iff they could not be read
+     */
+    private void
+    findInDirectory(
+        final String                        directoryPath,
+        final File                          directory,
+        @Nullable final BasicFileAttributes attributes,
+        final int                           currentDepth
+    ) throws IOException {
 
         Find.LOGGER.log(
             Level.FINER,
@@ -1312,21 +2516,23 @@ class Find {
 
                 @Override public void
                 run() {
-                    // Evaluate the FIND expression for the directory. // SUPPRESS CHECKSTYLE Wrap|LineLength:13
-                    Find.this.evaluateExpression(MapUtil.map(
-                        "type",                   Find.cp("directory"),
-                        "name",                   Find.cp(directory.getName()),
-                        "path",                   Find.cp(directoryPath),
-                        "file",                   Find.cp(directory),
-                        "depth",                  Find.cp(currentDepth),
-                        "inputStream",            Find.cp(null),
-                        "readable",               (Producer<?>) () -> directory.canRead(),
-                        "writable",               (Producer<?>) () -> directory.canWrite(),
-                        "executable",             (Producer<?>) () -> directory.canExecute(),
-                        "lastModified",           (Producer<?>) () -> directory.lastModified(),
-                        "lastModifiedDate",       (Producer<?>) () -> new Date(directory.lastModified()),
-                        Find.PRUNE_PROPERTY_NAME, Find.cp(prune) // <= The "-prune" action will potentially change this value
-                    ));
+                    // Evaluate the FIND expression for the directory. (The "-prune" action may set the "prune"
+                    // flag.)
+                    Find.this.evaluateExpression(
+                        new PropertyRecord(null)
+                        .set(PropertyRecord.TYPE,                   "directory")
+                        .set(PropertyRecord.NAME,                   directory.getName())
+                        .set(PropertyRecord.PATH,                   directoryPath)
+                        .set(PropertyRecord.FILE,                   directory)
+                        .set(PropertyRecord.DEPTH,                  currentDepth)
+                        .set(PropertyRecord.INPUT_STREAM,           null)
+                        .setLazy(PropertyRecord.READABLE,           () -> directory.canRead())
+                        .setLazy(PropertyRecord.WRITABLE,           () -> directory.canWrite())
+                        .setLazy(PropertyRecord.EXECUTABLE,         () -> directory.canExecute())
+                        .setLazy(PropertyRecord.LAST_MODIFIED,      () -> Find.lastModified(directory, attributes))
+                        .setLazy(PropertyRecord.LAST_MODIFIED_DATE, () -> Find.lastModifiedDate(directory, attributes))
+                        .set(PropertyRecord.PRUNE,                  prune)
+                    );
                 }
             },
             new RunnableWhichThrows<IOException>() {
@@ -1337,37 +2543,18 @@ class Find {
                     // Process the directory's members.
                     if (!prune[0] && currentDepth < Find.this.maxDepth) {
 
-                        String[] memberNames = directory.list();
-                        if (memberNames == null) {
-
-                            // MS WINDOWS 7: Read-protected directory produces:
-                            // isDirectory() => true
-                            // canRead()     => true
-                            // list()        => null
-                            // listFiles()   => null
-                            throw new IOException(directory + ": Permission denied");
+                        List<Path> members = new ArrayList<Path>();
+                        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory.toPath())) {
+                            for (Path member : ds) members.add(member);
+                        } catch (AccessDeniedException ade) {
+                            throw new IOException(directory + ": Permission denied", ade);
                         }
 
-                        for (String memberName : memberNames) {
-
-                            // JRE11+MS WINDOWS replace colons (#003A) in member names with #F03A, for whatever reason.
-                            memberName = memberName.replace((char) 0xf031, ':');
-
-                            String memberPath = directoryPath + File.separatorChar + memberName;
-
-                            try {
-                                Find.this.findInResource(
-                                    memberPath,
-                                    new File(directory, memberName).toURI().toURL(),
-                                    currentDepth + 1
-                                );
-                            } catch (IOException ioe) {
-                                Find.this.exceptionHandler.consume(ExceptionUtil.wrap((
-                                    "Continue with next directory member after member \""
-                                    + memberPath
-                                    + "\""
-                                ), ioe));
-
+                        if (Find.this.parallelism > 1) {
+                            Find.this.findInMembersConcurrently(directoryPath, directory, members, currentDepth + 1);
+                        } else {
+                            for (Path member : members) {
+                                Find.this.findInMember(directoryPath, directory, member, currentDepth + 1);
                             }
                         }
                     }
@@ -1376,6 +2563,86 @@ class Find {
         );
     }
 
+    /**
+     * Processes the members of the <var>directory</var> concurrently, and forwards their output in the order of the
+     * <var>members</var>.
+     */
+    private void
+    findInMembersConcurrently(
+        final String directoryPath,
+        final File   directory,
+        List<Path>   members,
+        final int    memberDepth
+    ) throws IOException {
+
+        // Capture the output of each member, and forward it to the current context printer in order.
+        SquadExecutor<Void> squadExecutor = new OrderedOutputSquadExecutor<Void>(
+            this.executorService(),
+            AbstractPrinter.getContextPrinter()
+        );
+
+        for (final Path member : members) {
+            squadExecutor.submit(new Callable<Void>() {
+
+                @Override @Nullable public Void
+                call() throws IOException {
+                    Find.this.findInMember(directoryPath, directory, member, memberDepth);
+                    return null;
+                }
+            });
+        }
+
+        // Wait until all members are processed, e.g. before the directory itself is processed (in "descendants
+        // first" mode).
+        try {
+            squadExecutor.awaitCompletion();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException)      throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error)            throw (Error) cause;
+            throw new AssertionError(ee);
+        }
+    }
+
+    private void
+    findInMember(String directoryPath, File directory, Path member, int memberDepth) throws IOException {
+
+        // JRE11+MS WINDOWS replace colons (#003A) in member names with #F03A, for whatever reason.
+        String memberName = member.getFileName().toString().replace((char) 0xf031, ':');
+
+        String memberPath = directoryPath + File.separatorChar + memberName;
+
+        try {
+
+            // Read all attributes of the member with one system call, which the properties then share.
+            this.findInFile(memberPath, new File(directory, memberName), Find.readAttributes(member), memberDepth);
+        } catch (IOException ioe) {
+            this.exceptionHandler.consume(ExceptionUtil.wrap((
+                "Continue with next directory member after member \""
+                + memberPath
+                + "\""
+            ), ioe));
+
+        }
+    }
+
+    /**
+     * @return The executor service for the concurrent processing of directory members
+     */
+    private synchronized ExecutorService
+    executorService() {
+
+        ExecutorService result = this.executorService;
+        if (result == null) {
+            this.executorService = (result = OrderedOutputSquadExecutor.callerRunsExecutorService(this.parallelism));
+        }
+        return result;
+    }
+
     public static de.unkrig.commons.text.expression.Expression
     parse(String spec) {
 
@@ -1407,160 +2674,230 @@ class Find {
         variables = Mappings.union(variables, Mappings.<String, Object>constant(""));
 
         try {
-            return expression.evaluateTo(
-                variables,
-                String.class
+            return expression.evaluateTo(
+                variables,
+                String.class
+            );
+        } catch (EvaluationException ee) {
+            throw ExceptionUtil.wrap("Evaluating \"" + expression + "\"", ee, IllegalArgumentException.class);
+        }
+    }
+
+    private void
+    findInResource(final String path, final URL resource, final int currentDepth)
+    throws IOException {
+
+        Find.LOGGER.log(Level.FINER, "Processing \"{0}\" (path is \"{1}\")", new Object[] { resource, path });
+
+        File file = ResourceProcessings.isFile(resource);
+        if (file != null) {
+            this.findInFile(path, file, Find.readAttributes(file), currentDepth);
+            return;
+        }
+
+        // The URL designates a non-file resource.
+        String         up                 = resource.getPath();
+        PropertyRecord resourceProperties = new PropertyRecord(null);
+        resourceProperties.set(PropertyRecord.TYPE,       resource.getProtocol() + "-resource");
+        resourceProperties.set(PropertyRecord.NAME,       up.substring(up.lastIndexOf('/') + 1));
+        resourceProperties.setLazy(PropertyRecord.SIZE,   () -> {
+            try {
+                return resource.openConnection().getContentLengthLong();
+            } catch (IOException ioe) {
+                throw ExceptionUtil.wrap(
+                    "Querying size of resource \"" + resource + "\"",
+                    ioe,
+                    RuntimeException.class
+                );
+            }
+        });
+        resourceProperties.set(PropertyRecord.READABLE,   true);
+        resourceProperties.set(PropertyRecord.WRITABLE,   false);
+        resourceProperties.set(PropertyRecord.EXECUTABLE, false);
+        resourceProperties.setLazy(PropertyRecord.CRC,    () -> {
+            final CRC32 cs = new java.util.zip.CRC32();
+            try (InputStream is = resource.openConnection().getInputStream()) {
+                ChecksumAction.updateAll(cs, is);
+            } catch (IOException ioe) {
+                throw ExceptionUtil.wrap(
+                    "Computing CRC of resource \"" + resource + "\"",
+                    ioe,
+                    RuntimeException.class
+                );
+            }
+            return (int) cs.getValue();
+        });
+        resourceProperties.set(PropertyRecord.URL,        resource);
+        resourceProperties.set(PropertyRecord.PATH,       path);
+
+        URLConnection  conn             = resource.openConnection();
+        InputStream    is               = conn.getInputStream();
+        long           lastModified     = conn.getLastModified();
+        Date           lastModifiedDate = lastModified == 0 ? null : new Date(lastModified);
+        PropertyRecord previousRoot     = Find.CURRENT_ROOT.get();
+        Find.CURRENT_ROOT.set(resourceProperties);
+        try {
+
+            CompressUtil.processStream(
+                path,                                                                // path
+                is,                                                                  // inputStream
+                lastModifiedDate,                                                    // lastModifiedDate
+                this.lookIntoFormat,                                                 // lookIntoFormat
+                this.archiveHandler(path, resourceProperties, currentDepth),         // archiveHandler
+                this.compressorHandler(path, resourceProperties, currentDepth),      // compressorHandler
+                this.normalContentsHandler(path, resourceProperties, currentDepth)   // normalContentsHandler
             );
-        } catch (EvaluationException ee) {
-            throw ExceptionUtil.wrap("Evaluating \"" + expression + "\"", ee, IllegalArgumentException.class);
+            is.close();
+        } finally {
+            Find.CURRENT_ROOT.set(previousRoot);
+            try { is.close(); } catch (Exception e) {}
         }
     }
 
+    /**
+     * Executes the search in the <var>file</var> (which may be a normal file, or a directory).
+     *
+     * @param attributes The attributes of the <var>file</var>, or {@code null} iff they could not be read (e.g. for a
+     *                   dangling symbolic link); then the properties query the <var>file</var> individually
+     */
     private void
-    findInResource(final String path, final URL resource, final int currentDepth)
-    throws IOException {
+    findInFile(
+        final String                        path,
+        final File                          file,
+        @Nullable final BasicFileAttributes attributes,
+        final int                           currentDepth
+    ) throws IOException {
 
-        Find.LOGGER.log(Level.FINER, "Processing \"{0}\" (path is \"{1}\")", new Object[] { resource, path });
+        Find.LOGGER.log(Level.FINER, "Processing file \"{0}\" (path is \"{1}\")", new Object[] { file, path });
 
-        if (resource.equals(ResourceProcessings.STDIN_URL)) {
-            this.findInStream(System.in);
+        if (attributes != null ? attributes.isDirectory() : file.isDirectory()) {
+
+            // Handle the special case when the file is a *directory*. ("CompressUtil.processFile()" can NOT handle
+            // directories, only normal files!)
+            this.findInDirectory(path, file, attributes, currentDepth);
             return;
         }
 
-        Map<String, Producer<? extends Object>> resourceProperties = new HashMap<String, Producer<? extends Object>>();
-
-        File file = ResourceProcessings.isFile(resource);
-        if (file != null) {
-
-            if (file.isDirectory()) {
-
-                // Handle the special case when the resource designates a *directory*. ("CompressUtil.processFile()"
-                // can NOT handle directories, only normal files!)
-                this.findInDirectory(path, file, currentDepth);
-                return;
+        PropertyRecord fileProperties = new PropertyRecord(null);
+        fileProperties.set(PropertyRecord.TYPE,                   "file");
+        fileProperties.set(PropertyRecord.NAME,                   file.getName());
+        fileProperties.setLazy(PropertyRecord.SIZE,               () -> Find.size(file, attributes));
+        fileProperties.setLazy(PropertyRecord.READABLE,           () -> file.canRead());
+        fileProperties.setLazy(PropertyRecord.WRITABLE,           () -> file.canWrite());
+        fileProperties.setLazy(PropertyRecord.EXECUTABLE,         () -> file.canExecute());
+        fileProperties.setLazy(PropertyRecord.INPUT_STREAM,       () -> {
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException fnfe) {
+                throw ExceptionUtil.wrap(
+                    "Reading file \"" + file + "\"",
+                    fnfe,
+                    RuntimeException.class
+                );
             }
-            resourceProperties.put("type",             Find.cp("file"));
-            resourceProperties.put("name",             Find.cp(file.getName()));
-            resourceProperties.put("size",             () -> file.length());
-            resourceProperties.put("readable",         () -> file.canRead());
-            resourceProperties.put("writable",         () -> file.canWrite());
-            resourceProperties.put("executable",       () -> file.canExecute());
-            resourceProperties.put("inputStream",      () -> {
-                try {
-                    return new FileInputStream(file);
-                } catch (FileNotFoundException fnfe) {
-                    throw ExceptionUtil.wrap(
-                        "Reading file \"" + resource + "\"",
-                        fnfe,
-                        RuntimeException.class
-                    );
-                }
-            });
-            resourceProperties.put("crc",              () -> {
-                final CRC32 cs = new java.util.zip.CRC32();
-                try (InputStream is = new FileInputStream(file)) {
-                    ChecksumAction.updateAll(cs, is);
-                } catch (IOException ioe) {
-                    throw ExceptionUtil.wrap(
-                        "Computing CRC of file \"" + resource + "\"",
-                        ioe,
-                        RuntimeException.class
-                    );
-                }
-                return (int) cs.getValue();
-            });
-            resourceProperties.put("file",             Find.cp(file));
-            resourceProperties.put("lastModified",     () -> file.lastModified());
-            resourceProperties.put("lastModifiedDate", () -> new Date(file.lastModified()));
-        } else {
+        });
+        fileProperties.setLazy(PropertyRecord.CRC,                () -> {
+            final CRC32 cs = new java.util.zip.CRC32();
+            try (InputStream is = new FileInputStream(file)) {
+                ChecksumAction.updateAll(cs, is);
+            } catch (IOException ioe) {
+                throw ExceptionUtil.wrap(
+                    "Computing CRC of file \"" + file + "\"",
+                    ioe,
+                    RuntimeException.class
+                );
+            }
+            return (int) cs.getValue();
+        });
+        fileProperties.set(PropertyRecord.FILE,                   file);
+        fileProperties.setLazy(PropertyRecord.LAST_MODIFIED,      () -> Find.lastModified(file, attributes));
+        fileProperties.setLazy(PropertyRecord.LAST_MODIFIED_DATE, () -> Find.lastModifiedDate(file, attributes));
+        fileProperties.setLazy(PropertyRecord.URL,                () -> {
+            try {
+                return file.toURI().toURL();
+            } catch (MalformedURLException mue) {
+                throw ExceptionUtil.wrap("Converting \"" + file + "\" to URL", mue, RuntimeException.class);
+            }
+        });
+        fileProperties.set(PropertyRecord.PATH,                   path);
 
-            // The URL designates a non-file resource.
-            resourceProperties.put("type",             Find.cp(resource.getProtocol() + "-resource"));
-            String up = resource.getPath();
-            resourceProperties.put("name",             Find.cp(up.substring(up.lastIndexOf('/') + 1)));
-            resourceProperties.put("size",             () -> {
-                try {
-                    return resource.openConnection().getContentLengthLong();
-                } catch (IOException ioe) {
-                    throw ExceptionUtil.wrap(
-                        "Querying size of resource \"" + resource + "\"",
-                        ioe,
-                        RuntimeException.class
-                    );
-                }
-            });
-            resourceProperties.put("readable",         Find.cp(true));
-            resourceProperties.put("writable",         Find.cp(false));
-            resourceProperties.put("executable",       Find.cp(false));
-            resourceProperties.put("crc",              () -> {
-                final CRC32 cs = new java.util.zip.CRC32();
-                try (InputStream is = resource.openConnection().getInputStream()) {
-                    ChecksumAction.updateAll(cs, is);
-                } catch (IOException ioe) {
-                    throw ExceptionUtil.wrap(
-                        "Computing CRC of resource \"" + resource + "\"",
-                        ioe,
-                        RuntimeException.class
-                    );
-                }
-                return (int) cs.getValue();
-            });
+        PropertyRecord previousRoot = Find.CURRENT_ROOT.get();
+        Find.CURRENT_ROOT.set(fileProperties);
+        try {
+            CompressUtil.processFile(
+                path,                                                          // path
+                file,                                                          // file
+                this.lookIntoFormat,                                           // lookIntoFormat
+                this.archiveHandler(path, fileProperties, currentDepth),       // archiveHandler
+                this.compressorHandler(path, fileProperties, currentDepth),    // compressorHandler
+                this.normalContentsHandler(path, fileProperties, currentDepth) // normalContentsHandler
+            );
+        } finally {
+            Find.CURRENT_ROOT.set(previousRoot);
         }
+    }
 
-        resourceProperties.put("url",  Find.cp(resource));
-        resourceProperties.put("path", Find.cp(path));
+    /**
+     * @return The attributes of the <var>file</var>, read with one system call, or {@code null} iff they cannot be
+     *         read
+     */
+    @Nullable private static BasicFileAttributes
+    readAttributes(File file) {
+        try {
+            return Find.readAttributes(file.toPath());
+        } catch (InvalidPathException ipe) {
+            return null;
+        }
+    }
 
-        ArchiveHandler<Void>
-        archiveHandler        = this.archiveHandler(path, resourceProperties, currentDepth);
-        CompressorHandler<Void>
-        compressorHandler     = this.compressorHandler(path, resourceProperties, currentDepth);
-        NormalContentsHandler<Void>
-        normalContentsHandler = this.normalContentsHandler(path, resourceProperties, currentDepth);
+    /**
+     * @return The attributes of the <var>path</var>, read with one system call, or {@code null} iff they cannot be
+     *         read
+     */
+    @Nullable private static BasicFileAttributes
+    readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
 
-        if (file != null) {
-            CompressUtil.processFile(
-                path,
-                file,
-                this.lookIntoFormat,
-                archiveHandler,
-                compressorHandler,
-                normalContentsHandler
-            );
-        } else {
-            URLConnection conn             = resource.openConnection();
-            InputStream   is               = conn.getInputStream();
-            long          lastModified     = conn.getLastModified();
-            Date          lastModifiedDate = lastModified == 0 ? null : new Date(lastModified);
-            try {
+    /**
+     * @return The size of the <var>file</var>, preferably from its <var>attributes</var>
+     */
+    private static long
+    size(File file, @Nullable BasicFileAttributes attributes) {
+        return attributes != null ? attributes.size() : file.length();
+    }
 
-                CompressUtil.processStream(
-                    path,                 // path
-                    is,                   // inputStream
-                    lastModifiedDate,     // lastModifiedDate
-                    this.lookIntoFormat,  // lookIntoFormat
-                    archiveHandler,       // archiveHandler
-                    compressorHandler,    // compressorHandler
-                    normalContentsHandler // normalContentsHandler
-                );
-                is.close();
-            } finally {
-                try { is.close(); } catch (Exception e) {}
-            }
-        }
+    /**
+     * @return The modification time of the <var>file</var>, preferably from its <var>attributes</var>
+     */
+    private static long
+    lastModified(File file, @Nullable BasicFileAttributes attributes) {
+        return attributes != null ? attributes.lastModifiedTime().toMillis() : file.lastModified();
+    }
+
+    private static Date
+    lastModifiedDate(File file, @Nullable BasicFileAttributes attributes) {
+        return new Date(Find.lastModified(file, attributes));
     }
 
     private void
     findInStream(
-        final String                            path,
-        InputStream                             inputStream,
-        @Nullable Date                          lastModifiedDate,
-        Map<String, Producer<? extends Object>> streamProperties,
-        final int                               currentDepth
+        final String   path,
+        InputStream    inputStream,
+        @Nullable Date lastModifiedDate,
+        PropertyRecord streamProperties,
+        final int      currentDepth
     ) throws IOException {
 
-        streamProperties = new HashMap<String, Producer<? extends Object>>(streamProperties);
-        streamProperties.put("type", Find.cp("contents"));
-        streamProperties.put("path", Find.cp(path));
+        streamProperties = (
+            new PropertyRecord(streamProperties)
+            .set(PropertyRecord.TYPE, "contents")
+            .set(PropertyRecord.PATH, path)
+        );
 
         try {
             CompressUtil.processStream(
@@ -1592,11 +2929,7 @@ class Find {
     }
 
     private CompressorHandler<Void>
-    compressorHandler(
-        final String                                  path,
-        final Map<String, Producer<? extends Object>> properties,
-        final int                                     currentDepth
-    ) {
+    compressorHandler(final String path, final PropertyRecord properties, final int currentDepth) {
 
         return new CompressorHandler<Void>() {
 
@@ -1613,17 +2946,17 @@ class Find {
                         @Override public void
                         run() {
 
-                            Find.this.evaluateExpression(MapUtil.combine(
-                                MapUtil.map( // SUPPRESS CHECKSTYLE Wrap:6
-                                    "type",              Find.cp("compressed-" + properties.get("type").produce()),
-                                    "compressionFormat", Find.cp(compressionFormat),
-                                    "depth",             Find.cp(currentDepth),
-                                    // We define "no input stream", because otherwise we couldn't process the CONTENTS
-                                    // of the compressed resource:
-                                    "inputStream",       Find.cp(null)
-                                ),
-                                properties
-                            ));
+                            Object type = properties.get(PropertyRecord.TYPE);
+
+                            Find.this.evaluateExpression(
+                                new PropertyRecord(properties)
+                                .set(PropertyRecord.TYPE,               "compressed-" + type)
+                                .set(PropertyRecord.COMPRESSION_FORMAT, compressionFormat)
+                                .set(PropertyRecord.DEPTH,              currentDepth)
+                                // We define "no input stream", because otherwise we couldn't process the CONTENTS of
+                                // the compressed resource:
+                                .set(PropertyRecord.INPUT_STREAM,       null)
+                            );
                         }
                     },
                     new RunnableWhichThrows<IOException>() {
@@ -1632,30 +2965,24 @@ class Find {
                         run() throws IOException {
 
                             // Process the compressed resource's contents.
-                            if (currentDepth < Find.this.maxDepth) {
-                                Producer<? extends Object> vg = properties.get("name");
-                                assert vg != null;
-                                Object name = vg.produce();
+                            if (
+                                currentDepth < Find.this.maxDepth
+                                && Find.mayHaveSideEffects(Find.this.expression, path + '%')
+                            ) {
+                                Object name = properties.get(PropertyRecord.NAME);
                                 assert name != null;
 
-                                Date lastModifiedDate = null;
-                                {
-                                    Producer<? extends Object> p = properties.get("lastModifiedDate");
-                                    if (p != null) {
-                                        Object o = p.produce();
-                                        if (o instanceof Date) lastModifiedDate = (Date) o;
-                                    }
-                                }
+                                Object lmd              = properties.get(PropertyRecord.LAST_MODIFIED_DATE);
+                                Date   lastModifiedDate = lmd instanceof Date ? (Date) lmd : null;
 
                                 Find.this.findInStream(
                                     path + '%',
                                     compressorInputStream,
                                     lastModifiedDate,
-                                    MapUtil.combine(MapUtil.map(
-                                        "compressionFormat", Find.cp(compressionFormat), // SUPPRESS CHECKSTYLE Wrap:2
-                                        "name",              Find.cp(name + "%"),
-                                        "size",              Find.cp(-1L)
-                                    ), properties),
+                                    new PropertyRecord(properties)
+                                    .set(PropertyRecord.COMPRESSION_FORMAT, compressionFormat)
+                                    .set(PropertyRecord.NAME,               name + "%")
+                                    .set(PropertyRecord.SIZE,               -1L),
                                     currentDepth + 1
                                 );
                             }
@@ -1669,11 +2996,7 @@ class Find {
     }
 
     private ArchiveHandler<Void>
-    archiveHandler(
-        final String                                  path,
-        final Map<String, Producer<? extends Object>> properties,
-        final int                                     currentDepth
-    ) {
+    archiveHandler(final String path, final PropertyRecord properties, final int currentDepth) {
 
         return new ArchiveHandler<Void>() {
 
@@ -1691,15 +3014,15 @@ class Find {
                         run() {
 
                             // Evaluate the FIND expression for the archive resource.
-                            Find.this.evaluateExpression(MapUtil.combine(MapUtil.map( // SUPPRESS CHECKSTYLE Wrap:7
-                                "type",                   Find.cp("archive-" + properties.get("type").produce()),
-                                "path",                   Find.cp(path),
-                                "archiveFormat",          Find.cp(archiveFormat),
-                                "depth",                  Find.cp(currentDepth),
-                                "inputStream",            Find.cp(null),
-                                "name",                   properties.get("name"),
-                                Find.PRUNE_PROPERTY_NAME, Find.cp(prune)
-                            ), properties));
+                            Find.this.evaluateExpression(
+                                new PropertyRecord(properties)
+                                .set(PropertyRecord.TYPE,           "archive-" + properties.get(PropertyRecord.TYPE))
+                                .set(PropertyRecord.PATH,           path)
+                                .set(PropertyRecord.ARCHIVE_FORMAT, archiveFormat)
+                                .set(PropertyRecord.DEPTH,          currentDepth)
+                                .set(PropertyRecord.INPUT_STREAM,   null)
+                                .set(PropertyRecord.PRUNE,          prune)
+                            );
                         }
                     },
                     new RunnableWhichThrows<IOException>() {
@@ -1709,6 +3032,9 @@ class Find {
 
                             if (prune[0] || currentDepth >= Find.this.maxDepth) return;
 
+                            // Skip the archive's entries iff the expression cannot have any side effects for them.
+                            if (!Find.mayHaveSideEffects(Find.this.expression, path + '!')) return;
+
                             // Process the archive's entries.
                             for (
                                 ArchiveEntry ae = archiveInputStream.getNextEntry();
@@ -1731,7 +3057,6 @@ class Find {
                         ) throws IOException {
 
                             Producer<Object> crcGetter = Find.methodPropertyGetter(ae, "getCrc");
-                            if (crcGetter == null) crcGetter = Find.cp(-1);
 
                             Date lastModifiedDate;
                             long lastModified;
@@ -1746,18 +3071,21 @@ class Find {
                                 lastModified     = 0;
                             }
 
-                            Map<String, Producer<? extends Object>>
-                            properties2 = new HashMap<String, Producer<? extends Object>>();
-                            properties2.put("archiveEntry",      Find.cp(ae));
-                            properties2.put("lastModifiedDate",  Find.cp(lastModifiedDate));
-                            properties2.put("lastModified",      Find.cp(lastModified));
-                            properties2.put("name",              Find.cp(ae.getName()));
-                            properties2.put("size",              Find.cp(ae.getSize()));
-                            properties2.put("readable",          Find.cp(true));
-                            properties2.put("writable",          Find.cp(false));
-                            properties2.put("executable",        Find.cp(false));
-                            properties2.put("crc",               crcGetter);
-                            properties2.put("compressionMethod", Find.cp(archiveFormat.getCompressionMethod(ae)));
+                            PropertyRecord properties2 = new PropertyRecord(null);
+                            properties2.set(PropertyRecord.ARCHIVE_ENTRY,      ae);
+                            properties2.set(PropertyRecord.LAST_MODIFIED_DATE, lastModifiedDate);
+                            properties2.set(PropertyRecord.LAST_MODIFIED,      lastModified);
+                            properties2.set(PropertyRecord.NAME,               ae.getName());
+                            properties2.set(PropertyRecord.SIZE,               ae.getSize());
+                            properties2.set(PropertyRecord.READABLE,           true);
+                            properties2.set(PropertyRecord.WRITABLE,           false);
+                            properties2.set(PropertyRecord.EXECUTABLE,         false);
+                            if (crcGetter != null) {
+                                properties2.setLazy(PropertyRecord.CRC, crcGetter);
+                            } else {
+                                properties2.set(PropertyRecord.CRC, -1);
+                            }
+                            properties2.set(PropertyRecord.COMPRESSION_METHOD, archiveFormat.getCompressionMethod(ae));
 
                             String entryName = ArchiveFormatFactory.normalizeEntryName(ae.getName());
                             String entryPath = path + '!' + entryName;
@@ -1765,22 +3093,22 @@ class Find {
                             if (ae.isDirectory()) {
 
                                 // Evaluate the FIND expression for the directory entry.
-                                properties2.put("path",          Find.cp(entryPath));
-                                properties2.put("name",          Find.cp(entryName));
-                                properties2.put("archiveFormat", Find.cp(archiveFormat));
-                                properties2.put("type",          Find.cp("directory-entry"));
-                                properties2.put("depth",         Find.cp(currentDepth + 1));
-                                properties2.put("inputStream",   Find.cp(null));
+                                properties2.set(PropertyRecord.PATH,           entryPath);
+                                properties2.set(PropertyRecord.NAME,           entryName);
+                                properties2.set(PropertyRecord.ARCHIVE_FORMAT, archiveFormat);
+                                properties2.set(PropertyRecord.TYPE,           "directory-entry");
+                                properties2.set(PropertyRecord.DEPTH,          currentDepth + 1);
+                                properties2.set(PropertyRecord.INPUT_STREAM,   null);
 
                                 // Archive formate are inconsistent withe the "size" of a directory entry --
                                 // sometimes it computes to 0, sometimes to -1. We always want 0.
-                                properties2.put("size", Find.cp(0L));
+                                properties2.set(PropertyRecord.SIZE, 0L);
 
                                 Find.this.evaluateExpression(properties2);
                             } else {
 
                                 // Evaluate the FIND expression for the non-directory entry.
-                                properties2.put("archiveFormat", Find.cp(archiveFormat));
+                                properties2.set(PropertyRecord.ARCHIVE_FORMAT, archiveFormat);
 
                                 try {
                                     Find.this.findInStream(
@@ -1810,42 +3138,43 @@ class Find {
     }
 
     private NormalContentsHandler<Void>
-    normalContentsHandler(
-        final String                                  path,
-        final Map<String, Producer<? extends Object>> properties,
-        final int                                     currentDepth
-    ) {
+    normalContentsHandler(final String path, final PropertyRecord properties, final int currentDepth) {
 
         return new NormalContentsHandler<Void>() {
 
             @Override @Nullable public Void
-            handleNormalContents(final InputStream inputStream, @Nullable Date lastModifiedDate) {
+            handleNormalContents(InputStream inputStream, @Nullable Date lastModifiedDate) {
+
+                // Read the contents at most once, no matter how many of "-cat", "-digest", "crc", "size" etc. there
+                // are.
+                DigestCache         digestCache = Find.this.digestCache;
+                final ContentFanOut contents    = new ContentFanOut(
+                    inputStream,
+                    Find.this.digestAlgorithms,
+                    Find.this.checksumTypes,
+                    digestCache,
+                    digestCache == null ? null : Find.cacheKey(path, properties, lastModifiedDate)
+                );
 
                 Producer<Integer> crcGetter = () -> {
-                    final CRC32 cs = new java.util.zip.CRC32();
                     try {
-                        ChecksumAction.updateAll(cs, inputStream);
+                        return contents.crc();
                     } catch (IOException ioe) {
                         throw ExceptionUtil.wrap("Computing CRC of \"" + path + "\"", ioe, RuntimeException.class);
                     }
-                    return (int) cs.getValue();
                 };
                 Producer<Long> sizeGetter = () -> {
 
                     // Check if the "size" property inherited from the ArchiveEntry has a reasonable
                     // value (ZipArchiveEntries have size -1 iff the archive was created in "streaming
                     // mode").
-                    Producer<? extends Object> sizeValueProducer = properties.get("size");
-                    if (sizeValueProducer != null) {
-                        Long size = (Long) sizeValueProducer.produce();
-                        assert size != null;
-                        if (size != -1) return size;
-                    }
+                    Long size = properties.get(PropertyRecord.SIZE, Long.class);
+                    if (size != null && size != -1) return size;
 
                     // Compute the value of the "size" property only IF it is needed, and WHEN it is
                     // needed, because it consumes the contents.
                     try {
-                        return InputStreams.skipAll(inputStream);
+                        return contents.size();
                     } catch (IOException ioe) {
                         throw ExceptionUtil.wrap(
                             "Measuring size of \"" + path + "\"",
@@ -1856,28 +3185,75 @@ class Find {
                 };
 
                 // Evaluate the FIND expression for the nested normal contents.
-                Find.this.evaluateExpression(MapUtil.combine(MapUtil.map( // SUPPRESS CHECKSTYLE Wrap:7
-                    "path",             Find.cp(path),
-                    "type",             Find.cp("normal-" + properties.get("type").produce()),
-                    "lastModifiedDate", Find.cp(lastModifiedDate),
-                    "inputStream",      Find.cp(inputStream),
-                    "depth",            Find.cp(currentDepth),
-                    "crc",              crcGetter,
-                    "size",             sizeGetter
-                ), properties));
+                Find.this.evaluateExpression(
+                    new PropertyRecord(properties)
+                    .set(PropertyRecord.PATH,               path)
+                    .set(PropertyRecord.TYPE,               "normal-" + properties.get(PropertyRecord.TYPE))
+                    .set(PropertyRecord.LAST_MODIFIED_DATE, lastModifiedDate)
+                    .set(PropertyRecord.INPUT_STREAM,       contents)
+                    .set(PropertyRecord.DEPTH,              currentDepth)
+                    .setLazy(PropertyRecord.CRC,            crcGetter)
+                    .setLazy(PropertyRecord.SIZE,           sizeGetter)
+                );
 
                 return null;
             }
         };
     }
 
+    /**
+     * The properties of the file or resource that the current thread is processing (including its archive entries and
+     * compressed contents), or {@code null}. (For spooled STDIN, only the "path" and the "url" of the spool file.)
+     */
+    private static final ThreadLocal<PropertyRecord> CURRENT_ROOT = new ThreadLocal<PropertyRecord>();
+
+    /**
+     * @param properties The properties of the document that encloses the normal contents
+     * @return           {@code null} iff the document cannot be identified reliably enough for caching, i.e. neither
+     *                   its size nor its CRC is known
+     */
+    @Nullable private static DigestCache.Key
+    cacheKey(String path, PropertyRecord properties, @Nullable Date lastModifiedDate) {
+
+        // Key documents in files by the absolute path of the file plus the nested path (e.g. "!dir/entry"), because the
+        // paths are relative to the current working directory (e.g. "." or "files/...") and thus ambiguous.
+        String         keyPath        = path;
+        PropertyRecord rootProperties = Find.CURRENT_ROOT.get();
+        if (rootProperties != null) {
+            String filePath = rootProperties.get(PropertyRecord.PATH, String.class);
+            File   file     = rootProperties.get(PropertyRecord.FILE, File.class);
+            if (filePath != null && file != null && path.startsWith(filePath)) {
+                keyPath = file.getAbsolutePath() + path.substring(filePath.length());
+            }
+        }
+
+        Object size         = properties.get(PropertyRecord.SIZE);
+        Object lastModified = properties.get(PropertyRecord.LAST_MODIFIED);
+
+        // Only the CRC of an archive entry is metadata; the CRC of a file or a resource is computed from its contents.
+        Object crc = properties.get(PropertyRecord.ARCHIVE_ENTRY) != null ? properties.get(PropertyRecord.CRC) : null;
+
+        DigestCache.Key result = new DigestCache.Key(
+            keyPath,
+            size instanceof Number ? ((Number) size).longValue() : -1,
+            (
+                lastModified instanceof Number ? ((Number) lastModified).longValue()
+                : lastModifiedDate != null ? lastModifiedDate.getTime()
+                : -1
+            ),
+            crc instanceof Number ? ((Number) crc).longValue() : -1
+        );
+
+        return result.size == -1 && result.crc == -1 ? null : result;
+    }
+
     private void
-    evaluateExpression(Map<String, Producer<? extends Object>> properties) {
+    evaluateExpression(PropertyRecord properties) {
 
         // Do not evaluate the expression if the current depth is less than "this.minDepth".
         if (this.minDepth > 0) {
 
-            Object depthValue = properties.get("depth").produce();
+            Object depthValue = properties.get(PropertyRecord.DEPTH);
             assert depthValue instanceof Integer;
 
             int currentDepth = (Integer) depthValue;
@@ -1885,11 +3261,290 @@ class Find {
             if (currentDepth < this.minDepth) return;
         }
 
-        this.expression.evaluate(Find.toMapping(properties));
+        this.expression.evaluate(properties);
+    }
+
+    /**
+     * Reorders the operands of each chain of {@link AndTest}s and of each chain of {@link OrTest}s such that the
+     * cheaper ones are evaluated first. Only side-effect-free operands (i.e. {@link Test}s that contain no {@link
+     * Action}s, and {@code -prune} is an action) are reordered, and never across an operand that has side effects;
+     * thus the result of the expression, and its side effects, remain exactly the same.
+     */
+    static Expression
+    optimize(Expression expression) {
+
+        if (expression.getClass() == AndTest.class || expression.getClass() == OrTest.class) {
+
+            List<Expression> operands = new ArrayList<Expression>();
+            Find.flatten(expression, expression.getClass(), operands);
+
+            for (int i = 0; i < operands.size(); i++) operands.set(i, Find.optimize(operands.get(i)));
+
+            // Sort each run of side-effect-free operands by cost. (The sort is stable, so operands of equal cost
+            // retain their order.)
+            for (int from = 0; from < operands.size();) {
+
+                if (!Find.isSideEffectFree(operands.get(from))) {
+                    from++;
+                    continue;
+                }
+
+                int to = from + 1;
+                while (to < operands.size() && Find.isSideEffectFree(operands.get(to))) to++;
+
+                Collections.sort(
+                    operands.subList(from, to),
+                    (e1, e2) -> Integer.compare(Find.cost(e1), Find.cost(e2))
+                );
+                from = to;
+            }
+
+            Expression result = operands.get(operands.size() - 1);
+            for (int i = operands.size() - 2; i >= 0; i--) {
+                result = (
+                    expression.getClass() == AndTest.class
+                    ? new AndTest(operands.get(i), result)
+                    : new OrTest(operands.get(i), result)
+                );
+            }
+            return result;
+        }
+
+        if (expression.getClass() == CommaTest.class) {
+            CommaTest ct = (CommaTest) expression;
+            return new CommaTest(Find.optimize(ct.lhs), Find.optimize(ct.rhs));
+        }
+
+        if (expression.getClass() == NotExpression.class) {
+            return new NotExpression(Find.optimize(((NotExpression) expression).operand));
+        }
+
+        return expression;
+    }
+
+    /**
+     * Adds the algorithms of all {@link DigestAction}s and {@link DuplicatesAction}s and the types of all {@link
+     * ChecksumAction}s within the <var>expression</var> to the <var>digestAlgorithms</var> and the
+     * <var>checksumTypes</var>.
+     */
+    private static void
+    collectContentConsumers(
+        Expression                       expression,
+        Set<String>                      digestAlgorithms,
+        Set<ChecksumAction.ChecksumType> checksumTypes
+    ) {
+
+        if (expression instanceof DigestAction) {
+            digestAlgorithms.add(((DigestAction) expression).algorithm);
+        } else
+        if (expression instanceof ChecksumAction) {
+            checksumTypes.add(((ChecksumAction) expression).checksumType);
+        } else
+        if (expression instanceof DuplicatesAction) {
+            digestAlgorithms.add(DuplicatesAction.ALGORITHM);
+        } else
+        if (expression instanceof UnaryTest) {
+            Find.collectContentConsumers(((UnaryTest) expression).operand, digestAlgorithms, checksumTypes);
+        } else
+        if (expression instanceof BinaryTest) {
+            BinaryTest bt = (BinaryTest) expression;
+            Find.collectContentConsumers(bt.lhs, digestAlgorithms, checksumTypes);
+            Find.collectContentConsumers(bt.rhs, digestAlgorithms, checksumTypes);
+        }
+    }
+
+    /**
+     * Adds all {@link ExecAction}s, {@link PipeAction}s, {@link CopyAction}s and {@link DuplicatesAction}s within
+     * the <var>expression</var> to the <var>result</var>.
+     */
+    private static void
+    collectDeferringActions(Expression expression, List<Flushable> result) {
+
+        if (
+            expression instanceof ExecAction
+            || expression instanceof PipeAction
+            || expression instanceof CopyAction
+            || expression instanceof DuplicatesAction
+        ) {
+            result.add((Flushable) expression);
+        } else
+        if (expression instanceof UnaryTest) {
+            Find.collectDeferringActions(((UnaryTest) expression).operand, result);
+        } else
+        if (expression instanceof BinaryTest) {
+            Find.collectDeferringActions(((BinaryTest) expression).lhs, result);
+            Find.collectDeferringActions(((BinaryTest) expression).rhs, result);
+        }
+    }
+
+    /**
+     * Adds the operands of the chain of <var>binaryTestClass</var> instances to the <var>result</var>, left to
+     * right.
+     */
+    private static void
+    flatten(Expression expression, Class<?> binaryTestClass, List<Expression> result) {
+
+        if (expression.getClass() == binaryTestClass) {
+            BinaryTest bt = (BinaryTest) expression;
+            Find.flatten(bt.lhs, binaryTestClass, result);
+            Find.flatten(bt.rhs, binaryTestClass, result);
+        } else {
+            result.add(expression);
+        }
+    }
+
+    private static boolean
+    isSideEffectFree(Expression expression) {
+
+        if (expression instanceof UnaryTest) return Find.isSideEffectFree(((UnaryTest) expression).operand);
+
+        if (expression instanceof BinaryTest) {
+            BinaryTest bt = (BinaryTest) expression;
+            return Find.isSideEffectFree(bt.lhs) && Find.isSideEffectFree(bt.rhs);
+        }
+
+        return expression instanceof Test;
+    }
+
+    /**
+     * @return The relative cost of evaluating the <var>expression</var>
+     */
+    private static int
+    cost(Expression expression) {
+
+        if (expression instanceof ConstantTest) return 0;
+
+        if (expression instanceof UnaryTest) return Find.cost(((UnaryTest) expression).operand);
+
+        if (expression instanceof BinaryTest) {
+            BinaryTest bt = (BinaryTest) expression;
+            return Find.cost(bt.lhs) + Find.cost(bt.rhs);
+        }
+
+        if (expression instanceof BooleanTest) {
+            return Find.propertyCost(((BooleanTest) expression).propertyName);
+        }
+
+        if (expression instanceof PredicateTest) {
+            return Find.propertyCost(((PredicateTest<?>) expression).propertyName);
+        }
+
+        if (expression instanceof StringPredicateTest) {
+            return Find.propertyCost(((StringPredicateTest) expression).propertyName);
+        }
+
+        return 4;
+    }
+
+    /**
+     * @return The relative cost of getting the value of the named property
+     */
+    private static int
+    propertyCost(String propertyName) {
+
+        switch (propertyName) {
+
+        case "name":
+        case "path":
+        case "type":
+        case "depth":
+        case "archiveFormat":
+        case "compressionFormat":
+            return 1;
+
+        case "size":
+
+            // For files, that is one "stat()", but for streamed archive entries the contents must be read.
+            return 3;
+
+        case "crc":
+        case "inputStream":
+            return 4;
+
+        default:
+
+            // E.g. "readable" and "lastModified", which require one "stat()" for files.
+            return 2;
+        }
+    }
+
+    /**
+     * @return Whether the <var>expression</var> could have side effects for any node with a path that starts with the
+     *         <var>pathPrefix</var>; {@code true} if in doubt
+     */
+    private static boolean
+    mayHaveSideEffects(Expression expression, String pathPrefix) {
+
+        if (expression instanceof PruneAction) {
+
+            // "-prune" only affects the descent into the current node, i.e. nodes with the same path prefix.
+            return false;
+        }
+
+        if (expression instanceof AndTest) {
+            AndTest at = (AndTest) expression;
+            return (
+                Find.mayHaveSideEffects(at.lhs, pathPrefix)
+                || (Find.maySatisfy(at.lhs, pathPrefix) && Find.mayHaveSideEffects(at.rhs, pathPrefix))
+            );
+        }
+
+        if (expression instanceof UnaryTest) {
+            return Find.mayHaveSideEffects(((UnaryTest) expression).operand, pathPrefix);
+        }
+
+        if (expression instanceof BinaryTest) {
+            BinaryTest bt = (BinaryTest) expression;
+            return Find.mayHaveSideEffects(bt.lhs, pathPrefix) || Find.mayHaveSideEffects(bt.rhs, pathPrefix);
+        }
+
+        return !(expression instanceof Test);
+    }
+
+    /**
+     * @return Whether the <var>expression</var> could evaluate to {@code true} for any node with a path that starts
+     *         with the <var>pathPrefix</var>; {@code true} if in doubt
+     */
+    private static boolean
+    maySatisfy(Expression expression, String pathPrefix) {
+
+        if (expression == Test.FALSE) return false;
+
+        if (expression instanceof PathTest) return ((PathTest) expression).mayMatchPathsStartingWith(pathPrefix);
+
+        if (expression instanceof AndTest) {
+            AndTest at = (AndTest) expression;
+            return Find.maySatisfy(at.lhs, pathPrefix) && Find.maySatisfy(at.rhs, pathPrefix);
+        }
+
+        if (expression instanceof OrTest) {
+            OrTest ot = (OrTest) expression;
+            return Find.maySatisfy(ot.lhs, pathPrefix) || Find.maySatisfy(ot.rhs, pathPrefix);
+        }
+
+        if (expression instanceof CommaTest) return Find.maySatisfy(((CommaTest) expression).rhs, pathPrefix);
+
+        return true;
+    }
+
+    /**
+     * Reads the property directly from its <var>slot</var> iff the <var>properties</var> are a {@link
+     * PropertyRecord}, and by its name otherwise (e.g. when an application evaluates an expression with its own
+     * {@link Mapping}).
+     *
+     * @param slot -1 iff the property has no slot
+     */
+    @Nullable private static <T> T
+    getProperty(Mapping<String, Object> properties, int slot, String propertyName, Class<T> propertyType) {
+        return (
+            slot != -1 && properties instanceof PropertyRecord
+            ? ((PropertyRecord) properties).get(slot, propertyType)
+            : Mappings.get(properties, propertyName, propertyType)
+        );
     }
 
     private static long
-    checksum(final Mapping<String, Object> properties, Checksum cs) {
+    checksum(final Mapping<String, Object> properties, ChecksumAction.ChecksumType checksumType) {
 
         InputStream is = Mappings.get(properties, "inputStream", InputStream.class);
         if (is == null) {
@@ -1899,6 +3554,17 @@ class Find {
             );
         }
 
+        if (is instanceof ContentFanOut) {
+
+            // Share the one pass over the contents with the other consumers.
+            try {
+                return ((ContentFanOut) is).checksum(checksumType);
+            } catch (IOException ioe) {
+                throw ExceptionUtil.wrap("Running '-checksum' on '" + properties + "'", ioe, RuntimeException.class);
+            }
+        }
+
+        Checksum cs = checksumType.newChecksum();
         try {
             ChecksumAction.updateAll(cs, is);
         } catch (IOException ioe) {
@@ -1909,41 +3575,6 @@ class Find {
         return cs.getValue();
     }
 
-    private static Mapping<String, Object>
-    toMapping(Map<String, Producer<? extends Object>> map) {
-
-        return new Mapping<String, Object>() {
-
-            @Nullable Map<String, Object> lazyMap;
-
-            @Override public boolean
-            containsKey(@Nullable Object key) {
-
-                // We want undefined variables to default to NULL.
-                //return "_keys".equals(key) || map.containsKey(key);
-                return true;
-            }
-
-            @Override @Nullable public Object
-            get(@Nullable Object key) {
-
-                if ("_map".equals(key))    return this.getLazyMap();
-                if ("_keys".equals(key))   return this.getLazyMap().keySet();
-                if ("_values".equals(key)) return this.getLazyMap().values();
-
-                Producer<? extends Object> valueProducer = map.get(key);
-                if (valueProducer == null) return null;
-                return valueProducer.produce();
-            }
-
-            private Map<String, Object>
-            getLazyMap() {
-                Map<String, Object> result = this.lazyMap;
-                return result != null ? result : (result = MapUtil.<String, Object>lazyMap(map));
-            }
-        };
-    }
-
     /**
      * @return {@code null} iff the <var>target</var> has no non-static zero-parameter method with that
      *         <var>methodName</var>
@@ -1970,10 +3601,4 @@ class Find {
             }
         };
     }
-
-    /**
-     * Shorthand for {@link ProducerUtil#constantProducer(Object)}.
-     */
-    private static <T> Producer<T>
-    cp(@Nullable T constantValue) { return ProducerUtil.constantProducer(constantValue); }
 }
@@ -26,6 +26,7 @@
 
 package de.unkrig.zz.find;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.security.Provider;
@@ -40,10 +41,10 @@ import org.apache.commons.compress.utils.Charsets;
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveFormatFactory;
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.sevenz.SevenZArchiveFormat;
 import de.unkrig.commons.file.org.apache.commons.compress.compressors.CompressionFormatFactory;
-import de.unkrig.commons.file.resourceprocessing.ResourceProcessings;
 import de.unkrig.commons.lang.AssertionUtil;
 import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
 import de.unkrig.commons.lang.protocol.ProducerUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
 import de.unkrig.commons.text.LevelFilteredPrinter;
 import de.unkrig.commons.text.Printers;
 import de.unkrig.commons.text.parser.ParseException;
@@ -69,6 +70,8 @@ class Main {
 
     private final Find find    = new Find();
 
+    @Nullable private DigestCache digestCache;
+
     private final LevelFilteredPrinter levelFilteredPrinter = new LevelFilteredPrinter();
 
     // SUPPRESS CHECKSTYLE LineLength:245
@@ -218,6 +221,12 @@ class Main {
      *     Execute "<var>word</var>{@code ...}" as an external command; "{@code {}}" is replaced with the current
      *     file's path (which may contain "{@code !}" and would then NOT denote a physical file in the file system).
      *   </dd>
+     *   <dt>{@code -exec} <var>word</var>{@code ... {} +}</dt>
+     *   <dd>
+     *     Like above, but execute the command only once for many matches (like "{@code xargs}"), with "{@code {}}"
+     *     replaced with their paths. Always returns true; if any execution fails, then the exit status is 2. See
+     *     also "{@code --exec-batch-size}", "{@code --exec-batch-per-directory}" and "{@code --exec-parallel}".
+     *   </dd>
      *   <dt>{@code -pipe} <var>word</var>{@code ... ;}</dt>
      *   <dd>
      *     Copy the file contents to the standard input of an external command "<var>word</var>{@code ...}";
@@ -281,6 +290,15 @@ class Main {
      *     If you want to delete <em>directories</em>, also configure the {@code --descendants-first} option, for
      *     otherwise the directory is first deleted, and then traversed, which cannot possibly work.
      *   </dd>
+     *   <dt>{@code -duplicates}</dt>
+     *   <dd>
+     *     Remember the contents (also of archives and compressed files) and return true. After the search, print the
+     *     groups of contents that are identical (one path per line, groups separated by empty lines), e.g. the same
+     *     JAR file in several WARs. Only contents with equal sizes and equal CRCs (of archive entries) resp. equal
+     *     first and last blocks (of files) are read completely; archive entries and compressed contents in further
+     *     passes over the files. Includes the contents of all files, so you may want to combine it with tests, e.g.
+     *     "{@code -name '***.jar' -duplicates}".
+     *   </dd>
      * </dl>
      *
      * <p>
@@ -550,12 +568,13 @@ class Main {
 
         // Execute the search.
         try {
-            for (String file : files) {
-                try {
-                    this.find.findInResource(file, ResourceProcessings.toUrl(file));
-                } catch (IOException ioe) {
-                    exceptionHandler.consume(ioe);
-                }
+            try {
+
+                // Search all files in one search, so that e.g. "-duplicates" reports duplicates across them.
+                this.find.findInResources(files);
+            } finally {
+                DigestCache dc = this.digestCache;
+                if (dc != null) dc.close();
             }
             if (hadExceptions[0]) System.exit(2);
         } catch (Exception e) {
@@ -642,6 +661,55 @@ class Main {
     @CommandLineOption public void
     setMaxDepth(int levels) { this.find.setMaxDepth(levels); }
 
+    /**
+     * Process up to <var>n</var> directory members (and thus archive files) concurrently. The output of "-print",
+     * "-ls", "-printf", "-echo" etc. appears in the same order as with a sequential traversal. The default is 1.
+     */
+    @CommandLineOption(name = { "parallel", "parallelism" }) public void
+    setParallelism(int n) { this.find.setParallelism(n); }
+
+    /**
+     * Execute the command of "{@code -exec ... {} +}" for at most <var>n</var> paths at a time.
+     */
+    @CommandLineOption public void
+    setExecBatchSize(int n) { this.find.setExecBatchSize(n); }
+
+    /**
+     * Execute the command of "{@code -exec ... {} +}" separately for the matches in each directory and each archive.
+     */
+    @CommandLineOption public void
+    setExecBatchPerDirectory() { this.find.setExecBatchPerDirectory(true); }
+
+    /**
+     * Execute up to <var>n</var> commands of "{@code -exec}" concurrently. Their output is written in the same order
+     * as with sequential execution, and "{@code -exec}" then always returns true; if any command fails, then the
+     * exit status is 2. The default is 1.
+     */
+    @CommandLineOption public void
+    setExecParallel(int n) { this.find.setExecParallelism(n); }
+
+    /**
+     * Like "{@code --exec-parallel}", but for "{@code -pipe}".
+     */
+    @CommandLineOption public void
+    setPipeParallel(int n) { this.find.setPipeParallelism(n); }
+
+    /**
+     * Write up to <var>n</var> files of "{@code -copy}" concurrently in background threads, so that the traversal can
+     * proceed while earlier files are still being written. The default is 1.
+     */
+    @CommandLineOption public void
+    setCopyParallel(int n) { this.find.setCopyParallelism(n); }
+
+    /**
+     * Remember the results of "-digest" and "-checksum" in the <var>file</var>, and re-use them (without reading the
+     * contents) for documents whose path, size, modification time and (for archive entries) CRC are unchanged.
+     */
+    @CommandLineOption public void
+    setDigestCache(File file) throws IOException {
+        this.find.setDigestCache((this.digestCache = new DigestCache(file)));
+    }
+
     /**
      * Password to decrypt password-protected 7ZIP input files.
      */
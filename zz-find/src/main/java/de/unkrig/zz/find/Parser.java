@@ -50,6 +50,7 @@ import de.unkrig.zz.find.Find.CopyAction;
 import de.unkrig.zz.find.Find.DeleteAction;
 import de.unkrig.zz.find.Find.DigestAction;
 import de.unkrig.zz.find.Find.DisassembleAction;
+import de.unkrig.zz.find.Find.DuplicatesAction;
 import de.unkrig.zz.find.Find.EchoAction;
 import de.unkrig.zz.find.Find.ExecAction;
 import de.unkrig.zz.find.Find.ExecutabilityTest;
@@ -200,6 +201,7 @@ class Parser {
      *   | '-echo'
      *   | '-ls'
      *   | '-exec' { literal } ';'
+     *   | '-exec' { literal } '{}' '+'
      *   | '-pipe' { literal } ';'
      *   | '-cat'
      *   | '-copy' string
@@ -210,6 +212,7 @@ class Parser {
      *   | '-false'
      *   | '-prune'
      *   | '-delete'
+     *   | '-duplicates'
      * </pre>
      */
     private Expression
@@ -222,7 +225,7 @@ class Parser {
             "-mtime",       "-mmin",            "-print",    "-echo",       "-printf",
             "-ls",          "-exec",            "-pipe",     "-cat",        "-copy",
             "-disassemble", "-java-class-file", "-digest",   "-checksum",   "-true",
-            "-false",       "-prune",           "-delete"
+            "-false",       "-prune",           "-delete",   "-duplicates"
         )) {
         case 0:  // '('
             {
@@ -272,12 +275,20 @@ class Parser {
         case 15: // '-ls'
             this.hadAction = true;
             return new LsAction();
-        case 16: // '-exec' word ... ';'
+        case 16: // '-exec' word ... ';' | '-exec' word ... '{}' '+'
             {
                 List<String> command = new ArrayList<String>();
-                while (!this.parser.peekRead(";")) command.add(this.parser.read().text);
+                boolean      batch   = false;
+                while (!this.parser.peekRead(";")) {
+                    boolean afterBraces = !command.isEmpty() && "{}".equals(command.get(command.size() - 1));
+                    if (afterBraces && this.parser.peekRead("+")) {
+                        batch = true;
+                        break;
+                    }
+                    command.add(this.parser.read().text);
+                }
                 this.hadAction = true;
-                return new ExecAction(command);
+                return new ExecAction(command, batch);
             }
         case 17: // '-pipe' word ... ';'
             {
@@ -330,6 +341,9 @@ class Parser {
             return new PruneAction();
         case 27: // "-delete"
             return new DeleteAction();
+        case 28: // "-duplicates"
+            this.hadAction = true;
+            return new DuplicatesAction();
         default:
             throw new IllegalStateException();
         }
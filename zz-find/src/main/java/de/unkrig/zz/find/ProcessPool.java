@@ -0,0 +1,280 @@
+
+/*
+ * de.unkrig.find - An advanced version of the UNIX FIND utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.find;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import de.unkrig.commons.io.IoUtil;
+import de.unkrig.commons.lang.ThreadUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Executes external commands concurrently, but writes their standard output and standard error output in the order
+ * in which the commands were {@link #submit(List, File, Spool) submitted}. The output of each command is {@link
+ * Spool spooled} until it is its turn.
+ */
+final
+class ProcessPool {
+
+    /**
+     * Executes the threads that feed the processes' standard input, and read their standard output and standard error
+     * output.
+     */
+    private static final ExecutorService THREADS = Executors.newCachedThreadPool(ThreadUtil.DAEMON_THREAD_FACTORY);
+
+    private final Semaphore  running;
+    private final int        maxPending;
+    private final Queue<Job> pending = new ArrayDeque<Job>();
+    private int              failures;
+
+    /**
+     * @param parallelism The maximum number of commands that run concurrently
+     */
+    ProcessPool(int parallelism) {
+        this.running    = new Semaphore(parallelism);
+        this.maxPending = 4 * parallelism;
+    }
+
+    /**
+     * Starts the <var>command</var> as soon as less than <i>parallelism</i> commands are running, and writes the
+     * output of all preceding commands that have completed in the meantime.
+     *
+     * @param stdin The data to feed to the standard input of the process, or {@code null} to close its standard input
+     *              immediately; is deleted after use
+     */
+    synchronized void
+    submit(List<String> command, @Nullable File workingDirectory, @Nullable Spool stdin)
+    throws IOException, InterruptedException {
+
+        // Limit the amount of spooled output (and the number of threads) in case the first of the pending commands
+        // runs for a long time.
+        while (this.pending.size() >= this.maxPending) this.writeNext();
+
+        this.running.acquire();
+
+        Process process;
+        try {
+            process = new ProcessBuilder(command).directory(workingDirectory).start();
+        } catch (IOException ioe) {
+            this.running.release();
+            if (stdin != null) stdin.delete();
+            throw ioe;
+        }
+
+        this.pending.add(new Job(process, stdin));
+
+        while (!this.pending.isEmpty() && this.pending.element().exitStatus.isDone()) this.writeNext();
+    }
+
+    /**
+     * Waits until all submitted commands have completed, and writes their output.
+     *
+     * @return The number of commands that failed (i.e. exited with a non-zero status) since the preceding invocation
+     *         of {@link #flush()}
+     */
+    synchronized int
+    flush() throws IOException, InterruptedException {
+
+        while (!this.pending.isEmpty()) this.writeNext();
+
+        int result = this.failures;
+        this.failures = 0;
+        return result;
+    }
+
+    /**
+     * Waits until the first pending command has completed, and writes its output.
+     */
+    private void
+    writeNext() throws IOException, InterruptedException {
+
+        Job job = this.pending.remove();
+
+        int exitStatus;
+        try {
+            exitStatus = job.exitStatus.get();
+        } catch (ExecutionException ee) {
+            exitStatus = -1;
+        }
+
+        try {
+            job.stdout.writeTo(System.out);
+            System.out.flush();
+            job.stderr.writeTo(System.err);
+        } finally {
+            job.stdout.delete();
+            job.stderr.delete();
+        }
+
+        if (exitStatus != 0) this.failures++;
+    }
+
+    /**
+     * A running (or completed) command.
+     */
+    private final
+    class Job {
+
+        final Spool           stdout = new Spool(), stderr = new Spool();
+        final Future<Integer> exitStatus;
+
+        Job(final Process process, @Nullable final Spool stdin) {
+
+            ProcessPool.THREADS.submit(new Callable<Void>() {
+
+                @Override @Nullable public Void
+                call() throws IOException {
+                    OutputStream os = process.getOutputStream();
+                    try {
+                        if (stdin != null) stdin.writeTo(os);
+                    } catch (IOException ioe) {
+
+                        // The command may well exit before it read all of its input.
+                        ;
+                    } finally {
+                        try { os.close(); } catch (IOException ioe) {}
+                        if (stdin != null) stdin.delete();
+                    }
+                    return null;
+                }
+            });
+
+            final Future<Long> stderrPump = ProcessPool.THREADS.submit(new Callable<Long>() {
+
+                @Override public Long
+                call() throws IOException { return IoUtil.copy(process.getErrorStream(), true, Job.this.stderr, true); }
+            });
+
+            this.exitStatus = ProcessPool.THREADS.submit(new Callable<Integer>() {
+
+                @Override public Integer
+                call() throws Exception {
+                    try {
+                        IoUtil.copy(process.getInputStream(), true, Job.this.stdout, true);
+                        stderrPump.get();
+                        return process.waitFor();
+                    } finally {
+                        ProcessPool.this.running.release();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Buffers data in memory, or, iff it is large, in a temporary file.
+     */
+    static final
+    class Spool extends OutputStream {
+
+        private static final int MEMORY_LIMIT = 64 * 1024;
+
+        private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        @Nullable private File              file;
+        @Nullable private OutputStream      fileOut;
+
+        @Override public void
+        write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+        @Override public void
+        write(byte[] b, int off, int len) throws IOException {
+
+            OutputStream os = this.fileOut;
+            if (os == null) {
+
+                if (this.memory.size() + len <= Spool.MEMORY_LIMIT) {
+                    this.memory.write(b, off, len);
+                    return;
+                }
+
+                File file = File.createTempFile("zzfind-", ".spool");
+                this.file    = file;
+                this.fileOut = (os = new BufferedOutputStream(new FileOutputStream(file)));
+                this.memory.writeTo(os);
+                this.memory.reset();
+            }
+
+            os.write(b, off, len);
+        }
+
+        @Override public void
+        close() throws IOException {
+
+            OutputStream os = this.fileOut;
+            if (os != null) {
+                this.fileOut = null;
+                os.close();
+            }
+        }
+
+        /**
+         * Closes this spool, and writes all of its data to the <var>out</var>.
+         */
+        void
+        writeTo(OutputStream out) throws IOException {
+
+            this.close();
+
+            File file = this.file;
+            if (file == null) {
+                this.memory.writeTo(out);
+            } else {
+                IoUtil.copy(file, out, false);
+            }
+        }
+
+        /**
+         * Closes this spool, and releases its resources.
+         */
+        void
+        delete() {
+
+            try { this.close(); } catch (IOException ioe) {}
+
+            File file = this.file;
+            if (file != null) {
+                this.file = null;
+                file.delete();
+            }
+            this.memory.reset();
+        }
+    }
+}
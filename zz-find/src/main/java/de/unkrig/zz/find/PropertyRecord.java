@@ -0,0 +1,244 @@
+
+/*
+ * de.unkrig.find - An advanced version of the UNIX FIND utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.find;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.unkrig.commons.lang.protocol.Mapping;
+import de.unkrig.commons.lang.protocol.Producer;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.util.collections.MapUtil;
+
+/**
+ * The properties of one node (file, directory, archive entry, ...) that {@link Find} evaluates its expression for.
+ * <p>
+ *   Each property lives in a fixed slot (see the {@code int} constants), which is either unset, set to a value, or
+ *   set to a {@link Producer} that is invoked when the property is first read; the produced value is then memorized,
+ *   so that expensive properties (like "crc", which reads the node's contents) are computed at most once.
+ * </p>
+ * <p>
+ *   Slots that are unset in this record are looked up in the <var>parent</var> record; that is how e.g. the
+ *   "normal-file" node inherits the properties of the "file" node.
+ * </p>
+ * <p>
+ *   Instances are not thread-safe; each is filled and evaluated by one thread.
+ * </p>
+ */
+final
+class PropertyRecord extends Mapping<String, Object> {
+
+    // SUPPRESS CHECKSTYLE JavadocVariable:20
+    static final int TYPE               = 0;
+    static final int NAME               = 1;
+    static final int PATH               = 2;
+    static final int DEPTH              = 3;
+    static final int SIZE               = 4;
+    static final int LAST_MODIFIED      = 5;
+    static final int LAST_MODIFIED_DATE = 6;
+    static final int CRC                = 7;
+    static final int READABLE           = 8;
+    static final int WRITABLE           = 9;
+    static final int EXECUTABLE         = 10;
+    static final int INPUT_STREAM       = 11;
+    static final int FILE               = 12;
+    static final int URL                = 13;
+    static final int ARCHIVE_ENTRY      = 14;
+    static final int ARCHIVE_FORMAT     = 15;
+    static final int COMPRESSION_FORMAT = 16;
+    static final int COMPRESSION_METHOD = 17;
+    static final int PRUNE              = 18;
+
+    /**
+     * The property names, indexed by slot.
+     */
+    private static final String[] NAMES = {
+        "type",
+        "name",
+        "path",
+        "depth",
+        "size",
+        "lastModified",
+        "lastModifiedDate",
+        "crc",
+        "readable",
+        "writable",
+        "executable",
+        "inputStream",
+        "file",
+        "url",
+        "archiveEntry",
+        "archiveFormat",
+        "compressionFormat",
+        "compressionMethod",
+        "$PRUNE",
+    };
+
+    private static final Map<String, Integer> SLOTS = new HashMap<String, Integer>();
+    static {
+        for (int slot = 0; slot < PropertyRecord.NAMES.length; slot++) {
+            PropertyRecord.SLOTS.put(PropertyRecord.NAMES[slot], slot);
+        }
+    }
+
+    @Nullable private final PropertyRecord parent;
+
+    /**
+     * The slots' values, or, for the lazy slots, their {@link Producer}s.
+     */
+    private final Object[] values = new Object[PropertyRecord.NAMES.length];
+
+    /**
+     * Bit <var>n</var> is set iff slot <var>n</var> is set in this record.
+     */
+    private int defined;
+
+    /**
+     * Bit <var>n</var> is set iff slot <var>n</var> holds a {@link Producer} that was not yet invoked.
+     */
+    private int lazy;
+
+    @Nullable private Map<String, Object> lazyMap;
+
+    /**
+     * @param parent Provides the values of the slots that are not set in this record
+     */
+    PropertyRecord(@Nullable PropertyRecord parent) { this.parent = parent; }
+
+    /**
+     * @return The slot of the property with the given <var>name</var>, or -1 iff there is no such property
+     */
+    static int
+    slotOf(String name) {
+        Integer slot = PropertyRecord.SLOTS.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Sets the <var>slot</var> to the given <var>value</var>.
+     *
+     * @return {@code this}
+     */
+    PropertyRecord
+    set(int slot, @Nullable Object value) {
+        this.values[slot] =  value;
+        this.defined      |= 1 << slot;
+        this.lazy         &= ~(1 << slot);
+        return this;
+    }
+
+    /**
+     * Sets the <var>slot</var> such that its value is produced by the <var>producer</var> when it is first read.
+     *
+     * @return {@code this}
+     */
+    PropertyRecord
+    setLazy(int slot, Producer<?> producer) {
+        this.values[slot] =  producer;
+        this.defined      |= 1 << slot;
+        this.lazy         |= 1 << slot;
+        return this;
+    }
+
+    /**
+     * @return Whether the <var>slot</var> is set in this record or in one of its ancestors
+     */
+    boolean
+    isSet(int slot) {
+        for (PropertyRecord r = this; r != null; r = r.parent) {
+            if ((r.defined & 1 << slot) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The value of the <var>slot</var>, or {@code null} iff it is set to {@code null} or not set at all
+     */
+    @Nullable Object
+    get(int slot) {
+
+        PropertyRecord r = this;
+        while ((r.defined & 1 << slot) == 0) {
+            r = r.parent;
+            if (r == null) return null;
+        }
+
+        if ((r.lazy & 1 << slot) == 0) return r.values[slot];
+
+        Object value = ((Producer<?>) r.values[slot]).produce();
+        r.values[slot] =  value;
+        r.lazy         &= ~(1 << slot);
+        return value;
+    }
+
+    /**
+     * @return The value of the <var>slot</var>, or {@code null} iff it is set to {@code null} or not set at all
+     * @throws ClassCastException The value is not assignable to the <var>type</var>
+     */
+    @Nullable <T> T
+    get(int slot, Class<T> type) { return type.cast(this.get(slot)); }
+
+    @Override public boolean
+    containsKey(@Nullable Object key) {
+
+        // We want undefined variables to default to NULL.
+        return true;
+    }
+
+    @Override @Nullable public Object
+    get(@Nullable Object key) {
+
+        if ("_map".equals(key))    return this.getLazyMap();
+        if ("_keys".equals(key))   return this.getLazyMap().keySet();
+        if ("_values".equals(key)) return this.getLazyMap().values();
+
+        if (!(key instanceof String)) return null;
+
+        int slot = PropertyRecord.slotOf((String) key);
+        return slot == -1 ? null : this.get(slot);
+    }
+
+    /**
+     * @return A map of all the properties that are set, which produces the values only when they are retrieved
+     */
+    private Map<String, Object>
+    getLazyMap() {
+
+        Map<String, Object> result = this.lazyMap;
+        if (result != null) return result;
+
+        Map<String, Producer<? extends Object>> producers = new HashMap<String, Producer<? extends Object>>();
+        for (int slot = 0; slot < PropertyRecord.NAMES.length; slot++) {
+            if (this.isSet(slot)) {
+                final int slot2 = slot;
+                producers.put(PropertyRecord.NAMES[slot], () -> this.get(slot2));
+            }
+        }
+
+        return (this.lazyMap = MapUtil.<String, Object>lazyMap(producers));
+    }
+}
@@ -0,0 +1,60 @@
+
+/*
+ * de.unkrig.find - An advanced version of the UNIX FIND utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+package test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import de.unkrig.commons.io.IoUtil;
+
+/**
+ * A portable "echo" and "cat", which {@link FindTest} executes through "-exec" and "-pipe".
+ */
+public final
+class Command {
+
+    private Command() {}
+
+    /**
+     * Prints the arguments in one line; then, iff the first argument is "-cat", copies STDIN to STDOUT, and terminates that line.
+     */
+    public static void
+    main(String[] args) throws IOException {
+
+        boolean cat = args.length > 0 && "-cat".equals(args[0]);
+        if (cat) args = Arrays.copyOfRange(args, 1, args.length);
+
+        System.out.println(String.join(" ", args));
+        if (cat) {
+            IoUtil.copy(System.in, System.out);
+            System.out.println();
+        }
+        System.out.flush();
+    }
+}
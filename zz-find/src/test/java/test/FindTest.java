@@ -28,22 +28,34 @@
 
 package test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import de.unkrig.commons.file.FileUtil;
+import de.unkrig.commons.io.IoUtil;
 import de.unkrig.commons.junit4.AssertRegex;
 import de.unkrig.commons.lang.AssertionUtil;
 import de.unkrig.commons.lang.protocol.ConsumerUtil;
 import de.unkrig.commons.lang.protocol.Mapping;
+import de.unkrig.commons.lang.protocol.PredicateUtil;
 import de.unkrig.commons.lang.protocol.ProducerUtil;
 import de.unkrig.commons.lang.protocol.RunnableWhichThrows;
 import de.unkrig.commons.text.AbstractPrinter;
@@ -52,6 +64,7 @@ import de.unkrig.commons.text.parser.ParseException;
 import de.unkrig.commons.text.pattern.Glob;
 import de.unkrig.commons.text.pattern.Pattern2;
 import de.unkrig.commons.text.pattern.PatternUtil;
+import de.unkrig.zz.find.DigestCache;
 import de.unkrig.zz.find.Find;
 import de.unkrig.zz.find.Parser;
 import junit.framework.TestCase;
@@ -244,20 +257,20 @@ class FindTest extends TestCase {
             "\\{\\$PRUNE=\\[Z@\\w+, depth=1, executable=true, file=@ABS_FILES/dir1, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir1, path=@FILES/dir1, readable=true, type=directory, writable=true}",
             "\\{\\$PRUNE=\\[Z@\\w+, depth=2, executable=true, file=@ABS_FILES/dir1/dir2, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir2, path=@FILES/dir1/dir2, readable=true, type=directory, writable=true}",
             "\\{\\$PRUNE=\\[Z@\\w+, archiveFormat=zip, crc=@ANY_INT, depth=3, executable=true, file=@ABS_FILES/dir1/dir2/file\\.zip, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=file\\.zip, path=@FILES/dir1/dir2/file\\.zip, readable=true, size=@ANY_INT, type=archive-file, url=file:/\\S*/files/dir1/dir2/file.zip, writable=true}",
-            "\\{archiveEntry=/dir1/dir2/file1, archiveFormat=zip, compressionMethod=DEFLATED, crc=2099902701, depth=4, executable=false, inputStream=java\\.io\\.BufferedInputStream@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=/dir1/dir2/file1, path=@FILES/dir1/dir2/file\\.zip!/dir1/dir2/file1, readable=true, size=3, type=normal-contents, writable=false}",
-            "\\{archiveEntry=dir3/dir4/file2, archiveFormat=zip, compressionMethod=DEFLATED, crc=0, depth=4, executable=false, inputStream=java\\.io\\.BufferedInputStream@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file2, path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/file2, readable=true, size=0, type=normal-contents, writable=false}",
+            "\\{archiveEntry=/dir1/dir2/file1, archiveFormat=zip, compressionMethod=DEFLATED, crc=2099902701, depth=4, executable=false, inputStream=de\\.unkrig\\.zz\\.find\\.ContentFanOut@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=/dir1/dir2/file1, path=@FILES/dir1/dir2/file\\.zip!/dir1/dir2/file1, readable=true, size=3, type=normal-contents, writable=false}",
+            "\\{archiveEntry=dir3/dir4/file2, archiveFormat=zip, compressionMethod=DEFLATED, crc=0, depth=4, executable=false, inputStream=de\\.unkrig\\.zz\\.find\\.ContentFanOut@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file2, path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/file2, readable=true, size=0, type=normal-contents, writable=false}",
             "\\{archiveEntry=dir3/dir4/dir5/, archiveFormat=zip, compressionMethod=(STORED|DEFLATED), crc=(0|-1), depth=4, executable=false, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/dir5, path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/dir5, readable=true, size=0, type=directory-entry, writable=false}",
             "\\{archiveEntry=dir3/dir4/file3\\.Z, archiveFormat=zip, compressionFormat=gz, compressionMethod=(STORED|DEFLATED), crc=@ANY_INT, depth=4, executable=false, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file3\\.Z, path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z, readable=true, size=23, type=compressed-contents, writable=false}",
-            "\\{archiveEntry=dir3/dir4/file3.Z, archiveFormat=zip, compressionFormat=gz, compressionMethod=DEFLATED, crc=0, depth=5, executable=false, inputStream=java\\.io\\.BufferedInputStream@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file3\\.Z%, path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z%, readable=true, size=3, type=normal-contents, writable=false}",
+            "\\{archiveEntry=dir3/dir4/file3.Z, archiveFormat=zip, compressionFormat=gz, compressionMethod=DEFLATED, crc=0, depth=5, executable=false, inputStream=de\\.unkrig\\.zz\\.find\\.ContentFanOut@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file3\\.Z%, path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z%, readable=true, size=3, type=normal-contents, writable=false}",
             "\\{\\$PRUNE=\\[Z@\\w+, archiveEntry=file\\.zip, archiveFormat=zip, compressionMethod=DEFLATED, crc=@ANY_INT, depth=4, executable=false, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=file\\.zip, path=@FILES/dir1/dir2/file\\.zip!file\\.zip, readable=true, size=@ANY_INT, type=archive-contents, writable=false}",
-            "\\{archiveEntry=/dir1/dir2/file1, archiveFormat=zip, compressionMethod=DEFLATED, crc=0, depth=5, executable=false, inputStream=java\\.io\\.BufferedInputStream@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=/dir1/dir2/file1, path=@FILES/dir1/dir2/file\\.zip!file\\.zip!/dir1/dir2/file1, readable=true, size=3, type=normal-contents, writable=false}",
-            "\\{archiveEntry=dir3/dir4/file2, archiveFormat=zip, compressionMethod=DEFLATED, crc=0, depth=5, executable=false, inputStream=java\\.io\\.BufferedInputStream@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file2, path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2, readable=true, size=0, type=normal-contents, writable=false}",
+            "\\{archiveEntry=/dir1/dir2/file1, archiveFormat=zip, compressionMethod=DEFLATED, crc=0, depth=5, executable=false, inputStream=de\\.unkrig\\.zz\\.find\\.ContentFanOut@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=/dir1/dir2/file1, path=@FILES/dir1/dir2/file\\.zip!file\\.zip!/dir1/dir2/file1, readable=true, size=3, type=normal-contents, writable=false}",
+            "\\{archiveEntry=dir3/dir4/file2, archiveFormat=zip, compressionMethod=DEFLATED, crc=0, depth=5, executable=false, inputStream=de\\.unkrig\\.zz\\.find\\.ContentFanOut@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file2, path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2, readable=true, size=0, type=normal-contents, writable=false}",
             "\\{archiveEntry=dir3/dir4/dir5/, archiveFormat=zip, compressionMethod=(STORED|DEFLATED), crc=(0|-1), depth=5, executable=false, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/dir5, path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/dir5, readable=true, size=0, type=directory-entry, writable=false}",
             "\\{archiveEntry=dir3/dir4/file3\\.Z, archiveFormat=zip, compressionFormat=gz, compressionMethod=DEFLATED, crc=-1, depth=5, executable=false, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file3\\.Z, path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z, readable=true, size=-1, type=compressed-contents, writable=false}",
-            "\\{archiveEntry=dir3/dir4/file3\\.Z, archiveFormat=zip, compressionFormat=gz, compressionMethod=DEFLATED, crc=0, depth=6, executable=false, inputStream=java\\.io\\.BufferedInputStream@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file3\\.Z%, path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z%, readable=true, size=3, type=normal-contents, writable=false}",
+            "\\{archiveEntry=dir3/dir4/file3\\.Z, archiveFormat=zip, compressionFormat=gz, compressionMethod=DEFLATED, crc=0, depth=6, executable=false, inputStream=de\\.unkrig\\.zz\\.find\\.ContentFanOut@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=dir3/dir4/file3\\.Z%, path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z%, readable=true, size=3, type=normal-contents, writable=false}",
             "\\{crc=0, depth=3, executable=true, file=@ABS_FILES/dir1/dir2/file1, inputStream=de\\.unkrig\\.commons\\.io\\.InputStreams\\$9@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=file1, path=@FILES/dir1/dir2/file1, readable=true, size=0, type=normal-file, url=file:\\S+/zz-find/files/dir1/dir2/file1, writable=true}",
             "\\{compressionFormat=gz, crc=-1900763251, depth=3, executable=true, file=@ABS_FILES/dir1/dir2/file3\\.Z, inputStream=null, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=file3\\.Z, path=@FILES/dir1/dir2/file3\\.Z, readable=true, size=23, type=compressed-file, url=file:\\S+/zz-find/files/dir1/dir2/file3.Z, writable=true}",
-            "\\{compressionFormat=gz, crc=0, depth=4, executable=true, file=@ABS_FILES/dir1/dir2/file3.Z, inputStream=java\\.io\\.BufferedInputStream@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=file3\\.Z%, path=@FILES/dir1/dir2/file3\\.Z%, readable=true, size=3, type=normal-contents, url=file:\\S+/zz-find/files/dir1/dir2/file3.Z, writable=true}"
+            "\\{compressionFormat=gz, crc=0, depth=4, executable=true, file=@ABS_FILES/dir1/dir2/file3.Z, inputStream=de\\.unkrig\\.zz\\.find\\.ContentFanOut@\\w+, lastModified=@ANY_INT, lastModifiedDate=@ANY_DATE, name=file3\\.Z%, path=@FILES/dir1/dir2/file3\\.Z%, readable=true, size=3, type=normal-contents, url=file:\\S+/zz-find/files/dir1/dir2/file3.Z, writable=true}"
         );
     }
 
@@ -291,6 +304,37 @@ class FindTest extends TestCase {
         );
     }
 
+    @Test public void
+    testParallelism() throws Exception {
+
+        Find find = new Find();
+        find.setDescendantsFirst(true);
+        find.setParallelism(4);
+
+        FindTest.assertFindOutputMatches(
+            find,                                                // find
+            new String[] { "-echo", "path=${path}" },            // expression
+            "path=@FILES/dir1/dir2/file\\.zip!/dir1/dir2/file1", // expectedRegexes...
+            "path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/file2",
+            "path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/dir5",
+            "path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z%",
+            "path=@FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z",
+            "path=@FILES/dir1/dir2/file\\.zip!file\\.zip!/dir1/dir2/file1",
+            "path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2",
+            "path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/dir5",
+            "path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z%",
+            "path=@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z",
+            "path=@FILES/dir1/dir2/file\\.zip!file\\.zip",
+            "path=@FILES/dir1/dir2/file\\.zip",
+            "path=@FILES/dir1/dir2/file1",
+            "path=@FILES/dir1/dir2/file3\\.Z%",
+            "path=@FILES/dir1/dir2/file3\\.Z",
+            "path=@FILES/dir1/dir2",
+            "path=@FILES/dir1",
+            "path=@FILES"
+        );
+    }
+
     @Test public void
     testMinDepth2() throws Exception {
 
@@ -437,6 +481,218 @@ class FindTest extends TestCase {
         );
     }
 
+    @Test public void
+    testDigestAndChecksum() throws Exception {
+
+        // All content consumers share one pass over the contents.
+        // SUPPRESS CHECKSTYLE LineLength|Wrap:12
+        FindTest.assertFindOutputMatches(
+            new Find(),                                                                                         // find
+            new String[] { "-name", "***file3.Z%", "-digest", "MD5", "-checksum", "CRC32", "-echo", "${size}" }, // expression
+            "250cf8b51c773f3f8dc8b4be867a9a02", // The MD5 of "456"
+            "b1a8c371",                         // CRC32 of "456"
+            "3",
+            "68053af2923e00204c3ca7c6a3150cf7", // The MD5 of "789"
+            "96ff1ef4",                         // CRC32 of "789"
+            "3",
+            "202cb962ac59075b964b07152d234b70", // The MD5 of "123"
+            "884863d2",                         // CRC32 of "123"
+            "3"
+        );
+    }
+
+    @Test public void
+    testDigestCache() throws Exception {
+
+        File cacheFile = new File("digest-cache.tmp");
+        cacheFile.delete();
+        try {
+
+            // The first run fills the cache, the second run (with the reloaded cache) must yield the same results.
+            for (int i = 0; i < 2; i++) {
+                DigestCache digestCache = new DigestCache(cacheFile);
+                try {
+                    Find find = new Find();
+                    find.setDigestCache(digestCache);
+
+                    // SUPPRESS CHECKSTYLE Wrap:10
+                    FindTest.assertFindOutputMatches(
+                        find,                                                                            // find
+                        new String[] { "-name", "***file3.Z%", "-digest", "MD5", "-checksum", "CRC32" }, // expression
+                        "250cf8b51c773f3f8dc8b4be867a9a02", // The MD5 of "456"
+                        "b1a8c371",                         // CRC32 of "456"
+                        "68053af2923e00204c3ca7c6a3150cf7", // The MD5 of "789"
+                        "96ff1ef4",                         // CRC32 of "789"
+                        "202cb962ac59075b964b07152d234b70", // The MD5 of "123"
+                        "884863d2"                          // CRC32 of "123"
+                    );
+                } finally {
+                    digestCache.close();
+                }
+                Assert.assertTrue(cacheFile.length() > 4);
+            }
+        } finally {
+            cacheFile.delete();
+        }
+    }
+
+    @Test public void
+    testCrcComputedOnlyOnce() throws Exception {
+
+        // Computing the "crc" property of normal contents consumes the contents, so the second reference must yield
+        // the memorized value.
+        // SUPPRESS CHECKSTYLE Wrap:6
+        FindTest.assertFindOutputMatches(
+            new Find(),                                                               // find
+            new String[] { "-name", "***file3.Z%", "-echo", "${crc} ${crc}" },        // expression
+            "-1314339983 -1314339983",                                                // CRC32 of "456"
+            "-1761665292 -1761665292",                                                // CRC32 of "789"
+            "-2008521774 -2008521774"                                                 // CRC32 of "123"
+        );
+    }
+
+    @Test public void
+    testOptimize() throws Exception {
+
+        Find find = new Find();
+
+        // The cheap "-name" test is moved before the expensive "-size" test.
+        find.setExpression(new Parser(ProducerUtil.fromElements("-size", "+1", "-name", "*.txt")).parse());
+        Assert.assertEquals(
+            "(( name =* '*.txt') && (( size =* '> 1') && (print)))",
+            find.getExpression().toString()
+        );
+
+        // Tests are never moved across actions (here: "-prune" and "-print").
+        find.setExpression(new Parser(ProducerUtil.fromElements(
+            "-size", "+1", "-prune", "-readable", "-name", "x", "-print"
+        )).parse());
+        Assert.assertEquals(
+            "(( size =* '> 1') && ((prune) && (( name =* 'x') && (canRead && (print)))))",
+            find.getExpression().toString()
+        );
+    }
+
+    @Test public void
+    testExecBatch() throws Exception {
+
+        // "{} +" terminates the batch form of "-exec"; elsewhere, "+" is an ordinary word.
+        Assert.assertEquals(
+            "(exec '[echo, ${path}]' +)",
+            new Parser(ProducerUtil.fromElements("-exec", "echo", "{}", "+")).parse().toString()
+        );
+        Assert.assertEquals(
+            "(exec '[echo, +, {}]')",
+            new Parser(ProducerUtil.fromElements("-exec", "echo", "+", "{}", ";")).parse().toString()
+        );
+    }
+
+    @Test public void
+    testCopy() throws Exception {
+
+        File copies = new File("copies");
+        try {
+            for (int parallelism : new int[] { 1, 3 }) {
+                if (copies.exists()) FileUtil.deleteRecursively(copies);
+
+                // Without "look into", the archive files are plain files, which are copied without reading their
+                // contents through the input stream.
+                Find find = new Find();
+                find.setLookIntoFormat(PredicateUtil.never());
+                find.setCopyParallelism(parallelism);
+                FindTest.find(find, new String[] { "-type", "normal-file", "-copy", "-p", "copies/${path}" });
+
+                Assert.assertNull(new Files(FindTest.FILES).diff(new Files(new File(copies, "files"))));
+
+                File zipFile = new File(FindTest.FILES, "dir1/dir2/file.zip");
+                Assert.assertEquals(zipFile.lastModified(), new File(copies, zipFile.getPath()).lastModified());
+
+                // Archive entries are copied through the input stream.
+                find = new Find();
+                find.setCopyParallelism(parallelism);
+                FindTest.find(find, new String[] {
+                    "-path", "***/file.zip!/dir1/dir2/file1", "-copy", "-p", "copies/${name}"
+                });
+
+                Assert.assertEquals("XYZ", FindTest.readFile(new File(copies, "dir1/dir2/file1")));
+            }
+        } finally {
+            if (copies.exists()) FileUtil.deleteRecursively(copies);
+        }
+    }
+
+    @Test public void
+    testDuplicates() throws Exception {
+
+        // The empty file and the two empty archive entries are identical; "/dir1/dir2/file1" ("XYZ" and "ABC") have
+        // equal sizes, but different CRCs.
+        FindTest.assertFindOutputMatches(
+            new Find(),                                                 // find
+            new String[] { "-duplicates" },                             // expression
+            "@FILES/dir1/dir2/file\\.zip!dir3/dir4/file2",              // expectedRegexes...
+            "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2",
+            "@FILES/dir1/dir2/file1"
+        );
+    }
+
+    @Test public void
+    testDuplicateArchives() throws Exception {
+
+        // A copy of the archive file, and a GZIP-compressed copy (whose size is unknown until it is decompressed).
+        File zipFile = new File(FindTest.FILES, "dir1/dir2/file.zip");
+        IoUtil.copy(zipFile, new File(FindTest.FILES, "dir1/copy.zip"));
+        IoUtil.copy(
+            zipFile,
+            new GZIPOutputStream(new FileOutputStream(new File(FindTest.FILES, "dir1/copy.zip.gz"))),
+            true // closeOutputStream
+        );
+
+        // The archives are reported, and so are the archives nested in them.
+        FindTest.assertFindOutputMatches(
+            new Find(),                                             // find
+            new String[] { "-type", "archive-*", "-duplicates" },   // expression
+            "@FILES/dir1/copy\\.zip",                                // expectedRegexes...
+            "@FILES/dir1/copy\\.zip\\.gz%",
+            "@FILES/dir1/dir2/file\\.zip",
+            "",
+            "@FILES/dir1/copy\\.zip!file\\.zip",
+            "@FILES/dir1/copy\\.zip\\.gz%!file\\.zip",
+            "@FILES/dir1/dir2/file\\.zip!file\\.zip"
+        );
+    }
+
+    @Test public void
+    testDuplicatesInStream() throws Exception {
+
+        // The stream can be read only once, but the archive entries in it are digested after the search.
+        Find find = new Find();
+        find.setExpression(new Parser(ProducerUtil.fromElements("-duplicates")).parse());
+
+        List<String> lines = new ArrayList<String>();
+        try (InputStream is = new FileInputStream(new File(FindTest.FILES, "dir1/dir2/file.zip"))) {
+            AbstractPrinter.getContextPrinter().redirectInfo(
+                ConsumerUtil.addToCollection(lines)
+            ).run((RunnableWhichThrows<IOException>) () -> find.findInStream(is));
+        }
+
+        AssertRegex.assertMatches(Arrays.asList("-!dir3/dir4/file2", "-!file\\.zip!dir3/dir4/file2"), lines);
+    }
+
+    @Test public void
+    testPathPushdown() throws Exception {
+
+        // Only the nested archive can contain matching entries; the other entries of the outer archive are not
+        // processed at all, but that must not change the result.
+        FindTest.assertFindOutputMatches(
+            new Find(),                                                                          // find
+            new String[] { "-path", "files/dir1/dir2/file.zip!file.zip!dir3/**" },               // expression
+            "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2",                            // expectedRegexes...
+            "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/dir5",
+            "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z",
+            "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z%"
+        );
+    }
+
     @Test public void
     testEcho() throws Exception {
 
@@ -477,6 +733,176 @@ class FindTest extends TestCase {
         );
     }
 
+    @Test public void
+    testFileProperties() throws Exception {
+
+        File dir2  = new File(FindTest.FILES, "dir1/dir2");
+        File file1 = new File(dir2, "file1");
+        File file3 = new File(dir2, "file3.Z");
+        Assert.assertTrue(file1.setExecutable(false, false));
+        Assert.assertTrue(file3.setExecutable(true));
+
+        // The properties of files and directories must be the same as those of the "java.io.File".
+        List<String> expected = new ArrayList<String>();
+        for (File file : new File[] {
+            FindTest.FILES,
+            new File(FindTest.FILES, "dir1"),
+            dir2,
+            new File(dir2, "file.zip"),
+            file1,
+            file3,
+        }) {
+            expected.add(
+                file.getPath()
+                + ' '
+                + file.getAbsolutePath()
+                + ' '
+                + file.canRead()
+                + ' '
+                + file.canWrite()
+                + ' '
+                + file.canExecute()
+                + ' '
+                + file.lastModified()
+                + ' '
+                + (file.isDirectory() ? "-" : file.length())
+            );
+        }
+
+        for (int parallelism : new int[] { 1, 3 }) {
+            Find find = new Find();
+            find.setParallelism(parallelism);
+
+            List<String> actual = FindTest.find(find, new String[] {
+                "(", "-type", "directory", "-o", "-type", "*-file", ")",
+                "-echo", (
+                    "${path} ${file} ${readable} ${writable} ${executable} ${lastModified} "
+                    + "${size == null ? \"-\" : size}"
+                ),
+            });
+            Collections.sort(expected);
+            Collections.sort(actual);
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test public void
+    testExecBatchExecution() throws Exception {
+
+        String[] expression = FindTest.withCommand(new String[] { "-type", "normal-*", "-exec" }, "{}", "+");
+
+        // One execution for all matches...
+        AssertRegex.assertMatches(
+            Arrays.asList(FindTest.cookRegexes(
+                "@FILES/dir1/dir2/file\\.zip!/dir1/dir2/file1 "
+                + "@FILES/dir1/dir2/file\\.zip!dir3/dir4/file2 "
+                + "@FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z% "
+                + "@FILES/dir1/dir2/file\\.zip!file\\.zip!/dir1/dir2/file1 "
+                + "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2 "
+                + "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z% "
+                + "@FILES/dir1/dir2/file1 "
+                + "@FILES/dir1/dir2/file3\\.Z%"
+            )),
+            FindTest.findStdout(new Find(), expression)
+        );
+
+        // ... resp. for at most three matches at a time...
+        Find find = new Find();
+        find.setExecBatchSize(3);
+        AssertRegex.assertMatches(
+            Arrays.asList(FindTest.cookRegexes(
+                (
+                    "@FILES/dir1/dir2/file\\.zip!/dir1/dir2/file1 "
+                    + "@FILES/dir1/dir2/file\\.zip!dir3/dir4/file2 "
+                    + "@FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z%"
+                ),
+                (
+                    "@FILES/dir1/dir2/file\\.zip!file\\.zip!/dir1/dir2/file1 "
+                    + "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2 "
+                    + "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z%"
+                ),
+                "@FILES/dir1/dir2/file1 @FILES/dir1/dir2/file3\\.Z%"
+            )),
+            FindTest.findStdout(find, expression)
+        );
+
+        // ... resp. for the matches in each directory and archive.
+        find = new Find();
+        find.setExecBatchPerDirectory(true);
+        AssertRegex.assertMatches(
+            Arrays.asList(FindTest.cookRegexes(
+                "@FILES/dir1/dir2/file\\.zip!/dir1/dir2/file1",
+                "@FILES/dir1/dir2/file\\.zip!dir3/dir4/file2 @FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z%",
+                "@FILES/dir1/dir2/file\\.zip!file\\.zip!/dir1/dir2/file1",
+                (
+                    "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2 "
+                    + "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z%"
+                ),
+                "@FILES/dir1/dir2/file1 @FILES/dir1/dir2/file3\\.Z%"
+            )),
+            FindTest.findStdout(find, expression)
+        );
+    }
+
+    @Test public void
+    testExecParallel() throws Exception {
+
+        String[] expression = FindTest.withCommand(new String[] { "-type", "normal-*", "-exec" }, "${path}", ";");
+
+        // The output of the concurrent commands appears in traversal order.
+        List<String> expected = FindTest.findStdout(new Find(), expression);
+        Assert.assertEquals(8, expected.size());
+        for (int i = 0; i < 3; i++) {
+            Find find = new Find();
+            find.setExecParallelism(4);
+            Assert.assertEquals(expected, FindTest.findStdout(find, expression));
+        }
+
+        // Batches are also executed concurrently.
+        Find find = new Find();
+        find.setExecBatchSize(1);
+        find.setExecParallelism(4);
+        Assert.assertEquals(
+            expected,
+            FindTest.findStdout(
+                find,
+                FindTest.withCommand(new String[] { "-type", "normal-*", "-exec" }, "{}", "+")
+            )
+        );
+    }
+
+    @Test public void
+    testPipeParallel() throws Exception {
+
+        String[] expression = FindTest.withCommand(
+            new String[] { "-type", "normal-*", "-pipe" },
+            "-cat", "${path}", ";"
+        );
+
+        List<String> expected = FindTest.findStdout(new Find(), expression);
+        AssertRegex.assertMatches(
+            Arrays.asList(FindTest.cookRegexes(
+                "@FILES/dir1/dir2/file\\.zip!/dir1/dir2/file1",                  "XYZ",
+                "@FILES/dir1/dir2/file\\.zip!dir3/dir4/file2",                   "",
+                "@FILES/dir1/dir2/file\\.zip!dir3/dir4/file3\\.Z%",              "456",
+                "@FILES/dir1/dir2/file\\.zip!file\\.zip!/dir1/dir2/file1",       "ABC",
+                "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file2",        "",
+                "@FILES/dir1/dir2/file\\.zip!file\\.zip!dir3/dir4/file3\\.Z%",   "789",
+                "@FILES/dir1/dir2/file1",                                        "",
+                "@FILES/dir1/dir2/file3\\.Z%",                                   "123"
+            )),
+            expected
+        );
+
+        // The contents of the archive entries must be spooled, because the archive stream moves on while the
+        // commands execute.
+        for (int i = 0; i < 3; i++) {
+            Find find = new Find();
+            find.setPipeParallelism(4);
+            Assert.assertEquals(expected, FindTest.findStdout(find, expression));
+        }
+    }
+
     /**
      * Executes a {@link Find} search with the given <var>expression</var> and asserts that the produced output matches
      * the <var>expectedRegexes</var>.
@@ -578,6 +1004,11 @@ class FindTest extends TestCase {
         return FindTest.find(find);
     }
 
+    private static String
+    readFile(File file) throws IOException {
+        return new String(java.nio.file.Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
     /**
      * Executes a FIND on the {@link #FILES} directory (see {@link #setUp()}).
      *
@@ -594,4 +1025,45 @@ class FindTest extends TestCase {
 
         return lines;
     }
+
+    /**
+     * Executes a FIND on the {@link #FILES} directory (see {@link #setUp()}) with the given <var>expression</var>, and
+     * with an empty STDIN (which is copied to non-concurrent "-exec" commands).
+     *
+     * @return The lines that the external commands (see {@link #withCommand(String[], String...)}) printed to STDOUT
+     */
+    private static List<String>
+    findStdout(Find find, String[] expression) throws ParseException, IOException {
+
+        InputStream           stdin  = System.in;
+        PrintStream           stdout = System.out;
+        ByteArrayOutputStream baos   = new ByteArrayOutputStream();
+        System.setIn(new ByteArrayInputStream(new byte[0]));
+        System.setOut(new PrintStream(baos, true));
+        try {
+            FindTest.find(find, expression);
+        } finally {
+            System.setIn(stdin);
+            System.setOut(stdout);
+        }
+
+        return Arrays.asList(new String(baos.toByteArray()).split("\\r?\\n"));
+    }
+
+    /**
+     * @return The <var>before</var> words, then the words of a command that executes {@link Command}, then the
+     *         <var>after</var> words
+     */
+    private static String[]
+    withCommand(String[] before, String... after) {
+
+        List<String> result = new ArrayList<String>(Arrays.asList(before));
+        result.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        result.add("-cp");
+        result.add(System.getProperty("java.class.path"));
+        result.add(Command.class.getName());
+        result.addAll(Arrays.asList(after));
+
+        return result.toArray(new String[result.size()]);
+    }
 }
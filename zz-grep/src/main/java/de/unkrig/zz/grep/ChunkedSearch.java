@@ -0,0 +1,332 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.zz.grep;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.unkrig.zz.grep.LineMatcher.LineHandler;
+
+/**
+ * Searches one large, memory-mappable document concurrently.
+ * <p>
+ *   The document is split at line boundaries into chunks, and the chunks are searched concurrently for lines that
+ *   contain matches. Then, in document order, the {@link LineMatcher} with the "real" line handler processes only
+ *   the "islands" of the document, i.e. the matching lines with their before and after context, with the correct
+ *   line numbers and byte offsets. The lines between the islands contain no matches and are not context lines, so
+ *   the line handler would ignore them anyway (except for retaining them as potential before context, which is why
+ *   each island starts <var>beforeContext</var> lines before its first matching line). Thus the output is exactly
+ *   the same as with {@link LineMatcher#run(FileChannel)}, including the max count and the context separators.
+ * </p>
+ * <p>
+ *   Because the line handler is invoked only for lines <em>with</em> matches (and context lines), this works only
+ *   for non-inverted searches.
+ * </p>
+ */
+final
+class ChunkedSearch {
+
+    /**
+     * The approximate size of the chunks that are searched concurrently.
+     */
+    private static final long CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final RuntimeException STOP_CHUNK = new RuntimeException();
+
+    private final ExecutorService executorService;
+    private final PatternSet      patternSet;
+    private final Charset         charset;
+    private final int             beforeContext, afterContext;
+    private final int             maxLinesPerChunk;
+
+    /**
+     * @param executorService  Searches the chunks
+     * @param beforeContext    The number of context lines that the line handler prints before each matching line
+     * @param afterContext     The number of context lines that the line handler prints after each matching line
+     * @param maxLinesPerChunk After that many matching lines, the line handler is known to stop processing the
+     *                         document, so there is no need to search the rest of the chunk
+     */
+    ChunkedSearch(
+        ExecutorService executorService,
+        PatternSet      patternSet,
+        Charset         charset,
+        int             beforeContext,
+        int             afterContext,
+        int             maxLinesPerChunk
+    ) {
+        this.executorService  = executorService;
+        this.patternSet       = patternSet;
+        this.charset          = charset;
+        this.beforeContext    = beforeContext;
+        this.afterContext     = afterContext;
+        this.maxLinesPerChunk = maxLinesPerChunk;
+    }
+
+    /**
+     * The result of searching one chunk.
+     */
+    private static
+    class Chunk {
+
+        /**
+         * The number of lines in the chunk, or -1 iff the search of the chunk stopped early.
+         */
+        int lineCount = -1;
+
+        /**
+         * The chunk-relative, one-based numbers of the lines that contain matches.
+         */
+        int[] lineNumbers = new int[16];
+
+        /**
+         * For each of the {@link #lineNumbers}: The byte offset of the line <var>beforeContext</var> lines
+         * before, or -1 iff that line is not within the chunk.
+         */
+        long[] islandStarts = new long[16];
+
+        int matchingLineCount;
+
+        /**
+         * The byte offsets of the last <var>beforeContext</var> lines of the chunk; the offset of line
+         * <var>n</var> is at index <var>n</var>{@code % beforeContext}.
+         */
+        long[] tail;
+
+        Chunk(int beforeContext) { this.tail = new long[beforeContext]; }
+
+        void
+        add(int lineNumber, long islandStart) {
+
+            if (this.matchingLineCount == this.lineNumbers.length) {
+                this.lineNumbers  = Arrays.copyOf(this.lineNumbers, 2 * this.matchingLineCount);
+                this.islandStarts = Arrays.copyOf(this.islandStarts, 2 * this.matchingLineCount);
+            }
+
+            this.lineNumbers[this.matchingLineCount]    = lineNumber;
+            this.islandStarts[this.matchingLineCount++] = islandStart;
+        }
+    }
+
+    /**
+     * Processes the document in <var>channel</var> with the <var>lineMatcher</var>, as described {@link
+     * ChunkedSearch above}.
+     */
+    void
+    run(final FileChannel channel, LineMatcher lineMatcher) throws IOException {
+
+        final AtomicBoolean abandoned = new AtomicBoolean();
+
+        // Split the document into chunks, and search them concurrently.
+        List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+        long                size    = channel.size();
+        for (long from = 0; from < size;) {
+
+            final long chunkFrom = from, chunkTo = ChunkedSearch.nextLineStart(channel, from + CHUNK_SIZE);
+
+            futures.add(this.executorService.submit(new Callable<Chunk>() {
+
+                @Override public Chunk
+                call() throws IOException { return ChunkedSearch.this.search(channel, chunkFrom, chunkTo, abandoned); }
+            }));
+
+            from = chunkTo;
+        }
+
+        try {
+
+            // The island that is currently being built, in absolute line numbers.
+            int  islandFirstLine = 0, islandLastLine = 0;
+            long islandStart     = 0;
+
+            List<Chunk> chunks        = new ArrayList<Chunk>();
+            int         chunkLineBase = 0;
+            for (Future<Chunk> future : futures) {
+
+                Chunk chunk = ChunkedSearch.get(future);
+                chunks.add(chunk);
+
+                for (int i = 0; i < chunk.matchingLineCount; i++) {
+                    int lineNumber = chunkLineBase + chunk.lineNumbers[i];
+                    int firstLine  = Math.max(1, lineNumber - this.beforeContext);
+
+                    if (islandFirstLine > 0 && firstLine <= islandLastLine + 1) {
+
+                        // The matching line (or its before context) is adjacent to the current island; extend it.
+                        islandLastLine = ChunkedSearch.add(lineNumber, this.afterContext);
+                        continue;
+                    }
+
+                    // Process the current island, and start a new one.
+                    if (islandFirstLine > 0) {
+                        lineMatcher.run(channel, islandStart, size, islandFirstLine, islandLastLine);
+                    }
+                    islandFirstLine = firstLine;
+                    islandLastLine  = ChunkedSearch.add(lineNumber, this.afterContext);
+                    islandStart     = (
+                        chunk.islandStarts[i] != -1 ? chunk.islandStarts[i]
+                        : firstLine == 1 ? 0
+                        : this.lineStart(chunks, firstLine)
+                    );
+                }
+
+                // Iff the chunk's search stopped early, then the line handler will stop before the end of the
+                // chunk.
+                if (chunk.lineCount == -1) break;
+
+                chunkLineBase += chunk.lineCount;
+            }
+
+            if (islandFirstLine > 0) lineMatcher.run(channel, islandStart, size, islandFirstLine, islandLastLine);
+        } finally {
+            abandoned.set(true);
+            for (Future<Chunk> future : futures) future.cancel(false);
+        }
+    }
+
+    /**
+     * Searches <var>channel</var>{@code [from...to)} for lines that contain matches.
+     */
+    private Chunk
+    search(FileChannel channel, long from, long to, final AtomicBoolean abandoned) throws IOException {
+
+        final Chunk chunk = new Chunk(this.beforeContext);
+        if (abandoned.get()) return chunk;
+
+        final int    beforeContext    = this.beforeContext;
+        final long[] tail             = chunk.tail;
+        final int    maxLinesPerChunk = this.maxLinesPerChunk;
+
+        LineMatcher lm = new LineMatcher(this.patternSet, this.charset, true, 0, new LineHandler() {
+
+            @Override public void
+            handleLine(LineMatcher lm) {
+
+                int  lineNumber = lm.lineNumber();
+                long lineStart  = lm.byteOffset();
+
+                if (beforeContext == 0) {
+                    if (lm.hasMatch()) chunk.add(lineNumber, lineStart);
+                } else {
+
+                    // Notice that "tail[lineNumber % beforeContext]" is (still) the byte offset of the line
+                    // "beforeContext" lines before.
+                    int idx = lineNumber % beforeContext;
+                    if (lm.hasMatch()) chunk.add(lineNumber, lineNumber > beforeContext ? tail[idx] : -1);
+                    tail[idx] = lineStart;
+                }
+
+                if (chunk.matchingLineCount >= maxLinesPerChunk || abandoned.get()) throw ChunkedSearch.STOP_CHUNK;
+            }
+        });
+
+        try {
+            lm.run(channel, from, to, 1, -1);
+        } catch (RuntimeException re) {
+            if (re != ChunkedSearch.STOP_CHUNK) throw re;
+            return chunk;
+        }
+
+        chunk.lineCount = lm.lineNumber();
+        return chunk;
+    }
+
+    /**
+     * @return The byte offset of the line with the given absolute number, which must be among the last
+     *         <var>beforeContext</var> lines of the <var>chunks</var>
+     */
+    private long
+    lineStart(List<Chunk> chunks, int lineNumber) {
+
+        // Find the chunk that contains the line.
+        int base = 0;
+        for (Chunk chunk : chunks) {
+            if (lineNumber <= base + chunk.lineCount) {
+                return chunk.tail[(lineNumber - base) % this.beforeContext];
+            }
+            base += chunk.lineCount;
+        }
+
+        throw new AssertionError(lineNumber);
+    }
+
+    /**
+     * @return The start of the first line at or after <var>position</var>, or the size of the <var>channel</var>
+     */
+    private static long
+    nextLineStart(FileChannel channel, long position) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long size = channel.size(); position < size;) {
+
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n == -1) break;
+
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            position += n;
+        }
+
+        return channel.size();
+    }
+
+    /**
+     * @return <var>a</var>{@code + }<var>b</var>, but not more than {@link Integer#MAX_VALUE}
+     */
+    private static int
+    add(int a, int b) { return (int) Math.min((long) a + b, Integer.MAX_VALUE); }
+
+    private static <T> T
+    get(Future<T> future) throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException)      throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error)            throw (Error) cause;
+            throw new AssertionError(cause);
+        }
+    }
+}
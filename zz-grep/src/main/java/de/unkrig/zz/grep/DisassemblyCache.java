@@ -0,0 +1,89 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.zz.grep;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A persistent, content-addressed cache of class file disassemblies. Each disassembly is keyed by the CRC32 and the
+ * size of the class file, and by the disassembler settings; thus the same class file, when it appears in many
+ * archives or in many runs, is disassembled only once.
+ *
+ * @see DiskCache
+ */
+final
+class DisassemblyCache {
+
+    private static final int VERSION = 1;
+
+    private final DiskCache diskCache;
+    private final String    settings;
+
+    /**
+     * @param directory Where the disassemblies are stored; is created on demand
+     * @param maxSize   The number of bytes beyond which the least recently used disassemblies are evicted
+     * @param settings  Identifies all disassembler settings that affect the disassembly
+     */
+    DisassemblyCache(File directory, long maxSize, String settings) {
+        this.diskCache = new DiskCache(directory, maxSize, ".txt");
+        this.settings  = settings;
+    }
+
+    /**
+     * @return The cached disassembly of the <var>classFile</var>, or {@code null} iff it is not (yet) cached
+     */
+    @Nullable byte[]
+    get(byte[] classFile) { return this.diskCache.get(this.key(classFile)); }
+
+    /**
+     * Stores the <var>disassembly</var> of the <var>classFile</var>, and evicts the least recently used disassemblies
+     * iff the cache grows too large.
+     */
+    void
+    put(byte[] classFile, byte[] disassembly) throws IOException {
+        this.diskCache.put(this.key(classFile), disassembly);
+    }
+
+    private String
+    key(byte[] classFile) {
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(classFile);
+
+        return String.format(
+            "%08x-%d-%08x",
+            crc32.getValue(),
+            classFile.length,
+            (DisassemblyCache.VERSION + ", " + this.settings).hashCode()
+        );
+    }
+}
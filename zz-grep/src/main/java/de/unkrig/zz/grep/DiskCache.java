@@ -0,0 +1,208 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.zz.grep;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A persistent, size-bounded map of string keys to byte arrays, which are stored in a directory.
+ * <p>
+ *   Each value is stored in a separate file in the cache directory. When the total size of the cache exceeds its
+ *   limit, then the least recently used values are deleted; the "last use" is the file's modification time, which is
+ *   updated on each cache hit.
+ * </p>
+ */
+final
+class DiskCache {
+
+    private final File   directory;
+    private final long   maxSize;
+    private final String suffix;
+
+    /**
+     * The total size of all cached values, or -1 iff not yet determined.
+     */
+    private long totalSize = -1;
+
+    /**
+     * @param directory Where the values are stored; is created on demand
+     * @param maxSize   The number of bytes beyond which the least recently used values are evicted
+     * @param suffix    The file name suffix of the entry files, e.g. {@code ".txt"}
+     */
+    DiskCache(File directory, long maxSize, String suffix) {
+        this.directory = directory;
+        this.maxSize   = maxSize;
+        this.suffix    = suffix;
+    }
+
+    /**
+     * @param key At least three characters, which are all valid in file names
+     * @return    The cached value for the <var>key</var>, or {@code null} iff it is not (yet) cached
+     */
+    @Nullable byte[]
+    get(String key) {
+
+        File entryFile = this.entryFile(key);
+
+        byte[] result;
+        try {
+            result = Files.readAllBytes(entryFile.toPath());
+        } catch (NoSuchFileException nsfe) {
+            return null;
+        } catch (IOException ioe) {
+
+            // An unreadable entry is as good as no entry.
+            return null;
+        }
+
+        // Mark the entry as "recently used".
+        entryFile.setLastModified(System.currentTimeMillis());
+
+        return result;
+    }
+
+    /**
+     * Stores the <var>value</var> for the <var>key</var>, and evicts the least recently used values iff the cache
+     * grows too large.
+     *
+     * @param key At least three characters, which are all valid in file names
+     */
+    void
+    put(String key, byte[] value) throws IOException {
+
+        File entryFile = this.entryFile(key);
+        File dir       = entryFile.getParentFile();
+        File tmpFile   = new File(dir, entryFile.getName() + ".tmp" + Thread.currentThread().getId());
+
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create directory \"" + dir + "\"");
+
+        OutputStream os = new FileOutputStream(tmpFile);
+        try {
+            os.write(value);
+        } finally {
+            os.close();
+        }
+
+        Files.move(tmpFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        synchronized (this) {
+            if (this.totalSize == -1) {
+                this.totalSize = 0;
+                for (File f : this.entryFiles()) this.totalSize += f.length();
+            } else {
+                this.totalSize += value.length;
+            }
+
+            if (this.totalSize > this.maxSize) this.evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size is 90% of the limit, so that not each following
+     * {@link #put(String, byte[])} triggers another eviction.
+     */
+    private void
+    evict() {
+
+        assert Thread.holdsLock(this);
+
+        List<File> entryFiles = this.entryFiles();
+
+        final long[] lastModified = new long[entryFiles.size()];
+        List<Integer> order = new ArrayList<Integer>(entryFiles.size());
+        long          total = 0;
+        for (int i = 0; i < lastModified.length; i++) {
+            File f = entryFiles.get(i);
+            lastModified[i] = f.lastModified();
+            total           += f.length();
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+
+            @Override public int
+            compare(@Nullable Integer i1, @Nullable Integer i2) {
+                assert i1 != null;
+                assert i2 != null;
+                return Long.compare(lastModified[i1], lastModified[i2]);
+            }
+        });
+
+        long target = this.maxSize / 10 * 9;
+        for (int i = 0; i < order.size() && total > target; i++) {
+            File f      = entryFiles.get(order.get(i));
+            long length = f.length();
+            if (f.delete()) total -= length;
+        }
+
+        this.totalSize = total;
+    }
+
+    /**
+     * @return All entry files that are currently in the cache directory
+     */
+    private List<File>
+    entryFiles() {
+
+        List<File> result = new ArrayList<File>();
+
+        File[] subdirectories = this.directory.listFiles();
+        if (subdirectories == null) return result;
+
+        for (File subdirectory : subdirectories) {
+            File[] members = subdirectory.listFiles();
+            if (members == null) continue;
+            for (File member : members) {
+                if (member.getName().endsWith(this.suffix)) result.add(member);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The file that stores the value for the <var>key</var>
+     */
+    private File
+    entryFile(String key) {
+
+        // Spread the entries over many subdirectories.
+        return new File(new File(this.directory, key.substring(0, 2)), key.substring(2) + this.suffix);
+    }
+}
@@ -26,20 +26,28 @@
 
 package de.unkrig.zz.grep;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import de.unkrig.commons.file.ExceptionHandler;
@@ -53,26 +61,19 @@ import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveForma
 import de.unkrig.commons.file.org.apache.commons.compress.compressors.CompressionFormat;
 import de.unkrig.commons.file.org.apache.commons.compress.compressors.CompressionFormatFactory;
 import de.unkrig.commons.io.ByteFilterInputStream;
-import de.unkrig.commons.io.InputStreams;
 import de.unkrig.commons.io.IoUtil;
-import de.unkrig.commons.io.OutputStreams;
-import de.unkrig.commons.lang.protocol.ConsumerUtil;
-import de.unkrig.commons.lang.protocol.ConsumerUtil.Produmer;
 import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
-import de.unkrig.commons.lang.protocol.NoException;
 import de.unkrig.commons.lang.protocol.Predicate;
 import de.unkrig.commons.lang.protocol.PredicateUtil;
-import de.unkrig.commons.lang.protocol.Producer;
-import de.unkrig.commons.lang.protocol.ProducerUtil;
 import de.unkrig.commons.lang.protocol.ProducerWhichThrows;
 import de.unkrig.commons.lang.protocol.RunnableWhichThrows;
 import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.text.AbstractPrinter;
 import de.unkrig.commons.text.Printers;
-import de.unkrig.commons.text.pattern.Finders.MatchResult2;
 import de.unkrig.commons.text.pattern.Glob;
-import de.unkrig.commons.text.pattern.PatternUtil;
 import de.unkrig.commons.util.concurrent.ConcurrentUtil;
 import de.unkrig.commons.util.concurrent.SquadExecutor;
+import de.unkrig.zz.grep.LineMatcher.LineHandler;
 
 /**
  * The central API for the ZZGREP functionality.
@@ -107,8 +108,109 @@ class Grep {
         QUIET,
     }
 
+    /**
+     * How to search documents that contain binary data, i.e. NUL bytes.
+     */
+    public
+    enum BinaryFiles {
+
+        /**
+         * Search binary documents, but instead of the matching lines, print only "Binary file ... matches".
+         * (Implements {@code "--binary-files binary"}.)
+         */
+        BINARY,
+
+        /** Search binary documents like text documents. (Implements {@code "--binary-files text"}.) */
+        TEXT,
+
+        /**
+         * Do not read binary documents beyond the first few KB, and assume that they do not match. (Implements
+         * {@code "--binary-files without-match"}.)
+         */
+        WITHOUT_MATCH,
+    }
+
+    /**
+     * One match that the search found; see {@link Grep#setMatchHandler(MatchHandler)}.
+     * <p>
+     *   To avoid copying, a match is a <em>view</em> of the state of the search, and is valid only during the
+     *   invocation of {@link MatchHandler#handleMatch(Match)}.
+     * </p>
+     */
+    public
+    interface Match {
+
+        /**
+         * @return The path of the document, e.g. {@code "dir/file.zip!dir/file.txt"}
+         */
+        String path();
+
+        /**
+         * @return The one-based number of the line that contains the match
+         */
+        int lineNumber();
+
+        /**
+         * @return The offset of the first byte of the line within the document, or -1 iff {@link
+         *         Grep#setWithByteOffset(boolean) byte offsets} are not configured
+         */
+        long lineByteOffset();
+
+        /**
+         * @return The offset of the first byte of the match within the document, or -1 iff {@link
+         *         Grep#setWithByteOffset(boolean) byte offsets} are not configured
+         */
+        long byteOffset();
+
+        /**
+         * @return The text of the line that contains the match, without the line terminator; a view which must not
+         *         be used after {@link MatchHandler#handleMatch(Match)} has returned ({@link Object#toString()}
+         *         produces a copy)
+         */
+        CharSequence line();
+
+        /**
+         * @return The offset of the match within the {@link #line()}
+         */
+        int start();
+
+        /**
+         * @return The offset of the end of the match within the {@link #line()}
+         */
+        int end();
+
+        /**
+         * @return The regex that produced the match (as passed to {@link Grep#addSearch(Glob, String, boolean)})
+         */
+        Pattern pattern();
+    }
+
+    /**
+     * Receives the matches of the search; see {@link Grep#setMatchHandler(MatchHandler)}.
+     */
+    public
+    interface MatchHandler {
+
+        /**
+         * Is invoked for each match, in the order of the matches within each document.
+         *
+         * @return {@code false} to stop the entire search
+         */
+        boolean handleMatch(Match match) throws IOException;
+    }
+
     private static final RuntimeException STOP_DOCUMENT = new RuntimeException();
 
+    /**
+     * How many bytes at the beginning of each document are checked for binary data.
+     */
+    private static final int BINARY_SNIFF_SIZE = 8 * 1024;
+
+    /**
+     * Smaller files are not worth being memory-mapped.
+     */
+    private static final long MIN_MAPPED_FILE_SIZE = 256 * 1024;
+
     @Nullable private String              label;
     private boolean                       withPath;
     private boolean                       withLineNumber;
@@ -117,6 +219,7 @@ class Grep {
     private Predicate<? super String>     lookIntoFormat = PredicateUtil.always();
     private Charset                       charset        = Charset.defaultCharset();
     private Operation                     operation      = Operation.NORMAL;
+    private BinaryFiles                   binaryFiles    = BinaryFiles.TEXT;
     private int                           maxCount       = Integer.MAX_VALUE;
     private boolean                       inverted;
     private boolean                       disassembleClassFiles;
@@ -125,8 +228,19 @@ class Grep {
     private boolean                       disassembleClassFilesButHideLines;
     private boolean                       disassembleClassFilesButHideVars;
     private boolean                       disassembleClassFilesSymbolicLabels;
+    @Nullable private File                disassembleClassFilesCacheDirectory;
+    private long                          disassembleClassFilesCacheSize = 256L * 1024 * 1024;
     @Nullable private Comparator<Object>  directoryMemberNameComparator = Collator.getInstance();
     private ExceptionHandler<IOException> exceptionHandler              = ExceptionHandler.defaultHandler();
+    private int                           threadCount                   = 1;
+    private long                          largeFileThreshold            = 64L * 1024 * 1024;
+    @Nullable private ExecutorService     chunkExecutorService;
+    @Nullable private File                indexDirectory;
+    @Nullable private File                resultCacheDirectory;
+    private long                          resultCacheSize               = 256L * 1024 * 1024;
+    @Nullable private Watcher             watcher;
+    private boolean                       batchOutput;
+    @Nullable private MatchHandler        matchHandler;
 
     private final
     class Search {
@@ -137,11 +251,86 @@ class Grep {
          * @param path    Which pathes this search applies to
          * @param pattern The regex to match the contents against
          */
-        Search(Glob path, Pattern pattern) { this.path = path; this.pattern = pattern; }
+        Search(Glob path, Pattern pattern) {
+            this.path    = path;
+            this.pattern = pattern;
+        }
     }
 
     private final List<Search> searches = new ArrayList<Search>();
 
+    /**
+     * The compiled patterns of each combination of {@link #searches} that applied to at least one document.
+     */
+    private final Map<List<Search>, PatternSet> patternSets = new ConcurrentHashMap<List<Search>, PatternSet>();
+
+    /**
+     * The trigram index queries for the {@link #patternSets}.
+     */
+    private final Map<PatternSet, TrigramIndex.Query>
+    indexQueries = new ConcurrentHashMap<PatternSet, TrigramIndex.Query>();
+
+    /**
+     * The file that the current thread is searching, iff the {@link #setIndexDirectory(File) trigram index} is
+     * enabled.
+     */
+    private final ThreadLocal<IndexedFile> indexedFile = new ThreadLocal<IndexedFile>();
+
+    /**
+     * The innermost result cache recording of the current thread, iff the {@link #setResultCacheDirectory(File)
+     * result cache} is enabled.
+     */
+    private final ThreadLocal<ResultCache.Recording> recording = new ThreadLocal<ResultCache.Recording>();
+
+    /**
+     * The state of the trigram index while one file is being searched.
+     */
+    private static
+    class IndexedFile {
+
+        final String path;
+
+        /**
+         * The record from the preceding search, or {@code null}.
+         */
+        @Nullable final TrigramIndex.FileRecord previous;
+
+        /**
+         * Whether the file was not modified since the {@link #previous} record was created.
+         */
+        final boolean upToDate;
+
+        /**
+         * The record that is being created while the file is searched.
+         */
+        final TrigramIndex.FileRecord current;
+
+        /**
+         * Whether processing of any document failed, so that the {@link #current} record is not reliable.
+         */
+        boolean failed;
+
+        IndexedFile(String path, @Nullable TrigramIndex.FileRecord previous, File file) {
+            this.path     = path;
+            this.previous = previous;
+            this.upToDate = previous != null && previous.isUpToDate(file);
+            this.current  = new TrigramIndex.FileRecord(file.length(), file.lastModified());
+        }
+
+        /**
+         * @return The document from the {@link #previous} record, iff it is known to be unchanged
+         */
+        @Nullable TrigramIndex.Document
+        unchangedDocument(String key, long size, long crc32, long lastModified) {
+
+            TrigramIndex.FileRecord p = this.previous;
+            if (p == null) return null;
+
+            TrigramIndex.Document d = p.get(key);
+            return d != null && (this.upToDate || d.hasSameContents(size, crc32, lastModified)) ? d : null;
+        }
+    }
+
     // END CONFIGURATION VARIABLES
 
     // BEGIN CONFIGURATION SETTERS
@@ -210,6 +399,13 @@ class Grep {
     public void
     setOperation(Operation value) { this.operation = value; }
 
+    /**
+     * Configures how to search documents that contain binary data, i.e. NUL bytes within their first few KB. (Only
+     * for ASCII-compatible charsets, where NUL bytes do not appear in text.) The default is {@link BinaryFiles#TEXT}.
+     */
+    public void
+    setBinaryFiles(BinaryFiles value) { this.binaryFiles = value; }
+
     /**
      * Stop reading the current document after <var>n</var> matches. (Implements {@code "-m"}.)
      */
@@ -268,6 +464,24 @@ class Grep {
     public void
     setDisassembleClassFilesSymbolicLabels(boolean value) { this.disassembleClassFilesSymbolicLabels = value; }
 
+    /**
+     * When disassembling .class files, store the disassemblies in the given directory, and re-use them when the same
+     * class file (same CRC32 and size) is disassembled again with the same settings. Has no effect while source file
+     * loading is enabled, because the disassembly then depends on the source files.
+     *
+     * @param value Where to store the disassemblies; {@code null} disables the cache; the cache is disabled by default
+     */
+    public void
+    setDisassembleClassFilesCacheDirectory(@Nullable File value) { this.disassembleClassFilesCacheDirectory = value; }
+
+    /**
+     * @param value The number of bytes beyond which the least recently used disassemblies are evicted from the cache;
+     *              the default is 256 MB
+     * @see         #setDisassembleClassFilesCacheDirectory(File)
+     */
+    public void
+    setDisassembleClassFilesCacheSize(long value) { this.disassembleClassFilesCacheSize = value; }
+
     /**
      * @param path  Which pathes the search applies to
      * @param regex The regular expression to match each line against
@@ -281,6 +495,8 @@ class Grep {
                 Pattern.MULTILINE | (caseSensitive ? 0 : Pattern.CASE_INSENSITIVE)
             ))
         );
+        this.patternSets.clear();
+        this.indexQueries.clear();
     }
 
     /**
@@ -299,6 +515,97 @@ class Grep {
         this.directoryMemberNameComparator = directoryMemberNameComparator;
     }
 
+    /**
+     * Search up to <var>n</var> files concurrently while traversing directory trees. The output of each file is
+     * buffered as long as necessary, so that it appears in the same order as with a sequential search. The default
+     * is 1, i.e. to traverse directories strictly sequentially.
+     */
+    public void
+    setThreadCount(int n) {
+        if (n < 1) throw new IllegalArgumentException("Thread count must be positive");
+        this.threadCount = n;
+    }
+
+    /**
+     * Iff the {@link #setThreadCount(int) thread count} is greater than one, then split plain files that are at least
+     * <var>n</var> bytes large at line boundaries into chunks, and search the chunks concurrently. Line numbers, byte
+     * offsets, the max count and the context lines are exactly the same as with a sequential search. (Inverted
+     * searches, however, are always sequential.) The default is 64 MB.
+     */
+    public void
+    setLargeFileThreshold(long n) { this.largeFileThreshold = n; }
+
+    /**
+     * The executor service that searches the chunks of {@link #setLargeFileThreshold(long) large files}, e.g. a pool
+     * that the caller shares between several {@link Grep}s and shuts down eventually. {@code null} (the default)
+     * means an internal pool of up to {@link #setThreadCount(int) thread count} daemon threads, which terminate when
+     * they are idle, so that no threads remain after the search.
+     */
+    public void
+    setChunkExecutorService(@Nullable ExecutorService value) { this.chunkExecutorService = value; }
+
+    /**
+     * Maintain a persistent trigram index of all searched documents in the given <var>directory</var>, and use it to
+     * skip the documents (and even entire archive files) that cannot contain any matches. Only the entries of files
+     * that were modified since the preceding search are re-indexed. {@code null} (the default) disables the index.
+     */
+    public void
+    setIndexDirectory(@Nullable File directory) { this.indexDirectory = directory; }
+
+    /**
+     * Cache the results (output and match count) of all searched files and archive entries in the given
+     * <var>directory</var>, and replay them for files and entries that are unchanged (same size, modification time
+     * resp. CRC32), as long as the search settings are the same. Thus repeated searches only read new and modified
+     * files. Documents that produced errors or warnings are not cached. {@code null} (the default) disables the
+     * cache, and so does a {@link #setDisassembleClassFilesSourceDirectory(File) source directory}.
+     */
+    public void
+    setResultCacheDirectory(@Nullable File directory) { this.resultCacheDirectory = directory; }
+
+    /**
+     * Configures the size of the result cache. When it grows beyond that size, then the least recently used results
+     * are evicted. The default is 256 MB.
+     *
+     * @see #setResultCacheDirectory(File)
+     */
+    public void
+    setResultCacheSize(long value) { this.resultCacheSize = value; }
+
+    /**
+     * Whether the {@link #fileProcessor(boolean) file processor} should prepare for {@link #watch(Runnable)}.
+     */
+    public void
+    setWatch(boolean value) { this.watcher = value ? new Watcher(this) : null; }
+
+    /**
+     * Whether to print the output lines of each document in chunks of many lines, rather than line by line. This is
+     * much faster when there are many matches, but then each message that the context printer receives may contain
+     * multiple lines (separated by the system line separator), and lines may appear later. Disabled by default.
+     */
+    public void
+    setBatchOutput(boolean value) { this.batchOutput = value; }
+
+    /**
+     * Instead of printing the matches, pass each match to the given <var>matchHandler</var>, without formatting or
+     * copying it. The handler can stop the entire search (i.e. all further processing by the {@link
+     * #fileProcessor(boolean)} resp. {@link #contentsProcessor()} that found the match) by returning {@code false}.
+     * <p>
+     *   The {@link #setOperation(Operation) operation}, the context and the {@link #setInverted(boolean) inversion}
+     *   do not apply then, the {@link #setMaxCount(int) max count} limits the matches per document, and {@link
+     *   BinaryFiles#BINARY} documents are searched like {@link BinaryFiles#TEXT} documents. The result cache is
+     *   not used.
+     * </p>
+     * <p>
+     *   Iff the {@link #setThreadCount(int) thread count} is greater than one, then the <var>matchHandler</var> is
+     *   invoked concurrently for different documents, the documents are no longer in traversal order, and after the
+     *   handler stopped the search, it may still receive a few matches from the other threads.
+     * </p>
+     *
+     * @param matchHandler {@code null} (the default) to print the matches
+     */
+    public void
+    setMatchHandler(@Nullable MatchHandler matchHandler) { this.matchHandler = matchHandler; }
+
     // END CONFIGURATION SETTERS
 
     // BEGIN SEARCH RESULT VARIABLES
@@ -306,7 +613,7 @@ class Grep {
     /**
      * The number of matches yielded by all invocations of {@link #grep()}.
      */
-    int totalMatchCount;
+    private final AtomicInteger totalMatchCount = new AtomicInteger();
 
     // END SEARCH RESULT VARIABLES
 
@@ -316,21 +623,31 @@ class Grep {
      * Whether any of processors yielded any matches.
      */
     public boolean
-    getLinesSelected() { return this.totalMatchCount > 0; }
+    getLinesSelected() { return this.totalMatchCount.get() > 0; }
 
     /**
      * @return The number of matches yielded by all processors
      */
     public int
-    getTotalMatchCount() { return this.totalMatchCount; }
+    getTotalMatchCount() { return this.totalMatchCount.get(); }
 
     // END SEARCH RESULT GETTERS
 
     /**
+     * Each file processor executes a search of its own: Once it is stopped (by {@link Operation#QUIET} or by the
+     * {@link #setMatchHandler(MatchHandler) match handler}), it skips all further files, but the other file and
+     * contents processors of this object are not affected.
+     *
      * @return A {@link FileProcessor} which executes the search and prints results to STDOUT
      */
     public FileProcessor<Void>
-    fileProcessor(boolean lookIntoDirectories) {
+    fileProcessor(boolean lookIntoDirectories) { return this.fileProcessor(lookIntoDirectories, new AtomicBoolean()); }
+
+    /**
+     * @param stopped Whether the outcome of the search is decided, so that the rest of the traversal is skipped
+     */
+    private FileProcessor<Void>
+    fileProcessor(boolean lookIntoDirectories, final AtomicBoolean stopped) {
 
         // Process only the files to which at least one search applies.
         Predicate<? super String> pathPredicate = PredicateUtil.never();
@@ -338,195 +655,230 @@ class Grep {
             pathPredicate = PredicateUtil.or(pathPredicate, search.path);
         }
 
+        // Once the search is stopped, exceptions (typically caused by closed archive streams) no longer matter.
+        final ExceptionHandler<IOException> exceptionHandler = new ExceptionHandler<IOException>() {
+
+            @Override public void
+            handle(String path, IOException ioe) throws IOException {
+                if (!stopped.get()) Grep.this.exceptionHandler.handle(path, ioe);
+            }
+
+            @Override public void
+            handle(String path, RuntimeException re) {
+                if (!stopped.get()) Grep.this.exceptionHandler.handle(path, re);
+            }
+        };
+
+        // Once the search is stopped, skip all remaining archive entries and directory members without reading them.
+        Predicate<String> notStopped = new Predicate<String>() {
+
+            @Override public boolean
+            evaluate(String subject) { return !stopped.get(); }
+        };
+
+        ResultCache resultCache = this.resultCache();
+
+        ContentsProcessor<Void> cp = this.contentsProcessor(stopped);
+        if (resultCache != null) cp = this.cachingContentsProcessor(cp, resultCache, stopped);
+
         FileProcessor<Void> fp = FileProcessings.recursiveCompressedAndArchiveFileProcessor(
             this.lookIntoFormat,                            // lookIntoFormat
-            PredicateUtil.always(),                         // pathPredicate
+            notStopped,                                     // pathPredicate
             ContentsProcessings.<Void>nopArchiveCombiner(), // archiveEntryCombiner
-            new SelectiveContentsProcessor<Void>(           // contentsProcessor
-                pathPredicate,                                   // pathPredicate
-                this.contentsProcessor(),                        // trueDelegate
-                ContentsProcessings.<Void>nopContentsProcessor() // falseDelegate
+            this.indexingContentsProcessor(                 // contentsProcessor
+                this.stoppableContentsProcessor(
+                    new SelectiveContentsProcessor<Void>(
+                        pathPredicate,                                   // pathPredicate
+                        cp,                                              // trueDelegate
+                        ContentsProcessings.<Void>nopContentsProcessor() // falseDelegate
+                    ),
+                    stopped
+                ),
+                stopped
             ),
-            this.exceptionHandler                           // exceptionHandler
+            exceptionHandler                                // exceptionHandler
         );
 
+        // Iff possible, search plain files through a memory mapping, which saves copying and (most of) the decoding.
+        if (LineMatcher.isAsciiCompatible(this.charset)) fp = this.mappedFileProcessor(fp, stopped);
+
+        // Iff configured, skip files through the trigram index.
+        File indexDirectory = this.indexDirectory;
+        if (indexDirectory != null) {
+            fp = this.indexedFileProcessor(fp, new TrigramIndex(
+                indexDirectory,
+                "lookInto=" + this.lookIntoFormat + ", disassemble=" + this.disassembleClassFiles
+            ));
+        }
+
+        // Iff configured, replay the cached results of unchanged files.
+        if (resultCache != null) fp = this.cachingFileProcessor(fp, resultCache, stopped);
+
+        // Iff configured, remember how much of each file was searched.
+        Watcher watcher = this.watcher;
+        if (watcher != null) fp = watcher.positionRecordingFileProcessor(fp);
+
         // Honor the 'lookIntoDirectories' flag.
         if (lookIntoDirectories) {
+
+            // Iff configured, process the directory members concurrently, but print the results in sequential
+            // order.
+            SquadExecutor<Void> squadExecutor = (
+                this.threadCount == 1
+                ? new SquadExecutor<Void>(ConcurrentUtil.SEQUENTIAL_EXECUTOR_SERVICE)
+                : new OrderedOutputSquadExecutor<Void>(
+                    OrderedOutputSquadExecutor.callerRunsExecutorService(this.threadCount),
+                    AbstractPrinter.getContextPrinter()
+                )
+            );
+
             fp = FileProcessings.<Void>directoryTreeProcessor(
-                pathPredicate,                                                       // pathPredicate
-                fp,                                                                  // regularFileProcessor
-                this.directoryMemberNameComparator,                                  // directoryMemberNameComparator
-                FileProcessings.<Void>nopDirectoryCombiner(),                        // directoryCombiner
-                new SquadExecutor<Void>(ConcurrentUtil.SEQUENTIAL_EXECUTOR_SERVICE), // squadExecutor
-                this.exceptionHandler                                                // exceptionHandler
+                PredicateUtil.and(notStopped, pathPredicate), // pathPredicate
+                this.stoppableFileProcessor(fp, stopped),     // regularFileProcessor
+                this.directoryMemberNameComparator,           // directoryMemberNameComparator
+                FileProcessings.<Void>nopDirectoryCombiner(), // directoryCombiner
+                squadExecutor,                                // squadExecutor
+                exceptionHandler                              // exceptionHandler
             );
         }
 
+        fp = this.stoppableFileProcessor(fp, stopped);
+
+        // Iff configured, watch all files and directories that are searched.
+        if (watcher != null) fp = watcher.rootFileProcessor(fp);
+
         return fp;
     }
 
     /**
-     * @return A {@link ContentsProcessor} which executes the search and prints results to STDOUT
+     * After the files and directories were searched with the {@link #fileProcessor(boolean) file processor}, waits
+     * for files to be created or modified in the same directories, and searches them. Searches only the complete
+     * lines that were appended to files, with the correct line numbers and byte offsets. Never returns. (Implements
+     * {@code "--watch"}.)
+     *
+     * @param afterPass Is run after each search of the created and modified files, e.g. to flush the output
+     * @see             #setWatch(boolean)
      */
-    public ContentsProcessor<Void>
-    contentsProcessor() {
+    public void
+    watch(Runnable afterPass) throws IOException, InterruptedException {
 
-        return new ContentsProcessor<Void>() {
+        Watcher watcher = this.watcher;
+        if (watcher == null) throw new IllegalStateException("Watch mode is not configured");
 
-            @Override @Nullable public Void
-            process(
-                String                                                            path,
-                InputStream                                                       is,
-                @Nullable Date                                                    lastModifiedDate,
-                long                                                              size,
-                long                                                              crc32,
-                ProducerWhichThrows<? extends InputStream, ? extends IOException> opener
-            ) throws IOException {
+        AtomicBoolean stopped = new AtomicBoolean();
+        watcher.run(this.fileProcessor(true, stopped), stopped, this.exceptionHandler, afterPass);
+    }
 
-//                if (!Grep.this.includeExclude.matches(name)) return null;
+    /**
+     * Searches the complete lines that were appended to the plain <var>file</var> since the <var>position</var>, and
+     * advances the <var>position</var>.
+     *
+     * @param stopped Whether the outcome of the search is decided
+     * @return        Whether that was possible; {@code false} iff the file must be searched from the beginning,
+     *                because it shrank, or is an archive or compressed file, or the charset is not ASCII-compatible
+     */
+    boolean
+    searchAppendedLines(String path, File file, final Watcher.Position position, AtomicBoolean stopped)
+    throws IOException {
 
-                // Check which searches apply to this path.
-                Pattern[] patterns;
-                {
-                    final List<Pattern> l = new ArrayList<Pattern>();
-                    for (Search search : Grep.this.searches) {
-                        if (search.path.matches(path)) l.add(search.pattern);
-                    }
-                    if (l.isEmpty()) return null;
-                    patterns = l.toArray(new Pattern[l.size()]);
-                }
+        if (!LineMatcher.isAsciiCompatible(this.charset)) return false;
 
-                Printers.verbose(path);
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            final FileChannel fc   = fis.getChannel();
+            long              size = fc.size();
 
-                if (Grep.this.disassembleClassFiles && path.endsWith(".class")) {
+            if (size < position.offset || Grep.isArchiveOrCompressed(fc)) return false;
 
-                    // Wrap the input stream in a Java disassembler.
-                    DisassemblerByteFilter disassemblerByteFilter = new DisassemblerByteFilter();
+            final long to = Watcher.lastLineEnd(fc, position.offset, size);
+            if (to == position.offset) return true;
 
-                    disassemblerByteFilter.setVerbose(Grep.this.disassembleClassFilesVerbose);
-                    disassemblerByteFilter.setSourceDirectory(Grep.this.disassembleClassFilesSourceDirectory);
-                    disassemblerByteFilter.setHideLines(Grep.this.disassembleClassFilesButHideLines);
-                    disassemblerByteFilter.setHideVars(Grep.this.disassembleClassFilesButHideVars);
-                    disassemblerByteFilter.setSymbolicLabels(Grep.this.disassembleClassFilesSymbolicLabels);
-                    is = new ByteFilterInputStream(is, disassemblerByteFilter);
-                }
+            PatternSet patternSet = this.patternSetFor(path);
+            if (patternSet == null) {
+                position.offset    = to;
+                position.lineCount = -1;
+                return true;
+            }
 
-                // For printing byte offsets ("-b").
-                Producer<Long> bytesRead;
-                if (Grep.this.withByteOffset) {
-                    Produmer<Long, Number> p = ConsumerUtil.cumulate();
-                    is        = InputStreams.wye(is, OutputStreams.lengthWritten(p));
-                    bytesRead = p;
-                } else {
-                    bytesRead = ProducerUtil.constantProducer(-1L);
-                }
+            if (position.lineCount == -1 && this.withLineNumber) {
+                position.lineCount = Watcher.countLines(fc, position.offset);
+            }
 
-                // For printing path (-H) or label (--label).
-                String label = Grep.this.label != null ? Grep.this.label : Grep.this.withPath ? path : null;
+            Printers.verbose(path);
 
-                int[]    matchCountInDocument = new int[1];
-                Runnable incrementMatchCount  = new Runnable() {
+            boolean     binary     = this.binaryFiles != BinaryFiles.TEXT && Grep.isBinary(fc);
+            final int[] lineNumber = { -1 };
 
-                    @Override public void
-                    run() {
-                        if (++matchCountInDocument[0] >= Grep.this.maxCount) throw Grep.STOP_DOCUMENT;
-                    }
-                };
+            this.grep(path, patternSet, binary, stopped, new ConsumerWhichThrows<LineMatcher, IOException>() {
 
-                Reader r = new BufferedReader(new InputStreamReader(is, Grep.this.charset));
+                @Override public void
+                consume(LineMatcher lm) throws IOException {
+                    lm.run(fc, position.offset, to, position.lineCount + 1, -1);
+                    lineNumber[0] = lm.lineNumber();
+                }
+            });
 
-                Writer w;
-                switch (Grep.this.operation) {
+            // The line count is unknown iff the search stopped early (or if it was unknown before).
+            position.offset    = to;
+            position.lineCount = position.lineCount == -1 ? -1 : lineNumber[0];
+        } finally {
+            fis.close();
+        }
 
-                case NORMAL:
-                    w = Grep.grepNormal(
-                        patterns,
-                        Grep.this.inverted,
-                        label,
-                        Grep.this.withLineNumber,
-                        Grep.this.beforeContext,
-                        Grep.this.afterContext,
-                        bytesRead,
-                        incrementMatchCount
-                    );
-                    break;
-
-                case ONLY_MATCHING:
-                    // In this mode, we may or may not track line numbers.
-                    if (Grep.this.withLineNumber) {
-                        w = Grep.grepPrintMatchesWithLineNumber(
-                            patterns,
-                            Grep.this.inverted,
-                            label,
-                            bytesRead,
-                            incrementMatchCount
-                        );
-                    } else {
-                        w = Grep.grepPrintMatches(
-                            patterns,
-                            true, // printMatches
-                            label,
-                            bytesRead,
-                            incrementMatchCount
-                        );
-                    }
-                    break;
+        return true;
+    }
 
-                case COUNT:
-                    // In this mode, we don't have to track line numbers.
-                    w = Grep.grepPrintMatches(
-                        patterns,
-                        false, // printMatches
-                        label,
-                        bytesRead,
-                        incrementMatchCount
-                    );
-                    break;
+    /**
+     * @return A {@link FileProcessor} which does nothing once the search is <var>stopped</var>, and swallows the
+     *         exceptions that the <var>delegate</var> throws after the search was stopped
+     */
+    private FileProcessor<Void>
+    stoppableFileProcessor(final FileProcessor<Void> delegate, final AtomicBoolean stopped) {
 
-                case FILES_WITH_MATCHES:
-                case FILES_WITHOUT_MATCH:
-                case QUIET:
-                    // In these modes, we don't have to track line numbers, and we only check if there *is* a match.
-                    w = Grep.grepCheck(patterns, incrementMatchCount);
-                    break;
+        return new FileProcessor<Void>() {
 
-                default:
-                    throw new AssertionError(Grep.this.operation);
-                }
+            @Override @Nullable public Void
+            process(String path, File file) throws IOException, InterruptedException {
+
+                if (stopped.get()) return null;
 
-                // Now process the contents.
                 try {
-                    IoUtil.copy(r, w);
-                    w.close();
+                    return delegate.process(path, file);
+                } catch (IOException ioe) {
+                    if (!stopped.get()) throw ioe;
                 } catch (RuntimeException re) {
-                    if (re != Grep.STOP_DOCUMENT) throw re;
+                    if (!stopped.get()) throw re;
                 }
+                return null;
+            }
 
-                Grep.this.totalMatchCount += matchCountInDocument[0];
-
-                // Print the per-document epilog.
-                switch (Grep.this.operation) {
+            @Override public String
+            toString() { return "stoppableFileProcessor(" + delegate + ")"; }
+        };
+    }
 
-                case NORMAL:
-                case QUIET:
-                case ONLY_MATCHING:
-                    break;
+    /**
+     * @return A {@link ContentsProcessor} which, once the search is <var>stopped</var>, closes the input stream; for
+     *         archive entries, that is the archive input stream, which thus reports no further entries
+     */
+    private ContentsProcessor<Void>
+    stoppableContentsProcessor(final ContentsProcessor<Void> delegate, final AtomicBoolean stopped) {
 
-                case COUNT:
-                    Printers.info((Grep.this.label != null ? Grep.this.label : path) + ':' + matchCountInDocument[0]);
-                    break;
+        return new ContentsProcessor<Void>() {
 
-                case FILES_WITH_MATCHES:
-                    if (matchCountInDocument[0] > 0) Printers.info(Grep.this.label != null ? Grep.this.label : path);
-                    break;
+            @Override @Nullable public Void
+            process(
+                String                                                            path,
+                InputStream                                                       is,
+                @Nullable Date                                                    lastModifiedDate,
+                long                                                              size,
+                long                                                              crc32,
+                ProducerWhichThrows<? extends InputStream, ? extends IOException> opener
+            ) throws IOException {
 
-                case FILES_WITHOUT_MATCH:
-                    if (matchCountInDocument[0] == 0) Printers.info(Grep.this.label != null ? Grep.this.label : path);
-                    break;
+                if (!stopped.get()) delegate.process(path, is, lastModifiedDate, size, crc32, opener);
 
-                default:
-                    throw new AssertionError(Grep.this.operation);
-                }
+                if (stopped.get()) is.close();
 
                 return null;
             }
@@ -534,251 +886,1262 @@ class Grep {
     }
 
     /**
-     * Creates and returns a writer which implements a "normal" grep, optionally with label, line number,
-     * before-context, and after-context.
+     * Each contents processor executes a search of its own; see {@link #fileProcessor(boolean)}.
      *
-     * @param label         Printed before each match, if non-null
-     * @param beforeContext Number of lines to print before each match
-     * @param afterContext  Number of lines to print after each match
-     * @param countMatch    Is called after each match
+     * @return A {@link ContentsProcessor} which executes the search and prints results to STDOUT
      */
-    private static Writer
-    grepNormal(
-        Pattern[]                              patterns,
-        boolean                                inverted,
-        @Nullable String                       label,
-        boolean                                withLineNumber,
-        int                                    beforeContext,
-        int                                    afterContext,
-        ProducerWhichThrows<Long, NoException> bytesRead,
-        Runnable                               countMatch
-    ) {
-        StringBuilder currentLine           = new StringBuilder();
-        boolean[]     currentLineHasMatches = new boolean[1];
+    public ContentsProcessor<Void>
+    contentsProcessor() { return this.contentsProcessor(new AtomicBoolean()); }
 
-        ConsumerWhichThrows<MatchResult2, ? extends IOException>
-        match = new ConsumerWhichThrows<MatchResult2, IOException>() {
+    private ContentsProcessor<Void>
+    contentsProcessor(final AtomicBoolean stopped) {
 
-            @Override public void
-            consume(MatchResult2 mr2) {
+        final DisassemblyCache disassemblyCache = this.disassemblyCache();
 
-                // Don't print the match *now*, only when the line is completely read.
-                currentLineHasMatches[0] = true;
-                currentLine.append(mr2.group());
-            }
-        };
+        return new ContentsProcessor<Void>() {
 
-        ConsumerWhichThrows<Character, ? extends IOException>
-        nonMatch = ConsumerUtil.<IOException>lineCounter(
-            new ConsumerWhichThrows<Character, IOException>() { // lineChar
-                @Override public void consume(Character c) { currentLine.append(c); }
-            },
-            new ConsumerWhichThrows<Integer, IOException>() {   // lineComplete
+            @Override @Nullable public Void
+            process(
+                String                                                            path,
+                InputStream                                                       is,
+                @Nullable Date                                                    lastModifiedDate,
+                long                                                              size,
+                long                                                              crc32,
+                ProducerWhichThrows<? extends InputStream, ? extends IOException> opener
+            ) throws IOException {
 
-                LinkedList<String> beforeContextLines = new LinkedList<String>();
-                int                afterContextLinesToPrint;
+//                if (!Grep.this.includeExclude.matches(name)) return null;
 
-                @Override public void
-                consume(Integer lineNumber) {
+                // Check which searches apply to this path.
+                PatternSet patternSet = Grep.this.patternSetFor(path);
+                if (patternSet == null) return null;
+
+                Printers.verbose(path);
 
-                    if (currentLineHasMatches[0] ^ inverted) {
-                        this.matchingLine(currentLine.toString(), lineNumber, bytesRead.produce());
-                        countMatch.run();
+                if (Grep.this.disassembleClassFiles && path.endsWith(".class")) {
+                    if (disassemblyCache == null) {
+
+                        // Wrap the input stream in a Java disassembler.
+                        is = new ByteFilterInputStream(is, Grep.this.disassemblerByteFilter());
                     } else {
-                        this.nonMatchingLine(currentLine.toString(), lineNumber, bytesRead.produce());
+
+                        // Look up the disassembly in the cache, and disassemble only on a cache miss.
+                        is = new ByteArrayInputStream(Grep.this.disassemble(is, disassemblyCache));
                     }
+                }
 
-                    currentLine.setLength(0);
-                    currentLineHasMatches[0] = false;
+                boolean binary = false;
+                if (Grep.this.binaryFiles != BinaryFiles.TEXT && LineMatcher.isAsciiCompatible(Grep.this.charset)) {
+                    if (!is.markSupported()) is = new BufferedInputStream(is, Grep.BINARY_SNIFF_SIZE);
+                    binary = Grep.isBinary(is);
                 }
 
-                boolean hadMatch;
+                final InputStream is2 = is;
+                Grep.this.grep(path, patternSet, binary, stopped, new ConsumerWhichThrows<LineMatcher, IOException>() {
+                    @Override public void consume(LineMatcher lm) throws IOException { lm.run(is2); }
+                });
 
-                private void
-                matchingLine(String line, int lineNumber, long byteOffset) {
+                return null;
+            }
+        };
+    }
 
-                    // Iff a "context" is configured (and be it zero!), print a separator line between chunks:
-                    if (
-                        (beforeContext > 0 || afterContext > 0)
-                        && this.beforeContextLines.size() == beforeContext
-                        && this.afterContextLinesToPrint == 0
-                        && this.hadMatch
-                    ) Printers.info("--");
-                    this.hadMatch = true;
+    /**
+     * @return A {@link FileProcessor} which searches plain (i.e. neither archive nor compressed) files through a
+     *         memory mapping, and passes all other files to the <var>delegate</var>
+     */
+    private FileProcessor<Void>
+    mappedFileProcessor(final FileProcessor<Void> delegate, final AtomicBoolean stopped) {
 
-                    // Print the "before context lines".
-                    while (!this.beforeContextLines.isEmpty()) Printers.info(this.beforeContextLines.remove());
+        return new FileProcessor<Void>() {
 
-                    // Print the matching line.
-                    Printers.info(Grep.composeMatch(label, withLineNumber ? lineNumber : -1, byteOffset, line, ':'));
+            @Override @Nullable public Void
+            process(String path, File file) throws IOException, InterruptedException {
+
+                // Small files are processed faster without a memory mapping.
+                PatternSet patternSet = Grep.this.patternSetFor(path);
+                if (
+                    patternSet == null
+                    || !file.isFile()
+                    || file.length() < Grep.MIN_MAPPED_FILE_SIZE
+                    || (Grep.this.disassembleClassFiles && path.endsWith(".class"))
+                ) return delegate.process(path, file);
+
+                FileInputStream fis = new FileInputStream(file);
+                try {
+                    final FileChannel fc = fis.getChannel();
+
+                    if (!Grep.isArchiveOrCompressed(fc)) {
+
+                        // Iff the file is in the trigram index and unchanged, then possibly skip it; iff it changed,
+                        // then collect its trigrams while it is being searched.
+                        IndexedFile                  indexedFile = Grep.this.indexedFile.get();
+                        String                       indexKey;
+                        final TrigramIndex.Collector collector;
+                        if (indexedFile == null) {
+                            indexKey  = null;
+                            collector = null;
+                        } else {
+                            indexKey = path.substring(indexedFile.path.length());
+
+                            TrigramIndex.Document document = indexedFile.unchangedDocument(
+                                indexKey,
+                                -1,
+                                -1,
+                                file.lastModified()
+                            );
+                            if (document != null) {
+                                indexedFile.current.put(indexKey, document);
+                                if (!Grep.this.mayMatch(path, document)) return null;
+                                collector = null;
+                            } else {
+                                collector = new TrigramIndex.Collector();
+                            }
+                        }
+
+                        Printers.verbose(path);
+
+                        boolean binary = Grep.this.binaryFiles != BinaryFiles.TEXT && Grep.isBinary(fc);
+
+                        // Iff configured, search very large files in concurrent chunks.
+                        final ChunkedSearch chunkedSearch = (
+                            Grep.this.threadCount > 1
+                            && fc.size() >= Grep.this.largeFileThreshold
+                            && !Grep.this.inverted
+                            ? Grep.this.chunkedSearch(patternSet)
+                            : null
+                        );
 
-                    // Remember how many "after context" lines are to be printed.
-                    this.afterContextLinesToPrint = afterContext;
+                        // The chunks of a chunked search are searched concurrently, so their trigrams are collected
+                        // afterwards.
+                        final long[] collectedTo = new long[1];
+                        boolean      success     = false;
+                        try {
+                            Grep.this.grep(
+                                path,
+                                patternSet,
+                                binary,
+                                stopped,
+                                new ConsumerWhichThrows<LineMatcher, IOException>() {
+
+                                    @Override public void
+                                    consume(LineMatcher lm) throws IOException {
+                                        if (chunkedSearch != null) {
+                                            chunkedSearch.run(fc, lm);
+                                            return;
+                                        }
+
+                                        if (collector != null) lm.collectTrigrams(collector);
+                                        try {
+                                            lm.run(fc);
+                                        } finally {
+                                            collectedTo[0] = lm.collectedTo();
+                                        }
+                                    }
+                                }
+                            );
+
+                            // Also collect the trigrams of the rest of the file that the search did not read (unless
+                            // the entire search was stopped).
+                            if (collector != null && !stopped.get()) {
+                                Grep.collectTrigrams(collector, fc, collectedTo[0]);
+                                success = true;
+                            }
+                        } finally {
+                            if (collector != null && !success) {
+                                assert indexedFile != null;
+                                indexedFile.failed = true;
+                            }
+                        }
+
+                        if (success) {
+                            assert indexedFile != null && indexKey != null && collector != null;
+                            indexedFile.current.put(
+                                indexKey,
+                                new TrigramIndex.Document(-1, -1, file.lastModified(), collector.trigrams())
+                            );
+                        }
+
+                        return null;
+                    }
+                } finally {
+                    fis.close();
                 }
 
-                private void
-                nonMatchingLine(String line, int lineNumber, long byteOffset) {
+                return delegate.process(path, file);
+            }
 
-                    // Are there any context lines to print after a preceeding match?
-                    if (this.afterContextLinesToPrint > 0) {
-                        Printers.info(
-                            Grep.composeMatch(label, withLineNumber ? lineNumber : -1, byteOffset, line, '-')
-                        );
-                        this.afterContextLinesToPrint--;
-                    } else
-                    if (beforeContext > 0) {
-
-                        // Keep a copy of the line in case a future match would like to print "before context".
-                        if (this.beforeContextLines.size() >= beforeContext) this.beforeContextLines.remove();
-                        this.beforeContextLines.add(
-                            Grep.composeMatch(label, withLineNumber ? lineNumber : -1, byteOffset, line, '-')
-                        );
-                    }
+            @Override public String
+            toString() { return "mappedFileProcessor(" + delegate + ")"; }
+        };
+    }
+
+    /**
+     * @return A {@link ChunkedSearch} that is consistent with the line handlers that {@link #grep(String, PatternSet,
+     *         boolean, AtomicBoolean, ConsumerWhichThrows)} creates
+     */
+    private ChunkedSearch
+    chunkedSearch(PatternSet patternSet) {
+
+        ExecutorService executorService;
+        synchronized (this) {
+            executorService = this.chunkExecutorService;
+            if (executorService == null) {
+                this.chunkExecutorService = (
+                    executorService = OrderedOutputSquadExecutor.callerRunsExecutorService(this.threadCount)
+                );
+            }
+        }
+
+        boolean withContext = this.matchHandler == null && this.operation == Operation.NORMAL;
+        boolean firstOnly   = this.matchHandler == null && (
+            this.operation == Operation.FILES_WITH_MATCHES
+            || this.operation == Operation.FILES_WITHOUT_MATCH
+            || this.operation == Operation.QUIET
+        );
+
+        return new ChunkedSearch(
+            executorService,                             // executorService
+            patternSet,                                  // patternSet
+            this.charset,                                // charset
+            withContext ? this.beforeContext : 0,        // beforeContext
+            withContext ? this.afterContext : 0,         // afterContext
+            firstOnly ? 1 : this.maxCount                // maxLinesPerChunk
+        );
+    }
+
+    /**
+     * @return The configured disassembly cache, or {@code null}
+     */
+    @Nullable private DisassemblyCache
+    disassemblyCache() {
+
+        File directory = this.disassembleClassFilesCacheDirectory;
+        if (directory == null || this.disassembleClassFilesSourceDirectory != null) return null;
+
+        return new DisassemblyCache(directory, this.disassembleClassFilesCacheSize, (
+            "verbose="
+            + this.disassembleClassFilesVerbose
+            + ", hideLines="
+            + this.disassembleClassFilesButHideLines
+            + ", hideVars="
+            + this.disassembleClassFilesButHideVars
+            + ", symbolicLabels="
+            + this.disassembleClassFilesSymbolicLabels
+        ));
+    }
+
+    /**
+     * @return The configured result cache, or {@code null}
+     */
+    @Nullable private ResultCache
+    resultCache() {
+
+        File directory = this.resultCacheDirectory;
+        if (
+            directory == null
+            || this.disassembleClassFilesSourceDirectory != null
+            || this.matchHandler != null
+        ) return null;
+
+        // Everything that affects the output of a search.
+        StringBuilder settings = new StringBuilder();
+        for (Search search : this.searches) {
+            settings
+            .append("search=")
+            .append(search.path)
+            .append(':')
+            .append(search.pattern.flags())
+            .append(':')
+            .append(search.pattern.pattern())
+            .append('\0');
+        }
+        settings
+        .append("label=").append(this.label)
+        .append(", withPath=").append(this.withPath)
+        .append(", withLineNumber=").append(this.withLineNumber)
+        .append(", withByteOffset=").append(this.withByteOffset)
+        .append(", context=").append(this.beforeContext).append('/').append(this.afterContext)
+        .append(", lookInto=").append(this.lookIntoFormat)
+        .append(", charset=").append(this.charset.name())
+        .append(", operation=").append(this.operation)
+        .append(", binaryFiles=").append(this.binaryFiles)
+        .append(", maxCount=").append(this.maxCount)
+        .append(", inverted=").append(this.inverted)
+        .append(", disassemble=").append(this.disassembleClassFiles)
+        .append(", daVerbose=").append(this.disassembleClassFilesVerbose)
+        .append(", daHideLines=").append(this.disassembleClassFilesButHideLines)
+        .append(", daHideVars=").append(this.disassembleClassFilesButHideVars)
+        .append(", daSymbolicLabels=").append(this.disassembleClassFilesSymbolicLabels);
+
+        return new ResultCache(directory, this.resultCacheSize, settings.toString());
+    }
+
+    /**
+     * @return A {@link FileProcessor} which replays the cached results of unchanged plain files and archive files,
+     *         and records the results of all other files while the <var>delegate</var> processes them
+     */
+    private FileProcessor<Void>
+    cachingFileProcessor(final FileProcessor<Void> delegate, final ResultCache cache, final AtomicBoolean stopped) {
+
+        return new FileProcessor<Void>() {
+
+            @Override @Nullable public Void
+            process(final String path, final File file) throws IOException, InterruptedException {
+
+                if (!file.isFile()) return delegate.process(path, file);
+
+                long size = file.length(), lastModified = file.lastModified();
+
+                ResultCache.Result result = cache.get(path, size, -1, lastModified);
+                if (result != null) {
+                    Grep.this.replay(result, stopped);
+                    return null;
+                }
+
+                try {
+                    Grep.this.record(
+                        cache,
+                        path,
+                        size,
+                        -1,
+                        lastModified,
+                        stopped,
+                        new RunnableWhichThrows<Exception>() {
+                            @Override public void run() throws Exception { delegate.process(path, file); }
+                        }
+                    );
+                } catch (IOException ioe) {
+                    throw ioe;
+                } catch (InterruptedException ie) {
+                    throw ie;
+                } catch (RuntimeException re) {
+                    throw re;
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+
+                return null;
+            }
+
+            @Override public String
+            toString() { return "cachingFileProcessor(" + delegate + ")"; }
+        };
+    }
+
+    /**
+     * @return A {@link ContentsProcessor} which replays the cached results of unchanged documents (typically archive
+     *         entries), and records the results of all other documents while the <var>delegate</var> processes them
+     */
+    private ContentsProcessor<Void>
+    cachingContentsProcessor(
+        final ContentsProcessor<Void> delegate,
+        final ResultCache             cache,
+        final AtomicBoolean           stopped
+    ) {
+
+        return new ContentsProcessor<Void>() {
+
+            @Override @Nullable public Void
+            process(
+                final String                                                            path,
+                final InputStream                                                       is,
+                @Nullable final Date                                                    lastModifiedDate,
+                final long                                                              size,
+                final long                                                              crc32,
+                final ProducerWhichThrows<? extends InputStream, ? extends IOException> opener
+            ) throws IOException {
+
+                long lastModified = lastModifiedDate == null ? -1 : lastModifiedDate.getTime();
+
+                // Documents that cannot be identified (e.g. STDIN), and plain files (which the caching file
+                // processor already recorded) are not cached.
+                ResultCache.Recording recording = Grep.this.recording.get();
+                if ((crc32 == -1 && lastModified == -1) || (recording != null && recording.path.equals(path))) {
+                    return delegate.process(path, is, lastModifiedDate, size, crc32, opener);
+                }
+
+                ResultCache.Result result = cache.get(path, size, crc32, lastModified);
+                if (result != null) {
+                    Grep.this.replay(result, stopped);
+                    return null;
                 }
+
+                Grep.this.record(
+                    cache,
+                    path,
+                    size,
+                    crc32,
+                    lastModified,
+                    stopped,
+                    new RunnableWhichThrows<IOException>() {
+
+                        @Override public void
+                        run() throws IOException { delegate.process(path, is, lastModifiedDate, size, crc32, opener); }
+                    }
+                );
+
+                return null;
             }
+        };
+    }
+
+    /**
+     * Prints the messages of a cached result, and counts its matches.
+     */
+    private void
+    replay(ResultCache.Result result, AtomicBoolean stopped) {
+        result.replay(AbstractPrinter.getContextPrinter());
+        this.countMatches(result.matchCount, stopped);
+    }
+
+    /**
+     * Runs the <var>runnable</var> while recording its result, and then stores the result in the <var>cache</var>
+     * (unless the search was <var>stopped</var> in the meantime, so that the result is possibly incomplete).
+     */
+    private <EX extends Exception> void
+    record(
+        ResultCache             cache,
+        String                  path,
+        long                    size,
+        long                    crc32,
+        long                    lastModified,
+        AtomicBoolean           stopped,
+        RunnableWhichThrows<EX> runnable
+    ) throws IOException, EX {
+
+        ResultCache.Recording recording = cache.new Recording(
+            AbstractPrinter.getContextPrinter(),
+            this.recording.get(),
+            path
         );
 
-        RunnableWhichThrows<? extends IOException>
-        flush = new RunnableWhichThrows<IOException>() {
+        this.recording.set(recording);
+        try {
+            recording.run(runnable);
+        } finally {
+            if (recording.enclosing == null) {
+                this.recording.remove();
+            } else {
+                this.recording.set(recording.enclosing);
+            }
+        }
 
-            @Override public void
-            run() throws IOException {
-                if (currentLine.length() > 0) nonMatch.consume('\n');
+        if (!stopped.get()) cache.put(path, size, crc32, lastModified, recording);
+    }
+
+    private DisassemblerByteFilter
+    disassemblerByteFilter() {
+
+        DisassemblerByteFilter result = new DisassemblerByteFilter();
+
+        result.setVerbose(this.disassembleClassFilesVerbose);
+        result.setSourceDirectory(this.disassembleClassFilesSourceDirectory);
+        result.setHideLines(this.disassembleClassFilesButHideLines);
+        result.setHideVars(this.disassembleClassFilesButHideVars);
+        result.setSymbolicLabels(this.disassembleClassFilesSymbolicLabels);
+
+        return result;
+    }
+
+    /**
+     * @return The disassembly of the class file read from <var>is</var>, from the <var>cache</var> iff possible
+     */
+    private byte[]
+    disassemble(InputStream is, DisassemblyCache cache) throws IOException {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IoUtil.copy(is, baos);
+        byte[] classFile = baos.toByteArray();
+
+        byte[] result = cache.get(classFile);
+        if (result != null) return result;
+
+        baos = new ByteArrayOutputStream();
+        this.disassemblerByteFilter().run(new ByteArrayInputStream(classFile), baos);
+        result = baos.toByteArray();
+
+        cache.put(classFile, result);
+
+        return result;
+    }
+
+    /**
+     * Feeds the bytes of the <var>fc</var> from the <var>position</var> to its end to the <var>collector</var>.
+     */
+    private static void
+    collectTrigrams(TrigramIndex.Collector collector, FileChannel fc, long position) throws IOException {
+        for (long pos = position, size = fc.size(); pos < size;) {
+            long n = Math.min(size - pos, Integer.MAX_VALUE);
+            collector.add(fc.map(MapMode.READ_ONLY, pos, n));
+            pos += n;
+        }
+    }
+
+    /**
+     * @return A {@link FileProcessor} which skips the files that cannot contain any matches according to the
+     *         trigram <var>index</var>, and updates the index for all other files while they are being processed
+     *         by the <var>delegate</var>
+     */
+    private FileProcessor<Void>
+    indexedFileProcessor(final FileProcessor<Void> delegate, final TrigramIndex index) {
+
+        return new FileProcessor<Void>() {
+
+            @Override @Nullable public Void
+            process(String path, File file) throws IOException, InterruptedException {
+
+                if (!file.isFile()) return delegate.process(path, file);
+
+                IndexedFile indexedFile = new IndexedFile(path, index.load(file), file);
+
+                // Iff the file is unchanged, and none of its documents may contain matches, then skip the file
+                // altogether.
+                TrigramIndex.FileRecord previous = indexedFile.previous;
+                if (previous != null && indexedFile.upToDate && !Grep.this.inverted) {
+
+                    boolean mayMatch = false;
+                    for (Entry<String, TrigramIndex.Document> e : previous.documents().entrySet()) {
+                        PatternSet patternSet = Grep.this.patternSetFor(path + e.getKey());
+                        if (patternSet != null && Grep.this.indexQuery(patternSet).mayMatch(e.getValue())) {
+                            mayMatch = true;
+                            break;
+                        }
+                    }
+
+                    if (!mayMatch) {
+                        for (String key : previous.documents().keySet()) {
+                            if (Grep.this.patternSetFor(path + key) != null) Grep.this.epilog(path + key, 0);
+                        }
+                        return null;
+                    }
+                }
+
+                Grep.this.indexedFile.set(indexedFile);
+                try {
+                    delegate.process(path, file);
+                } finally {
+                    Grep.this.indexedFile.remove();
+                }
+
+                if (!indexedFile.upToDate && !indexedFile.failed) index.store(file, indexedFile.current);
+
+                return null;
             }
+
+            @Override public String
+            toString() { return "indexedFileProcessor(" + delegate + ")"; }
         };
+    }
 
-        return PatternUtil.patternFinderWriter(patterns, match, nonMatch, flush);
+    /**
+     * @return A {@link ContentsProcessor} which, while an {@link #indexedFileProcessor(FileProcessor, TrigramIndex)
+     *         indexed file} is being processed, skips the documents that cannot contain any matches, and records the
+     *         trigrams of all other documents while the <var>delegate</var> processes them
+     */
+    private ContentsProcessor<Void>
+    indexingContentsProcessor(final ContentsProcessor<Void> delegate, final AtomicBoolean stopped) {
+
+        return new ContentsProcessor<Void>() {
+
+            @Override @Nullable public Void
+            process(
+                String                                                            path,
+                InputStream                                                       is,
+                @Nullable Date                                                    lastModifiedDate,
+                long                                                              size,
+                long                                                              crc32,
+                ProducerWhichThrows<? extends InputStream, ? extends IOException> opener
+            ) throws IOException {
+
+                IndexedFile indexedFile = Grep.this.indexedFile.get();
+                if (indexedFile == null || !path.startsWith(indexedFile.path)) {
+                    return delegate.process(path, is, lastModifiedDate, size, crc32, opener);
+                }
+
+                String key          = path.substring(indexedFile.path.length());
+                long   lastModified = lastModifiedDate == null ? -1 : lastModifiedDate.getTime();
+
+                // Disassembled class files are not indexed.
+                if (Grep.this.disassembleClassFiles && path.endsWith(".class")) {
+                    indexedFile.current.put(key, new TrigramIndex.Document(size, crc32, lastModified, null));
+                    return delegate.process(path, is, lastModifiedDate, size, crc32, opener);
+                }
+
+                TrigramIndex.Document document = indexedFile.unchangedDocument(key, size, crc32, lastModified);
+                if (document != null) {
+                    indexedFile.current.put(key, document);
+                    if (!Grep.this.mayMatch(path, document)) return null;
+                    return delegate.process(path, is, lastModifiedDate, size, crc32, opener);
+                }
+
+                // Record the trigrams of the document while it is being searched, and of the rest of it that the
+                // search did not read (unless the entire search was stopped).
+                TrigramIndex.Collector collector = new TrigramIndex.Collector();
+                InputStream            tee       = collector.tee(is);
+                boolean                success   = false;
+                try {
+                    delegate.process(path, tee, lastModifiedDate, size, crc32, opener);
+                    if (!stopped.get()) {
+                        for (byte[] buffer = new byte[8192]; tee.read(buffer) != -1;);
+                        success = true;
+                    }
+                } finally {
+                    if (!success) indexedFile.failed = true;
+                }
+                if (!success) return null;
+
+                indexedFile.current.put(
+                    key,
+                    new TrigramIndex.Document(size, crc32, lastModified, collector.trigrams())
+                );
+
+                return null;
+            }
+        };
     }
 
     /**
-     * Creates and returns a writer which info-prints matches of the <var>patterns</var> within the character
-     * stream, together with <var>path</var>, line number, and <var>bytesRead</var>.
+     * Checks whether an indexed document may contain matches.
      *
-     * @param countMatch Is called after each match
+     * @return Whether the document must be searched (otherwise its "no matches" result was already reported)
      */
-    private static Writer
-    grepPrintMatchesWithLineNumber(
-        Pattern[]                              patterns,
-        boolean                                inverted,
-        @Nullable String                       label,
-        ProducerWhichThrows<Long, NoException> bytesRead,
-        Runnable                               countMatch
-    ) {
-        int[]     lineNumber            = new int[1];
-        boolean[] currentLineHasMatches = new boolean[1];
+    private boolean
+    mayMatch(String path, TrigramIndex.Document document) {
+
+        PatternSet patternSet = this.patternSetFor(path);
+        if (patternSet == null) return false;
+
+        if (this.inverted || this.indexQuery(patternSet).mayMatch(document)) return true;
+
+        this.epilog(path, 0);
+        return false;
+    }
 
-        ConsumerWhichThrows<MatchResult2, ? extends IOException>
-        match = new ConsumerWhichThrows<MatchResult2, IOException>() {
+    private TrigramIndex.Query
+    indexQuery(PatternSet patternSet) {
+
+        TrigramIndex.Query result = this.indexQueries.get(patternSet);
+        if (result == null) {
+            this.indexQueries.put(patternSet, (result = new TrigramIndex.Query(patternSet.prefilter, this.charset)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks whether the first few KB of the input stream contain a NUL byte, and then resets it.
+     */
+    private static boolean
+    isBinary(InputStream is) throws IOException {
+
+        byte[] buffer = new byte[Grep.BINARY_SNIFF_SIZE];
+
+        is.mark(buffer.length);
+        try {
+            int n = 0;
+            for (int r; n < buffer.length && (r = is.read(buffer, n, buffer.length - n)) != -1;) n += r;
+            return Grep.containsNul(buffer, n);
+        } finally {
+            is.reset();
+        }
+    }
+
+    /**
+     * Checks whether the first few KB of the file contain a NUL byte.
+     */
+    private static boolean
+    isBinary(FileChannel fc) throws IOException {
+
+        byte[] buffer = new byte[Grep.BINARY_SNIFF_SIZE];
+        int    n      = Math.max(0, fc.read(ByteBuffer.wrap(buffer), 0));
+
+        return Grep.containsNul(buffer, n);
+    }
+
+    private static boolean
+    containsNul(byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the contents of the <var>fc</var> start with the signature of an archive or compression format
+     */
+    private static boolean
+    isArchiveOrCompressed(FileChannel fc) throws IOException {
+
+        byte[] signature = new byte[512];
+        int    n         = Math.max(0, fc.read(ByteBuffer.wrap(signature), 0));
+
+        InputStream is = new ByteArrayInputStream(signature, 0, n);
+        return ArchiveFormatFactory.forContents(is) != null || CompressionFormatFactory.forContents(is) != null;
+    }
+
+    /**
+     * @return The compiled patterns of the searches that apply to the document with the given <var>path</var>, or
+     *         {@code null} iff no search applies
+     */
+    @Nullable private PatternSet
+    patternSetFor(String path) {
+
+        // Typically, all searches share the same glob; evaluate it only once.
+        List<Search>   searches     = new ArrayList<Search>();
+        @Nullable Glob previousGlob = null;
+        boolean        matches      = false;
+        for (Search search : this.searches) {
+            if (search.path != previousGlob) {
+                previousGlob = search.path;
+                matches      = search.path.matches(path);
+            }
+            if (matches) searches.add(search);
+        }
+
+        if (searches.isEmpty()) return null;
+
+        PatternSet result = this.patternSets.get(searches);
+        if (result == null) {
+            Pattern[] patterns = new Pattern[searches.size()];
+            for (int i = 0; i < patterns.length; i++) patterns[i] = searches.get(i).pattern;
+            this.patternSets.put(searches, (result = new PatternSet(patterns)));
+        }
+
+        return result;
+    }
+
+    /**
+     * Executes the search on one document and prints the results.
+     *
+     * @param patternSet The patterns to search for
+     * @param binary     Whether the document contains binary data
+     * @param stopped    Whether the outcome of the search is decided; is set by {@link Operation#QUIET} and by the
+     *                   {@link #setMatchHandler(MatchHandler) match handler}
+     * @param run        Feeds the document into the given {@link LineMatcher}
+     */
+    private void
+    grep(
+        String                                        path,
+        PatternSet                                    patternSet,
+        boolean                                       binary,
+        final AtomicBoolean                           stopped,
+        ConsumerWhichThrows<LineMatcher, IOException> run
+    ) throws IOException {
+
+        if (binary && this.binaryFiles == BinaryFiles.WITHOUT_MATCH) {
+            if (this.matchHandler == null) this.epilog(path, 0);
+            return;
+        }
+
+        MatchHandler matchHandler = this.matchHandler;
+
+        // Iff the matching lines of a binary document are due, then print only a note instead.
+        boolean binaryMatches = (
+            matchHandler == null
+            && binary
+            && this.binaryFiles == BinaryFiles.BINARY
+            && (this.operation == Operation.NORMAL || this.operation == Operation.ONLY_MATCHING)
+        );
+
+        // For printing path (-H) or label (--label).
+        String label = this.label != null ? this.label : this.withPath ? path : null;
+
+        DocumentOutput out = new DocumentOutput(this.batchOutput);
+
+        int[]    matchCountInDocument = new int[1];
+        Runnable incrementMatchCount  = new Runnable() {
 
             @Override public void
-            consume(MatchResult2 mr2) {
-                currentLineHasMatches[0] = true;
-                Printers.info(Grep.composeMatch(label, lineNumber[0] + 1, bytesRead.produce(), mr2.group(), ':'));
+            run() {
+                if (++matchCountInDocument[0] >= Grep.this.maxCount) throw Grep.STOP_DOCUMENT;
             }
         };
 
-        final ConsumerWhichThrows<Character, ? extends IOException>
-        nonMatch = ConsumerUtil.<IOException>lineCounter(
-            ConsumerUtil.<Character, IOException>widen2(ConsumerUtil.nop()), // lineChar
-            new ConsumerWhichThrows<Integer, IOException>() {                // lineComplete
+        LineHandler lh;
+        switch (this.operation) {
+
+        case NORMAL:
+            lh = Grep.grepNormal(
+                out,
+                this.inverted,
+                label,
+                this.withLineNumber,
+                this.beforeContext,
+                this.afterContext,
+                incrementMatchCount
+            );
+            break;
+
+        case ONLY_MATCHING:
+            if (this.withLineNumber) {
+                lh = Grep.grepPrintMatchesWithLineNumber(out, this.inverted, label, incrementMatchCount);
+            } else {
+                lh = Grep.grepPrintMatches(
+                    out,
+                    true, // printMatches
+                    label,
+                    incrementMatchCount
+                );
+            }
+            break;
+
+        case COUNT:
+            lh = Grep.grepPrintMatches(
+                out,
+                false, // printMatches
+                label,
+                incrementMatchCount
+            );
+            break;
+
+        case FILES_WITH_MATCHES:
+        case FILES_WITHOUT_MATCH:
+            // In these modes, we only check if there *is* a match.
+            lh = Grep.grepCheck(incrementMatchCount);
+            break;
+
+        case QUIET:
+            // Also give up as soon as any other thread found a match.
+            final LineHandler check = Grep.grepCheck(incrementMatchCount);
+            lh = new LineHandler() {
 
                 @Override public void
-                consume(Integer lineNumber2) {
-                    lineNumber[0] = lineNumber2;
-                    if (currentLineHasMatches[0] ^ inverted) {
-                        countMatch.run();
-                    }
-                    currentLineHasMatches[0] = false;
+                handleLine(LineMatcher lm) throws IOException {
+                    if (stopped.get()) throw Grep.STOP_DOCUMENT;
+                    check.handleLine(lm);
                 }
-            }
+            };
+            break;
+
+        default:
+            throw new AssertionError(this.operation);
+        }
+
+        // Instead of printing the matching lines of a binary document, stop at the first one.
+        if (binaryMatches) lh = Grep.grepFirst(this.inverted, incrementMatchCount);
+
+        // Instead of printing the matches, pass them to the match handler.
+        if (matchHandler != null) {
+            lh = this.grepHandleMatches(path, patternSet, matchHandler, stopped, incrementMatchCount);
+        }
+
+        LineMatcher lm = new LineMatcher(
+            patternSet,                                                     // patternSet
+            this.charset,                                                   // charset
+            this.withByteOffset,                                            // withByteOffsets
+            this.operation == Operation.NORMAL ? this.beforeContext : 0,    // retainedLineCapacity
+            lh                                                              // lineHandler
         );
 
-        RunnableWhichThrows<? extends IOException>
-        flush = new RunnableWhichThrows<IOException>() {
-            @Override public void run() throws IOException { nonMatch.consume('\n'); }
+        // Now process the contents.
+        try {
+            run.consume(lm);
+        } catch (RuntimeException re) {
+            if (re != Grep.STOP_DOCUMENT) throw re;
+        } finally {
+            out.flush();
+        }
+
+        if (binaryMatches && matchCountInDocument[0] > 0) {
+            Printers.info("Binary file " + (this.label != null ? this.label : path) + " matches");
+        }
+
+        this.countMatches(matchCountInDocument[0], stopped);
+
+        if (matchHandler == null) this.epilog(path, matchCountInDocument[0]);
+    }
+
+    /**
+     * Adds to the total match count, and to the match count of the current result cache recordings.
+     */
+    private void
+    countMatches(int n, AtomicBoolean stopped) {
+
+        this.totalMatchCount.addAndGet(n);
+
+        ResultCache.Recording recording = this.recording.get();
+        if (recording != null) recording.countMatches(n);
+
+        // With "-q", the first match decides the outcome of the entire search.
+        if (this.operation == Operation.QUIET && n > 0) stopped.set(true);
+    }
+
+    /**
+     * Prints the per-document epilog, e.g. the match count.
+     */
+    private void
+    epilog(String path, int matchCountInDocument) {
+
+        switch (this.operation) {
+
+        case NORMAL:
+        case QUIET:
+        case ONLY_MATCHING:
+            break;
+
+        case COUNT:
+            Printers.info((this.label != null ? this.label : path) + ':' + matchCountInDocument);
+            break;
+
+        case FILES_WITH_MATCHES:
+            if (matchCountInDocument > 0) Printers.info(this.label != null ? this.label : path);
+            break;
+
+        case FILES_WITHOUT_MATCH:
+            if (matchCountInDocument == 0) Printers.info(this.label != null ? this.label : path);
+            break;
+
+        default:
+            throw new AssertionError(this.operation);
+        }
+    }
+
+    /**
+     * Creates and returns a line handler which implements a "normal" grep, optionally with label, line number,
+     * before-context, and after-context.
+     * <p>
+     *   The "before context" lines are retained by the {@link LineMatcher}, and formatted only iff they are
+     *   eventually printed.
+     * </p>
+     *
+     * @param out           Receives the output lines
+     * @param label         Printed before each match, if non-null
+     * @param beforeContext Number of lines to print before each match
+     * @param afterContext  Number of lines to print after each match
+     * @param countMatch    Is called after each match
+     */
+    private static LineHandler
+    grepNormal(
+        DocumentOutput   out,
+        boolean          inverted,
+        @Nullable String label,
+        boolean          withLineNumber,
+        int              beforeContext,
+        int              afterContext,
+        Runnable         countMatch
+    ) {
+
+        return new LineHandler() {
+
+            int     afterContextLinesToPrint;
+            boolean hadMatch;
+
+            @Override public void
+            handleLine(LineMatcher lm) {
+
+                if (lm.hasMatch() ^ inverted) {
+
+                    // Iff a "context" is configured (and be it zero!), print a separator line between chunks:
+                    if (
+                        (beforeContext > 0 || afterContext > 0)
+                        && lm.retainedLineCount() == beforeContext
+                        && this.afterContextLinesToPrint == 0
+                        && this.hadMatch
+                    ) out.println("--");
+                    this.hadMatch = true;
+
+                    // Print the "before context lines".
+                    for (int i = 0, n = lm.retainedLineCount(); i < n; i++) {
+                        Grep.printMatch(
+                            out,
+                            label,
+                            withLineNumber ? lm.retainedLineNumber(i) : -1,
+                            lm.retainedByteOffset(i),
+                            lm,
+                            lm.retainedLineStart(i),
+                            lm.retainedLineEnd(i),
+                            '-'
+                        );
+                    }
+                    lm.clearRetainedLines();
+
+                    // Print the matching line.
+                    Grep.printMatch(
+                        out,
+                        label,
+                        withLineNumber ? lm.lineNumber() : -1,
+                        lm.byteOffset(),
+                        lm,
+                        lm.lineStart(),
+                        lm.lineEnd(),
+                        ':'
+                    );
+
+                    // Remember how many "after context" lines are to be printed.
+                    this.afterContextLinesToPrint = afterContext;
+
+                    countMatch.run();
+                } else
+                if (this.afterContextLinesToPrint > 0) {
+
+                    // Print a context line after a preceeding match.
+                    Grep.printMatch(
+                        out,
+                        label,
+                        withLineNumber ? lm.lineNumber() : -1,
+                        lm.byteOffset(),
+                        lm,
+                        lm.lineStart(),
+                        lm.lineEnd(),
+                        '-'
+                    );
+                    this.afterContextLinesToPrint--;
+                } else
+                {
+
+                    // Keep the line in case a future match would like to print "before context".
+                    lm.retainLine();
+                }
+            }
         };
+    }
+
+    /**
+     * Creates and returns a line handler which info-prints all matches, together with label, line number and byte
+     * offset.
+     *
+     * @param countMatch Is called after each line that has matches (or, iff <var>inverted</var>, has no matches)
+     */
+    private static LineHandler
+    grepPrintMatchesWithLineNumber(DocumentOutput out, boolean inverted, @Nullable String label, Runnable countMatch) {
+
+        return new LineHandler() {
 
-        return PatternUtil.patternFinderWriter(patterns, match, nonMatch, flush);
+            @Override public void
+            handleLine(LineMatcher lm) {
+
+                boolean hasMatches = false;
+                while (lm.findMatch()) {
+                    hasMatches = true;
+                    Grep.printMatch(
+                        out,
+                        label,
+                        lm.lineNumber(),
+                        lm.matchByteOffset(),
+                        lm,
+                        lm.matchStart(),
+                        lm.matchEnd(),
+                        ':'
+                    );
+                }
+
+                if (hasMatches ^ inverted) countMatch.run();
+            }
+        };
     }
 
     /**
-     * Creates and returns a writer which counts matches of the <var>patterns</var> within the character
-     * stream.
+     * Creates and returns a line handler which counts all matches.
      * <p>
-     *   If <var>printMatches</var>, then each match is info-printed together with <var>path</var> and
-     *   <var>bytesRead</var>.
+     *   If <var>printMatches</var>, then each match is info-printed together with label and byte offset.
      * </p>
      *
      * @param printMatches Whether also to info-print the matches
      * @param countMatch   Is called after each match
      */
-    private static Writer
-    grepPrintMatches(
-        Pattern[]                              patterns,
-        boolean                                printMatches,
-        @Nullable String                       label,
-        ProducerWhichThrows<Long, NoException> bytesRead,
-        Runnable                               countMatch
+    private static LineHandler
+    grepPrintMatches(DocumentOutput out, boolean printMatches, @Nullable String label, Runnable countMatch) {
+
+        return new LineHandler() {
+
+            @Override public void
+            handleLine(LineMatcher lm) {
+                while (lm.findMatch()) {
+                    if (printMatches) {
+                        Grep.printMatch(
+                            out,                  // out
+                            label,                // label
+                            -1,                   // lineNumber
+                            lm.matchByteOffset(), // byteOffset
+                            lm,                   // buffer
+                            lm.matchStart(),      // start
+                            lm.matchEnd(),        // end
+                            ':'                   // separator
+                        );
+                    }
+                    countMatch.run();
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates and returns a line handler which passes each match to the <var>matchHandler</var>; iff that returns
+     * {@code false}, then it stops the entire search.
+     *
+     * @param stopped    Is set when the <var>matchHandler</var> stops the search
+     * @param countMatch Is called after each match
+     */
+    private LineHandler
+    grepHandleMatches(
+        String              path,
+        PatternSet          patternSet,
+        MatchHandler        matchHandler,
+        final AtomicBoolean stopped,
+        Runnable            countMatch
     ) {
 
-        ConsumerWhichThrows<MatchResult2, ? extends IOException>
-        match = new ConsumerWhichThrows<MatchResult2, IOException>() {
+        // Re-used for all matches, so that no objects are created per match.
+        final LineMatcherMatch match = new LineMatcherMatch(path, patternSet);
+
+        return new LineHandler() {
 
             @Override public void
-            consume(MatchResult2 mr2) {
-                if (printMatches) {
-                    Printers.info(Grep.composeMatch(
-                        label,               // label
-                        -1,                  // lineNumber
-                        bytesRead.produce(), // byteOffset
-                        mr2.group(),         // text
-                        ':'                  // separator
-                    ));
+            handleLine(LineMatcher lm) throws IOException {
+
+                // Also give up as soon as any other thread stopped the search.
+                if (stopped.get()) throw Grep.STOP_DOCUMENT;
+
+                match.lineMatcher = lm;
+                while (lm.findMatch()) {
+                    if (!matchHandler.handleMatch(match)) stopped.set(true);
+                    countMatch.run();
+                    if (stopped.get()) throw Grep.STOP_DOCUMENT;
                 }
-                countMatch.run();
             }
         };
+    }
+
+    /**
+     * A {@link Match} which is a view of the current match of a {@link LineMatcher}.
+     */
+    private static final
+    class LineMatcherMatch implements Match {
+
+        private final String     path;
+        private final PatternSet patternSet;
+        @Nullable LineMatcher    lineMatcher;
 
-        ConsumerWhichThrows<Character, ? extends IOException>
-        nonMatch = ConsumerUtil.<Character, IOException>widen2(ConsumerUtil.nop());
+        LineMatcherMatch(String path, PatternSet patternSet) {
+            this.path       = path;
+            this.patternSet = patternSet;
+        }
 
-        return PatternUtil.patternFinderWriter(patterns, match, nonMatch);
+        @Override public String       path()           { return this.path;                           }
+        @Override public int          lineNumber()     { return this.lm().lineNumber();              }
+        @Override public long         lineByteOffset() { return this.lm().byteOffset();              }
+        @Override public long         byteOffset()     { return this.lm().matchByteOffset();         }
+        @Override public CharSequence line()           { return this.lm().lineText();                }
+        @Override public int          start()          { return this.lm().lineTextMatchStart();      }
+        @Override public int          end()            { return this.lm().lineTextMatchEnd();        }
+
+        @Override public Pattern
+        pattern() { return this.patternSet.patterns[this.lm().matchPatternIndex()]; }
+
+        @Override public String
+        toString() { return this.path + ':' + this.lineNumber() + ':' + this.line(); }
+
+        private LineMatcher
+        lm() {
+            LineMatcher result = this.lineMatcher;
+            assert result != null;
+            return result;
+        }
     }
 
     /**
-     * Creates and returns a writer which, on the first match of any of the <var>patterns</var> within the character
-     * stream, runs <var>countMatch</var> and throws {@link #STOP_DOCUMENT}.
+     * Creates and returns a line handler which, on the first match, runs <var>countMatch</var> and throws {@link
+     * #STOP_DOCUMENT}.
      */
-    private static Writer
-    grepCheck(Pattern[] patterns, Runnable countMatch) {
+    private static LineHandler
+    grepCheck(Runnable countMatch) {
 
-        ConsumerWhichThrows<MatchResult2, ? extends IOException>
-        match = new ConsumerWhichThrows<MatchResult2, IOException>() {
+        return new LineHandler() {
 
             @Override public void
-            consume(MatchResult2 mr2) {
-                countMatch.run();
-                throw Grep.STOP_DOCUMENT;
+            handleLine(LineMatcher lm) {
+                if (lm.hasMatch()) {
+                    countMatch.run();
+                    throw Grep.STOP_DOCUMENT;
+                }
             }
         };
+    }
 
-        ConsumerWhichThrows<Character, ? extends IOException>
-        nonMatch = ConsumerUtil.<Character, IOException>widen2(ConsumerUtil.nop());
+    /**
+     * Creates and returns a line handler which, on the first matching (or, iff <var>inverted</var>, non-matching)
+     * line, runs <var>countMatch</var> and throws {@link #STOP_DOCUMENT}.
+     */
+    private static LineHandler
+    grepFirst(boolean inverted, Runnable countMatch) {
 
-        return PatternUtil.patternFinderWriter(patterns, match, nonMatch);
-    }
+        return new LineHandler() {
 
-    private static String
-    composeMatch(@Nullable String label, int lineNumber, long byteOffset, String text, char separator) {
+            @Override public void
+            handleLine(LineMatcher lm) {
+                if (lm.hasMatch() ^ inverted) {
+                    countMatch.run();
+                    throw Grep.STOP_DOCUMENT;
+                }
+            }
+        };
+    }
 
-        if (label == null && lineNumber < 0 && byteOffset < 0) return text;
+    /**
+     * Prints the text of the <var>lineMatcher</var>'s window between <var>start</var> and <var>end</var>, prefixed
+     * with the <var>label</var>, <var>lineNumber</var> and <var>byteOffset</var> (if any).
+     */
+    private static void
+    printMatch(
+        DocumentOutput   out,
+        @Nullable String label,
+        int              lineNumber,
+        long             byteOffset,
+        LineMatcher      lineMatcher,
+        int              start,
+        int              end,
+        char             separator
+    ) {
 
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = out.beginLine();
         if (label != null) sb.append(label).append(separator);
         if (lineNumber >= 0) sb.append(lineNumber).append(separator);
         if (byteOffset >= 0) sb.append(byteOffset).append(separator);
-        sb.append(text);
+        lineMatcher.appendText(sb, start, end);
+        out.endLine();
+    }
+
+    /**
+     * Collects the output lines of one document, and info-prints them either line by line, or in chunks of many
+     * lines, which saves most of the per-message overhead of the context printer.
+     */
+    private static final
+    class DocumentOutput {
 
-        return sb.toString();
+        private static final int    CHUNK_SIZE     = 32 * 1024;
+        private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+        private final boolean       batch;
+        private final StringBuilder sb = new StringBuilder();
+        private int                 lineCount;
+
+        DocumentOutput(boolean batch) { this.batch = batch; }
+
+        void
+        println(String line) { this.beginLine().append(line); this.endLine(); }
+
+        /**
+         * @return The builder to append the next line to
+         */
+        StringBuilder
+        beginLine() {
+            if (this.lineCount++ > 0) this.sb.append(DocumentOutput.LINE_SEPARATOR);
+            return this.sb;
+        }
+
+        void
+        endLine() { if (!this.batch || this.sb.length() >= DocumentOutput.CHUNK_SIZE) this.flush(); }
+
+        /**
+         * Prints all collected lines.
+         */
+        void
+        flush() {
+            if (this.lineCount == 0) return;
+            Printers.info(this.sb.toString());
+            this.sb.setLength(0);
+            this.lineCount = 0;
+        }
     }
 }
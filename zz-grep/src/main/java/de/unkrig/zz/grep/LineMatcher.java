@@ -0,0 +1,988 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.grep;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Reads a document into a reusable buffer (the "window"), splits it into lines, and finds the matches of a {@link
+ * PatternSet} within each line.
+ * <p>
+ *   Lines are terminated by LF, CR or CR-LF. Matches never extend beyond the end of their line (but lookaheads and
+ *   lookbehinds may "see" the neighboring characters).
+ * </p>
+ * <p>
+ *   All lines and matches are represented as offsets into the window, so that no objects are created per line or
+ *   per character. Up to <var>retainedLineCapacity</var> preceding lines can be {@link #retainLine() retained} in
+ *   the window, e.g. for printing them later as "before context".
+ * </p>
+ * <p>
+ *   A document is either read from an {@link InputStream} and decoded into a character window ({@link
+ *   #run(InputStream)}), or memory-mapped into a byte window ({@link #run(FileChannel)}). In the latter case, the
+ *   patterns are applied to the bytes of each line directly, and only lines that contain non-ASCII bytes are
+ *   decoded; that works for {@link #isAsciiCompatible(Charset) ASCII-compatible} charsets only.
+ * </p>
+ */
+final
+class LineMatcher {
+
+    /**
+     * Is invoked for each line of a document.
+     */
+    interface LineHandler {
+
+        /**
+         * Processes the current line of the <var>lineMatcher</var>.
+         */
+        void handleLine(LineMatcher lineMatcher) throws IOException;
+    }
+
+    /**
+     * The maximum size of one memory mapping; documents that are larger are mapped piecewise.
+     */
+    private static final int MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+
+    private final PatternSet.Finder          finder;
+    @Nullable private final LiteralPrefilter prefilter;
+    private final Charset                    charset;
+    private final boolean                    withByteOffsets;
+    private final LineHandler                lineHandler;
+
+    // The window; "chars[0...limit)" resp. "bytes[0...limit)" are valid. Iff "bytes != null", then the window is a
+    // memory mapping of "channel[windowPosition...end)".
+    private char[]                chars = new char[32768];
+    @Nullable private ByteBuffer  bytes;
+    @Nullable private FileChannel channel;
+    private long                  windowPosition, end;
+    private int                   limit;
+    private boolean               eof;
+
+    /**
+     * After the line with this number, {@link #run(FileChannel, long, long, int, int)} returns.
+     */
+    private int lastLineNumber;
+
+    /**
+     * Makes the character window available to the {@link #finder}, without copying.
+     */
+    private final CharSequence charText = new CharSequence() {
+
+        @Override public int
+        length() { return LineMatcher.this.limit; }
+
+        @Override public char
+        charAt(int index) { return LineMatcher.this.chars[index]; }
+
+        @Override public CharSequence
+        subSequence(int start, int end) { return new String(LineMatcher.this.chars, start, end - start); }
+
+        @Override public String
+        toString() { return new String(LineMatcher.this.chars, 0, LineMatcher.this.limit); }
+    };
+
+    /**
+     * Makes the byte window available to the {@link #finder}, without copying; each byte is interpreted as an
+     * ISO 8859-1 character.
+     */
+    private final CharSequence byteText = new CharSequence() {
+
+        @Override public int
+        length() { return LineMatcher.this.limit; }
+
+        @Override public char
+        charAt(int index) {
+            ByteBuffer bb = LineMatcher.this.bytes;
+            assert bb != null;
+            return (char) (bb.get(index) & 0xff);
+        }
+
+        @Override public CharSequence
+        subSequence(int start, int end) {
+            StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) sb.append(this.charAt(i));
+            return sb.toString();
+        }
+
+        @Override public String
+        toString() { return this.subSequence(0, LineMatcher.this.limit).toString(); }
+    };
+
+    // The current line, in window coordinates.
+    private int  lineStart, lineEnd, lineNumber;
+    private long byteOffset;
+
+    /**
+     * Whether the current line is in the byte window and must be decoded before matching.
+     */
+    private boolean lineNeedsDecoding;
+
+    /**
+     * Whether the current line was already decoded into {@link #decoded}.
+     */
+    private boolean lineDecoded;
+
+    // The decoded current line, and, for each decoded character, its offset relative to the line start.
+    private char[]                   decoded        = new char[256];
+    private int[]                    decodedOffsets = new int[257];
+    private int                      decodedLength;
+    @Nullable private CharsetDecoder decoder;
+
+    /**
+     * Makes the decoded current line available to the {@link #finder}.
+     */
+    private final CharSequence decodedText = new CharSequence() {
+
+        @Override public int
+        length() { return LineMatcher.this.decodedLength; }
+
+        @Override public char
+        charAt(int index) { return LineMatcher.this.decoded[index]; }
+
+        @Override public CharSequence
+        subSequence(int start, int end) { return new String(LineMatcher.this.decoded, start, end - start); }
+
+        @Override public String
+        toString() { return new String(LineMatcher.this.decoded, 0, LineMatcher.this.decodedLength); }
+    };
+
+    /**
+     * Makes the current line available through {@link #lineText()}; reads the window resp. the decoded line.
+     */
+    private final CharSequence lineText = new CharSequence() {
+
+        @Override public int
+        length() {
+            LineMatcher lm = LineMatcher.this;
+            return lm.lineNeedsDecoding ? lm.decodedLength : lm.lineEnd - lm.lineStart;
+        }
+
+        @Override public char
+        charAt(int index) {
+            LineMatcher lm = LineMatcher.this;
+            return lm.lineNeedsDecoding ? lm.decoded[index] : lm.charAt(lm.lineStart + index);
+        }
+
+        @Override public CharSequence
+        subSequence(int start, int end) {
+            StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) sb.append(this.charAt(i));
+            return sb.toString();
+        }
+
+        @Override public String
+        toString() { return this.subSequence(0, this.length()).toString(); }
+    };
+
+    // The state of the match iteration within the current line. These offsets are relative to "finderText", which
+    // is either the window or the decoded current line.
+    @Nullable private CharSequence finderText;
+    private boolean                matchesInitialized;
+    private int                    regionStart, regionEnd, cursor;
+
+    // The current match, in window coordinates, and the index of the pattern that matched.
+    private int matchStart, matchEnd, matchPatternIndex;
+
+    // The current match, relative to the "lineText".
+    private int lineTextMatchStart, lineTextMatchEnd;
+
+    // The retained lines, as a ring buffer.
+    private final int[]  retainedLineStart, retainedLineEnd, retainedLineNumber;
+    private final long[] retainedByteOffset;
+    private int          retainedLineFirst, retainedLineCount;
+
+    // The prefilter for the current window (for the byte window, its literals are encoded), and the last result of
+    // the prefilter: The leftmost literal in "window[prefilterFrom...prefilterTo)", or -1.
+    @Nullable private LiteralPrefilter windowPrefilter;
+    private int                        prefilterFrom = -1, prefilterTo, prefilterHit;
+
+    // Only for the computation of byte offsets in the character window, in charsets other than UTF-8.
+    @Nullable private CharsetEncoder encoder;
+    @Nullable private ByteBuffer     encoderOutput;
+
+    // Iff non-null, then each line of the byte window (including its line terminator) is fed to this collector;
+    // "collectedTo" is the offset within the document up to which the lines were fed.
+    @Nullable private TrigramIndex.Collector trigramCollector;
+    private long                             collectedTo;
+
+    /**
+     * @param charset              The charset of the documents
+     * @param withByteOffsets      Whether {@link #byteOffset()} and {@link #matchByteOffset()} should be computed
+     * @param retainedLineCapacity The maximum number of lines that can be {@link #retainLine() retained}
+     * @param lineHandler          Is invoked for each line of the document
+     */
+    LineMatcher(
+        PatternSet  patternSet,
+        Charset     charset,
+        boolean     withByteOffsets,
+        int         retainedLineCapacity,
+        LineHandler lineHandler
+    ) {
+        this.finder          = patternSet.newFinder();
+        this.prefilter       = patternSet.prefilter;
+        this.charset         = charset;
+        this.withByteOffsets = withByteOffsets;
+        this.lineHandler     = lineHandler;
+
+        this.retainedLineStart  = new int[retainedLineCapacity];
+        this.retainedLineEnd    = new int[retainedLineCapacity];
+        this.retainedLineNumber = new int[retainedLineCapacity];
+        this.retainedByteOffset = new long[retainedLineCapacity];
+    }
+
+    /**
+     * @return Whether documents in the given <var>charset</var> can be processed by {@link #run(FileChannel)}, i.e.
+     *         the charset is UTF-8 or a single-byte charset, and encodes all US-ASCII characters as themselves
+     */
+    static boolean
+    isAsciiCompatible(Charset charset) {
+
+        if (charset.equals(StandardCharsets.UTF_8)) return true;
+
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f) return false;
+
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < 128; i++) ascii[i] = (byte) i;
+        String s = new String(ascii, charset);
+        for (int i = 0; i < 128; i++) {
+            if (s.charAt(i) != i) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Feeds the bytes of the lines that the following {@link #run(FileChannel)} processes to the <var>collector</var>,
+     * so that the trigrams of a memory-mapped document are collected in the same pass as the search.
+     */
+    void
+    collectTrigrams(TrigramIndex.Collector collector) {
+        this.trigramCollector = collector;
+        this.collectedTo      = 0;
+    }
+
+    /**
+     * @return The offset within the document up to which the bytes were fed to the {@link
+     *         #collectTrigrams(TrigramIndex.Collector) trigram collector}; less than the document size iff the search
+     *         stopped early
+     */
+    long
+    collectedTo() { return this.collectedTo; }
+
+    /**
+     * Reads the document from the <var>inputStream</var>, decodes it, and invokes the line handler for each line.
+     * An unterminated last line is processed only if it is not empty.
+     */
+    void
+    run(InputStream inputStream) throws IOException {
+
+        this.bytes           = null;
+        this.channel         = null;
+        this.windowPosition  = 0;
+        this.limit           = 0;
+        this.eof             = false;
+        this.windowPrefilter = this.prefilter;
+        this.byteOffset      = 0;
+        this.lineNumber      = 0;
+        this.lastLineNumber  = -1;
+
+        this.run(new InputStreamReader(inputStream, this.charset), 0);
+    }
+
+    /**
+     * Memory-maps the document from the <var>channel</var>, and invokes the line handler for each line. Requires
+     * that the charset is {@link #isAsciiCompatible(Charset) ASCII-compatible}. An unterminated last line is
+     * processed only if it is not empty.
+     */
+    void
+    run(FileChannel channel) throws IOException {
+        this.run(channel, 0, channel.size(), 1, -1);
+    }
+
+    /**
+     * Like {@link #run(FileChannel)}, but processes only a section of the document: The lines from
+     * <var>from</var> (which must be the start of a line) up to <var>to</var> (which must be the end of a line, or
+     * the end of the document), resp. up to and including the line with number <var>lastLineNumber</var>. The
+     * first line of the section has number <var>firstLineNumber</var>; a <var>lastLineNumber</var> of -1 means "no
+     * limit".
+     * <p>
+     *   Iff the preceding invocation processed a section of the same <var>channel</var> and <var>to</var>, and
+     *   its window covers <var>from</var>, then that window is re-used, so that processing many small sections of
+     *   one document is cheap.
+     * </p>
+     */
+    void
+    run(FileChannel channel, long from, long to, int firstLineNumber, int lastLineNumber) throws IOException {
+
+        assert LineMatcher.isAsciiCompatible(this.charset);
+
+        this.lineNumber     = firstLineNumber - 1;
+        this.lastLineNumber = lastLineNumber;
+
+        if (
+            this.bytes != null
+            && channel == this.channel
+            && to == this.end
+            && from >= this.windowPosition
+            && from - this.windowPosition <= this.limit
+        ) {
+            this.run(null, (int) (from - this.windowPosition));
+            return;
+        }
+
+        LiteralPrefilter pf = this.prefilter;
+
+        this.channel         = channel;
+        this.windowPosition  = from;
+        this.end             = to;
+        this.limit           = 0;
+        this.eof             = false;
+        this.windowPrefilter = pf == null ? null : pf.encode(this.charset);
+
+        this.mapWindow();
+        this.run(null, 0);
+    }
+
+    private void
+    run(@Nullable Reader reader, int startPos) throws IOException {
+
+        this.retainedLineCount = 0;
+        this.prefilterFrom     = -1;
+
+        // Only lines that contain non-ASCII bytes need to be decoded, and for ISO 8859-1 not even those.
+        boolean decodeNonAscii = !this.charset.equals(StandardCharsets.ISO_8859_1);
+
+        boolean forceLineEnd = false;
+        long nonAscii = 0;
+        for (int pos = startPos, scanned = 0;;) {
+
+            // Find the end of the next line.
+            int eol = pos + scanned;
+            int lim = this.limit;
+            int c   = -1;
+            {
+                ByteBuffer bb = this.bytes;
+                if (bb == null) {
+                    char[] buf = this.chars;
+                    for (; eol < lim; eol++) {
+                        c = buf[eol];
+                        if (c == '\n' || c == '\r') break;
+                    }
+                } else {
+
+                    // Skip eight bytes at a time, up to the word that contains the CR or LF.
+                    for (; eol + 8 <= lim; eol += 8) {
+                        long w  = bb.getLong(eol);
+                        long lf = w ^ 0x0a0a0a0a0a0a0a0aL;
+                        long cr = w ^ 0x0d0d0d0d0d0d0d0dL;
+                        long z  = (lf - 0x0101010101010101L) & ~lf | (cr - 0x0101010101010101L) & ~cr;
+                        if ((z & 0x8080808080808080L) != 0) break;
+                        nonAscii |= w;
+                    }
+
+                    for (; eol < lim; eol++) {
+                        c = bb.get(eol);
+                        if (c == '\n' || c == '\r') break;
+                        nonAscii |= c;
+                    }
+                }
+            }
+
+            int next;
+            if (eol < lim && (c == '\n' || eol + 1 < lim)) {
+                next = eol + (c == '\r' && this.charAt(eol + 1) == '\n' ? 2 : 1);
+            } else
+            if (this.eof || forceLineEnd) {
+                if (eol == pos && eol == lim) return;
+                next = eol < lim ? eol + 1 : eol;
+            } else
+            {
+
+                // The line is incomplete (or ends with a CR that is possibly followed by an LF); read more of the
+                // document.
+                scanned = eol - pos;
+                int pos2 = this.refill(reader, pos);
+                if (pos2 == -1) {
+
+                    // The window cannot be extended; process the incomplete line as if it were complete.
+                    forceLineEnd = true;
+                } else {
+                    pos = pos2;
+                }
+                continue;
+            }
+
+            this.lineStart          = pos;
+            this.lineEnd            = eol;
+            this.lineNeedsDecoding  = decodeNonAscii && (nonAscii & 0x8080808080808080L) != 0;
+            this.lineDecoded        = false;
+            this.matchesInitialized = false;
+            this.byteOffset         = (
+                !this.withByteOffsets ? -1
+                : this.bytes != null  ? this.windowPosition + pos
+                : this.byteOffset
+            );
+            this.lineNumber++;
+
+            TrigramIndex.Collector tc = this.trigramCollector;
+            ByteBuffer             bb = this.bytes;
+            if (tc != null && bb != null) {
+                int from = (int) Math.max(pos, this.collectedTo - this.windowPosition);
+                if (from < next) {
+                    tc.add(bb, from, next);
+                    this.collectedTo = this.windowPosition + next;
+                }
+            }
+
+            this.lineHandler.handleLine(this);
+            if (this.lineNumber == this.lastLineNumber) return;
+
+            if (this.withByteOffsets && this.bytes == null) this.byteOffset += this.byteLength(pos, next);
+
+            pos          = next;
+            scanned      = 0;
+            nonAscii     = 0;
+            forceLineEnd = false;
+        }
+    }
+
+    private char
+    charAt(int index) {
+        ByteBuffer bb = this.bytes;
+        return bb == null ? this.chars[index] : (char) (bb.get(index) & 0xff);
+    }
+
+    /**
+     * Discards all characters before <var>pos</var> (except those of the retained lines), and reads (resp. maps)
+     * more of the document into the window.
+     *
+     * @return The new offset of the character that was at <var>pos</var>, or -1 iff the window is full and cannot
+     *         be enlarged
+     */
+    private int
+    refill(@Nullable Reader reader, int pos) throws IOException {
+
+        int keep = this.retainedLineCount > 0 ? this.retainedLineStart[this.retainedLineFirst] : pos;
+
+        if (reader == null) {
+
+            // Map the next part of the document.
+            if (keep == 0 && this.limit == LineMatcher.MAX_MAPPING_SIZE) return -1;
+            this.shift(keep);
+            this.windowPosition += keep;
+            this.mapWindow();
+        } else {
+
+            // Move the characters to keep to the beginning of the window, and read more characters.
+            System.arraycopy(this.chars, keep, this.chars, 0, this.limit - keep);
+            this.shift(keep);
+            if (this.limit == this.chars.length) this.chars = Arrays.copyOf(this.chars, 2 * this.limit);
+            int n = reader.read(this.chars, this.limit, this.chars.length - this.limit);
+            if (n == -1) {
+                this.eof = true;
+            } else {
+                this.limit += n;
+            }
+        }
+
+        return pos - keep;
+    }
+
+    /**
+     * Adjusts all offsets after the first <var>n</var> characters were removed from the window.
+     */
+    private void
+    shift(int n) {
+
+        if (n == 0) return;
+
+        this.limit -= n;
+
+        for (int i = 0; i < this.retainedLineCount; i++) {
+            int idx = this.retainedIndex(i);
+            this.retainedLineStart[idx] -= n;
+            this.retainedLineEnd[idx]   -= n;
+        }
+
+        this.prefilterFrom = -1;
+    }
+
+    /**
+     * Maps the document (resp. the section that ends at {@link #end}), starting at the {@link #windowPosition}, into
+     * the byte window.
+     */
+    private void
+    mapWindow() throws IOException {
+
+        FileChannel fc = this.channel;
+        assert fc != null;
+
+        int n = (int) Math.min(this.end - this.windowPosition, LineMatcher.MAX_MAPPING_SIZE);
+
+        this.bytes = fc.map(MapMode.READ_ONLY, this.windowPosition, n);
+        this.limit = n;
+        this.eof   = this.windowPosition + n >= this.end;
+    }
+
+    /**
+     * @return The one-based number of the current line
+     */
+    int
+    lineNumber() { return this.lineNumber; }
+
+    /**
+     * @return The offset of the first character of the current line within the window
+     */
+    int
+    lineStart() { return this.lineStart; }
+
+    /**
+     * @return The offset of the line terminator of the current line within the window
+     */
+    int
+    lineEnd() { return this.lineEnd; }
+
+    /**
+     * @return The offset of the first byte of the current line within the document, or -1 iff byte offsets are not
+     *         configured
+     */
+    long
+    byteOffset() { return this.byteOffset; }
+
+    /**
+     * Appends the text of the window between <var>start</var> and <var>end</var> (e.g. {@link #lineStart()} and
+     * {@link #lineEnd()}) to the <var>sb</var>, decoding it iff necessary.
+     */
+    void
+    appendText(StringBuilder sb, int start, int end) {
+
+        ByteBuffer bb = this.bytes;
+        if (bb == null) {
+            sb.append(this.chars, start, end - start);
+            return;
+        }
+
+        if (!this.charset.equals(StandardCharsets.ISO_8859_1)) {
+            for (int i = start; i < end; i++) {
+                if (bb.get(i) < 0) {
+                    byte[] ba = new byte[end - start];
+                    ByteBuffer bb2 = bb.duplicate();
+                    bb2.position(start);
+                    bb2.get(ba);
+                    sb.append(new String(ba, this.charset));
+                    return;
+                }
+            }
+        }
+
+        for (int i = start; i < end; i++) sb.append((char) (bb.get(i) & 0xff));
+    }
+
+    /**
+     * @return The text of the current line, without the line terminator, and decoded iff necessary; a view which
+     *         is valid only until the next line is processed
+     */
+    CharSequence
+    lineText() {
+        if (this.lineNeedsDecoding && !this.lineDecoded) this.decodeLine();
+        return this.lineText;
+    }
+
+    /**
+     * @return Whether any of the patterns matches within the current line
+     */
+    boolean
+    hasMatch() {
+
+        if (!this.isCandidate()) return false;
+
+        this.prepareFinder();
+        return this.finder.hasMatch(this.regionStart, this.regionEnd);
+    }
+
+    /**
+     * Finds the next match within the current line; on success, {@link #matchStart()} and {@link #matchEnd()}
+     * designate the match, and {@link #matchPatternIndex()} identifies the pattern that matched.
+     * <p>
+     *   Matches are found from left to right, and do not overlap; iff several patterns match at the same position,
+     *   then the first of them wins.
+     * </p>
+     *
+     * @return Whether another match was found
+     */
+    boolean
+    findMatch() {
+
+        PatternSet.Finder f = this.finder;
+
+        boolean found;
+        if (!this.matchesInitialized) {
+            this.matchesInitialized = true;
+            if (!this.isCandidate()) {
+                this.cursor    = 0;
+                this.regionEnd = -1;
+                return false;
+            }
+            this.prepareFinder();
+            found = f.find(this.regionStart, this.regionEnd);
+        } else {
+            found = this.cursor <= this.regionEnd && f.findNext(this.cursor);
+        }
+        if (!found) {
+            this.cursor = this.regionEnd + 1;
+            return false;
+        }
+
+        int ms = f.start(), me = f.end();
+
+        // Continue after the match, or, iff the match is empty, after the next character.
+        this.cursor = me > ms ? me : ms + 1;
+
+        this.matchPatternIndex = f.patternIndex();
+
+        if (this.lineNeedsDecoding) {
+            this.matchStart         = this.lineStart + this.decodedOffsets[ms];
+            this.matchEnd           = this.lineStart + this.decodedOffsets[me];
+            this.lineTextMatchStart = ms;
+            this.lineTextMatchEnd   = me;
+        } else {
+            this.matchStart         = ms;
+            this.matchEnd           = me;
+            this.lineTextMatchStart = ms - this.lineStart;
+            this.lineTextMatchEnd   = me - this.lineStart;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The offset of the current match within the window
+     */
+    int
+    matchStart() { return this.matchStart; }
+
+    /**
+     * @return The offset of the end of the current match within the window
+     */
+    int
+    matchEnd() { return this.matchEnd; }
+
+    /**
+     * @return The offset of the current match within the {@link #lineText()}
+     */
+    int
+    lineTextMatchStart() { return this.lineTextMatchStart; }
+
+    /**
+     * @return The offset of the end of the current match within the {@link #lineText()}
+     */
+    int
+    lineTextMatchEnd() { return this.lineTextMatchEnd; }
+
+    /**
+     * @return The index of the pattern that produced the current match
+     */
+    int
+    matchPatternIndex() { return this.matchPatternIndex; }
+
+    /**
+     * @return The offset of the first byte of the current match within the document, or -1 iff byte offsets are not
+     *         configured
+     */
+    long
+    matchByteOffset() {
+        return (
+            this.byteOffset == -1 ? -1
+            : this.bytes != null  ? this.windowPosition + this.matchStart
+            : this.byteOffset + this.byteLength(this.lineStart, this.matchStart)
+        );
+    }
+
+    /**
+     * Points the {@link #finder} to the window, or, iff the current line needs decoding, decodes it and points
+     * the finder to the decoded line.
+     */
+    private void
+    prepareFinder() {
+
+        CharSequence text;
+        if (this.lineNeedsDecoding) {
+            if (!this.lineDecoded) this.decodeLine();
+            text             = this.decodedText;
+            this.regionStart = 0;
+            this.regionEnd   = this.decodedLength;
+        } else {
+            text             = this.bytes != null ? this.byteText : this.charText;
+            this.regionStart = this.lineStart;
+            this.regionEnd   = this.lineEnd;
+        }
+
+        if (text != this.finderText) {
+            this.finder.reset(text);
+            this.finderText = text;
+        }
+    }
+
+    /**
+     * Decodes the current line from the byte window into {@link #decoded}, and fills in the {@link
+     * #decodedOffsets}. Like {@link InputStreamReader}, replaces malformed and unmappable input with U+FFFD.
+     */
+    private void
+    decodeLine() {
+
+        ByteBuffer bb = this.bytes;
+        assert bb != null;
+
+        CharsetDecoder d = this.decoder;
+        if (d == null) d = (this.decoder = this.charset.newDecoder());
+
+        // Both UTF-8 and single-byte charsets decode to at most one character per byte.
+        int n = this.lineEnd - this.lineStart;
+        if (this.decoded.length < n) {
+            this.decoded        = new char[Math.max(n, 2 * this.decoded.length)];
+            this.decodedOffsets = new int[this.decoded.length + 1];
+        }
+
+        boolean    utf8 = this.charset.equals(StandardCharsets.UTF_8);
+        char[]     dc   = this.decoded;
+        int[]      dos  = this.decodedOffsets;
+        ByteBuffer in   = bb.duplicate();
+        in.limit(this.lineEnd).position(this.lineStart);
+        CharBuffer out = CharBuffer.wrap(dc);
+
+        d.reset();
+        for (;;) {
+            int         inStart  = in.position() - this.lineStart;
+            int         outStart = out.position();
+            CoderResult cr       = d.decode(in, out, true);
+
+            // Compute the offsets of the characters that were decoded.
+            for (int i = outStart, o = inStart; i < out.position(); i++) {
+                dos[i] = o;
+                char c = dc[i];
+                o += (
+                    !utf8 || c < 0x80                ? 1
+                    : c < 0x800                      ? 2
+                    : Character.isHighSurrogate(c)   ? 0 // The low surrogate accounts for the four bytes.
+                    : Character.isLowSurrogate(c)    ? 4
+                    : 3
+                );
+            }
+
+            if (cr.isUnderflow()) break;
+            assert cr.isError();
+
+            dos[out.position()] = in.position() - this.lineStart;
+            out.put('\uFFFD');
+            in.position(in.position() + cr.length());
+        }
+        d.flush(out);
+
+        this.decodedLength      = out.position();
+        dos[this.decodedLength] = n;
+        this.lineDecoded        = true;
+    }
+
+    /**
+     * @return Whether the current line contains any of the literals of the prefilter (or there is no prefilter)
+     */
+    private boolean
+    isCandidate() {
+
+        LiteralPrefilter pf = this.windowPrefilter;
+        if (pf == null) return true;
+
+        int ls = this.lineStart, le = this.lineEnd;
+
+        // Iff possible, re-use the result of the preceding search.
+        if (
+            this.prefilterFrom == -1
+            || ls < this.prefilterFrom
+            || (this.prefilterHit == -1 ? le > this.prefilterTo : this.prefilterHit < ls)
+        ) {
+            ByteBuffer bb = this.bytes;
+            this.prefilterFrom = ls;
+            this.prefilterTo   = this.limit;
+            this.prefilterHit  = (
+                bb == null
+                ? pf.indexOf(this.chars, ls, this.limit)
+                : pf.indexOf(bb, ls, this.limit)
+            );
+        }
+
+        return this.prefilterHit != -1 && this.prefilterHit < le;
+    }
+
+    /**
+     * Remembers the current line, so that it can later be retrieved through {@link #retainedLineStart(int)} and
+     * friends. Iff the capacity is exhausted, then the oldest retained line is discarded.
+     */
+    void
+    retainLine() {
+
+        int capacity = this.retainedLineStart.length;
+        if (capacity == 0) return;
+
+        int idx;
+        if (this.retainedLineCount < capacity) {
+            idx = (this.retainedLineFirst + this.retainedLineCount++) % capacity;
+        } else {
+            idx                    = this.retainedLineFirst;
+            this.retainedLineFirst = (this.retainedLineFirst + 1) % capacity;
+        }
+
+        this.retainedLineStart[idx]  = this.lineStart;
+        this.retainedLineEnd[idx]    = this.lineEnd;
+        this.retainedLineNumber[idx] = this.lineNumber;
+        this.retainedByteOffset[idx] = this.byteOffset;
+    }
+
+    /**
+     * @return The number of currently retained lines
+     */
+    int
+    retainedLineCount() { return this.retainedLineCount; }
+
+    /**
+     * @param i 0 designates the oldest retained line
+     */
+    int
+    retainedLineStart(int i) { return this.retainedLineStart[this.retainedIndex(i)]; }
+
+    /**
+     * @param i 0 designates the oldest retained line
+     */
+    int
+    retainedLineEnd(int i) { return this.retainedLineEnd[this.retainedIndex(i)]; }
+
+    /**
+     * @param i 0 designates the oldest retained line
+     */
+    int
+    retainedLineNumber(int i) { return this.retainedLineNumber[this.retainedIndex(i)]; }
+
+    /**
+     * @param i 0 designates the oldest retained line
+     */
+    long
+    retainedByteOffset(int i) { return this.retainedByteOffset[this.retainedIndex(i)]; }
+
+    /**
+     * Forgets all retained lines.
+     */
+    void
+    clearRetainedLines() {
+        this.retainedLineFirst = 0;
+        this.retainedLineCount = 0;
+    }
+
+    private int
+    retainedIndex(int i) { return (this.retainedLineFirst + i) % this.retainedLineStart.length; }
+
+    /**
+     * @return The number of bytes that the characters of the character window between <var>from</var> and
+     *         <var>to</var> occupy in the {@link #charset}
+     */
+    private long
+    byteLength(int from, int to) {
+
+        Charset cs = this.charset;
+
+        if (cs.equals(StandardCharsets.UTF_8)) {
+            return LineMatcher.utf8Length(this.chars, from, to);
+        }
+
+        CharsetEncoder e = this.encoder;
+        if (e == null) {
+            e = (this.encoder = cs.newEncoder());
+            e.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.encoderOutput = ByteBuffer.allocate(1024);
+        }
+
+        if (e.maxBytesPerChar() == 1.0f) return to - from;
+
+        ByteBuffer out = this.encoderOutput;
+        assert out != null;
+
+        CharBuffer in     = CharBuffer.wrap(this.chars, from, to - from);
+        long       result = 0;
+        e.reset();
+        for (boolean flushing = false;;) {
+            CoderResult cr = flushing ? e.flush(out) : e.encode(in, out, true);
+            result += out.position();
+            out.clear();
+            if (cr.isOverflow()) continue;
+            if (flushing) return result;
+            flushing = true;
+        }
+    }
+
+    /**
+     * @return The number of bytes that <var>cs</var>{@code [}<var>from</var>{@code ...}<var>to</var>{@code )}
+     *         occupy in UTF-8
+     */
+    private static int
+    utf8Length(char[] cs, int from, int to) {
+
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            char c = cs[i];
+            if (c < 0x80) {
+                result++;
+            } else
+            if (c < 0x800) {
+                result += 2;
+            } else
+            if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(cs[i + 1])) {
+                result += 4;
+                i++;
+            } else
+            if (Character.isSurrogate(c)) {
+                result++; // Unpaired surrogates are encoded as "?".
+            } else
+            {
+                result += 3;
+            }
+        }
+        return result;
+    }
+}
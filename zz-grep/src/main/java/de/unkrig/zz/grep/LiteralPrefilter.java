@@ -0,0 +1,696 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.grep;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Finds the leftmost occurrence of any of a set of literal strings ("needles") in a character array, skipping
+ * through the text in the manner of the Boyer-Moore-Horspool algorithm.
+ * <p>
+ *   Is used to quickly find the "candidate lines" of a document, i.e. the lines that contain a string that any
+ *   match of a regex <em>must</em> contain; see {@link #requiredLiterals(Pattern)}. All other lines need not be
+ *   examined by the (relatively slow) regex engine.
+ * </p>
+ */
+final
+class LiteralPrefilter {
+
+    /**
+     * The maximum number of alternative literals; more alternatives render the prefilter ineffective.
+     */
+    private static final int MAX_NEEDLES = 64;
+
+    private final Set<String> needles;
+    private final boolean     caseInsensitive;
+
+    /**
+     * The length of the "window" that is compared; equals the length of the shortest needle.
+     */
+    private final int windowLength;
+
+    /**
+     * Indexed by the (folded) last character of the window, modulo 256.
+     */
+    private final int[] shift = new int[256];
+
+    /**
+     * For each value of the (folded) last character of the window, modulo 256, the needles to verify.
+     */
+    private final char[][][] candidates = new char[256][][];
+
+    private
+    LiteralPrefilter(Set<String> needles, boolean caseInsensitive) {
+
+        this.needles         = needles;
+        this.caseInsensitive = caseInsensitive;
+
+        int m = Integer.MAX_VALUE;
+        for (String needle : needles) m = Math.min(m, needle.length());
+        this.windowLength = m;
+
+        Arrays.fill(this.shift, m);
+
+        @SuppressWarnings({ "unchecked", "rawtypes" }) List<char[]>[] cl = new List[256];
+        for (String s : needles) {
+
+            char[] needle = s.toCharArray();
+            if (caseInsensitive) {
+                for (int j = 0; j < needle.length; j++) needle[j] = LiteralPrefilter.fold(needle[j]);
+            }
+
+            for (int j = 0; j < m - 1; j++) {
+                int b = needle[j] & 0xff;
+                this.shift[b] = Math.min(this.shift[b], m - 1 - j);
+            }
+
+            int b = needle[m - 1] & 0xff;
+            if (cl[b] == null) cl[b] = new ArrayList<char[]>();
+            cl[b].add(needle);
+        }
+        for (int b = 0; b < 256; b++) {
+            if (cl[b] != null) this.candidates[b] = cl[b].toArray(new char[cl[b].size()][]);
+        }
+    }
+
+    /**
+     * @param requiredLiterals For each pattern, the strings that any match must contain, as computed by {@link
+     *                         #requiredLiterals(Pattern)}
+     * @return                 A prefilter that finds the candidates for any of the patterns, or {@code null} iff
+     *                         prefiltering is not possible for at least one of the patterns
+     */
+    @Nullable static LiteralPrefilter
+    create(List<String[]> requiredLiterals, boolean caseInsensitive) {
+
+        Set<String> needles = new LinkedHashSet<String>();
+        for (String[] rl : requiredLiterals) {
+            if (rl == null) return null;
+            needles.addAll(Arrays.asList(rl));
+        }
+        if (needles.isEmpty() || needles.size() > LiteralPrefilter.MAX_NEEDLES) return null;
+
+        return new LiteralPrefilter(needles, caseInsensitive);
+    }
+
+    /**
+     * @return A prefilter that finds the needles, encoded in the given <var>charset</var>, within a byte
+     *         sequence (see {@link #indexOf(ByteBuffer, int, int)}), or {@code null} iff any needle cannot be
+     *         encoded in the <var>charset</var>, or contains the replacement character U+FFFD (which appears in the
+     *         decoded text where the bytes are malformed)
+     */
+    @Nullable LiteralPrefilter
+    encode(Charset charset) {
+
+        CharsetEncoder encoder = charset.newEncoder();
+
+        // Represent each byte as an ISO 8859-1 character.
+        Set<String> encodedNeedles = new LinkedHashSet<String>();
+        for (String needle : this.needles) {
+            if (needle.indexOf('\uFFFD') != -1 || !encoder.canEncode(needle)) return null;
+            encodedNeedles.add(new String(needle.getBytes(charset), StandardCharsets.ISO_8859_1));
+        }
+
+        return new LiteralPrefilter(encodedNeedles, this.caseInsensitive);
+    }
+
+    /**
+     * @return The literal strings that this prefilter searches for
+     */
+    Set<String>
+    needles() { return Collections.unmodifiableSet(this.needles); }
+
+    /**
+     * @return Whether the needles are matched case-insensitively (US-ASCII characters only)
+     */
+    boolean
+    isCaseInsensitive() { return this.caseInsensitive; }
+
+    /**
+     * @return The index of the leftmost occurrence of any of the needles within <var>cs</var>{@code
+     *         [}<var>from</var>{@code ...}<var>to</var>{@code )}, or -1
+     */
+    int
+    indexOf(char[] cs, int from, int to) {
+
+        int m = this.windowLength;
+
+        for (int i = from + m - 1; i < to;) {
+
+            char c = cs[i];
+            if (this.caseInsensitive) c = LiteralPrefilter.fold(c);
+
+            char[][] cands = this.candidates[c & 0xff];
+            if (cands != null) {
+                int start = i - m + 1;
+                NEEDLES:
+                for (char[] needle : cands) {
+                    if (start + needle.length > to) continue;
+                    for (int j = needle.length - 1; j >= 0; j--) {
+                        char c2 = cs[start + j];
+                        if (this.caseInsensitive) c2 = LiteralPrefilter.fold(c2);
+                        if (c2 != needle[j]) continue NEEDLES;
+                    }
+                    return start;
+                }
+            }
+
+            i += this.shift[c & 0xff];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Like {@link #indexOf(char[], int, int)}, but for a prefilter that was {@link #encode(Charset) encoded}.
+     */
+    int
+    indexOf(ByteBuffer bb, int from, int to) {
+
+        int m = this.windowLength;
+
+        for (int i = from + m - 1; i < to;) {
+
+            char c = (char) (bb.get(i) & 0xff);
+            if (this.caseInsensitive) c = LiteralPrefilter.fold(c);
+
+            char[][] cands = this.candidates[c];
+            if (cands != null) {
+                int start = i - m + 1;
+                NEEDLES:
+                for (char[] needle : cands) {
+                    if (start + needle.length > to) continue;
+                    for (int j = needle.length - 1; j >= 0; j--) {
+                        char c2 = (char) (bb.get(start + j) & 0xff);
+                        if (this.caseInsensitive) c2 = LiteralPrefilter.fold(c2);
+                        if (c2 != needle[j]) continue NEEDLES;
+                    }
+                    return start;
+                }
+            }
+
+            i += this.shift[c];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Implements the case folding of {@link Pattern#CASE_INSENSITIVE} <em>without</em> {@link
+     * Pattern#UNICODE_CASE}, i.e. only US-ASCII characters are folded.
+     */
+    private static char
+    fold(char c) { return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c; }
+
+    /**
+     * Analyzes the <var>pattern</var> and determines a set of literal strings such that each match of the
+     * <var>pattern</var> contains at least one of them. Also verifies that no match can contain a line feed
+     * character, so that any match lies within a line that contains one of the literals.
+     *
+     * @return The required literals, or {@code null} iff the pattern can match line feeds, has no required literals,
+     *         or uses features that are not supported by this analysis (e.g. the {@code COMMENTS} or {@code
+     *         UNICODE_CASE} flags)
+     */
+    @Nullable static String[]
+    requiredLiterals(Pattern pattern) {
+
+        if ((pattern.flags() & ~(Pattern.MULTILINE | Pattern.CASE_INSENSITIVE | Pattern.UNIX_LINES)) != 0) return null;
+
+        Analyzer a = new Analyzer(pattern.pattern());
+        try {
+            Set<String> result = a.alternatives();
+            if (a.pos != a.regex.length()) return null;
+            if (result == null) return null;
+            return result.toArray(new String[result.size()]);
+        } catch (Unsupported u) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether any of the <var>patterns</var> is (or contains parts that are) case-insensitive
+     */
+    static boolean
+    isCaseInsensitive(Pattern[] patterns) {
+        for (Pattern p : patterns) {
+            if (
+                (p.flags() & Pattern.CASE_INSENSITIVE) != 0
+                || LiteralPrefilter.INLINE_CASE_INSENSITIVE.matcher(p.pattern()).find()
+            ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finds inline flags that enable case-insensitive matching, e.g. "{@code (?i)}" or "{@code (?mi:}"; may yield
+     * false positives, which do no harm.
+     */
+    private static final Pattern INLINE_CASE_INSENSITIVE = Pattern.compile("\\(\\?[a-zA-Z]*i");
+
+    /**
+     * Indicates that the regex can match a line feed, or uses a construct that the analysis does not support.
+     */
+    private static
+    class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    /**
+     * A simple recursive-descent parser for the {@link Pattern} syntax, which computes the required literals.
+     */
+    private static
+    class Analyzer {
+
+        final String regex;
+        int          pos;
+        boolean      dotAll;
+
+        Analyzer(String regex) { this.regex = regex; }
+
+        /**
+         * Parses "<var>concatenation</var> [ {@code |} <var>concatenation</var> ]...".
+         *
+         * @return Each match contains at least one of these strings; {@code null} means that there is no such
+         *         set
+         */
+        @Nullable Set<String>
+        alternatives() throws Unsupported {
+
+            Set<String> result = this.concatenation();
+            while (this.peek() == '|') {
+                this.pos++;
+                Set<String> s = this.concatenation();
+                if (result == null || s == null) {
+                    result = null;
+                } else {
+                    result.addAll(s);
+                    if (result.size() > LiteralPrefilter.MAX_NEEDLES) result = null;
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Parses a sequence of atoms, up to the next "{@code |}" or "{@code )}".
+         */
+        @Nullable private Set<String>
+        concatenation() throws Unsupported {
+
+            Set<String>   best = null;
+            StringBuilder run  = new StringBuilder();
+
+            for (;;) {
+                int c = this.peek();
+                if (c == -1 || c == '|' || c == ')') break;
+                this.pos++;
+
+                // Literal characters extend the current "run".
+                int lc = -1;
+                switch (c) {
+
+                case '\\':
+                    c = this.read();
+                    if (c == 'Q') {
+                        int end = this.regex.indexOf("\\E", this.pos);
+                        if (end == -1) end = this.regex.length();
+                        String q = this.regex.substring(this.pos, end);
+                        this.pos = Math.min(end + 2, this.regex.length());
+                        if (q.indexOf('\n') != -1) throw LiteralPrefilter.UNSUPPORTED;
+                        if (q.isEmpty()) continue;
+                        run.append(q, 0, q.length() - 1);
+                        lc = q.charAt(q.length() - 1);
+                    } else {
+                        lc = this.escape(c, false);
+                    }
+                    break;
+
+                case '[':
+                    this.characterClass();
+                    break;
+
+                case '.':
+                    if (this.dotAll) throw LiteralPrefilter.UNSUPPORTED;
+                    break;
+
+                case '^':
+                case '$':
+                    break;
+
+                case '(':
+                    {
+                        Set<String> s = this.group();
+                        best = LiteralPrefilter.better(best, run);
+                        run.setLength(0);
+                        if (this.quantifier() != 0 && s != null) best = LiteralPrefilter.better(best, s);
+                        continue;
+                    }
+
+                case '\n':
+                    throw LiteralPrefilter.UNSUPPORTED;
+
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw LiteralPrefilter.UNSUPPORTED;
+
+                default:
+                    lc = c;
+                    break;
+                }
+
+                if (lc == -1) {
+
+                    // Not a literal character; terminates the current run.
+                    best = LiteralPrefilter.better(best, run);
+                    run.setLength(0);
+                    this.quantifier();
+                    continue;
+                }
+
+                int min = this.quantifier();
+                if (min == -1) {
+                    run.append((char) lc);
+                } else
+                if (min == 0) {
+                    best = LiteralPrefilter.better(best, run);
+                    run.setLength(0);
+                } else
+                {
+                    run.append((char) lc);
+                    best = LiteralPrefilter.better(best, run);
+                    run.setLength(0);
+                }
+            }
+
+            return LiteralPrefilter.better(best, run);
+        }
+
+        /**
+         * Parses a group, after the opening parenthesis.
+         *
+         * @return The required literals of the group
+         */
+        @Nullable private Set<String>
+        group() throws Unsupported {
+
+            boolean zeroWidth = false;
+            if (this.peek() == '?') {
+                this.pos++;
+                int c = this.read();
+                if (c == '=' || c == '!') {
+                    zeroWidth = true;
+                } else
+                if (c == '<') {
+                    c = this.read();
+                    if (c == '=' || c == '!') {
+                        zeroWidth = true;
+                    } else {
+                        while (c != '>') c = this.read();
+                    }
+                } else
+                if (c == ':' || c == '>') {
+                    ;
+                } else
+                {
+
+                    // Inline flags, e.g. "(?i)" or "(?i-m:...)".
+                    boolean on = true;
+                    for (;; c = this.read()) {
+                        if (c == ')') return null;
+                        if (c == ':') break;
+                        if (c == '-') {
+                            on = false;
+                        } else
+                        if (c == 's') {
+                            if (on) this.dotAll = true;
+                        } else
+                        if (c == 'x' || c == 'u' || c == 'U') {
+                            if (on) throw LiteralPrefilter.UNSUPPORTED;
+                        } else
+                        if ("imd".indexOf(c) == -1) {
+                            throw LiteralPrefilter.UNSUPPORTED;
+                        }
+                    }
+                }
+            }
+
+            Set<String> result = this.alternatives();
+            if (this.read() != ')') throw LiteralPrefilter.UNSUPPORTED;
+
+            return zeroWidth ? null : result;
+        }
+
+        /**
+         * Parses an optional quantifier.
+         *
+         * @return -1 iff there is no quantifier, otherwise the quantifier's minimum
+         */
+        private int
+        quantifier() throws Unsupported {
+
+            int result;
+            switch (this.peek()) {
+
+            case '?':
+            case '*':
+                this.pos++;
+                result = 0;
+                break;
+
+            case '+':
+                this.pos++;
+                result = 1;
+                break;
+
+            case '{':
+                {
+                    this.pos++;
+                    int start = this.pos;
+                    while (Character.isDigit(this.peek())) this.pos++;
+                    if (this.pos == start) throw LiteralPrefilter.UNSUPPORTED;
+                    result = Integer.parseInt(this.regex.substring(start, this.pos));
+                    while (this.peek() != '}') this.read();
+                    this.pos++;
+                }
+                break;
+
+            default:
+                return -1;
+            }
+
+            // Reluctant and possessive quantifiers.
+            if (this.peek() == '?' || this.peek() == '+') this.pos++;
+
+            return result;
+        }
+
+        /**
+         * Parses a character class, after the opening bracket.
+         */
+        private void
+        characterClass() throws Unsupported {
+
+            boolean negated = this.peek() == '^';
+            if (negated) this.pos++;
+
+            boolean containsLineFeed = false;
+            for (boolean first = true;; first = false) {
+
+                int c = this.read();
+                if (c == ']' && !first) break;
+                if (c == '[' || (c == '&' && this.peek() == '&')) throw LiteralPrefilter.UNSUPPORTED;
+
+                int lo = c == '\\' ? this.escape(this.read(), true) : c;
+                int hi = lo;
+                if (this.peek() == '-' && this.peek(1) != ']') {
+                    this.pos++;
+                    c  = this.read();
+                    hi = c == '\\' ? this.escape(this.read(), true) : c;
+                    if (lo < 0 || hi < 0) throw LiteralPrefilter.UNSUPPORTED;
+                }
+
+                if (lo == -2 || (lo <= '\n' && hi >= '\n')) containsLineFeed = true;
+            }
+
+            // Notice: A negated character class matches a line feed iff it does NOT contain it.
+            if (containsLineFeed != negated) throw LiteralPrefilter.UNSUPPORTED;
+        }
+
+        /**
+         * Parses the rest of an escape sequence, after the backslash and the character <var>c</var>.
+         *
+         * @return The literal character, or -1 iff the escape sequence represents no literal character (e.g. a
+         *         predefined character class that does not contain the line feed, or a back reference), or -2 iff
+         *         <var>inCharacterClass</var> and the escape sequence represents the line feed or a predefined
+         *         character class that contains it
+         */
+        private int
+        escape(int c, boolean inCharacterClass) throws Unsupported {
+
+            int result;
+            switch (c) {
+
+            case 't': return '\t';
+            case 'r': return '\r';
+            case 'f': return '\f';
+            case 'a': return '\u0007';
+            case 'e': return '\u001b';
+
+            case 'n':
+                if (inCharacterClass) return -2;
+                throw LiteralPrefilter.UNSUPPORTED;
+
+            case 'x':
+                if (this.peek() == '{') {
+                    int end = this.regex.indexOf('}', this.pos);
+                    if (end == -1) throw LiteralPrefilter.UNSUPPORTED;
+                    int cp = Integer.parseInt(this.regex.substring(this.pos + 1, end), 16);
+                    this.pos = end + 1;
+                    if (cp > 0xffff) throw LiteralPrefilter.UNSUPPORTED;
+                    result = cp;
+                } else {
+                    result = this.hex(2);
+                }
+                break;
+
+            case 'u':
+                result = this.hex(4);
+                break;
+
+            case '0':
+                {
+                    int start = this.pos;
+                    result = 0;
+                    while (this.pos - start < 3 && this.peek() >= '0' && this.peek() <= '7') {
+                        int r2 = result * 8 + this.read() - '0';
+                        if (r2 > 0377) {
+                            this.pos--;
+                            break;
+                        }
+                        result = r2;
+                    }
+                }
+                break;
+
+            case 'c':
+                result = this.read() ^ 64;
+                break;
+
+            case 'd': case 'w': case 'S': case 'V': case 'h':
+            case 'b': case 'B':
+            case '1': case '2': case '3': case '4': case '5': case '6': case '7': case '8': case '9':
+                while (c >= '1' && c <= '9' && Character.isDigit(this.peek())) this.pos++;
+                return -1;
+
+            case 'k':
+                if (this.read() != '<') throw LiteralPrefilter.UNSUPPORTED;
+                while (this.read() != '>');
+                return -1;
+
+            case 's': case 'v':
+                if (inCharacterClass) return -2;
+                throw LiteralPrefilter.UNSUPPORTED;
+
+            default:
+                if (Character.isLetterOrDigit(c)) throw LiteralPrefilter.UNSUPPORTED;
+                return c;
+            }
+
+            if (result == '\n') {
+                if (inCharacterClass) return -2;
+                throw LiteralPrefilter.UNSUPPORTED;
+            }
+            return result;
+        }
+
+        private int
+        hex(int n) throws Unsupported {
+            if (this.pos + n > this.regex.length()) throw LiteralPrefilter.UNSUPPORTED;
+            int result = Integer.parseInt(this.regex.substring(this.pos, this.pos + n), 16);
+            this.pos += n;
+            return result;
+        }
+
+        private int
+        peek() { return this.peek(0); }
+
+        private int
+        peek(int offset) {
+            return this.pos + offset < this.regex.length() ? this.regex.charAt(this.pos + offset) : -1;
+        }
+
+        private int
+        read() throws Unsupported {
+            if (this.pos >= this.regex.length()) throw LiteralPrefilter.UNSUPPORTED;
+            return this.regex.charAt(this.pos++);
+        }
+    }
+
+    @Nullable private static Set<String>
+    better(@Nullable Set<String> best, CharSequence run) {
+
+        if (run.length() == 0) return best;
+
+        Set<String> s = new LinkedHashSet<String>();
+        s.add(run.toString());
+        return LiteralPrefilter.better(best, s);
+    }
+
+    /**
+     * @return The "more selective" of the two literal sets, i.e. the one with the longer shortest element
+     */
+    @Nullable private static Set<String>
+    better(@Nullable Set<String> s1, Set<String> s2) {
+
+        if (s1 == null) return s2;
+
+        int min1 = LiteralPrefilter.minLength(s1), min2 = LiteralPrefilter.minLength(s2);
+        return min2 > min1 || (min2 == min1 && s2.size() < s1.size()) ? s2 : s1;
+    }
+
+    private static int
+    minLength(Set<String> s) {
+        int result = Integer.MAX_VALUE;
+        for (String e : s) result = Math.min(result, e.length());
+        return result;
+    }
+}
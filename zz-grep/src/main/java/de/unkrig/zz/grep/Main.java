@@ -34,6 +34,7 @@ import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import org.apache.commons.compress.utils.Charsets;
 
@@ -58,6 +59,7 @@ import de.unkrig.commons.util.annotation.CommandLineOption;
 import de.unkrig.commons.util.annotation.RegexFlags;
 import de.unkrig.commons.util.logging.SimpleLogging;
 import de.unkrig.zip4jadapter.archivers.zip.ZipArchiveFormat;
+import de.unkrig.zz.grep.Grep.BinaryFiles;
 import de.unkrig.zz.grep.Grep.Operation;
 
 /**
@@ -83,6 +85,10 @@ class Main {
 
     private final List<String> regexes = new ArrayList<String>();
 
+    private Charset outputCharset = Charset.defaultCharset();
+    private boolean lineBuffered  = System.console() != null;
+    private boolean watch;
+
     private final RedirectablePrinter  redirectablePrinter  = new RedirectablePrinter();
     private final LevelFilteredPrinter levelFilteredPrinter = new LevelFilteredPrinter(this.redirectablePrinter);
 
@@ -229,6 +235,36 @@ class Main {
         final List<File> files = new ArrayList<File>();
         while (argi < args.length) files.add(new File(args[argi++]));
 
+        // Write STDOUT in large blocks (unless line buffering is configured).
+        final OutputSink  stdout = new OutputSink(System.out, this.outputCharset, this.lineBuffered, true);
+        final PrintWriter stderr = new PrintWriter(new OutputStreamWriter(System.err, this.outputCharset), true);
+        this.redirectablePrinter.setDelegate(new AbstractPrinter() {
+            @Override public void error(@Nullable String message)   { stdout.flush(); stderr.println(message); }
+            @Override public void warn(@Nullable String message)    { stdout.flush(); stderr.println(message); }
+            @Override public void info(@Nullable String message)    { stdout.println(message); }
+            @Override public void verbose(@Nullable String message) { stdout.println(message); }
+            @Override public void debug(@Nullable String message)   { stdout.println(message); }
+        });
+        this.grep.setBatchOutput(!this.lineBuffered);
+
+        try {
+            this.process(files);
+        } finally {
+            stdout.flush();
+        }
+
+        if (this.watch && !files.isEmpty()) {
+            this.grep.watch(new Runnable() {
+                @Override public void run() { stdout.flush(); }
+            });
+        }
+
+        if (!this.grep.getLinesSelected()) System.exit(1);
+    }
+
+    private void
+    process(List<File> files) throws IOException, InterruptedException {
+
         if (files.isEmpty()) {
             this.grep.contentsProcessor().process(
                 "(standard input)",                                   // path
@@ -243,8 +279,6 @@ class Main {
         } else {
             FileProcessings.process(files, this.grep.fileProcessor(true));
         }
-
-        if (!this.grep.getLinesSelected()) System.exit(1);
     }
 
     /**
@@ -273,6 +307,67 @@ class Main {
     @CommandLineOption public void
     dontSortDirectoryMembers() { this.grep.setDirectoryMemberNameComparator(null); }
 
+    /**
+     * Search up to <var>n</var> files concurrently while traversing directories. The output appears in the same
+     * order as with a sequential search. The default is 1.
+     *
+     * @main.commandLineOptionGroup File-Selection
+     */
+    @CommandLineOption public void
+    setThreads(int n) { this.grep.setThreadCount(n); }
+
+    /**
+     * With {@code --threads}, split plain files that are at least <var>megabytes</var> large into chunks, and search
+     * the chunks concurrently. The output is the same as with a sequential search. The default is 64.
+     *
+     * @main.commandLineOptionGroup File-Selection
+     */
+    @CommandLineOption public void
+    setLargeFileThreshold(long megabytes) { this.grep.setLargeFileThreshold(megabytes * 1024 * 1024); }
+
+    /**
+     * Maintain a trigram index of all searched documents in <var>dir</var>, and skip the documents (and even entire
+     * archive files) that cannot contain any matches. Only the entries of modified files are re-indexed, so
+     * repeated searches of large, mostly unchanged trees become much faster.
+     *
+     * @main.commandLineOptionGroup File-Selection
+     */
+    @CommandLineOption public void
+    setIndex(File dir) { this.grep.setIndexDirectory(dir); }
+
+    /**
+     * Cache the results of all searched files and archive entries in <var>dir</var>, and replay them for unchanged
+     * files and entries (same size, modification time resp. CRC32) in later runs with the same search settings. Thus
+     * repeated searches read only the new and modified files.
+     *
+     * @main.commandLineOptionGroup File-Selection
+     */
+    @CommandLineOption public void
+    setResultCache(File dir) { this.grep.setResultCacheDirectory(dir); }
+
+    /**
+     * The maximum size of the result cache; when it grows beyond that size, then the least recently used results are
+     * evicted. The default is 256.
+     *
+     * @main.commandLineOptionGroup File-Selection
+     */
+    @CommandLineOption public void
+    setResultCacheSize(long megabytes) { this.grep.setResultCacheSize(megabytes * 1024 * 1024); }
+
+    /**
+     * After the search, keep running and watch the given files and directories (including subdirectories). Search
+     * the files that are created or modified; for files that grow, search only the lines that were appended, with the
+     * correct line numbers and byte offsets. Files that were merely renamed (e.g. by log rotation) are not searched
+     * again. Stop with Ctrl-C.
+     *
+     * @main.commandLineOptionGroup File-Selection
+     */
+    @CommandLineOption public void
+    setWatch() {
+        this.watch = true;
+        this.grep.setWatch(true);
+    }
+
     /**
      * Look into compressed and archive contents if "<var>format</var>:<var>path</var>" matches the glob.
      * The default is to look into any recognised archive or compressed contents.
@@ -304,18 +399,7 @@ class Main {
      * @main.commandLineOptionGroup Contents-Processing
      */
     @CommandLineOption public void
-    setOutputEncoding(Charset charset) {
-
-        PrintWriter stdout = new PrintWriter(new OutputStreamWriter(System.out, charset), /*autoFlush*/ true);
-        PrintWriter stderr = new PrintWriter(new OutputStreamWriter(System.err, charset), /*autoFlush*/ true);
-        this.redirectablePrinter.setDelegate(new AbstractPrinter() {
-            @Override public void error(@Nullable String message)   { stderr.println(message); }
-            @Override public void warn(@Nullable String message)    { stderr.println(message); }
-            @Override public void info(@Nullable String message)    { stdout.println(message); }
-            @Override public void verbose(@Nullable String message) { stdout.println(message); }
-            @Override public void debug(@Nullable String message)   { stdout.println(message); }
-        });
-    }
+    setOutputEncoding(Charset charset) { this.outputCharset = charset; }
 
     /**
      * Input and output contents encoding, default is "${file.encoding}".
@@ -387,7 +471,7 @@ class Main {
     setLineNumber() { this.grep.setWithLineNumber(true); }
 
     /**
-     * Prefix each match with the byte offset
+     * Prefix each line with its byte offset (or, with "-o", each match with its byte offset)
      *
      * @main.commandLineOptionGroup Output-Generation
      */
@@ -437,6 +521,44 @@ class Main {
     @CommandLineOption(name = { "-m", "--max-count" }) public void
     setMaxCount(int n) { this.grep.setMaxCount(n); }
 
+    /**
+     * How to search documents that contain binary data (NUL bytes): "binary" (print only "Binary file ... matches"
+     * instead of the matching lines), "text" (search them like text; the default), or "without-match" (assume that
+     * they do not match, and don't read them beyond the first few KB).
+     *
+     * @main.commandLineOptionGroup Contents-Processing
+     */
+    @CommandLineOption public void
+    setBinaryFiles(String type) {
+
+        BinaryFiles value;
+        try {
+            value = BinaryFiles.valueOf(type.toUpperCase(Locale.ENGLISH).replace('-', '_'));
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException(
+                "Invalid type \"" + type + "\"; valid types are \"binary\", \"text\" and \"without-match\""
+            );
+        }
+
+        this.grep.setBinaryFiles(value);
+    }
+
+    /**
+     * Equivalent to "--binary-files text".
+     *
+     * @main.commandLineOptionGroup Contents-Processing
+     */
+    @CommandLineOption(name = { "-a", "--text" }) public void
+    setText() { this.grep.setBinaryFiles(BinaryFiles.TEXT); }
+
+    /**
+     * Equivalent to "--binary-files without-match".
+     *
+     * @main.commandLineOptionGroup Contents-Processing
+     */
+    @CommandLineOption(name = "-I") public void
+    setBinaryFilesWithoutMatch() { this.grep.setBinaryFiles(BinaryFiles.WITHOUT_MATCH); }
+
     /**
      * Ignore case distinctions.
      *
@@ -497,6 +619,24 @@ class Main {
     @CommandLineOption public void
     setDaSymbolicLabels() { this.grep.setDisassembleClassFilesSymbolicLabels(true); }
 
+    /**
+     * When disassembling .class files, cache the disassemblies in this directory, and re-use them for identical class
+     * files (same CRC32 and size) in the same or in later runs. Ignored together with "--da-source-directory".
+     *
+     * @main.commandLineOptionGroup Contents-Processing
+     */
+    @CommandLineOption public void
+    setDaCache(File directory) { this.grep.setDisassembleClassFilesCacheDirectory(directory); }
+
+    /**
+     * Evict the least recently used disassemblies when the disassembly cache exceeds this many megabytes (default:
+     * 256).
+     *
+     * @main.commandLineOptionGroup Contents-Processing
+     */
+    @CommandLineOption public void
+    setDaCacheSize(long megabytes) { this.grep.setDisassembleClassFilesCacheSize(megabytes * 1024 * 1024); }
+
     /**
      * Excludes files and archive entries from the search iff the file's / archive entry's path matches the
      * <var>regex</var>.
@@ -558,6 +698,15 @@ class Main {
         this.setZipInputFilePassword(value);
     }
 
+    /**
+     * Write each output line immediately. By default, output is written in large blocks, unless STDOUT is a
+     * terminal.
+     *
+     * @main.commandLineOptionGroup Output-Generation
+     */
+    @CommandLineOption public void
+    setLineBuffered() { this.lineBuffered = true; }
+
     /**
      * Suppress all messages except errors.
      *
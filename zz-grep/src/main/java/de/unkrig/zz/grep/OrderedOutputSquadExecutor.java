@@ -0,0 +1,253 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.grep;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.unkrig.commons.lang.ThreadUtil;
+import de.unkrig.commons.lang.protocol.RunnableWhichThrows;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.text.AbstractPrinter;
+import de.unkrig.commons.text.AbstractPrinter.Level;
+import de.unkrig.commons.util.concurrent.SquadExecutor;
+
+/**
+ * A {@link SquadExecutor} that executes its tasks concurrently, but captures everything that the tasks print through
+ * the {@link AbstractPrinter#getContextPrinter() context printer}, and forwards it to the <var>delegate</var> printer
+ * in the order in which the tasks were <em>submitted</em>.
+ * <p>
+ *   Tasks that are submitted by another task are ordered "inside" their submitter, i.e. their output appears after
+ *   the submitter's output before the submission, and before the output of all tasks that were submitted after the
+ *   submitter. The same holds for the tasks of another {@link OrderedOutputSquadExecutor} that a task creates with
+ *   the context printer as the <var>delegate</var>. Thus, when used for a directory tree traversal, the output appears
+ *   exactly as with a sequential traversal.
+ * </p>
+ * <p>
+ *   Output is forwarded as soon as all preceding output is complete, so only the output of the tasks that are "ahead
+ *   of their turn" is held in memory.
+ * </p>
+ *
+ * @param <T> The tasks' result type
+ */
+public final
+class OrderedOutputSquadExecutor<T> extends SquadExecutor<T> {
+
+    private final AbstractPrinter delegate;
+
+    /**
+     * Collects the output of all tasks that were submitted by threads that are <em>not</em> executing a task of
+     * this squad executor; is never closed.
+     */
+    private final Slot root = new Slot(this);
+
+    /**
+     * The output slot of the task that the current thread is executing, or {@code null}.
+     */
+    private final ThreadLocal<Slot> currentSlot = new ThreadLocal<Slot>();
+
+    /**
+     * @param executorService Executes the submitted tasks
+     * @param delegate        Receives the tasks' output, in submission order
+     */
+    public
+    OrderedOutputSquadExecutor(ExecutorService executorService, AbstractPrinter delegate) {
+        super(executorService);
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return An executor service with up to <var>threadCount</var>{@code - 1} worker threads; iff all workers are
+     *         busy, then the <em>submitting</em> thread executes the task, so that a task which waits for the
+     *         completion of its subtasks can never starve the pool
+     */
+    public static ExecutorService
+    callerRunsExecutorService(int threadCount) {
+        return new ThreadPoolExecutor(
+            0,                                         // corePoolSize
+            threadCount - 1,                           // maximumPoolSize
+            1, TimeUnit.SECONDS,                       // keepAliveTime
+            new SynchronousQueue<Runnable>(),          // workQueue
+            ThreadUtil.DAEMON_THREAD_FACTORY,          // threadFactory
+            new ThreadPoolExecutor.CallerRunsPolicy()  // handler
+        );
+    }
+
+    @Override public Future<T>
+    submit(@Nullable final Callable<T> task) {
+
+        if (task == null) throw new NullPointerException();
+
+        final Slot slot = this.newSlot();
+
+        return super.submit(new Callable<T>() {
+
+            @Override @Nullable public T
+            call() throws Exception {
+
+                @SuppressWarnings("unchecked") final T[] result = (T[]) new Object[1];
+
+                OrderedOutputSquadExecutor.this.runInSlot(slot, new RunnableWhichThrows<Exception>() {
+                    @Override public void run() throws Exception { result[0] = task.call(); }
+                });
+
+                return result[0];
+            }
+        });
+    }
+
+    @Override public Future<T>
+    submit(@Nullable final Runnable task) {
+
+        if (task == null) throw new NullPointerException();
+
+        final Slot slot = this.newSlot();
+
+        return super.submit(new Runnable() {
+
+            @Override public void
+            run() {
+                OrderedOutputSquadExecutor.this.runInSlot(slot, new RunnableWhichThrows<RuntimeException>() {
+                    @Override public void run() { task.run(); }
+                });
+            }
+        });
+    }
+
+    /**
+     * Allocates a new output slot, immediately after all output that the current thread has printed so far.
+     */
+    private Slot
+    newSlot() {
+
+        Slot parent = this.currentSlot.get();
+        if (parent == null) parent = this.root;
+
+        Slot result = new Slot(this);
+        synchronized (this) {
+            parent.items.add(result);
+        }
+        return result;
+    }
+
+    private <EX extends Throwable> void
+    runInSlot(Slot slot, RunnableWhichThrows<EX> runnable) throws EX {
+
+        Slot previous = this.currentSlot.get();
+        this.currentSlot.set(slot);
+        try {
+            slot.run(runnable);
+        } finally {
+            if (previous == null) {
+                this.currentSlot.remove();
+            } else {
+                this.currentSlot.set(previous);
+            }
+            synchronized (this) {
+                slot.closed = true;
+                this.drain(this.root);
+            }
+        }
+    }
+
+    /**
+     * Forwards all output from the front of the <var>slot</var> that is complete.
+     *
+     * @return Whether the <var>slot</var> is closed and all of its output was forwarded
+     */
+    private boolean
+    drain(Slot slot) {
+
+        assert Thread.holdsLock(this);
+
+        for (;;) {
+            Object item = slot.items.peek();
+            if (item == null) return slot.closed;
+
+            if (item instanceof Slot) {
+                if (!this.drain((Slot) item)) return false;
+            } else {
+                ((Message) item).printTo(this.delegate);
+            }
+            slot.items.remove();
+        }
+    }
+
+    /**
+     * Receives the output of one task; the {@link #items} are {@link Message}s and nested {@link Slot}s.
+     */
+    private static
+    class Slot extends AbstractPrinter {
+
+        private final OrderedOutputSquadExecutor<?> owner;
+        final Queue<Object>                         items = new ArrayDeque<Object>();
+        boolean                                     closed;
+
+        Slot(OrderedOutputSquadExecutor<?> owner) { this.owner = owner; }
+
+        @Override public void error(@Nullable String message)   { this.add(Level.ERROR,   message); }
+        @Override public void warn(@Nullable String message)    { this.add(Level.WARN,    message); }
+        @Override public void info(@Nullable String message)    { this.add(Level.INFO,    message); }
+        @Override public void verbose(@Nullable String message) { this.add(Level.VERBOSE, message); }
+        @Override public void debug(@Nullable String message)   { this.add(Level.DEBUG,   message); }
+
+        private void
+        add(Level level, @Nullable String text) {
+            synchronized (this.owner) {
+                this.items.add(new Message(level, text));
+                this.owner.drain(this.owner.root);
+            }
+        }
+    }
+
+    private static
+    class Message {
+
+        final Level            level;
+        @Nullable final String text;
+
+        Message(Level level, @Nullable String text) { this.level = level; this.text = text; }
+
+        void
+        printTo(AbstractPrinter printer) {
+            switch (this.level) {
+            case ERROR:   printer.error(this.text);   break;
+            case WARN:    printer.warn(this.text);    break;
+            case INFO:    printer.info(this.text);    break;
+            case VERBOSE: printer.verbose(this.text); break;
+            case DEBUG:   printer.debug(this.text);   break;
+            default:      throw new AssertionError(this.level);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.zz.grep;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import de.unkrig.commons.lang.ThreadUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Prints lines to an {@link OutputStream}, much like a {@link java.io.PrintStream}, but encodes them into a large,
+ * reusable byte buffer, and writes the buffer only when it is full (or on {@link #flush()}), so that many lines
+ * are written with one system call.
+ * <p>
+ *   Optionally, the buffers are written by a background thread, so that writing overlaps with the production of
+ *   the following lines.
+ * </p>
+ * <p>
+ *   Like {@link java.io.PrintStream}, this class never throws {@link IOException}s; instead, it stops writing and
+ *   reports the condition through {@link #checkError()}.
+ * </p>
+ */
+final
+class OutputSink {
+
+    private static final int    BUFFER_SIZE    = 64 * 1024;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final OutputStream   out;
+    private final CharsetEncoder encoder;
+    private final boolean        autoFlush;
+
+    /**
+     * The buffer that is currently being filled.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(OutputSink.BUFFER_SIZE);
+
+    /**
+     * Iff asynchronous: The buffer that was filled and waits for the writer thread, and the buffer that the writer
+     * thread has written. (There are exactly two buffers: The {@link #buffer} and the "other" one, which is in one of
+     * these queues, or being written.)
+     */
+    @Nullable private final BlockingQueue<ByteBuffer> full, empty;
+
+    private volatile boolean error;
+
+    /**
+     * @param autoFlush Whether to write each line immediately
+     * @param async     Whether to write the buffers in a background thread; ignored iff <var>autoFlush</var>
+     */
+    OutputSink(OutputStream out, Charset charset, boolean autoFlush, boolean async) {
+
+        this.out       = out;
+        this.encoder   = (
+            charset
+            .newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+        );
+        this.autoFlush = autoFlush;
+
+        if (autoFlush || !async) {
+            this.full  = null;
+            this.empty = null;
+            return;
+        }
+
+        final BlockingQueue<ByteBuffer> full  = (this.full = new ArrayBlockingQueue<ByteBuffer>(1));
+        final BlockingQueue<ByteBuffer> empty = (this.empty = new ArrayBlockingQueue<ByteBuffer>(1));
+        empty.add(ByteBuffer.allocate(OutputSink.BUFFER_SIZE));
+
+        Thread writer = ThreadUtil.DAEMON_THREAD_FACTORY.newThread(new Runnable() {
+
+            @Override public void
+            run() {
+                try {
+                    for (;;) {
+                        ByteBuffer b = full.take();
+                        OutputSink.this.write(b);
+                        empty.put(b);
+                    }
+                } catch (InterruptedException ie) {
+                    ;
+                }
+            }
+        });
+        writer.setName("zzgrep-output");
+        writer.start();
+    }
+
+    /**
+     * Prints the <var>text</var> and a line separator.
+     */
+    public synchronized void
+    println(@Nullable String text) {
+
+        this.encode(String.valueOf(text));
+        this.encode(OutputSink.LINE_SEPARATOR);
+
+        if (this.autoFlush) this.flush();
+    }
+
+    /**
+     * Writes all buffered output, and waits until it is written.
+     */
+    public synchronized void
+    flush() {
+
+        this.drain();
+
+        // Wait until the writer thread has written the "other" buffer.
+        BlockingQueue<ByteBuffer> empty = this.empty;
+        if (empty != null) {
+            try {
+                empty.put(empty.take());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            this.out.flush();
+        } catch (IOException ioe) {
+            this.error = true;
+        }
+    }
+
+    /**
+     * @return Whether writing failed, e.g. because the reader of a pipe terminated
+     */
+    public boolean
+    checkError() { return this.error; }
+
+    private void
+    encode(String s) {
+
+        CharBuffer in = CharBuffer.wrap(s);
+        for (;;) {
+            CoderResult cr = this.encoder.encode(in, this.buffer, true);
+            if (cr.isOverflow()) {
+                this.drain();
+                continue;
+            }
+            if (cr.isError()) throw new AssertionError(cr);
+            break;
+        }
+        while (this.encoder.flush(this.buffer).isOverflow()) this.drain();
+        this.encoder.reset();
+    }
+
+    /**
+     * Hands the current buffer to the writer thread (and continues with another buffer), or writes it.
+     */
+    private void
+    drain() {
+
+        if (this.buffer.position() == 0) return;
+
+        BlockingQueue<ByteBuffer> full  = this.full;
+        BlockingQueue<ByteBuffer> empty = this.empty;
+        if (full == null || empty == null) {
+            this.write(this.buffer);
+            return;
+        }
+
+        try {
+            full.put(this.buffer);
+            this.buffer = empty.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes and clears the <var>buffer</var>.
+     */
+    private void
+    write(ByteBuffer buffer) {
+
+        if (!this.error) {
+            try {
+                this.out.write(buffer.array(), 0, buffer.position());
+            } catch (IOException ioe) {
+                this.error = true;
+            }
+        }
+
+        buffer.clear();
+    }
+}
@@ -0,0 +1,581 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.grep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A set of patterns, compiled such that a line can be searched for all of them in (roughly) one pass, no matter
+ * how many patterns there are.
+ * <p>
+ *   All literal strings that are relevant for the patterns are merged into one Aho-Corasick automaton, i.e. a DFA
+ *   that finds all of them in a single scan:
+ * </p>
+ * <ul>
+ *   <li>
+ *     Patterns that are plain literals are matched by the automaton alone.
+ *   </li>
+ *   <li>
+ *     For each other pattern, the automaton finds the literals that any match of the pattern must contain (see
+ *     {@link LiteralPrefilter#requiredLiterals(Pattern)}); the (relatively slow) regex engine is only run for the
+ *     patterns whose required literals occur in the line.
+ *   </li>
+ *   <li>
+ *     Only the patterns that have no required literals are always run.
+ *   </li>
+ * </ul>
+ * <p>
+ *   Instances are immutable and can be shared between threads; each thread must create its own {@link
+ *   #newFinder() finder}.
+ * </p>
+ */
+final
+class PatternSet {
+
+    /**
+     * The patterns, in their original order.
+     */
+    final Pattern[] patterns;
+
+    /**
+     * Identifies the lines that can contain matches of any of the {@link #patterns}, or {@code null}.
+     */
+    @Nullable final LiteralPrefilter prefilter;
+
+    /**
+     * The automaton, or {@code null} iff it would not pay off (e.g. for a single pattern).
+     */
+    @Nullable private final LiteralAutomaton automaton;
+
+    // For each pattern: Whether it is matched by the automaton alone, resp. whether the automaton finds its required
+    // literals.
+    private final boolean[] literal, gated;
+
+    PatternSet(Pattern[] patterns) {
+
+        this.patterns = patterns;
+
+        int n = patterns.length;
+
+        boolean    caseInsensitive  = LiteralPrefilter.isCaseInsensitive(patterns);
+        String[][] requiredLiterals = new String[n][];
+        for (int i = 0; i < n; i++) requiredLiterals[i] = LiteralPrefilter.requiredLiterals(patterns[i]);
+
+        this.prefilter = LiteralPrefilter.create(Arrays.asList(requiredLiterals), caseInsensitive);
+        this.literal   = new boolean[n];
+        this.gated     = new boolean[n];
+
+        if (n < 2) {
+            this.automaton = null;
+            return;
+        }
+
+        List<String>  needles        = new ArrayList<String>();
+        List<Integer> needlePatterns = new ArrayList<Integer>();
+        List<Boolean> needleMatches  = new ArrayList<Boolean>();
+        for (int i = 0; i < n; i++) {
+            Pattern p = patterns[i];
+
+            // A plain literal can only be matched by the automaton if its case sensitivity is the same.
+            String l = PatternSet.literal(p);
+            if (l != null && ((p.flags() & Pattern.CASE_INSENSITIVE) != 0) == caseInsensitive) {
+                this.literal[i] = true;
+                needles.add(l);
+                needlePatterns.add(i);
+                needleMatches.add(true);
+                continue;
+            }
+
+            String[] rl = requiredLiterals[i];
+            if (rl != null) {
+                this.gated[i] = true;
+                for (String s : rl) {
+                    needles.add(s);
+                    needlePatterns.add(i);
+                    needleMatches.add(false);
+                }
+            }
+        }
+
+        if (needles.isEmpty()) {
+            this.automaton = null;
+            return;
+        }
+
+        int[]     np = new int[needles.size()];
+        boolean[] nm = new boolean[needles.size()];
+        for (int i = 0; i < np.length; i++) {
+            np[i] = needlePatterns.get(i);
+            nm[i] = needleMatches.get(i);
+        }
+        this.automaton = new LiteralAutomaton(needles.toArray(new String[np.length]), np, nm, caseInsensitive);
+    }
+
+    /**
+     * @return A new finder for this pattern set
+     */
+    Finder
+    newFinder() { return new Finder(); }
+
+    /**
+     * Finds the matches of the patterns of a {@link PatternSet} within a region (typically: a line) of a text.
+     * Lookaheads and lookbehinds may "see" the text outside of the region.
+     */
+    final
+    class Finder {
+
+        // For each pattern that is not matched by the automaton alone.
+        private final Matcher[] matchers = new Matcher[PatternSet.this.patterns.length];
+
+        // The state of the current search.
+        @Nullable private CharSequence text;
+        private int                    to;
+        private final boolean[]        gateOpen  = new boolean[PatternSet.this.patterns.length];
+        private final int[]            nextStart = new int[PatternSet.this.patterns.length];
+        private final int[]            nextEnd   = new int[PatternSet.this.patterns.length];
+
+        // The current match.
+        private int start, end, patternIndex;
+
+        Finder() {
+            for (int i = 0; i < this.matchers.length; i++) {
+                if (!PatternSet.this.literal[i]) {
+                    this.matchers[i] = (
+                        PatternSet.this.patterns[i]
+                        .matcher("")
+                        .useTransparentBounds(true)
+                        .useAnchoringBounds(false)
+                    );
+                }
+            }
+        }
+
+        /**
+         * Sets the text for all subsequent searches.
+         */
+        void
+        reset(CharSequence text) {
+            this.text = text;
+            for (Matcher m : this.matchers) {
+                if (m != null) m.reset(text);
+            }
+        }
+
+        /**
+         * @return Whether any of the patterns matches within the given region
+         */
+        boolean
+        hasMatch(int from, int to) {
+
+            this.to = to;
+
+            if (PatternSet.this.automaton != null) {
+                this.scan(from);
+                for (int i = 0; i < this.matchers.length; i++) {
+                    if (PatternSet.this.literal[i] && this.nextStart[i] != -1) return true;
+                }
+            }
+
+            for (int i = 0; i < this.matchers.length; i++) {
+                Matcher m = this.matchers[i];
+                if (m != null && (!PatternSet.this.gated[i] || this.gateOpen[i]) && m.region(from, to).find()) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Starts a new search within the given region, and finds the leftmost match; iff several patterns match at
+         * the same position, then the first of them wins. On success, {@link #start()}, {@link #end()} and {@link
+         * #patternIndex()} designate the match.
+         *
+         * @see #findNext(int)
+         */
+        boolean
+        find(int from, int to) {
+
+            this.to = to;
+
+            if (PatternSet.this.automaton != null) this.scan(from);
+
+            for (int i = 0; i < this.matchers.length; i++) {
+                if (PatternSet.this.literal[i]) continue;
+                if (PatternSet.this.gated[i] && !this.gateOpen[i]) {
+                    this.nextStart[i] = -1;
+                } else {
+                    this.findPattern(i, from);
+                }
+            }
+
+            return this.select();
+        }
+
+        /**
+         * Continues the current search, and finds the leftmost match at or after <var>from</var>, which must not be
+         * less than the <var>from</var> of the preceding invocation.
+         */
+        boolean
+        findNext(int from) {
+
+            if (from > this.to) return false;
+
+            boolean rescan = false;
+            for (int i = 0; i < this.matchers.length; i++) {
+                int ms = this.nextStart[i];
+                if (ms == -1 || ms >= from) continue;
+                if (PatternSet.this.literal[i]) {
+                    rescan = true;
+                } else {
+                    this.findPattern(i, from);
+                }
+            }
+
+            // (Rescanning invalidates the gates, but these are only needed when a search starts.)
+            if (rescan) this.scan(from);
+
+            return this.select();
+        }
+
+        /**
+         * @return The offset of the current match
+         */
+        int
+        start() { return this.start; }
+
+        /**
+         * @return The offset of the end of the current match
+         */
+        int
+        end() { return this.end; }
+
+        /**
+         * @return The index of the pattern that produced the current match
+         */
+        int
+        patternIndex() { return this.patternIndex; }
+
+        private void
+        findPattern(int i, int from) {
+            Matcher m = this.matchers[i];
+            if (m.region(from, this.to).find()) {
+                this.nextStart[i] = m.start();
+                this.nextEnd[i]   = m.end();
+            } else {
+                this.nextStart[i] = -1;
+            }
+        }
+
+        /**
+         * Makes the leftmost of the pending matches the current match.
+         */
+        private boolean
+        select() {
+
+            int best = -1;
+            for (int i = 0; i < this.nextStart.length; i++) {
+                int ms = this.nextStart[i];
+                if (ms != -1 && (best == -1 || ms < this.nextStart[best])) best = i;
+            }
+            if (best == -1) return false;
+
+            this.start        = this.nextStart[best];
+            this.end          = this.nextEnd[best];
+            this.patternIndex = best;
+            return true;
+        }
+
+        /**
+         * Runs the automaton from <var>from</var> to the end of the region. Finds the leftmost match of each
+         * literal pattern, and determines which of the gated patterns can match.
+         */
+        private void
+        scan(int from) {
+
+            LiteralAutomaton la = PatternSet.this.automaton;
+            assert la != null;
+
+            CharSequence text = this.text;
+            assert text != null;
+
+            boolean[] literal = PatternSet.this.literal;
+            for (int i = 0; i < literal.length; i++) {
+                if (literal[i]) this.nextStart[i] = -1;
+            }
+            Arrays.fill(this.gateOpen, false);
+
+            int[]     t  = la.transitions;
+            int       cc = la.classCount;
+            boolean   ci = la.caseInsensitive;
+            for (int i = from, state = 0, to = this.to; i < to; i++) {
+
+                char c = text.charAt(i);
+                if (ci && c >= 'A' && c <= 'Z') c += 'a' - 'A';
+
+                state = t[state * cc + (c < 128 ? la.asciiClasses[c] : la.classOf(c))];
+
+                int[] out = la.outputs[state];
+                if (out == null) continue;
+
+                for (int n : out) {
+                    int p = la.needlePatterns[n];
+                    if (!la.needleMatches[n]) {
+                        this.gateOpen[p] = true;
+                    } else
+                    if (this.nextStart[p] == -1) {
+                        this.nextStart[p] = i + 1 - la.needleLengths[n];
+                        this.nextEnd[p]   = i + 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An Aho-Corasick automaton for a set of literal strings ("needles"); the "goto" and "failure" functions are
+     * precomputed into a DFA transition table.
+     */
+    private static final
+    class LiteralAutomaton {
+
+        // For each needle: The pattern it belongs to, whether it is that pattern's complete match (as opposed to a
+        // required literal), and its length.
+        final int[]     needlePatterns;
+        final boolean[] needleMatches;
+        final int[]     needleLengths;
+
+        final boolean caseInsensitive;
+
+        // The "input alphabet": Each character that appears in any needle has its own "class", all other characters
+        // map to class 0.
+        final int[]          asciiClasses = new int[128];
+        private final char[] otherChars;
+        final int            classCount;
+
+        // "transitions[state * classCount + class]" is the successor state; "outputs[state]" are the needles that
+        // end in that state (or null).
+        final int[]   transitions;
+        final int[][] outputs;
+
+        LiteralAutomaton(String[] needles, int[] needlePatterns, boolean[] needleMatches, boolean caseInsensitive) {
+
+            this.needlePatterns  = needlePatterns;
+            this.needleMatches   = needleMatches;
+            this.needleLengths   = new int[needles.length];
+            this.caseInsensitive = caseInsensitive;
+
+            if (caseInsensitive) {
+                needles = needles.clone();
+                for (int i = 0; i < needles.length; i++) needles[i] = PatternSet.fold(needles[i]);
+            }
+
+            // Compute the alphabet.
+            {
+                TreeSet<Character> others = new TreeSet<Character>();
+                int                cc     = 1;
+                for (String needle : needles) {
+                    for (int i = 0; i < needle.length(); i++) {
+                        char c = needle.charAt(i);
+                        if (c >= 128) {
+                            others.add(c);
+                        } else
+                        if (this.asciiClasses[c] == 0) {
+                            this.asciiClasses[c] = cc++;
+                        }
+                    }
+                }
+                this.otherChars = new char[others.size()];
+                int i = 0;
+                for (char c : others) this.otherChars[i++] = c;
+                this.classCount = cc + this.otherChars.length;
+            }
+
+            int cc = this.classCount;
+
+            // Build the trie; "-1" means "no transition".
+            List<int[]> gotos = new ArrayList<int[]>();
+            List<int[]> outs  = new ArrayList<int[]>();
+            gotos.add(PatternSet.filled(cc, -1));
+            outs.add(null);
+            for (int n = 0; n < needles.length; n++) {
+                String needle = needles[n];
+                int    state  = 0;
+                for (int i = 0; i < needle.length(); i++) {
+                    int cls  = this.classOf(needle.charAt(i));
+                    int next = gotos.get(state)[cls];
+                    if (next == -1) {
+                        next = gotos.size();
+                        gotos.get(state)[cls] = next;
+                        gotos.add(PatternSet.filled(cc, -1));
+                        outs.add(null);
+                    }
+                    state = next;
+                }
+                outs.set(state, PatternSet.append(outs.get(state), n));
+                this.needleLengths[n] = needle.length();
+            }
+
+            // Compute the failure function breadth-first, and, from it, the complete transition table. Each state
+            // also outputs the needles of its failure state.
+            int   stateCount  = gotos.size();
+            int[] transitions = new int[stateCount * cc];
+            int[] failure     = new int[stateCount];
+            int[] queue       = new int[stateCount];
+            int   head        = 0, tail = 0;
+            for (int cls = 0; cls < cc; cls++) {
+                int s = gotos.get(0)[cls];
+                if (s != -1) {
+                    transitions[cls] = s;
+                    queue[tail++]    = s;
+                }
+            }
+            while (head < tail) {
+                int state = queue[head++];
+                outs.set(state, PatternSet.concat(outs.get(state), outs.get(failure[state])));
+                for (int cls = 0; cls < cc; cls++) {
+                    int s = gotos.get(state)[cls];
+                    if (s == -1) {
+                        transitions[state * cc + cls] = transitions[failure[state] * cc + cls];
+                    } else {
+                        transitions[state * cc + cls] = s;
+                        failure[s]                    = transitions[failure[state] * cc + cls];
+                        queue[tail++]                 = s;
+                    }
+                }
+            }
+            this.transitions = transitions;
+            this.outputs     = outs.toArray(new int[stateCount][]);
+        }
+
+        int
+        classOf(char c) {
+
+            if (c < 128) return this.asciiClasses[c];
+
+            int idx = Arrays.binarySearch(this.otherChars, c);
+            return idx < 0 ? 0 : this.classCount - this.otherChars.length + idx;
+        }
+    }
+
+    /**
+     * @return The literal string that the <var>pattern</var> matches, or {@code null} iff the pattern is not a
+     *         plain, non-empty literal
+     */
+    @Nullable private static String
+    literal(Pattern pattern) {
+
+        int flags = pattern.flags();
+        if ((flags & ~(
+            Pattern.MULTILINE | Pattern.UNIX_LINES | Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.LITERAL
+        )) != 0) return null;
+
+        String regex = pattern.pattern();
+        if ((flags & Pattern.LITERAL) != 0) return regex.isEmpty() ? null : regex;
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < regex.length();) {
+            char c = regex.charAt(i++);
+
+            if ("^$.|?*+()[]{}".indexOf(c) != -1) return null;
+
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+
+            if (i == regex.length()) return null;
+            c = regex.charAt(i++);
+            switch (c) {
+            case 't': sb.append('\t');     break;
+            case 'n': sb.append('\n');     break;
+            case 'r': sb.append('\r');     break;
+            case 'f': sb.append('\f');     break;
+            case 'a': sb.append('\u0007'); break;
+            case 'e': sb.append('\u001b'); break;
+            case 'Q':
+                {
+                    int end = regex.indexOf("\\E", i);
+                    if (end == -1) end = regex.length();
+                    sb.append(regex, i, end);
+                    i = Math.min(end + 2, regex.length());
+                }
+                break;
+            default:
+                if (c < 128 && Character.isLetterOrDigit(c)) return null;
+                sb.append(c);
+                break;
+            }
+        }
+
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Implements the case folding of {@link Pattern#CASE_INSENSITIVE} <em>without</em> {@link
+     * Pattern#UNICODE_CASE}, i.e. only US-ASCII characters are folded.
+     */
+    private static String
+    fold(String s) {
+        char[] ca = s.toCharArray();
+        for (int i = 0; i < ca.length; i++) {
+            if (ca[i] >= 'A' && ca[i] <= 'Z') ca[i] += 'a' - 'A';
+        }
+        return new String(ca);
+    }
+
+    private static int[]
+    filled(int length, int value) {
+        int[] result = new int[length];
+        Arrays.fill(result, value);
+        return result;
+    }
+
+    private static int[]
+    append(@Nullable int[] a, int value) {
+        if (a == null) return new int[] { value };
+        int[] result = Arrays.copyOf(a, a.length + 1);
+        result[a.length] = value;
+        return result;
+    }
+
+    @Nullable private static int[]
+    concat(@Nullable int[] a, @Nullable int[] b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
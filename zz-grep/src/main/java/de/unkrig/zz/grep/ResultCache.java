@@ -0,0 +1,299 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.zz.grep;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.commons.text.AbstractPrinter;
+import de.unkrig.commons.text.AbstractPrinter.Level;
+
+/**
+ * A persistent cache of search results, i.e. of the messages that were printed while a file or an archive entry was
+ * searched, and of its match count. A result is keyed by the path, the size, the CRC32 and the modification time of
+ * the file or entry (as far as they are known), and by the search settings; thus, when the same search is repeated,
+ * the results of all unchanged files and entries can be replayed without reading them.
+ *
+ * @see DiskCache
+ */
+final
+class ResultCache {
+
+    private static final int VERSION = 1;
+
+    private final DiskCache diskCache;
+    private final String    settings;
+
+    /**
+     * Results that are larger than this are not cached.
+     */
+    private final long maxResultSize;
+
+    /**
+     * @param directory Where the results are stored; is created on demand
+     * @param maxSize   The number of bytes beyond which the least recently used results are evicted
+     * @param settings  Identifies all search settings that affect the result
+     */
+    ResultCache(File directory, long maxSize, String settings) {
+        this.diskCache     = new DiskCache(directory, maxSize, ".dat");
+        this.settings      = settings;
+        this.maxResultSize = maxSize / 16;
+    }
+
+    /**
+     * The messages that were printed while a document was searched, and its match count.
+     */
+    static
+    class Result {
+
+        final List<Level>  levels = new ArrayList<Level>();
+        final List<String> texts  = new ArrayList<String>();
+        int                matchCount;
+
+        /**
+         * Prints all messages to the <var>printer</var>, on their original levels.
+         */
+        void
+        replay(AbstractPrinter printer) {
+
+            for (int i = 0; i < this.levels.size(); i++) {
+                String text = this.texts.get(i);
+                switch (this.levels.get(i)) {
+                case ERROR:   printer.error(text);   break;
+                case WARN:    printer.warn(text);    break;
+                case INFO:    printer.info(text);    break;
+                case VERBOSE: printer.verbose(text); break;
+                case DEBUG:   printer.debug(text);   break;
+                default:      throw new AssertionError(this.levels.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Records all messages that it receives, and forwards them to the <var>delegate</var>. A recording is "not
+     * cacheable" iff it contains errors or warnings (which must be reproduced by re-processing the document), or if
+     * it grows too large.
+     */
+    final
+    class Recording extends AbstractPrinter {
+
+        private final AbstractPrinter delegate;
+
+        /**
+         * The recording that was active when this recording was started, or {@code null}.
+         */
+        @Nullable final Recording enclosing;
+
+        /**
+         * The path of the recorded file or document.
+         */
+        final String path;
+
+        final Result result = new Result();
+        private long size;
+        boolean      cacheable = true;
+
+        Recording(AbstractPrinter delegate, @Nullable Recording enclosing, String path) {
+            this.delegate  = delegate;
+            this.enclosing = enclosing;
+            this.path      = path;
+        }
+
+        @Override public void
+        error(@Nullable String message) {
+            this.cacheable = false;
+            this.delegate.error(message);
+        }
+
+        @Override public void
+        warn(@Nullable String message) {
+            this.cacheable = false;
+            this.delegate.warn(message);
+        }
+
+        @Override public void info(@Nullable String message)    { this.add(Level.INFO, message); }
+        @Override public void verbose(@Nullable String message) { this.add(Level.VERBOSE, message); }
+        @Override public void debug(@Nullable String message)   { this.add(Level.DEBUG, message); }
+
+        private void
+        add(Level level, @Nullable String text) {
+
+            switch (level) {
+            case INFO:    this.delegate.info(text);    break;
+            case VERBOSE: this.delegate.verbose(text); break;
+            case DEBUG:   this.delegate.debug(text);   break;
+            default:      throw new AssertionError(level);
+            }
+
+            if (!this.cacheable) return;
+
+            if (text == null) text = "null";
+            if ((this.size += text.length()) > ResultCache.this.maxResultSize) {
+                this.cacheable = false;
+                this.result.levels.clear();
+                this.result.texts.clear();
+                return;
+            }
+
+            this.result.levels.add(level);
+            this.result.texts.add(text);
+        }
+
+        /**
+         * Adds to the match count of this recording and of all enclosing recordings.
+         */
+        void
+        countMatches(int n) {
+            for (@Nullable Recording r = this; r != null; r = r.enclosing) r.result.matchCount += n;
+        }
+    }
+
+    /**
+     * @param size         -1 means "unknown"
+     * @param crc32        -1 means "unknown"
+     * @param lastModified -1 means "unknown"
+     * @return             The cached result, or {@code null} iff it is not (yet) cached
+     */
+    @Nullable Result
+    get(String path, long size, long crc32, long lastModified) {
+
+        String identity = this.identity(path, size, crc32, lastModified);
+
+        byte[] entry = this.diskCache.get(ResultCache.key(identity));
+        if (entry == null) return null;
+
+        try {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(entry));
+
+            // Guard against (extremely unlikely) hash collisions.
+            if (!ResultCache.readString(dis).equals(identity)) return null;
+
+            Result result = new Result();
+            result.matchCount = dis.readInt();
+            for (int i = dis.readInt(); i > 0; i--) {
+                result.levels.add(Level.values()[dis.readByte()]);
+                result.texts.add(ResultCache.readString(dis));
+            }
+            return result;
+        } catch (IOException ioe) {
+
+            // A corrupt entry is as good as no entry.
+            return null;
+        } catch (RuntimeException re) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the result of the <var>recording</var>, unless it is not cacheable.
+     *
+     * @see #get(String, long, long, long)
+     */
+    void
+    put(String path, long size, long crc32, long lastModified, Recording recording) throws IOException {
+
+        if (!recording.cacheable) return;
+
+        String identity = this.identity(path, size, crc32, lastModified);
+        Result result   = recording.result;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream      dos  = new DataOutputStream(baos);
+
+        ResultCache.writeString(dos, identity);
+        dos.writeInt(result.matchCount);
+        dos.writeInt(result.levels.size());
+        for (int i = 0; i < result.levels.size(); i++) {
+            dos.writeByte(result.levels.get(i).ordinal());
+            ResultCache.writeString(dos, result.texts.get(i));
+        }
+        dos.flush();
+
+        this.diskCache.put(ResultCache.key(identity), baos.toByteArray());
+    }
+
+    private String
+    identity(String path, long size, long crc32, long lastModified) {
+        return (
+            ResultCache.VERSION
+            + "\0"
+            + path
+            + "\0"
+            + size
+            + "\0"
+            + crc32
+            + "\0"
+            + lastModified
+            + "\0"
+            + this.settings
+        );
+    }
+
+    /**
+     * @return The SHA-256 of the <var>identity</var>, as a hex string
+     */
+    private static String
+    key(String identity) {
+
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae);
+        }
+
+        StringBuilder sb = new StringBuilder(2 * digest.length);
+        for (byte b : digest) sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    private static void
+    writeString(DataOutputStream dos, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String
+    readString(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,494 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zz.grep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A persistent index that records, for each document, the set of <em>trigrams</em> (sequences of three bytes) that
+ * it contains. A document that lacks any trigram of a string cannot contain that string; thus, for many searches,
+ * most documents need not be read at all.
+ * <p>
+ *   The index is organized by "files", i.e. the files that the directory traversal encounters. For each file, the
+ *   index stores one {@link FileRecord}, which holds the file's size and modification time, and the {@link
+ *   Document}s within the file (e.g. the entries of an archive file, or the entries of nested archives). The
+ *   documents are keyed by their path relative to the file's path, e.g. "{@code !WEB-INF/lib/b.jar!c/D.class}".
+ * </p>
+ * <p>
+ *   Each file record is stored in a separate file in the index directory, so that only the records of the files
+ *   that are actually searched need to be loaded, and that only the records of modified files need to be written.
+ * </p>
+ * <p>
+ *   Trigrams are computed from the <em>bytes</em> of the documents, with US-ASCII letters folded to lower case; thus
+ *   the index is independent from the charset and the case sensitivity of the search.
+ * </p>
+ */
+final
+class TrigramIndex {
+
+    private static final int MAGIC   = 0x7a7a7469; // "zzti"
+    private static final int VERSION = 1;
+
+    private final File   directory;
+    private final String configuration;
+
+    /**
+     * @param directory     Where the file records are stored; is created on demand
+     * @param configuration Identifies all settings that affect how files are split into documents; records that
+     *                      were created with a different configuration are ignored
+     */
+    TrigramIndex(File directory, String configuration) {
+        this.directory     = directory;
+        this.configuration = configuration;
+    }
+
+    /**
+     * The documents within one file, in traversal order.
+     */
+    static final
+    class FileRecord {
+
+        final long size, lastModified;
+
+        private final Map<String, Document> documents = new LinkedHashMap<String, Document>();
+
+        FileRecord(long size, long lastModified) {
+            this.size         = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return Whether the <var>file</var> still has the size and modification time of this record
+         */
+        boolean
+        isUpToDate(File file) { return file.length() == this.size && file.lastModified() == this.lastModified; }
+
+        @Nullable Document
+        get(String key) { return this.documents.get(key); }
+
+        void
+        put(String key, Document document) { this.documents.put(key, document); }
+
+        /**
+         * @return The documents, keyed by their path relative to the file's path
+         */
+        Map<String, Document>
+        documents() { return this.documents; }
+    }
+
+    /**
+     * The metadata and the trigrams of one document.
+     */
+    static final
+    class Document {
+
+        /**
+         * The size, CRC32 and modification time of the document as reported by the enclosing archive, or -1.
+         */
+        final long size, crc32, lastModified;
+
+        /**
+         * The sorted trigrams of the document, or {@code null} iff the document is not indexed (and may thus
+         * contain anything).
+         */
+        @Nullable final int[] trigrams;
+
+        Document(long size, long crc32, long lastModified, @Nullable int[] trigrams) {
+            this.size         = size;
+            this.crc32        = crc32;
+            this.lastModified = lastModified;
+            this.trigrams     = trigrams;
+        }
+
+        /**
+         * @return Whether the metadata identify the same contents as this document's metadata; that is only
+         *         reliable if at least the size and the CRC32 are known
+         */
+        boolean
+        hasSameContents(long size, long crc32, long lastModified) {
+            return (
+                size != -1
+                && crc32 != -1
+                && size == this.size
+                && crc32 == this.crc32
+                && lastModified == this.lastModified
+            );
+        }
+    }
+
+    /**
+     * @return The record of the <var>file</var>, or {@code null} iff there is no (valid) record for the file
+     */
+    @Nullable FileRecord
+    load(File file) {
+
+        String path = file.getAbsolutePath();
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.recordFile(path))
+            ));
+            try {
+                if (
+                    dis.readInt() != TrigramIndex.MAGIC
+                    || dis.readInt() != TrigramIndex.VERSION
+                    || !dis.readUTF().equals(this.configuration)
+                    || !dis.readUTF().equals(path)
+                ) return null;
+
+                FileRecord result = new FileRecord(dis.readLong(), dis.readLong());
+                for (int i = dis.readInt(); i > 0; i--) {
+
+                    String key          = dis.readUTF();
+                    long   size         = dis.readLong();
+                    long   crc32        = dis.readLong();
+                    long   lastModified = dis.readLong();
+
+                    int[] trigrams;
+                    int   n = dis.readInt();
+                    if (n == -1) {
+                        trigrams = null;
+                    } else {
+                        trigrams = new int[n];
+                        for (int j = 0, t = 0; j < n; j++) trigrams[j] = (t += TrigramIndex.readVarInt(dis));
+                    }
+
+                    result.put(key, new Document(size, crc32, lastModified, trigrams));
+                }
+                return result;
+            } finally {
+                dis.close();
+            }
+        } catch (FileNotFoundException fnfe) {
+            return null;
+        } catch (IOException ioe) {
+
+            // A corrupt record is as good as no record.
+            return null;
+        }
+    }
+
+    /**
+     * Stores the <var>record</var> of the <var>file</var>, replacing any previous record.
+     */
+    void
+    store(File file, FileRecord record) throws IOException {
+
+        String path       = file.getAbsolutePath();
+        File   recordFile = this.recordFile(path);
+        File   tmpFile    = new File(recordFile.getParentFile(), recordFile.getName() + ".tmp");
+
+        File dir = recordFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create directory \"" + dir + "\"");
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            dos.writeInt(TrigramIndex.MAGIC);
+            dos.writeInt(TrigramIndex.VERSION);
+            dos.writeUTF(this.configuration);
+            dos.writeUTF(path);
+            dos.writeLong(record.size);
+            dos.writeLong(record.lastModified);
+            dos.writeInt(record.documents.size());
+            for (Entry<String, Document> e : record.documents.entrySet()) {
+                Document d = e.getValue();
+                dos.writeUTF(e.getKey());
+                dos.writeLong(d.size);
+                dos.writeLong(d.crc32);
+                dos.writeLong(d.lastModified);
+
+                int[] trigrams = d.trigrams;
+                if (trigrams == null) {
+                    dos.writeInt(-1);
+                } else {
+                    dos.writeInt(trigrams.length);
+                    for (int j = 0, t = 0; j < trigrams.length; t = trigrams[j++]) {
+                        TrigramIndex.writeVarInt(dos, trigrams[j] - t);
+                    }
+                }
+            }
+        } finally {
+            dos.close();
+        }
+
+        Files.move(tmpFile.toPath(), recordFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return The file that stores the record for the file with the given absolute <var>path</var>
+     */
+    private File
+    recordFile(String path) {
+
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+
+        // Spread the records over 256 subdirectories.
+        return new File(new File(this.directory, sb.substring(0, 2)), sb.substring(2) + ".idx");
+    }
+
+    private static void
+    writeVarInt(DataOutputStream dos, int value) throws IOException {
+        for (; (value & ~0x7f) != 0; value >>>= 7) dos.writeByte((value & 0x7f) | 0x80);
+        dos.writeByte(value);
+    }
+
+    private static int
+    readVarInt(DataInputStream dis) throws IOException {
+        int result = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = dis.readUnsignedByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+    }
+
+    /**
+     * Computes the set of trigrams of a byte sequence that is fed in portions.
+     */
+    static final
+    class Collector {
+
+        // An open-addressing hash set; each element is stored as "trigram + 1", so that 0 designates an empty slot.
+        private int[] table = new int[1024];
+        private int   size;
+
+        // The last two bytes, and how many bytes were fed so far (up to 2).
+        private int previous, count;
+
+        void
+        add(byte[] buffer, int offset, int length) {
+            for (int i = offset, end = offset + length; i < end; i++) this.add(buffer[i]);
+        }
+
+        void
+        add(ByteBuffer buffer) { this.add(buffer, buffer.position(), buffer.limit()); }
+
+        void
+        add(ByteBuffer buffer, int from, int to) {
+            for (int i = from; i < to; i++) this.add(buffer.get(i));
+        }
+
+        private void
+        add(byte b) {
+
+            int trigram = ((this.previous << 8) | TrigramIndex.fold(b)) & 0xffffff;
+            this.previous = trigram;
+            if (this.count < 2) {
+                this.count++;
+                return;
+            }
+
+            int[] t    = this.table;
+            int   mask = t.length - 1;
+            for (int i = Collector.slot(trigram, mask);; i = (i + 1) & mask) {
+                int e = t[i];
+                if (e == trigram + 1) return;
+                if (e == 0) {
+                    t[i] = trigram + 1;
+                    if (++this.size * 2 > t.length) this.rehash();
+                    return;
+                }
+            }
+        }
+
+        private void
+        rehash() {
+            int[] old = this.table;
+            int[] t   = (this.table = new int[2 * old.length]);
+            int   mask = t.length - 1;
+            for (int e : old) {
+                if (e == 0) continue;
+                int i = Collector.slot(e - 1, mask);
+                while (t[i] != 0) i = (i + 1) & mask;
+                t[i] = e;
+            }
+        }
+
+        private static int
+        slot(int trigram, int mask) {
+            int h = trigram * 0x9e3779b1;
+            return (h ^ (h >>> 15)) & mask;
+        }
+
+        /**
+         * @return An input stream that reads from the <var>delegate</var>, and feeds all bytes read into this
+         *         collector
+         */
+        InputStream
+        tee(InputStream delegate) {
+            return new FilterInputStream(delegate) {
+
+                @Override public int
+                read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) Collector.this.add((byte) b);
+                    return b;
+                }
+
+                @Override public int
+                read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) Collector.this.add(b, off, n);
+                    return n;
+                }
+
+                @Override public long
+                skip(long n) throws IOException {
+                    byte[] buffer = new byte[(int) Math.min(n, 8192)];
+                    int    r      = this.read(buffer, 0, buffer.length);
+                    return r == -1 ? 0 : r;
+                }
+
+                @Override public boolean
+                markSupported() { return false; }
+            };
+        }
+
+        /**
+         * @return The sorted trigrams
+         */
+        int[]
+        trigrams() {
+            int[] result = new int[this.size];
+            int   n      = 0;
+            for (int e : this.table) {
+                if (e != 0) result[n++] = e - 1;
+            }
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    /**
+     * Determines which documents may contain matches of a set of patterns.
+     */
+    static final
+    class Query {
+
+        /**
+         * For each of the literals that any match must contain: The trigrams of the literal; {@code null} means that
+         * any document may contain matches.
+         */
+        @Nullable private final int[][] literals;
+
+        /**
+         * @param prefilter The literals that any match must contain (see {@link PatternSet#prefilter})
+         */
+        Query(@Nullable LiteralPrefilter prefilter, Charset charset) {
+
+            // Only for ASCII-compatible charsets, a decoded literal implies its encoded bytes.
+            LiteralPrefilter pf = (
+                prefilter == null || !LineMatcher.isAsciiCompatible(charset)
+                ? null
+                : prefilter.encode(charset)
+            );
+            if (pf == null) {
+                this.literals = null;
+                return;
+            }
+
+            int[][] literals = new int[pf.needles().size()][];
+            int     i        = 0;
+            for (String needle : pf.needles()) {
+
+                // A literal that is shorter than a trigram can be anywhere.
+                if (needle.length() < 3) {
+                    this.literals = null;
+                    return;
+                }
+
+                int[] trigrams = new int[needle.length() - 2];
+                for (int j = 0; j < trigrams.length; j++) {
+                    trigrams[j] = (
+                        TrigramIndex.fold((byte) needle.charAt(j)) << 16
+                        | TrigramIndex.fold((byte) needle.charAt(j + 1)) << 8
+                        | TrigramIndex.fold((byte) needle.charAt(j + 2))
+                    );
+                }
+                literals[i++] = trigrams;
+            }
+            this.literals = literals;
+        }
+
+        /**
+         * @return Whether the <var>document</var> may contain any matches
+         */
+        boolean
+        mayMatch(Document document) {
+
+            int[][] literals = this.literals;
+            int[]   trigrams = document.trigrams;
+            if (literals == null || trigrams == null) return true;
+
+            LITERALS:
+            for (int[] literal : literals) {
+                for (int t : literal) {
+                    if (Arrays.binarySearch(trigrams, t) < 0) continue LITERALS;
+                }
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * @return The byte, with US-ASCII letters folded to lower case, as an unsigned value
+     */
+    private static int
+    fold(byte b) { return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff; }
+}
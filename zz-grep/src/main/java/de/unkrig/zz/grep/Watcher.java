@@ -0,0 +1,448 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package de.unkrig.zz.grep;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.unkrig.commons.file.ExceptionHandler;
+import de.unkrig.commons.file.fileprocessing.FileProcessor;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Implements {@link Grep#setWatch(boolean) watch mode}: After the initial search, waits for files to be created or
+ * modified in the watched directories, and searches them.
+ * <p>
+ *   For each plain file, the watcher remembers the position up to which it was searched, keyed by the file's identity
+ *   (e.g. the inode number), so that a file that was merely renamed (e.g. by log rotation) is not searched again.
+ *   When a file grows, then only the complete lines that were appended are searched. Files that shrank, and archive
+ *   and compressed files, are searched from the beginning.
+ * </p>
+ */
+final
+class Watcher {
+
+    /**
+     * How long to wait for more file system events after the first, so that a burst of writes is processed in one
+     * pass.
+     */
+    private static final long SETTLE_TIME = 100;
+
+    private final Grep grep;
+
+    @Nullable private WatchService watchService;
+
+    /**
+     * The position up to which a plain file was searched.
+     */
+    static
+    class Position {
+
+        /**
+         * The offset of the first line that was not yet searched.
+         */
+        long offset;
+
+        /**
+         * The number of lines before the {@link #offset}, or -1 iff unknown.
+         */
+        int lineCount;
+
+        Position(long offset, int lineCount) {
+            this.offset    = offset;
+            this.lineCount = lineCount;
+        }
+    }
+
+    /**
+     * A watched directory.
+     */
+    private static
+    class Directory {
+
+        final File directory;
+
+        /**
+         * The path of the directory, as it appears in the output, iff all members are watched, or {@code null}.
+         */
+        @Nullable String path;
+
+        /**
+         * The paths of the individually watched members, by member name.
+         */
+        final Map<String, String> members = new HashMap<String, String>();
+
+        Directory(File directory) { this.directory = directory; }
+
+        /**
+         * @return The path of the given member, as it appears in the output, or {@code null} iff the member is not
+         *         watched
+         */
+        @Nullable String
+        pathOf(String memberName) {
+            String p = this.path;
+            return p != null ? p + File.separatorChar + memberName : this.members.get(memberName);
+        }
+    }
+
+    private final Map<WatchKey, Directory> directories = new ConcurrentHashMap<WatchKey, Directory>();
+
+    /**
+     * The search positions of all plain files, by file key.
+     */
+    private final Map<Object, Position> positions = new ConcurrentHashMap<Object, Position>();
+
+    /**
+     * The file keys of all plain files, by file.
+     */
+    private final Map<File, Object> fileKeys = new ConcurrentHashMap<File, Object>();
+
+    Watcher(Grep grep) { this.grep = grep; }
+
+    /**
+     * @return A {@link FileProcessor} which starts watching each file or directory (including its subdirectories)
+     *         before the <var>delegate</var> processes it
+     */
+    FileProcessor<Void>
+    rootFileProcessor(final FileProcessor<Void> delegate) {
+
+        return new FileProcessor<Void>() {
+
+            @Override @Nullable public Void
+            process(String path, File file) throws IOException, InterruptedException {
+
+                if (file.isDirectory()) {
+                    Watcher.this.watchDirectoryTree(path, file);
+                } else {
+                    Watcher.this.watchFile(path, file);
+                }
+
+                return delegate.process(path, file);
+            }
+
+            @Override public String
+            toString() { return "rootFileProcessor(" + delegate + ")"; }
+        };
+    }
+
+    /**
+     * @return A {@link FileProcessor} which records the position of each plain file before the <var>delegate</var>
+     *         searches it
+     */
+    FileProcessor<Void>
+    positionRecordingFileProcessor(final FileProcessor<Void> delegate) {
+
+        return new FileProcessor<Void>() {
+
+            @Override @Nullable public Void
+            process(String path, File file) throws IOException, InterruptedException {
+
+                if (file.isFile()) {
+                    Object key = Watcher.fileKey(file);
+                    FileInputStream fis = new FileInputStream(file);
+                    try {
+                        FileChannel fc = fis.getChannel();
+                        Watcher.this.positions.put(key, new Position(Watcher.lastLineEnd(fc, 0, fc.size()), -1));
+                    } finally {
+                        fis.close();
+                    }
+                    Watcher.this.fileKeys.put(file, key);
+                }
+
+                return delegate.process(path, file);
+            }
+
+            @Override public String
+            toString() { return "positionRecordingFileProcessor(" + delegate + ")"; }
+        };
+    }
+
+    /**
+     * Waits for file system events, and searches the created and modified files with the <var>fileProcessor</var>
+     * resp. {@link Grep#searchAppendedLines(String, File, Position, AtomicBoolean)}. Never returns.
+     *
+     * @param stopped   Whether the outcome of the search is decided
+     * @param afterPass Is run after each pass, e.g. to flush the output
+     */
+    void
+    run(
+        FileProcessor<Void>           fileProcessor,
+        AtomicBoolean                 stopped,
+        ExceptionHandler<IOException> exceptionHandler,
+        Runnable                      afterPass
+    ) throws IOException, InterruptedException {
+
+        WatchService watchService = this.watchService();
+
+        for (;;) {
+
+            @Nullable WatchKey key = watchService.take();
+            Thread.sleep(Watcher.SETTLE_TIME);
+
+            // Collect the changed files, ordered by path.
+            Map<String, File> changed = new TreeMap<String, File>();
+            List<File>        deleted = new ArrayList<File>();
+            for (; key != null; key = watchService.poll()) {
+
+                Directory directory = this.directories.get(key);
+                if (directory == null) continue;
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+
+                        // Events were lost; check all members.
+                        File[] members = directory.directory.listFiles();
+                        if (members == null) continue;
+                        for (File member : members) {
+                            String path = directory.pathOf(member.getName());
+                            if (path != null) changed.put(path, member);
+                        }
+                        continue;
+                    }
+
+                    String name = event.context().toString();
+                    String path = directory.pathOf(name);
+                    if (path == null) continue;
+
+                    File file = new File(directory.directory, name);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        deleted.add(file);
+                    } else {
+                        changed.put(path, file);
+                    }
+                }
+
+                if (!key.reset()) this.directories.remove(key);
+            }
+
+            // Now search the changed files.
+            for (Entry<String, File> e : changed.entrySet()) {
+                String path = e.getKey();
+                File   file = e.getValue();
+
+                try {
+                    this.process(path, file, fileProcessor, stopped);
+                } catch (IOException ioe) {
+                    exceptionHandler.handle(path, ioe);
+                } catch (RuntimeException re) {
+                    exceptionHandler.handle(path, re);
+                }
+            }
+
+            // Forget the positions of deleted files, but not of files that were only renamed.
+            for (File file : deleted) {
+                Object fileKey = this.fileKeys.remove(file);
+                if (fileKey != null && !this.fileKeys.containsValue(fileKey)) this.positions.remove(fileKey);
+            }
+
+            afterPass.run();
+        }
+    }
+
+    private void
+    process(String path, File file, FileProcessor<Void> fileProcessor, AtomicBoolean stopped)
+    throws IOException, InterruptedException {
+
+        if (file.isDirectory()) {
+
+            // A new directory; watch and search it.
+            if (!this.isWatched(file)) fileProcessor.process(path, file);
+            return;
+        }
+
+        if (!file.isFile()) return;
+
+        Object   key      = Watcher.fileKey(file);
+        Position position = this.positions.get(key);
+        if (position != null) {
+            this.fileKeys.put(file, key);
+            if (this.grep.searchAppendedLines(path, file, position, stopped)) return;
+        }
+
+        fileProcessor.process(path, file);
+    }
+
+    private void
+    watchDirectoryTree(String path, File directory) throws IOException {
+
+        if (this.isWatched(directory)) return;
+
+        this.watch(directory).path = path;
+
+        File[] members = directory.listFiles();
+        if (members == null) return;
+        for (File member : members) {
+            if (member.isDirectory()) this.watchDirectoryTree(path + File.separatorChar + member.getName(), member);
+        }
+    }
+
+    private void
+    watchFile(String path, File file) throws IOException {
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent == null) return;
+
+        Directory directory = this.watch(parent);
+        directory.members.put(file.getName(), path);
+    }
+
+    private boolean
+    isWatched(File directory) {
+
+        for (Directory d : this.directories.values()) {
+            if (d.path != null && d.directory.equals(directory)) return true;
+        }
+
+        return false;
+    }
+
+    private Directory
+    watch(File directory) throws IOException {
+
+        WatchKey key = directory.toPath().register(
+            this.watchService(),
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE
+        );
+
+        synchronized (this.directories) {
+            Directory result = this.directories.get(key);
+            if (result == null) this.directories.put(key, (result = new Directory(directory)));
+            return result;
+        }
+    }
+
+    private synchronized WatchService
+    watchService() throws IOException {
+
+        WatchService result = this.watchService;
+        if (result == null) this.watchService = (result = FileSystems.getDefault().newWatchService());
+
+        return result;
+    }
+
+    /**
+     * @return An object that identifies the <var>file</var> even if it is renamed, e.g. its inode number
+     */
+    private static Object
+    fileKey(File file) throws IOException {
+
+        Object result = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+
+        return result != null ? result : file.getAbsoluteFile();
+    }
+
+    /**
+     * @return The offset after the last line terminator in <var>fc</var>{@code [from...to)}, or <var>from</var>
+     *         iff there is none; a CR at the very end does not count, because an LF may follow
+     */
+    static long
+    lastLineEnd(FileChannel fc, long from, long to) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (long end = to; end > from;) {
+
+            long start = Math.max(from, end - buffer.capacity());
+
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            for (int n = 0; n < buffer.limit();) {
+                int r = fc.read(buffer, start + n);
+                if (r == -1) return from;
+                n += r;
+            }
+
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                byte b = buffer.get(i);
+                if (b == '\n' || (b == '\r' && start + i + 1 < to)) return start + i + 1;
+            }
+
+            end = start;
+        }
+
+        return from;
+    }
+
+    /**
+     * @return The number of lines in <var>fc</var>{@code [0...to)}, where <var>to</var> is the end of a line; lines
+     *         are terminated by LF, CR or CR-LF
+     */
+    static int
+    countLines(FileChannel fc, long to) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+
+        int     result = 0;
+        boolean cr     = false;
+        for (long position = 0; position < to;) {
+
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            int n = fc.read(buffer, position);
+            if (n == -1) break;
+
+            for (int i = 0; i < n; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    if (!cr) result++;
+                    cr = false;
+                } else
+                if (b == '\r') {
+                    result++;
+                    cr = true;
+                } else
+                {
+                    cr = false;
+                }
+            }
+            position += n;
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,710 @@
+
+/*
+ * de.unkrig.grep - An advanced version of the UNIX GREP utility
+ *
+ * Copyright (c) 2026, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+// SUPPRESS CHECKSTYLE Javadoc:9999
+
+package test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.unkrig.commons.file.FileUtil;
+import de.unkrig.commons.file.fileprocessing.FileProcessings;
+import de.unkrig.commons.lang.protocol.Consumer;
+import de.unkrig.commons.lang.protocol.ConsumerUtil;
+import de.unkrig.commons.lang.protocol.RunnableWhichThrows;
+import de.unkrig.commons.text.AbstractPrinter;
+import de.unkrig.commons.text.Printers;
+import de.unkrig.commons.text.pattern.Glob;
+import de.unkrig.zz.grep.Grep;
+import de.unkrig.zz.grep.Grep.Match;
+import de.unkrig.zz.grep.Grep.MatchHandler;
+import de.unkrig.zz.grep.Grep.Operation;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the {@link Grep} class.
+ */
+public
+class GrepTest extends TestCase {
+
+    private static final File FILES = new File("files");
+
+    private static final String A_TXT = "alpha\nbeta one\ngamma\ndelta one two\nepsilon\nzeta\neta one\n";
+
+    /**
+     * Many lines of "random" words, some of which differ only in case, or contain others.
+     */
+    private static final String RANDOM_TXT = GrepTest.randomText(new Random(1), 2000);
+
+    @Override protected void
+    setUp() throws IOException {
+        if (GrepTest.FILES.exists()) FileUtil.deleteRecursively(GrepTest.FILES);
+        new Files(new Object[] {
+            "a.txt",      GrepTest.A_TXT,
+            "crlf.txt",   "x\r\none\r\ny\r\n",
+            "random.txt", GrepTest.RANDOM_TXT,
+        }).save(GrepTest.FILES);
+    }
+
+    @Override protected void
+    tearDown() throws IOException {
+        FileUtil.deleteRecursively(GrepTest.FILES);
+    }
+
+    @Test public void
+    testLiteralPrefilter() throws Exception {
+
+        // Each of these regexes contains literals that any match must contain, so the prefilter skips most lines;
+        // nevertheless the result must be exactly that of the regex engine.
+        for (String regex : new String[] {
+            "one", "t?one", "colou?r", "foo|bar", "fo+bar", "al.ha", "\\bone\\b", "[Oo]ne", "one.*two", "(one|two) foo",
+        }) {
+            for (boolean caseSensitive : new boolean[] { true, false }) {
+
+                Grep grep = new Grep();
+                grep.addSearch(Glob.ANY, regex, caseSensitive);
+
+                Assert.assertEquals(
+                    regex + (caseSensitive ? "" : " (case-insensitive)"),
+                    GrepTest.matchingLines(GrepTest.RANDOM_TXT, caseSensitive, regex),
+                    GrepTest.grep(grep, "random.txt")
+                );
+            }
+        }
+    }
+
+    @Test public void
+    testLiteralPrefilterNoCandidates() throws Exception {
+
+        // The literal occurs nowhere, so no line is a candidate.
+        Grep grep = new Grep();
+        grep.addSearch(Glob.ANY, "nowhere", true);
+        grep.setOperation(Operation.COUNT);
+
+        Assert.assertEquals(Arrays.asList(GrepTest.path("random.txt") + ":0"), GrepTest.grep(grep, "random.txt"));
+        Assert.assertFalse(grep.getLinesSelected());
+    }
+
+    @Test public void
+    testLineNumbers() throws Exception {
+
+        Grep grep = GrepTest.newGrep("one");
+        grep.setWithLineNumber(true);
+
+        Assert.assertEquals(
+            Arrays.asList("2:beta one", "4:delta one two", "7:eta one"),
+            GrepTest.grep(grep, "a.txt")
+        );
+    }
+
+    @Test public void
+    testContext() throws Exception {
+
+        Grep grep = GrepTest.newGrep("one");
+        grep.setWithLineNumber(true);
+        grep.setBeforeContext(1);
+        grep.setAfterContext(1);
+
+        Assert.assertEquals(
+            Arrays.asList(
+                "1-alpha",
+                "2:beta one",
+                "3-gamma",
+                "4:delta one two",
+                "5-epsilon",
+                "--",
+                "6-zeta",
+                "7:eta one"
+            ),
+            GrepTest.grep(grep, "a.txt")
+        );
+    }
+
+    @Test public void
+    testMaxCount() throws Exception {
+
+        Grep grep = GrepTest.newGrep("one");
+        grep.setMaxCount(2);
+
+        Assert.assertEquals(Arrays.asList("beta one", "delta one two"), GrepTest.grep(grep, "a.txt"));
+    }
+
+    @Test public void
+    testByteOffset() throws Exception {
+
+        // The offset of the line...
+        Grep grep = GrepTest.newGrep("one");
+        grep.setWithByteOffset(true);
+        Assert.assertEquals(
+            Arrays.asList("6:beta one", "21:delta one two", "48:eta one"),
+            GrepTest.grep(grep, "a.txt")
+        );
+
+        // ... resp. of the match.
+        grep.setOperation(Operation.ONLY_MATCHING);
+        Assert.assertEquals(Arrays.asList("11:one", "27:one", "52:one"), GrepTest.grep(grep, "a.txt"));
+    }
+
+    @Test public void
+    testOnlyMatching() throws Exception {
+
+        // All matches, also several in one line.
+        Grep grep = GrepTest.newGrep("o\\w*");
+        grep.setOperation(Operation.ONLY_MATCHING);
+        grep.setWithLineNumber(true);
+
+        Assert.assertEquals(
+            Arrays.asList("2:one", "4:one", "4:o", "5:on", "7:one"),
+            GrepTest.grep(grep, "a.txt")
+        );
+    }
+
+    @Test public void
+    testInverted() throws Exception {
+
+        Grep grep = GrepTest.newGrep("e");
+        grep.setInverted(true);
+        grep.setWithLineNumber(true);
+
+        Assert.assertEquals(Arrays.asList("1:alpha", "3:gamma"), GrepTest.grep(grep, "a.txt"));
+    }
+
+    @Test public void
+    testCrLf() throws Exception {
+
+        // The CR is part of the line terminator, not of the line.
+        Grep grep = GrepTest.newGrep("one$");
+        grep.setWithLineNumber(true);
+        grep.setWithByteOffset(true);
+
+        Assert.assertEquals(Arrays.asList("2:3:one"), GrepTest.grep(grep, "crlf.txt"));
+    }
+
+    @Test public void
+    testMatchesDoNotSpanLines() throws Exception {
+
+        Assert.assertEquals(Arrays.asList(), GrepTest.grep(GrepTest.newGrep("one\\ngamma"), "a.txt"));
+        Assert.assertEquals(Arrays.asList(), GrepTest.grep(GrepTest.newGrep("one\\sgamma"), "a.txt"));
+
+        // "^" and "$" match at the beginning and the end of each line.
+        Assert.assertEquals(Arrays.asList("alpha", "gamma", "zeta"), GrepTest.grep(GrepTest.newGrep("a$"), "a.txt"));
+        Assert.assertEquals(Arrays.asList("epsilon", "eta one"), GrepTest.grep(GrepTest.newGrep("^e"), "a.txt"));
+    }
+
+    @Test public void
+    testLastLineWithoutTerminator() throws Exception {
+
+        Grep grep = GrepTest.newGrep("one");
+        grep.setWithLineNumber(true);
+
+        Assert.assertEquals(Arrays.asList("2:one"), GrepTest.grepStream(grep, "x\none"));
+    }
+
+    @Test public void
+    testStream() throws Exception {
+
+        // Searching a stream (e.g. STDIN) must produce exactly the same output as searching the file.
+        Grep grep = GrepTest.newGrep("one", "^e");
+        grep.setWithLineNumber(true);
+        grep.setWithByteOffset(true);
+        grep.setBeforeContext(2);
+        grep.setAfterContext(1);
+
+        Assert.assertEquals(GrepTest.grep(grep, "a.txt"), GrepTest.grepStream(grep, GrepTest.A_TXT));
+    }
+
+    @Test public void
+    testLargeFile() throws Exception {
+
+        // Large enough to be searched through a memory-mapped window; the last line has no terminator.
+        String text = GrepTest.randomText(new Random(2), 40000) + "one tone";
+        new Files(new Object[] { "large.txt", text }).save(GrepTest.FILES);
+        Assert.assertTrue(new File(GrepTest.FILES, "large.txt").length() >= 256 * 1024);
+
+        for (String regex : new String[] { "one", "colou?r", "tone$", "\\bfoo\\b" }) {
+
+            Grep grep = GrepTest.newGrep(regex);
+            Assert.assertEquals(
+                regex,
+                GrepTest.matchingLines(text, true, regex),
+                GrepTest.grep(grep, "large.txt")
+            );
+
+            // The mapped file must produce exactly the same output as the stream.
+            grep.setWithLineNumber(true);
+            grep.setWithByteOffset(true);
+            Assert.assertEquals(regex, GrepTest.grepStream(grep, text), GrepTest.grep(grep, "large.txt"));
+        }
+    }
+
+    @Test public void
+    testMultiplePatterns() throws Exception {
+
+        String[][] regexSets = {
+            { "one", "two" },                  // Literals only.
+            { "tone", "one", "foo" },          // Literals that contain each other.
+            { "colou?r", "fo+bar", "al.ha" },  // Regexes with required literals.
+            { "one", "\\b[a-z]{3}\\b" },       // One regex without a required literal.
+            { "x$", "^alpha", "ONE" },
+        };
+
+        for (String[] regexes : regexSets) {
+            for (boolean caseSensitive : new boolean[] { true, false }) {
+
+                Grep grep = new Grep();
+                for (String regex : regexes) grep.addSearch(Glob.ANY, regex, caseSensitive);
+
+                Assert.assertEquals(
+                    Arrays.toString(regexes) + (caseSensitive ? "" : " (case-insensitive)"),
+                    GrepTest.matchingLines(GrepTest.RANDOM_TXT, caseSensitive, regexes),
+                    GrepTest.grep(grep, "random.txt")
+                );
+            }
+        }
+    }
+
+    @Test public void
+    testMultiplePatternsOnlyMatching() throws Exception {
+
+        Grep grep = GrepTest.newGrep("beta", "eta", "zz");
+        Assert.assertEquals(Arrays.asList("beta one", "zeta", "eta one"), GrepTest.grep(grep, "a.txt"));
+
+        // The matches of all patterns, in the order they appear in the line.
+        grep = GrepTest.newGrep("one", "de", "two");
+        grep.setOperation(Operation.ONLY_MATCHING);
+        Assert.assertEquals(Arrays.asList("one", "de", "one", "two", "one"), GrepTest.grep(grep, "a.txt"));
+    }
+
+    @Test public void
+    testChunkedSearch() throws Exception {
+
+        // More than two chunks of 16 MB each; some of the matches are close to or even across the chunk boundaries.
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(new File(GrepTest.FILES, "huge.txt")));
+        try {
+            byte[] filler = String.format("%-99s\n", "filler").getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < 340000; i++) {
+                if (
+                    i == 0 || i == 5
+                    || (i >= 167771 && i <= 167773) // 16 MB
+                    || (i >= 335543 && i <= 335545) // 32 MB
+                    || i == 339999
+                ) {
+                    os.write(String.format("%-99s\n", "needle " + i).getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    os.write(filler);
+                }
+            }
+        } finally {
+            os.close();
+        }
+
+        GrepTest.assertChunkedSearch(grep -> {});
+        GrepTest.assertChunkedSearch(grep -> grep.setWithLineNumber(true));
+        GrepTest.assertChunkedSearch(grep -> grep.setWithByteOffset(true));
+        GrepTest.assertChunkedSearch(grep -> { grep.setBeforeContext(2); grep.setAfterContext(2); });
+        GrepTest.assertChunkedSearch(grep -> { grep.setWithLineNumber(true); grep.setMaxCount(4); });
+        GrepTest.assertChunkedSearch(grep -> {
+            grep.setWithByteOffset(true);
+            grep.setOperation(Operation.ONLY_MATCHING);
+        });
+        GrepTest.assertChunkedSearch(grep -> grep.setOperation(Operation.COUNT));
+        GrepTest.assertChunkedSearch(grep -> grep.setOperation(Operation.FILES_WITH_MATCHES));
+        GrepTest.assertChunkedSearch(grep -> grep.setOperation(Operation.QUIET));
+
+        // A caller-supplied pool remains usable after the search.
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            GrepTest.assertChunkedSearch(grep -> { grep.setWithLineNumber(true); grep.setChunkExecutorService(pool); });
+            GrepTest.assertChunkedSearch(grep -> { grep.setWithByteOffset(true); grep.setChunkExecutorService(pool); });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test public void
+    testResultCache() throws Exception {
+
+        new Files(new Object[] { "b.zip", new Object[] { "dir/b.txt", GrepTest.A_TXT } }).save(GrepTest.FILES);
+
+        File cacheDirectory = new File(GrepTest.FILES, "cache");
+        File aTxt           = new File(GrepTest.FILES, "a.txt");
+
+        List<String> expected = Arrays.asList(
+            GrepTest.path("a.txt") + ":2:beta one",
+            GrepTest.path("a.txt") + ":4:delta one two",
+            GrepTest.path("a.txt") + ":7:eta one",
+            GrepTest.path("b.zip") + "!dir/b.txt:2:beta one",
+            GrepTest.path("b.zip") + "!dir/b.txt:4:delta one two",
+            GrepTest.path("b.zip") + "!dir/b.txt:7:eta one"
+        );
+
+        // The first search fills the cache, the second replays it.
+        Assert.assertEquals(expected, GrepTest.grep(GrepTest.newCachingGrep(cacheDirectory), "a.txt", "b.zip"));
+        Grep grep = GrepTest.newCachingGrep(cacheDirectory);
+        Assert.assertEquals(expected, GrepTest.grep(grep, "a.txt", "b.zip"));
+        Assert.assertEquals(6, grep.getTotalMatchCount());
+
+        // Same size and modification time: The cached result is replayed.
+        long lastModified = aTxt.lastModified();
+        new Files(new Object[] { "a.txt", GrepTest.A_TXT.replace("beta one", "BETA ONE") }).save(GrepTest.FILES);
+        Assert.assertTrue(aTxt.setLastModified(lastModified));
+        Assert.assertEquals(expected, GrepTest.grep(GrepTest.newCachingGrep(cacheDirectory), "a.txt", "b.zip"));
+
+        // Modified file: It is searched again.
+        Assert.assertTrue(aTxt.setLastModified(lastModified - 10000));
+        Assert.assertEquals(
+            expected.subList(1, 6),
+            GrepTest.grep(GrepTest.newCachingGrep(cacheDirectory), "a.txt", "b.zip")
+        );
+    }
+
+    /**
+     * @return A {@link Grep} that searches for "one", and caches its results in the <var>cacheDirectory</var>
+     */
+    private static Grep
+    newCachingGrep(File cacheDirectory) {
+
+        Grep grep = GrepTest.newGrep("one");
+        grep.setWithPath(true);
+        grep.setWithLineNumber(true);
+        grep.setResultCacheDirectory(cacheDirectory);
+
+        return grep;
+    }
+
+    @Test public void
+    testWatch() throws Exception {
+
+        final Grep grep = GrepTest.newGrep("needle");
+        grep.setWithPath(true);
+        grep.setWithLineNumber(true);
+        grep.setWatch(true);
+
+        final List<String>               lines       = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch             searched    = new CountDownLatch(1);
+        final AtomicReference<Exception> exception   = new AtomicReference<Exception>();
+        Thread                           watchThread = new Thread(() -> {
+            try {
+                AbstractPrinter.getContextPrinter().redirectInfo(
+                    ConsumerUtil.addToCollection(lines)
+                ).run((RunnableWhichThrows<Exception>) () -> {
+                    FileProcessings.process(Collections.singletonList(GrepTest.FILES), grep.fileProcessor(true));
+                    searched.countDown();
+                    grep.watch(() -> {});
+                });
+            } catch (InterruptedException ie) {
+                ;
+            } catch (Exception e) {
+                exception.set(e);
+            }
+        });
+        watchThread.start();
+
+        try {
+            Assert.assertTrue(searched.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(Arrays.asList(), lines);
+
+            // Only complete lines are searched...
+            GrepTest.append("a.txt", "needle 1\npartial needle");
+            GrepTest.awaitLines(lines, GrepTest.path("a.txt") + ":8:needle 1");
+
+            // ... and the rest of an incomplete line when it is completed.
+            GrepTest.append("a.txt", " 2\n");
+            GrepTest.awaitLines(
+                lines,
+                GrepTest.path("a.txt") + ":8:needle 1",
+                GrepTest.path("a.txt") + ":9:partial needle 2"
+            );
+
+            // New files in watched directories are also searched.
+            GrepTest.append("new.txt", "x\nneedle 3\n");
+            GrepTest.awaitLines(
+                lines,
+                GrepTest.path("a.txt") + ":8:needle 1",
+                GrepTest.path("a.txt") + ":9:partial needle 2",
+                GrepTest.path("new.txt") + ":2:needle 3"
+            );
+        } finally {
+            watchThread.interrupt();
+            watchThread.join();
+        }
+
+        Exception e = exception.get();
+        if (e != null) throw e;
+    }
+
+    @Test public void
+    testMatchHandler() throws Exception {
+
+        final Thread       thread  = Thread.currentThread();
+        final List<String> matches = new ArrayList<String>();
+
+        Grep grep = GrepTest.newGrep("one", "t.o");
+        grep.setWithByteOffset(true);
+        grep.setMatchHandler(new MatchHandler() {
+
+            @Override public boolean
+            handleMatch(Match match) {
+
+                // The handler is invoked synchronously, so it throttles the search.
+                Assert.assertSame(thread, Thread.currentThread());
+
+                matches.add(
+                    match.path()
+                    + ':'
+                    + match.lineNumber()
+                    + ':'
+                    + match.lineByteOffset()
+                    + ':'
+                    + match.byteOffset()
+                    + ':'
+                    + match.line()
+                    + ':'
+                    + match.start()
+                    + '-'
+                    + match.end()
+                    + ':'
+                    + match.pattern()
+                );
+                return true;
+            }
+        });
+
+        // The matches are not printed.
+        Assert.assertEquals(Arrays.asList(), GrepTest.grep(grep, "a.txt"));
+
+        Assert.assertEquals(Arrays.asList(
+            GrepTest.path("a.txt") + ":2:6:11:beta one:5-8:one",
+            GrepTest.path("a.txt") + ":4:21:27:delta one two:6-9:one",
+            GrepTest.path("a.txt") + ":4:21:31:delta one two:10-13:t.o",
+            GrepTest.path("a.txt") + ":7:48:52:eta one:4-7:one"
+        ), matches);
+        Assert.assertEquals(4, grep.getTotalMatchCount());
+    }
+
+    @Test public void
+    testMatchHandlerStop() throws Exception {
+
+        final List<String> matches = new ArrayList<String>();
+
+        Grep grep = GrepTest.newGrep("one");
+        grep.setMatchHandler(match -> {
+            matches.add(match.line().toString());
+            return matches.size() % 5 != 0;
+        });
+
+        // Stopping the handler stops the entire search, not only the current document...
+        GrepTest.grep(grep, "a.txt", "random.txt", "a.txt");
+        Assert.assertEquals(
+            Arrays.asList("beta one", "delta one two", "eta one"),
+            matches.subList(0, 3)
+        );
+        Assert.assertEquals(5, matches.size());
+
+        // ... but not the next search.
+        GrepTest.grep(grep, "random.txt");
+        Assert.assertEquals(10, matches.size());
+
+        GrepTest.grepStream(grep, GrepTest.A_TXT);
+        Assert.assertEquals(13, matches.size());
+    }
+
+    /**
+     * Appends the <var>text</var> to the file with the given <var>name</var> in the {@link #FILES} directory.
+     */
+    private static void
+    append(String name, String text) throws IOException {
+
+        OutputStream os = new FileOutputStream(new File(GrepTest.FILES, name), true);
+        try {
+            os.write(text.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Waits until the <var>lines</var> are complete, and verifies them.
+     */
+    private static void
+    awaitLines(List<String> lines, String... expected) throws InterruptedException {
+
+        for (int i = 0; i < 300 && lines.size() < expected.length; i++) Thread.sleep(100);
+
+        synchronized (lines) { Assert.assertEquals(Arrays.asList(expected), new ArrayList<String>(lines)); }
+    }
+
+    /**
+     * Verifies that searching "files/huge.txt" in chunks produces exactly the same output as the sequential search.
+     */
+    private static void
+    assertChunkedSearch(Consumer<Grep> configuration) throws Exception {
+
+        Grep sequential = GrepTest.newGrep("needle");
+        configuration.consume(sequential);
+
+        Grep chunked = GrepTest.newGrep("needle");
+        chunked.setThreadCount(4);
+        chunked.setLargeFileThreshold(1024 * 1024);
+        configuration.consume(chunked);
+
+        List<String> expected = GrepTest.grep(sequential, "huge.txt");
+        Assert.assertEquals(expected, GrepTest.grep(chunked, "huge.txt"));
+        Assert.assertEquals(sequential.getTotalMatchCount(), chunked.getTotalMatchCount());
+    }
+
+    /**
+     * @return A {@link Grep} that searches all documents for the case-sensitive <var>regexes</var>
+     */
+    private static Grep
+    newGrep(String... regexes) {
+
+        Grep grep = new Grep();
+        for (String regex : regexes) grep.addSearch(Glob.ANY, regex, true);
+
+        return grep;
+    }
+
+    /**
+     * Searches the files and directories with the given <var>names</var> in the {@link #FILES} directory (see {@link
+     * #setUp()}).
+     *
+     * @return The lines of INFO output (see {@link Printers#info(String)})
+     */
+    private static List<String>
+    grep(final Grep grep, String... names) throws Exception {
+
+        final List<File> files = new ArrayList<File>();
+        for (String name : names) files.add(new File(GrepTest.FILES, name));
+
+        List<String> lines = new ArrayList<String>();
+        AbstractPrinter.getContextPrinter().redirectInfo(
+            ConsumerUtil.addToCollection(lines)
+        ).run((RunnableWhichThrows<Exception>) () -> FileProcessings.process(files, grep.fileProcessor(true)));
+
+        return lines;
+    }
+
+    /**
+     * Searches the <var>contents</var> as a stream (like STDIN), with path "-".
+     *
+     * @return The lines of INFO output (see {@link Printers#info(String)})
+     */
+    private static List<String>
+    grepStream(final Grep grep, final String contents) throws IOException {
+
+        final byte[] bytes = contents.getBytes(StandardCharsets.UTF_8);
+
+        List<String> lines = new ArrayList<String>();
+        AbstractPrinter.getContextPrinter().redirectInfo(
+            ConsumerUtil.addToCollection(lines)
+        ).run((RunnableWhichThrows<IOException>) () -> grep.contentsProcessor().process(
+            "-",                                  // path
+            new ByteArrayInputStream(bytes),      // inputStream
+            null,                                 // lastModifiedDate
+            bytes.length,                         // size
+            -1L,                                  // crc32
+            () -> new ByteArrayInputStream(bytes) // opener
+        ));
+
+        return lines;
+    }
+
+    /**
+     * @return The path of the file with the given <var>name</var> in the {@link #FILES} directory, as it appears in
+     *         the output
+     */
+    private static String
+    path(String name) { return new File(GrepTest.FILES, name).getPath(); }
+
+    /**
+     * @return The lines of the <var>text</var> that contain a match of any of the <var>regexes</var>, as the regex
+     *         engine finds them
+     */
+    private static List<String>
+    matchingLines(String text, boolean caseSensitive, String... regexes) {
+
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String regex : regexes) {
+            patterns.add(Pattern.compile(regex, caseSensitive ? 0 : Pattern.CASE_INSENSITIVE));
+        }
+
+        List<String> result = new ArrayList<String>();
+        for (String line : text.split("\n")) {
+            for (Pattern pattern : patterns) {
+                if (pattern.matcher(line).find()) {
+                    result.add(line);
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return <var>lineCount</var> lines of words, some of which differ only in case, or contain others
+     */
+    private static String
+    randomText(Random random, int lineCount) {
+
+        String[] words = {
+            "one", "One", "ONE", "tone", "two", "color", "colour", "colr", "foo", "bar", "foobar", "alpha", "al-ha",
+            "x",
+        };
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            for (int j = random.nextInt(6); j > 0; j--) {
+                sb.append(words[random.nextInt(words.length)]);
+                if (j > 1) sb.append(' ');
+            }
+            sb.append('\n');
+        }
+
+        return sb.toString();
+    }
+}